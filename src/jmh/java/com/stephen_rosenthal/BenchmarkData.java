@@ -0,0 +1,40 @@
+package com.stephen_rosenthal;
+
+import java.lang.reflect.Field;
+
+/**
+ * Test data and wiring shared by the benchmarks.
+ */
+final class BenchmarkData {
+
+    private BenchmarkData() {
+        /* Static methods only */
+    }
+
+    /**
+     * @return a realistic customer, with a valid id. Customers with the same index are equal.
+     */
+    static Customer customer(int index) {
+        String id = String.format("54fc20a0a82672962f%06x", index);
+        return new Customer(id, "james.t.kirk+" + index + "@gmail.com", "James", "Kirk " + index);
+    }
+
+    /**
+     * Set a private field, declared by the target's class or a superclass, for wiring beans without starting Spring.
+     */
+    static void inject(Object target, String fieldName, Object value) {
+        for (Class<?> type = target.getClass(); type != null; type = type.getSuperclass()) {
+            try {
+                Field field = type.getDeclaredField(fieldName);
+                field.setAccessible(true);
+                field.set(target, value);
+                return;
+            } catch (NoSuchFieldException e) {
+                // Try the superclass
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Could not set " + fieldName, e);
+            }
+        }
+        throw new IllegalStateException("No field " + fieldName);
+    }
+}
@@ -0,0 +1,114 @@
+package com.stephen_rosenthal;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for CustomersController handlers, called directly against a StubCustomerRepository.
+ * These measure the controller and cache, without HTTP, JSON, or database time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ControllerBenchmark {
+
+    private CustomersController controller;
+    private String id;
+    private Customer customer;
+
+    @Setup
+    public void setUp() {
+        StubCustomerRepository customerRepository = new StubCustomerRepository(100);
+
+        CustomerCache customerCache = new CustomerCache();
+        BenchmarkData.inject(customerCache, "customerRepository", customerRepository);
+        BenchmarkData.inject(customerCache, "objectMapper", new ObjectMapper());
+        BenchmarkData.inject(customerCache, "maximumSize", 10000L);
+        BenchmarkData.inject(customerCache, "expireAfterWriteSeconds", 60L);
+        customerCache.init();
+
+        CustomerTotals customerTotals = new CustomerTotals();
+        BenchmarkData.inject(customerTotals, "customerRepository", customerRepository);
+        BenchmarkData.inject(customerTotals, "maxAgeMillis", 10000L);
+        BenchmarkData.inject(customerTotals, "maxWrites", 1000L);
+        customerTotals.init();
+
+        // Synchronous, as by default: the work runs on the calling thread
+        CustomerRequestExecutor requestExecutor = new CustomerRequestExecutor();
+        requestExecutor.init();
+
+        // Disabled, as by default: each create is its own insert
+        CustomerGroupCommitter groupCommitter = new CustomerGroupCommitter();
+        groupCommitter.init();
+
+        // Kept in memory, as with customerStore=memory
+        CustomerChangeFeed changeFeed = new InMemoryCustomerChangeFeed();
+        BenchmarkData.inject(changeFeed, "customerCache", customerCache);
+        BenchmarkData.inject(changeFeed, "customerTotals", customerTotals);
+        BenchmarkData.inject(changeFeed, "maxChanges", 100000L);
+        BenchmarkData.inject(changeFeed, "maxWaitMillis", 30000L);
+        changeFeed.init();
+
+        BinaryFormats binaryFormats = new BinaryFormats();
+        BenchmarkData.inject(binaryFormats, "objectMapperBuilder", new Jackson2ObjectMapperBuilder());
+        binaryFormats.init();
+
+        controller = new CustomersController();
+        BenchmarkData.inject(controller, "customerRepository", customerRepository);
+        BenchmarkData.inject(controller, "customerCache", customerCache);
+        BenchmarkData.inject(controller, "customerTotals", customerTotals);
+        BenchmarkData.inject(controller, "requestExecutor", requestExecutor);
+        BenchmarkData.inject(controller, "groupCommitter", groupCommitter);
+        BenchmarkData.inject(controller, "changeFeed", changeFeed);
+        BenchmarkData.inject(controller, "binaryFormats", binaryFormats);
+        BenchmarkData.inject(controller, "objectMapper", new ObjectMapper());
+
+        customer = BenchmarkData.customer(1);
+        id = customer.getId();
+    }
+
+    @Benchmark
+    public Object getCustomer() {
+        return controller.getCustomer(id, null, null, null).getResult();
+    }
+
+    @Benchmark
+    public Object listCustomers() {
+        return controller.listCustomers(0, 20, null, false, null, null).getResult();
+    }
+
+    @Benchmark
+    public Object listCustomersAfter() {
+        return controller.listCustomersAfter("", 20, null, null, null).getResult();
+    }
+
+    @Benchmark
+    public Object listSimilarCustomers() {
+        return controller.listSimilarCustomers(id, 0, 20, null, false, null, null).getResult();
+    }
+
+    @Benchmark
+    public Object createCustomer() {
+        return controller.createCustomer(new Customer("l.nimoy@gmail.com", "Leonard", "Nimoy")).getResult();
+    }
+
+    @Benchmark
+    public Object update() {
+        return controller.update(id, customer, null).getResult();
+    }
+}
@@ -0,0 +1,59 @@
+package com.stephen_rosenthal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the normalization done whenever a Customer is created or deserialized,
+ * and for the blocking keys computed from it (see FuzzyMatcher).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CustomerBenchmark {
+
+    private String email = "Leonard.S.Nimoy+autograph@Gmail.com";
+    private String paddedEmail = "  Leonard.S.Nimoy+autograph@Gmail.com ";
+    private String firstName = "  Leonard ";
+    private String lastName = "Nimoy  ";
+    private Customer customer = new Customer(email, firstName, lastName);
+
+    @Benchmark
+    public String normalizeEmail() {
+        return Customer.normalizeEmail(email);
+    }
+
+    @Benchmark
+    public Customer constructor() {
+        return new Customer("54fc20a0a82672962f2f740d", paddedEmail, firstName, lastName);
+    }
+
+    // As Jackson does when deserializing; the blocking keys are left until they are first used
+    @Benchmark
+    public Customer setters() {
+        Customer customer = new Customer();
+        customer.setId("54fc20a0a82672962f2f740d");
+        customer.setEmail(email);
+        customer.setFirstName(firstName);
+        customer.setLastName(lastName);
+        return customer;
+    }
+
+    @Benchmark
+    public List<String> blockingKeys() {
+        return FuzzyMatcher.getDefault().blockingKeys(customer);
+    }
+}
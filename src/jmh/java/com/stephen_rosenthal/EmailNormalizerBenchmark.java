@@ -0,0 +1,60 @@
+package com.stephen_rosenthal;
+
+import com.google.common.base.CharMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares EmailNormalizer with the multi-pass implementation it replaced.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EmailNormalizerBenchmark {
+
+    @Param({"Leonard.S.Nimoy+autograph@Gmail.com", "capt.picard@starfleet.gov"})
+    private String email;
+
+    private final EmailNormalizer normalizer = EmailNormalizer.getDefault();
+
+    @Benchmark
+    public String singlePass() {
+        return normalizer.normalize(email);
+    }
+
+    @Benchmark
+    public String previous() {
+        return previousNormalizeEmail(email);
+    }
+
+    /**
+     * The implementation of Customer.normalizeEmail before EmailNormalizer, including its tag bug
+     */
+    private static String previousNormalizeEmail(String email) {
+        int index = email.indexOf("@");
+        String local = email.substring(0, index);
+        String domain = email.substring(index + 1);
+
+        local = CharMatcher.is('.').removeFrom(local);
+
+        index = CharMatcher.anyOf("+-").indexIn(local);
+        if (index > 0) {
+            local = email.substring(0, index);
+        }
+
+        return local.toLowerCase().trim() + "@" + domain.toLowerCase().trim();
+    }
+}
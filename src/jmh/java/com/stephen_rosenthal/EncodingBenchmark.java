@@ -0,0 +1,151 @@
+package com.stephen_rosenthal;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Benchmarks for the formats a response can be encoded in (see BinaryFormats): JSON, Smile, and CBOR,
+ * with pages also gzipped, as Tomcat compresses responses for clients that accept it.
+ * Besides the time, each benchmark reports the bytes on the wire for one customer or one page, as wireBytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncodingBenchmark {
+
+    // Same as the maximum page size for List requests
+    private static final int PAGE_SIZE = 20;
+
+    @Param({"json", "smile", "cbor"})
+    private String format;
+
+    private ObjectWriter customerWriter;
+    private ObjectReader customerReader;
+    private ObjectWriter pageWriter;
+    private ObjectReader pageReader;
+
+    private Customer customer;
+    private byte[] customerBytes;
+    private CustomerPage page;
+    private byte[] pageBytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        ObjectMapper objectMapper;
+        switch (format) {
+            case "smile":
+                objectMapper = new ObjectMapper(new SmileFactory());
+                break;
+            case "cbor":
+                objectMapper = new ObjectMapper(new CBORFactory());
+                break;
+            default:
+                objectMapper = new ObjectMapper();
+        }
+        customerWriter = objectMapper.writerWithType(Customer.class);
+        customerReader = objectMapper.reader(Customer.class);
+        pageWriter = objectMapper.writerWithType(CustomerPage.class);
+        pageReader = objectMapper.reader(CustomerPage.class);
+
+        customer = BenchmarkData.customer(0);
+        customerBytes = customerWriter.writeValueAsBytes(customer);
+
+        List<Customer> customers = new ArrayList<>();
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            customers.add(BenchmarkData.customer(i));
+        }
+        page = new CustomerPage(customers, 10, 0, PAGE_SIZE, true, false, false);
+        pageBytes = pageWriter.writeValueAsBytes(page);
+    }
+
+    /**
+     * Size of the encoded value, reported next to the time of each benchmark that records it.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class WireSize {
+        private long bytes;
+        private long operations;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+            operations = 0;
+        }
+
+        void record(int size) {
+            bytes += size;
+            operations++;
+        }
+
+        /**
+         * @return average bytes per operation in the iteration.
+         */
+        public double wireBytes() {
+            return operations > 0 ? (double) bytes / operations : 0;
+        }
+    }
+
+    @Benchmark
+    public byte[] serializeCustomer(WireSize wireSize) throws IOException {
+        byte[] bytes = customerWriter.writeValueAsBytes(customer);
+        wireSize.record(bytes.length);
+        return bytes;
+    }
+
+    @Benchmark
+    public Customer deserializeCustomer() throws IOException {
+        return customerReader.readValue(customerBytes);
+    }
+
+    @Benchmark
+    public byte[] serializePage(WireSize wireSize) throws IOException {
+        byte[] bytes = pageWriter.writeValueAsBytes(page);
+        wireSize.record(bytes.length);
+        return bytes;
+    }
+
+    @Benchmark
+    public CustomerPage deserializePage() throws IOException {
+        return pageReader.readValue(pageBytes);
+    }
+
+    /**
+     * Encoding a page and gzipping it, as for a client that accepts gzip.
+     */
+    @Benchmark
+    public byte[] serializePageGzipped(WireSize wireSize) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(pageBytes.length);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            pageWriter.writeValue(gzip, page);
+        }
+        wireSize.record(bytes.size());
+        return bytes.toByteArray();
+    }
+}
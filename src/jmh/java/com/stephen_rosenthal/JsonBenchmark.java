@@ -0,0 +1,84 @@
+package com.stephen_rosenthal;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the Jackson serialization done by every request and response.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonBenchmark {
+
+    // Same as the maximum page size for List requests
+    private static final int PAGE_SIZE = 20;
+
+    private ObjectWriter customerWriter;
+    private ObjectReader customerReader;
+    private ObjectWriter pageWriter;
+    private ObjectReader pageReader;
+
+    private Customer customer;
+    private byte[] customerJson;
+    private CustomerPage page;
+    private byte[] pageJson;
+
+    @Setup
+    public void setUp() throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        customerWriter = objectMapper.writerWithType(Customer.class);
+        customerReader = objectMapper.reader(Customer.class);
+        pageWriter = objectMapper.writerWithType(CustomerPage.class);
+        pageReader = objectMapper.reader(CustomerPage.class);
+
+        customer = BenchmarkData.customer(0);
+        customerJson = customerWriter.writeValueAsBytes(customer);
+
+        List<Customer> customers = new ArrayList<>();
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            customers.add(BenchmarkData.customer(i));
+        }
+        page = new CustomerPage(customers, 10, 0, PAGE_SIZE, true, false, false);
+        pageJson = pageWriter.writeValueAsBytes(page);
+    }
+
+    @Benchmark
+    public byte[] serializeCustomer() throws IOException {
+        return customerWriter.writeValueAsBytes(customer);
+    }
+
+    @Benchmark
+    public Customer deserializeCustomer() throws IOException {
+        return customerReader.readValue(customerJson);
+    }
+
+    @Benchmark
+    public byte[] serializePage() throws IOException {
+        return pageWriter.writeValueAsBytes(page);
+    }
+
+    @Benchmark
+    public CustomerPage deserializePage() throws IOException {
+        return pageReader.readValue(pageJson);
+    }
+}
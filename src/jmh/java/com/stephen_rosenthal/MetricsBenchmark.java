@@ -0,0 +1,43 @@
+package com.stephen_rosenthal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording a request in Metrics, as done by MetricsFilter. Should not allocate (gc.alloc.rate.norm = 0).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    private final Metrics metrics = new Metrics();
+
+    private long value = 12345;
+
+    @Benchmark
+    public void recordRequest() {
+        value = (value * 31 + 7) & 0xffffff; // Vary the value, so the same counter is not hit every time
+        metrics.getRequests("getCustomer").record(value);
+        metrics.getResponseSizes("getCustomer").record(value & 0xfff);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordRequestContended() {
+        metrics.getRequests("getCustomer").record(Thread.currentThread().getId() * 1000);
+    }
+}
@@ -0,0 +1,176 @@
+package com.stephen_rosenthal;
+
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Repository with a fixed set of customers held in memory, so benchmarks measure the code that calls it
+ * rather than the database. Writes are accepted but not stored.
+ */
+class StubCustomerRepository implements CustomerRepository {
+
+    private final Map<String, Customer> customers = new LinkedHashMap<>();
+    private final List<Customer> list;
+
+    /**
+     * @param count number of customers, created with BenchmarkData.customer().
+     */
+    StubCustomerRepository(int count) {
+        for (int i = 0; i < count; i++) {
+            Customer customer = BenchmarkData.customer(i);
+            customers.put(customer.getId(), customer);
+        }
+        list = new ArrayList<>(customers.values());
+    }
+
+    @Override
+    public List<Customer> findPage(Pageable pageable, CustomerFields fields) {
+        int start = Math.min(pageable.getOffset(), list.size());
+        return list.subList(start, Math.min(start + pageable.getPageSize() + 1, list.size()));
+    }
+
+    @Override
+    public Page<Customer> findSimilar(Customer customer, Pageable pageable, CustomerFields fields) {
+        return findAll(pageable);
+    }
+
+    @Override
+    public Page<Customer> findFuzzySimilar(Customer customer, Pageable pageable, CustomerFields fields) {
+        return findAll(pageable);
+    }
+
+    @Override
+    public BulkInsertResult insertAll(List<Customer> customers) {
+        return new BulkInsertResult(customers.size(), Collections.<Integer, String>emptyMap());
+    }
+
+    @Override
+    public List<Customer> findAllAfter(String afterId, int limit, CustomerFields fields) {
+        return list.subList(0, Math.min(limit, list.size()));
+    }
+
+    @Override
+    public List<Customer> findSimilarAfter(Customer customer, String afterId, int limit, CustomerFields fields) {
+        return findAllAfter(afterId, limit, fields);
+    }
+
+    @Override
+    public List<Customer> findByIds(Collection<String> ids, CustomerFields fields) {
+        List<Customer> found = new ArrayList<>();
+        for (String id : ids) {
+            Customer customer = customers.get(id);
+            if (customer != null) {
+                found.add(customer);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public List<Customer> findByNormalizedKeys(Collection<String> normalizedEmails, Collection<NameKey> normalizedNames) {
+        return list;
+    }
+
+    @Override
+    public void forEachModifiedSince(Date modifiedSince, Consumer<Customer> consumer) {
+        for (Customer customer : list) {
+            consumer.accept(customer);
+        }
+    }
+
+    @Override
+    public Customer updateFields(String id, Map<String, String> fields, Long expectedVersion) {
+        return findOne(id);
+    }
+
+    @Override
+    public Iterable<Customer> findAll(Sort sort) {
+        return list;
+    }
+
+    @Override
+    public Page<Customer> findAll(Pageable pageable) {
+        int start = Math.min(pageable.getOffset(), list.size());
+        int end = Math.min(start + pageable.getPageSize(), list.size());
+        return new PageImpl<>(list.subList(start, end), pageable, list.size());
+    }
+
+    @Override
+    public <S extends Customer> S save(S customer) {
+        if (customer.getId() == null) {
+            customer.setId(String.format("%024x", System.nanoTime()));
+        }
+        return customer;
+    }
+
+    @Override
+    public <S extends Customer> Iterable<S> save(Iterable<S> customers) {
+        for (S customer : customers) {
+            save(customer);
+        }
+        return customers;
+    }
+
+    @Override
+    public Customer findOne(String id) {
+        return customers.get(id);
+    }
+
+    @Override
+    public boolean exists(String id) {
+        return customers.containsKey(id);
+    }
+
+    @Override
+    public Iterable<Customer> findAll() {
+        return list;
+    }
+
+    @Override
+    public Iterable<Customer> findAll(Iterable<String> ids) {
+        List<Customer> result = new ArrayList<>();
+        for (String id : ids) {
+            Customer customer = customers.get(id);
+            if (customer != null) {
+                result.add(customer);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long count() {
+        return list.size();
+    }
+
+    @Override
+    public void delete(String id) {
+        /* Not stored */
+    }
+
+    @Override
+    public void delete(Customer customer) {
+        /* Not stored */
+    }
+
+    @Override
+    public void delete(Iterable<? extends Customer> customers) {
+        /* Not stored */
+    }
+
+    @Override
+    public void deleteAll() {
+        /* Not stored */
+    }
+}
@@ -0,0 +1,285 @@
+package com.stephen_rosenthal;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends requests to the server at fixed rates, whether or not earlier requests have finished (an open model, like
+ * real clients, rather than a fixed number of clients that each wait for their last response). Each request's latency
+ * is measured from the time it was scheduled, not the time it was sent, so that time spent waiting for a free client
+ * thread while the server is slow is counted, instead of hiding the slowdown.
+ */
+class LoadGenerator {
+
+    // Longest latency recorded; slower requests are recorded as this
+    private static final long MAX_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final int TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * The kinds of requests sent, each at a rate of its own
+     */
+    enum Endpoint {
+        GET, LIST, DEEP_PAGE, LIKE_ID, CREATE, UPDATE, DELETE;
+
+        /**
+         * @return name used in the loadTestRates property and the report, ex: deepPage.
+         */
+        String getName() {
+            String[] words = name().toLowerCase().split("_");
+            StringBuilder name = new StringBuilder(words[0]);
+            for (int i = 1; i < words.length; i++) {
+                name.append(Character.toUpperCase(words[i].charAt(0))).append(words[i].substring(1));
+            }
+            return name.toString();
+        }
+
+        static Endpoint forName(String name) {
+            for (Endpoint endpoint : values()) {
+                if (endpoint.getName().equals(name)) {
+                    return endpoint;
+                }
+            }
+            throw new IllegalArgumentException("Unknown endpoint: " + name);
+        }
+    }
+
+    /**
+     * Outcome of the requests to one endpoint, in the measured part of the test
+     */
+    static class Result {
+        private final double rate;
+        private final Histogram latencies;
+        private final long errors;
+
+        Result(double rate, Histogram latencies, long errors) {
+            this.rate = rate;
+            this.latencies = latencies;
+            this.errors = errors;
+        }
+
+        double getRate() {
+            return rate;
+        }
+
+        /**
+         * @return latencies of the requests that got a response, successful or not, in nanoseconds.
+         */
+        Histogram getLatencies() {
+            return latencies;
+        }
+
+        /**
+         * @return number of requests that failed, or got a 4xx or 5xx response.
+         */
+        long getErrors() {
+            return errors;
+        }
+    }
+
+    private final String baseUrl;
+    private final Map<Endpoint, Double> rates;
+    private final String[] ids;
+    private final int deletableFrom;
+    private final LoadTestData data;
+    private final ExecutorService clients;
+
+    private final Map<Endpoint, Recorder> latencies = new EnumMap<>(Endpoint.class);
+    private final Map<Endpoint, LongAdder> errors = new EnumMap<>(Endpoint.class);
+    private final AtomicInteger nextDeleted;
+    private final AtomicLong created = new AtomicLong();
+
+    // Requests scheduled at or after this time are measured; those before it are the warmup
+    private volatile long measureFromNanos = Long.MAX_VALUE;
+
+    /**
+     * @param rates requests per second, for each endpoint.
+     * @param ids ids of the seeded customers, which requests pick from at random.
+     * @param deletableFrom index in ids of the first customer that may be deleted; the others are only read and
+     *                      updated, so that reads find them.
+     * @param threads most requests in flight; more wait for a free thread, which counts in their latency.
+     */
+    LoadGenerator(int port, Map<Endpoint, Double> rates, String[] ids, int deletableFrom, LoadTestData data,
+                  int threads) {
+        this.baseUrl = "http://localhost:" + port;
+        this.rates = rates;
+        this.ids = ids;
+        this.deletableFrom = deletableFrom;
+        this.nextDeleted = new AtomicInteger(deletableFrom);
+        this.data = data;
+        this.clients = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "load-test-client");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        for (Endpoint endpoint : Endpoint.values()) {
+            latencies.put(endpoint, new Recorder(MAX_NANOS, 3));
+            errors.put(endpoint, new LongAdder());
+        }
+    }
+
+    /**
+     * Send requests for the warmup and then the measured time, and wait for the responses.
+     */
+    Map<Endpoint, Result> run(long warmupSeconds, long seconds) throws InterruptedException {
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+
+        List<Thread> schedulers = new ArrayList<>();
+        for (Map.Entry<Endpoint, Double> rate : rates.entrySet()) {
+            if (rate.getValue() > 0) {
+                Thread scheduler = new Thread(() -> schedule(rate.getKey(), rate.getValue(), start, end),
+                        "load-test-" + rate.getKey().getName());
+                scheduler.start();
+                schedulers.add(scheduler);
+            }
+        }
+
+        LockSupport.parkNanos(measureFrom - System.nanoTime());
+        measureFromNanos = measureFrom;
+        for (Recorder recorder : latencies.values()) {
+            recorder.reset(); // Drop the warmup's latencies
+        }
+        for (LongAdder count : errors.values()) {
+            count.reset();
+        }
+
+        for (Thread scheduler : schedulers) {
+            scheduler.join();
+        }
+        clients.shutdown();
+        if (!clients.awaitTermination(TIMEOUT_MILLIS * 2L, TimeUnit.MILLISECONDS)) {
+            clients.shutdownNow();
+        }
+
+        Map<Endpoint, Result> results = new EnumMap<>(Endpoint.class);
+        for (Map.Entry<Endpoint, Double> rate : rates.entrySet()) {
+            Endpoint endpoint = rate.getKey();
+            results.put(endpoint, new Result(rate.getValue(), latencies.get(endpoint).getIntervalHistogram(),
+                    errors.get(endpoint).sum()));
+        }
+        return results;
+    }
+
+    /**
+     * Hand requests to the client threads at their scheduled times, from start until end.
+     */
+    private void schedule(Endpoint endpoint, double rate, long start, long end) {
+        double intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        for (long i = 0; ; i++) {
+            long scheduled = start + (long) (i * intervalNanos);
+            if (scheduled >= end) {
+                return;
+            }
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            clients.execute(() -> send(endpoint, scheduled));
+        }
+    }
+
+    private void send(Endpoint endpoint, long scheduled) {
+        boolean failed;
+        try {
+            int status = request(endpoint);
+            failed = status >= 400;
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+        }
+        long latency = Math.min(System.nanoTime() - scheduled, MAX_NANOS);
+        if (scheduled >= measureFromNanos) {
+            latencies.get(endpoint).recordValue(latency);
+            if (failed) {
+                errors.get(endpoint).increment();
+            }
+        }
+    }
+
+    /**
+     * Send one request to the endpoint, and read the whole response.
+     * @return the response status.
+     */
+    private int request(Endpoint endpoint) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String id = ids[random.nextInt(deletableFrom)];
+        switch (endpoint) {
+            case GET:
+                return send("GET", "/customers/" + id, null);
+            case LIST:
+                return send("GET", "/customers?page=" + random.nextInt(10), null);
+            case DEEP_PAGE:
+                // Offsets deep into the customers, which the database has to skip
+                int pages = Math.max(1, ids.length / 20);
+                return send("GET", "/customers?page=" + (pages / 2 + random.nextInt(Math.max(1, pages / 2))), null);
+            case LIKE_ID:
+                return send("GET", "/customers?likeId=" + id, null);
+            case CREATE:
+                return send("POST", "/customers", toJson(data.fresh(created.incrementAndGet())));
+            case UPDATE:
+                // Replaces the customer with a new one, with an email of its own
+                return send("PUT", "/customers/" + id, toJson(data.fresh(created.incrementAndGet())));
+            case DELETE:
+                int deleted = nextDeleted.getAndIncrement();
+                if (deleted >= ids.length) {
+                    throw new IllegalStateException("No customers left to delete; raise loadTestCustomers");
+                }
+                return send("DELETE", "/customers/" + ids[deleted], null);
+            default:
+                throw new IllegalArgumentException("Unknown endpoint: " + endpoint);
+        }
+    }
+
+    private int send(String method, String path, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setInstanceFollowRedirects(false); // The 303 after a create is the response
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = connection.getResponseCode();
+        // Read the whole body, so the connection can be reused
+        try (InputStream input = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            if (input != null) {
+                byte[] buffer = new byte[8192];
+                while (input.read(buffer) >= 0) {
+                    // Discard
+                }
+            }
+        }
+        return status;
+    }
+
+    private static String toJson(Customer customer) {
+        return String.format("{\"email\": \"%s\", \"firstName\": \"%s\", \"lastName\": \"%s\"}",
+                customer.getEmail(), customer.getFirstName(), customer.getLastName());
+    }
+}
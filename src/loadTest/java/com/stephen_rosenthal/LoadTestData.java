@@ -0,0 +1,154 @@
+package com.stephen_rosenthal;
+
+import org.bson.types.ObjectId;
+
+import java.util.Random;
+
+/**
+ * Generates the customers the load test starts with: realistic names and emails, where a share of the customers are
+ * near-duplicates of recent ones, the way a real customer base has people who signed up twice. Duplicates vary
+ * their original as FuzzyMatcher and the similar-customer queries expect: the same email with a tag, a nickname,
+ * or a typo in the last name. The same seed always generates the same customers.
+ */
+class LoadTestData {
+
+    private static final String[] FIRST_NAMES = {
+            "William", "Robert", "Catherine", "Christopher", "Daniel", "David", "Richard", "Edward", "Theodore",
+            "James", "John", "Elizabeth", "Margaret", "Jennifer", "Michael", "Patricia", "Susan", "Thomas",
+            "Joseph", "Barbara", "Nancy", "Charles", "Karen", "Steven", "Sarah", "Andrew", "Laura", "Kevin"};
+
+    // Nicknames from nicknames.properties, in the order of FIRST_NAMES; null where there is none in the list
+    private static final String[] NICKNAMES = {
+            "Bill", "Bob", "Kate", "Chris", "Dan", "Dave", "Rick", "Ed", "Ted",
+            "Jim", "Jon", null, null, null, null, null, null, null,
+            null, null, null, null, null, null, null, "Andy", null, null};
+
+    private static final String[] LAST_NAMES = {
+            "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis", "Rodriguez", "Martinez",
+            "Hernandez", "Lopez", "Gonzalez", "Wilson", "Anderson", "Taylor", "Moore", "Jackson", "Martin", "Lee",
+            "Thompson", "White", "Harris", "Clark", "Lewis", "Robinson", "Walker", "Young", "Allen", "King"};
+
+    private static final String[] DOMAINS = {"gmail.com", "outlook.com", "yahoo.com", "icloud.com", "example.com"};
+
+    // Customers that duplicates are made from, so that a million of them don't have to be kept in memory
+    private static final int RECENT = 10000;
+
+    private final Random random;
+    private final double duplicateRate;
+    private final Customer[] recent = new Customer[RECENT];
+    private int count;
+    private int duplicates;
+
+    /**
+     * @param duplicateRate share of the customers, from 0 to 1, that are near-duplicates of an earlier one.
+     */
+    LoadTestData(long seed, double duplicateRate) {
+        this.random = new Random(seed);
+        this.duplicateRate = duplicateRate;
+    }
+
+    /**
+     * @return the next customer, with an id, so that requests can refer to it without reading it back.
+     */
+    Customer next() {
+        Customer customer;
+        if (count > 0 && random.nextDouble() < duplicateRate) {
+            customer = duplicate(recent[random.nextInt(Math.min(count, RECENT))]);
+            duplicates++;
+        } else {
+            customer = original(count);
+        }
+        recent[count % RECENT] = customer;
+        count++;
+        return customer;
+    }
+
+    /**
+     * @return a new customer that is not a duplicate of any of the others, for creates during the test.
+     */
+    Customer fresh(long index) {
+        String firstName = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+        String lastName = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+        String email = String.format("%s.%s.new%d@example.com", firstName, lastName, index).toLowerCase();
+        return new Customer(email, firstName, lastName);
+    }
+
+    int getDuplicates() {
+        return duplicates;
+    }
+
+    private Customer original(int index) {
+        String firstName = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+        String lastName = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+        // The index keeps emails distinct
+        String email = String.format("%s.%s%d@%s", firstName, lastName, index,
+                DOMAINS[random.nextInt(DOMAINS.length)]).toLowerCase();
+        return new Customer(new ObjectId().toString(), email, firstName, lastName + " " + suffix(index));
+    }
+
+    private Customer duplicate(Customer original) {
+        String email = original.getEmail();
+        String firstName = original.getFirstName();
+        String lastName = original.getLastName();
+        switch (random.nextInt(3)) {
+            case 0:
+                // Same mailbox: a tag, which EmailNormalizer removes
+                int at = email.indexOf('@');
+                email = email.substring(0, at) + "+" + random.nextInt(100) + email.substring(at);
+                break;
+            case 1:
+                String nickname = nickname(firstName);
+                if (nickname != null) {
+                    firstName = nickname;
+                } else {
+                    lastName = swapLetters(lastName); // No nickname for this name, so a typo instead
+                }
+                email = "other." + email;
+                break;
+            default:
+                lastName = swapLetters(lastName);
+                email = "other." + email;
+                break;
+        }
+        return new Customer(new ObjectId().toString(), email, firstName, lastName);
+    }
+
+    /**
+     * @return a few letters that make each original's name unique, so that, as with real names, a customer's similar
+     *         customers are its duplicates, not everyone who happens to share a first and last name from these lists.
+     */
+    private static String suffix(int index) {
+        StringBuilder suffix = new StringBuilder();
+        int value = index;
+        do {
+            suffix.append((char) ('a' + value % 26));
+            value /= 26;
+        } while (value > 0);
+        return suffix.toString();
+    }
+
+    private static String nickname(String firstName) {
+        for (int i = 0; i < FIRST_NAMES.length; i++) {
+            if (FIRST_NAMES[i].equals(firstName)) {
+                return NICKNAMES[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the name with two letters of its first word swapped, except the first letter.
+     */
+    private String swapLetters(String name) {
+        int end = name.indexOf(' ') >= 0 ? name.indexOf(' ') : name.length();
+        if (end < 3) {
+            return name;
+        }
+        int i = 2 + random.nextInt(end - 2);
+        char[] letters = name.toCharArray();
+        char swapped = letters[i];
+        letters[i] = letters[i - 1];
+        letters[i - 1] = swapped;
+        return new String(letters);
+    }
+}
@@ -0,0 +1,164 @@
+package com.stephen_rosenthal;
+
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command-line entry point for the end-to-end load test: starts the application, seeds it with customers, sends it
+ * a mix of requests at fixed rates, and writes the throughput and latency of each kind of request to a text file.
+ * The file has the same layout for every run, so runs can be compared with diff. Run it with 'gradle loadTest'.
+ *
+ * Settings, all optional, as system properties:
+ * loadTestCustomers: number of customers to seed.
+ * loadTestDuplicateRate: share of the seeded customers that are near-duplicates of others, from 0 to 1.
+ * loadTestRates: requests per second of each kind, ex: get=200,list=20; kinds not listed aren't sent.
+ * loadTestSeconds: how long to measure for.
+ * loadTestWarmupSeconds: how long to send requests for before measuring, so the JIT and caches warm up.
+ * loadTestSeed: seed for the generated customers.
+ * loadTestOutput: path of the file to write the results to.
+ */
+public class LoadTestMain {
+
+    private static final String DEFAULT_RATES = "get=200,list=20,deepPage=5,likeId=20,create=20,update=20,delete=5";
+
+    private static final int SEED_BATCH_SIZE = 1000;
+
+    // Client threads, and so at most this many requests in flight
+    private static final int CLIENT_THREADS = 512;
+
+    public static void main(String[] args) throws Exception {
+        int customers = Integer.getInteger("loadTestCustomers", 100000);
+        double duplicateRate = Double.parseDouble(System.getProperty("loadTestDuplicateRate", "0.1"));
+        Map<LoadGenerator.Endpoint, Double> rates = parseRates(System.getProperty("loadTestRates", DEFAULT_RATES));
+        long seconds = Long.getLong("loadTestSeconds", 60);
+        long warmupSeconds = Long.getLong("loadTestWarmupSeconds", 10);
+        long seed = Long.getLong("loadTestSeed", 1);
+        File output = new File(System.getProperty("loadTestOutput", "build/reports/loadtest/results.txt"));
+
+        // Keep a connection open for each client thread, instead of the default 5
+        System.setProperty("http.maxConnections", String.valueOf(CLIENT_THREADS));
+
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(Main.class)
+                .run("--server.port=0");
+        try {
+            int port = ((EmbeddedWebApplicationContext) context).getEmbeddedServletContainer().getPort();
+
+            LoadTestData data = new LoadTestData(seed, duplicateRate);
+            long seedStart = System.nanoTime();
+            String[] ids = seed(context, data, customers);
+            System.out.printf("Seeded %d customers (%d near-duplicates) in %d s%n", customers, data.getDuplicates(),
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - seedStart));
+
+            // Keep the last customers for deletes, one per delete, so the other requests always find theirs
+            long deletes = (long) Math.ceil(rates.getOrDefault(LoadGenerator.Endpoint.DELETE, 0.0)
+                    * (warmupSeconds + seconds));
+            if (deletes >= customers) {
+                throw new IllegalArgumentException("Too few customers for " + deletes + " deletes");
+            }
+            LoadGenerator generator = new LoadGenerator(port, rates, ids, (int) (customers - deletes), data,
+                    CLIENT_THREADS);
+            System.out.printf("Sending requests for %d s of warmup and %d s of measurement%n", warmupSeconds,
+                    seconds);
+            Map<LoadGenerator.Endpoint, LoadGenerator.Result> results = generator.run(warmupSeconds, seconds);
+
+            String store = context.getEnvironment().getProperty("customerStore", "mongo");
+            String report = report(results, customers, duplicateRate, seconds, store);
+            File directory = output.getAbsoluteFile().getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            Files.write(output.toPath(), report.getBytes(StandardCharsets.UTF_8));
+            System.out.print(report);
+            System.out.println("Wrote " + output.getAbsolutePath());
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * Replace the customers in the store with generated ones.
+     * @return the ids of the customers, in the order they were generated.
+     */
+    private static String[] seed(ConfigurableApplicationContext context, LoadTestData data, int count) {
+        CustomerRepository customerRepository = context.getBean(CustomerRepository.class);
+        CustomerTotals customerTotals = context.getBean(CustomerTotals.class);
+        customerRepository.deleteAll();
+
+        String[] ids = new String[count];
+        List<Customer> batch = new ArrayList<>(SEED_BATCH_SIZE);
+        for (int i = 0; i < count; i++) {
+            Customer customer = data.next();
+            ids[i] = customer.getId();
+            batch.add(customer);
+            if (batch.size() == SEED_BATCH_SIZE || i == count - 1) {
+                BulkInsertResult result = customerRepository.insertAll(batch);
+                if (!result.getErrors().isEmpty()) {
+                    throw new IllegalStateException("Could not seed customers: " + result.getErrors().values());
+                }
+                batch.clear();
+            }
+        }
+        customerTotals.count(); // Bulk inserts bypass it, so count them now rather than during the test
+        return ids;
+    }
+
+    /**
+     * @param rates requests per second of each kind, ex: get=200,list=20.
+     */
+    static Map<LoadGenerator.Endpoint, Double> parseRates(String rates) {
+        Map<LoadGenerator.Endpoint, Double> parsed = new EnumMap<>(LoadGenerator.Endpoint.class);
+        for (String rate : rates.split(",")) {
+            String[] parts = rate.trim().split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid rate, expected endpoint=requestsPerSecond: " + rate);
+            }
+            parsed.put(LoadGenerator.Endpoint.forName(parts[0].trim()), Double.parseDouble(parts[1].trim()));
+        }
+        return parsed;
+    }
+
+    /**
+     * @return a table of the results, one row per kind of request, with latencies in milliseconds.
+     * through/s counts every response, and good/s only those without an error, so that a server turning requests
+     * away quickly doesn't look like one serving them.
+     */
+    static String report(Map<LoadGenerator.Endpoint, LoadGenerator.Result> results, int customers,
+                         double duplicateRate, long seconds, String store) {
+        StringWriter report = new StringWriter();
+        PrintWriter out = new PrintWriter(report);
+        out.printf("# customers=%d duplicateRate=%s seconds=%d store=%s%n", customers, duplicateRate, seconds, store);
+        out.printf("%-10s %8s %9s %7s %10s %9s %9s %9s %9s %9s %9s%n", "endpoint", "rate/s", "requests", "errors",
+                "through/s", "good/s", "p50_ms", "p90_ms", "p99_ms", "p99.9_ms", "max_ms");
+        for (Map.Entry<LoadGenerator.Endpoint, LoadGenerator.Result> entry : results.entrySet()) {
+            LoadGenerator.Result result = entry.getValue();
+            Histogram latencies = result.getLatencies();
+            out.printf("%-10s %8.1f %9d %7d %10.1f %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", entry.getKey().getName(),
+                    result.getRate(), latencies.getTotalCount(), result.getErrors(),
+                    (double) latencies.getTotalCount() / seconds,
+                    (double) (latencies.getTotalCount() - result.getErrors()) / seconds,
+                    millis(latencies.getValueAtPercentile(50)), millis(latencies.getValueAtPercentile(90)),
+                    millis(latencies.getValueAtPercentile(99)), millis(latencies.getValueAtPercentile(99.9)),
+                    millis(latencies.getMaxValue()));
+        }
+        out.flush();
+        return report.toString();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,107 @@
+package com.stephen_rosenthal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A limit on concurrent requests that adapts to their latency, with additive increase and multiplicative decrease:
+ * while requests finish within the latency target, the limit grows by about one for each limit's worth of them;
+ * when one is slower, or fails, the limit shrinks by a tenth, at most once per latency target.
+ *
+ * When the database slows down, requests take longer, so the limit falls until the requests that are let in
+ * finish on time again; the rest are turned away right away, instead of queueing and making everyone late.
+ */
+public class AdaptiveLimit {
+
+    // Fraction of the limit kept after a slow or failed request
+    private static final double BACKOFF = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyTargetNanos;
+    private final LongSupplier nanoTime;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+
+    // Guarded by this for updates; read without locking when admitting requests
+    private volatile double limit;
+    private long lastDecreaseNanos;
+
+    /**
+     * @param latencyTargetNanos requests that take longer than this mean the limit is too high.
+     */
+    public AdaptiveLimit(int initialLimit, int minLimit, int maxLimit, long latencyTargetNanos) {
+        this(initialLimit, minLimit, maxLimit, latencyTargetNanos, System::nanoTime);
+    }
+
+    /**
+     * @param nanoTime clock to tell how long ago the limit was decreased, like System.nanoTime().
+     */
+    AdaptiveLimit(int initialLimit, int minLimit, int maxLimit, long latencyTargetNanos, LongSupplier nanoTime) {
+        if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException(
+                    "Need 1 <= minLimit <= initialLimit <= maxLimit: " + minLimit + ", " + initialLimit + ", " + maxLimit);
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyTargetNanos = latencyTargetNanos;
+        this.nanoTime = nanoTime;
+        this.lastDecreaseNanos = nanoTime.getAsLong() - latencyTargetNanos;
+    }
+
+    /**
+     * Admit a request if fewer than the limit are in flight. Admitted requests must call release() when done.
+     * @return whether the request was admitted.
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Record that an admitted request is done, and adjust the limit.
+     * @param latencyNanos how long the request took.
+     * @param failed whether the request failed in a way that suggests overload (ex: a 5xx status).
+     */
+    public void release(long latencyNanos, boolean failed) {
+        int wasInFlight = inFlight.getAndDecrement();
+        synchronized (this) {
+            if (failed || latencyNanos > latencyTargetNanos) {
+                long now = nanoTime.getAsLong();
+                if (now - lastDecreaseNanos >= latencyTargetNanos) {
+                    limit = Math.max(minLimit, limit * BACKOFF);
+                    lastDecreaseNanos = now;
+                }
+            } else if (wasInFlight * 2 >= limit) {
+                // Only grow while the limit is in use; an idle limit says nothing about what the database can take
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+        }
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return number of requests turned away.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+}
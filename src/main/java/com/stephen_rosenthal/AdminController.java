@@ -0,0 +1,68 @@
+package com.stephen_rosenthal;
+
+import com.google.common.cache.CacheStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Operational APIs, for monitoring and maintenance rather than for managing customers
+ */
+@Controller
+@RequestMapping("/admin")
+public class AdminController {
+
+    @Autowired
+    private CustomerCache customerCache;
+
+    @Autowired
+    private DuplicateClusterJob duplicateClusterJob;
+
+    /**
+     * Statistics for the customer cache, since the server started
+     */
+    @RequestMapping(value = "cache", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Object> getCacheStats() {
+        CacheStats stats = customerCache.getStats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("size", customerCache.size());
+        result.put("hits", stats.hitCount());
+        result.put("misses", stats.missCount());
+        result.put("evictions", stats.evictionCount());
+        result.put("hitRate", stats.hitRate());
+        return result;
+    }
+
+    /**
+     * Find clusters of similar customers across the whole database.
+     * @param full (optional) read every customer, instead of only those modified since the previous run.
+     */
+    @RequestMapping(value = "duplicates", method = RequestMethod.POST)
+    @ResponseBody
+    public DuplicateReport findDuplicates(@RequestParam(defaultValue = "false") boolean full) throws InterruptedException {
+        return duplicateClusterJob.run(full);
+    }
+
+    /**
+     * Get the report from the most recent duplicate clustering run
+     */
+    @RequestMapping(value = "duplicates", method = RequestMethod.GET)
+    @ResponseBody
+    public ResponseEntity<DuplicateReport> getDuplicates() {
+        DuplicateReport report = duplicateClusterJob.getLastReport();
+        if (report != null) {
+            return new ResponseEntity<>(report, HttpStatus.OK);
+        } else {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.stephen_rosenthal;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Puts a handler method under admission control (see AdmissionControl), with the concurrency budget for its cost.
+ * Handlers without it are always admitted.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Admission {
+
+    enum Budget {
+        /** Reads of a few customers by id, which are usually cached */
+        CHEAP,
+        /** Pages of customers read from an index */
+        STANDARD,
+        /** Queries that count or score many customers */
+        EXPENSIVE,
+        /** Writes, which go to the primary */
+        WRITE,
+        /** Imports and exports, which stream many customers for minutes at a time */
+        BULK
+    }
+
+    Budget value();
+
+    /**
+     * Boolean request parameters that, when true, make the request EXPENSIVE (ex: exactTotal, to count customers).
+     */
+    String[] expensiveIf() default {};
+}
@@ -0,0 +1,206 @@
+package com.stephen_rosenthal;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Admission control for the REST API: limits the requests in flight for each budget (see Admission), and turns away
+ * the rest right away with a 503 and a Retry-After header, instead of letting them pile up on a slow database.
+ *
+ * Each budget has an AdaptiveLimit, which shrinks when its requests take longer than the budget's latency target
+ * or fail with a 5xx status, and grows back while they are on time. Cheap reads have their own budget, so that
+ * expensive queries slowing the database down don't crowd them out, and so do imports and exports, whose requests
+ * last far longer than the others'. The properties for each budget are
+ * admission{Cheap,Standard,Expensive,Write,Bulk}MaxConcurrency and ...LatencyTargetMillis; admissionControl=false
+ * turns it off.
+ */
+@Component
+public class AdmissionControl extends WebMvcConfigurerAdapter {
+
+    // Seconds for clients to wait before retrying a request that was turned away
+    private static final String RETRY_AFTER_SECONDS = "1";
+
+    // Request attribute with the Permit of an admitted request
+    private static final String PERMIT_ATTRIBUTE = AdmissionControl.class.getName() + ".permit";
+
+    // Lowest limit, as a fraction of the highest
+    private static final int MIN_LIMIT_DIVISOR = 20;
+
+    @Value("${admissionControl:true}")
+    private boolean enabled;
+
+    @Value("${admissionCheapMaxConcurrency:200}")
+    private int cheapMaxConcurrency;
+
+    @Value("${admissionCheapLatencyTargetMillis:50}")
+    private long cheapLatencyTargetMillis;
+
+    @Value("${admissionStandardMaxConcurrency:100}")
+    private int standardMaxConcurrency;
+
+    @Value("${admissionStandardLatencyTargetMillis:250}")
+    private long standardLatencyTargetMillis;
+
+    @Value("${admissionExpensiveMaxConcurrency:20}")
+    private int expensiveMaxConcurrency;
+
+    @Value("${admissionExpensiveLatencyTargetMillis:1000}")
+    private long expensiveLatencyTargetMillis;
+
+    @Value("${admissionWriteMaxConcurrency:100}")
+    private int writeMaxConcurrency;
+
+    @Value("${admissionWriteLatencyTargetMillis:250}")
+    private long writeLatencyTargetMillis;
+
+    @Value("${admissionBulkMaxConcurrency:4}")
+    private int bulkMaxConcurrency;
+
+    @Value("${admissionBulkLatencyTargetMillis:600000}")
+    private long bulkLatencyTargetMillis;
+
+    private final Map<Admission.Budget, AdaptiveLimit> limits = new EnumMap<>(Admission.Budget.class);
+
+    @PostConstruct
+    public void init() {
+        limits.put(Admission.Budget.CHEAP, newLimit(cheapMaxConcurrency, cheapLatencyTargetMillis));
+        limits.put(Admission.Budget.STANDARD, newLimit(standardMaxConcurrency, standardLatencyTargetMillis));
+        limits.put(Admission.Budget.EXPENSIVE, newLimit(expensiveMaxConcurrency, expensiveLatencyTargetMillis));
+        limits.put(Admission.Budget.WRITE, newLimit(writeMaxConcurrency, writeLatencyTargetMillis));
+        limits.put(Admission.Budget.BULK, newLimit(bulkMaxConcurrency, bulkLatencyTargetMillis));
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        if (enabled) {
+            registry.addInterceptor(new Interceptor());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the limit for each budget.
+     */
+    public Map<Admission.Budget, AdaptiveLimit> getLimits() {
+        return limits;
+    }
+
+    private static AdaptiveLimit newLimit(int maxConcurrency, long latencyTargetMillis) {
+        return new AdaptiveLimit(maxConcurrency, Math.max(1, maxConcurrency / MIN_LIMIT_DIVISOR), maxConcurrency,
+                TimeUnit.MILLISECONDS.toNanos(latencyTargetMillis));
+    }
+
+    private static Admission.Budget getBudget(Admission admission, HttpServletRequest request) {
+        for (String parameter : admission.expensiveIf()) {
+            if (Boolean.parseBoolean(request.getParameter(parameter))) {
+                return Admission.Budget.EXPENSIVE;
+            }
+        }
+        return admission.value();
+    }
+
+    /**
+     * Admits requests before their handler runs, and releases them when the response is complete,
+     * which for asynchronous requests is after the handler returns.
+     */
+    private class Interceptor extends HandlerInterceptorAdapter {
+        @Override
+        public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+            if (!(handler instanceof HandlerMethod) || request.getAttribute(PERMIT_ATTRIBUTE) != null) {
+                return true; // Not controlled, or dispatched again to write the result of an admitted request
+            }
+            HandlerMethod handlerMethod = (HandlerMethod) handler;
+            Admission admission = handlerMethod.getMethodAnnotation(Admission.class);
+            if (admission == null) {
+                return true;
+            }
+
+            AdaptiveLimit limit = limits.get(getBudget(admission, request));
+            if (!limit.tryAcquire()) {
+                // Count the rejection against the endpoint, since it never reaches MetricsConfiguration's interceptor
+                request.setAttribute(MetricsFilter.ENDPOINT_ATTRIBUTE, handlerMethod.getMethod().getName());
+                response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+                response.setHeader("Retry-After", RETRY_AFTER_SECONDS);
+                return false;
+            }
+            request.setAttribute(PERMIT_ATTRIBUTE, new Permit(limit));
+            return true;
+        }
+
+        @Override
+        public void afterConcurrentHandlingStarted(HttpServletRequest request, final HttpServletResponse response,
+                                                   Object handler) {
+            final Permit permit = (Permit) request.getAttribute(PERMIT_ATTRIBUTE);
+            if (permit == null) {
+                return;
+            }
+            // Normally released by afterCompletion on the next dispatch; this covers responses that never get one
+            request.getAsyncContext().addListener(new AsyncListener() {
+                @Override
+                public void onComplete(AsyncEvent event) {
+                    permit.release(response.getStatus() >= 500);
+                }
+
+                @Override
+                public void onTimeout(AsyncEvent event) {
+                    permit.release(true);
+                }
+
+                @Override
+                public void onError(AsyncEvent event) {
+                    permit.release(true);
+                }
+
+                @Override
+                public void onStartAsync(AsyncEvent event) {
+                }
+            });
+        }
+
+        @Override
+        public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                    Exception ex) {
+            Permit permit = (Permit) request.getAttribute(PERMIT_ATTRIBUTE);
+            if (permit != null) {
+                permit.release(ex != null || response.getStatus() >= 500);
+            }
+        }
+    }
+
+    /**
+     * An admitted request, which is released exactly once
+     */
+    private static class Permit {
+        private final AdaptiveLimit limit;
+        private final long start = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Permit(AdaptiveLimit limit) {
+            this.limit = limit;
+        }
+
+        void release(boolean failed) {
+            if (released.compareAndSet(false, true)) {
+                limit.release(System.nanoTime() - start, failed);
+            }
+        }
+    }
+}
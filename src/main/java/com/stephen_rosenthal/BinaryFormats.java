@@ -0,0 +1,102 @@
+package com.stephen_rosenthal;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary encodings of the JSON models, for clients that exchange many customers and would rather not spend the CPU
+ * on JSON text: Smile (application/x-jackson-smile) and CBOR (application/cbor). Both encode the same fields as the
+ * JSON, with the same Jackson annotations, in fewer bytes and with no number or string escaping to parse.
+ *
+ * Clients ask for one with the Accept header, and send one with the Content-Type header. MetricsConfiguration adds a
+ * message converter for each, after the JSON one, so JSON stays the default for clients that accept anything.
+ * Cached customers are kept as JSON (see CustomerCache), so the controller encodes them again for these clients.
+ */
+@Component
+public class BinaryFormats {
+
+    public static final MediaType SMILE = new MediaType("application", "x-jackson-smile");
+    public static final MediaType CBOR = new MediaType("application", "cbor");
+
+    // Configured like the JSON ObjectMapper, by Spring Boot
+    @Autowired
+    private Jackson2ObjectMapperBuilder objectMapperBuilder;
+
+    private final Map<MediaType, ObjectMapper> objectMappers = new LinkedHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        objectMappers.put(SMILE, newObjectMapper(new SmileFactory()));
+        objectMappers.put(CBOR, newObjectMapper(new CBORFactory()));
+    }
+
+    /**
+     * @return the binary formats, with the ObjectMapper for each.
+     */
+    public Map<MediaType, ObjectMapper> getObjectMappers() {
+        return objectMappers;
+    }
+
+    public ObjectMapper getObjectMapper(MediaType format) {
+        return objectMappers.get(format);
+    }
+
+    /**
+     * Encode a customer in one of the binary formats.
+     */
+    public byte[] write(MediaType format, Customer customer) {
+        try {
+            return objectMappers.get(format).writeValueAsBytes(customer);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not serialize customer " + customer.getId(), e);
+        }
+    }
+
+    /**
+     * Pick the format for a response, in the client's order of preference.
+     * @param accept (optional) the Accept header of the request.
+     * @return one of the binary formats, or null for JSON, which is preferred to them when the client accepts any type.
+     */
+    public MediaType negotiate(String accept) {
+        if (accept == null) {
+            return null;
+        }
+        List<MediaType> acceptable;
+        try {
+            acceptable = MediaType.parseMediaTypes(accept);
+        } catch (InvalidMediaTypeException e) {
+            return null;
+        }
+        MediaType.sortBySpecificityAndQuality(acceptable);
+        for (MediaType mediaType : acceptable) {
+            if (mediaType.includes(MediaType.APPLICATION_JSON)) {
+                return null;
+            }
+            for (MediaType format : objectMappers.keySet()) {
+                if (mediaType.includes(format)) {
+                    return format;
+                }
+            }
+        }
+        return null;
+    }
+
+    private ObjectMapper newObjectMapper(JsonFactory factory) {
+        ObjectMapper objectMapper = new ObjectMapper(factory);
+        objectMapperBuilder.configure(objectMapper);
+        return objectMapper;
+    }
+}
@@ -0,0 +1,47 @@
+package com.stephen_rosenthal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Outcome of a bulk insert: how many customers were written, and why the others were not.
+ */
+public class BulkInsertResult {
+    private final int inserted;
+    private final Map<Integer, String> errors;
+
+    /**
+     * @param inserted number of customers written to the database.
+     * @param errors error messages, keyed by the 0-indexed position of the customer in the batch.
+     */
+    public BulkInsertResult(int inserted, Map<Integer, String> errors) {
+        Objects.requireNonNull(errors);
+        this.inserted = inserted;
+        this.errors = Collections.unmodifiableMap(errors);
+    }
+
+    public int getInserted() {
+        return inserted;
+    }
+
+    public Map<Integer, String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * @param batch the customers given to the bulk insert.
+     * @return the customers of the batch that were written.
+     */
+    public List<Customer> getInserted(List<Customer> batch) {
+        List<Customer> customers = new ArrayList<>(inserted);
+        for (int i = 0; i < batch.size(); i++) {
+            if (!errors.containsKey(i)) {
+                customers.add(batch.get(i));
+            }
+        }
+        return customers;
+    }
+}
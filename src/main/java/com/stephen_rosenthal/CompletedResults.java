@@ -0,0 +1,106 @@
+package com.stephen_rosenthal;
+
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.method.support.HandlerMethodReturnValueHandler;
+import org.springframework.web.method.support.ModelAndViewContainer;
+import org.springframework.web.servlet.mvc.method.annotation.DeferredResultMethodReturnValueHandler;
+import org.springframework.web.servlet.mvc.method.annotation.HttpEntityMethodProcessor;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the response for a DeferredResult that is already complete when the handler returns, as if the handler had
+ * returned its ResponseEntity. That is every result from CustomerRequestExecutor in synchronous mode
+ * (asyncRequests=false), and requests answered without the database. Otherwise Spring MVC starts asynchronous
+ * processing for them anyway, and dispatches the request through the filters and the DispatcherServlet a second time
+ * just to write the response.
+ */
+@Configuration
+public class CompletedResults {
+
+    /**
+     * Put the handler for completed results ahead of Spring MVC's own handler for DeferredResults.
+     * Static, so that post-processing beans doesn't wait for this configuration class.
+     */
+    @Bean
+    public static BeanPostProcessor completedResultsPostProcessor() {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessBeforeInitialization(Object bean, String beanName) {
+                return bean;
+            }
+
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (!(bean instanceof RequestMappingHandlerAdapter)) {
+                    return bean;
+                }
+                RequestMappingHandlerAdapter adapter = (RequestMappingHandlerAdapter) bean;
+                HandlerMethodReturnValueHandler responseEntities = null;
+                HandlerMethodReturnValueHandler deferredResults = null;
+                for (HandlerMethodReturnValueHandler handler : adapter.getReturnValueHandlers()) {
+                    if (handler instanceof HttpEntityMethodProcessor) {
+                        responseEntities = handler;
+                    } else if (handler instanceof DeferredResultMethodReturnValueHandler) {
+                        deferredResults = handler;
+                    }
+                }
+                if (responseEntities != null && deferredResults != null) {
+                    List<HandlerMethodReturnValueHandler> handlers = new ArrayList<>();
+                    handlers.add(new Handler(responseEntities, deferredResults));
+                    handlers.addAll(adapter.getReturnValueHandlers());
+                    adapter.setReturnValueHandlers(handlers);
+                }
+                return bean;
+            }
+        };
+    }
+
+    private static class Handler implements HandlerMethodReturnValueHandler {
+        // Spring MVC's handlers for ResponseEntities, and for DeferredResults that aren't complete
+        private final HandlerMethodReturnValueHandler responseEntities;
+        private final HandlerMethodReturnValueHandler deferredResults;
+
+        Handler(HandlerMethodReturnValueHandler responseEntities, HandlerMethodReturnValueHandler deferredResults) {
+            this.responseEntities = responseEntities;
+            this.deferredResults = deferredResults;
+        }
+
+        @Override
+        public boolean supportsReturnType(MethodParameter returnType) {
+            return DeferredResult.class.isAssignableFrom(returnType.getParameterType());
+        }
+
+        @Override
+        public void handleReturnValue(Object returnValue, MethodParameter returnType,
+                                      ModelAndViewContainer mavContainer, NativeWebRequest webRequest)
+                throws Exception {
+            DeferredResult<?> deferredResult = (DeferredResult<?>) returnValue;
+            Object result = deferredResult != null && deferredResult.hasResult() ? deferredResult.getResult() : null;
+            if (result instanceof Exception) {
+                throw (Exception) result; // Handled as if the handler method threw it, as it would be asynchronously
+            }
+            if (!(result instanceof ResponseEntity)) {
+                // Not complete yet: process it asynchronously, as usual
+                deferredResults.handleReturnValue(returnValue, returnType, mavContainer, webRequest);
+                return;
+            }
+            final Class<?> resultClass = result.getClass();
+            MethodParameter resultType = new MethodParameter(returnType) {
+                @Override
+                public Class<?> getParameterType() {
+                    return resultClass;
+                }
+            };
+            responseEntities.handleReturnValue(result, resultType, mavContainer, webRequest);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.stephen_rosenthal;
+
+import com.google.common.io.BaseEncoding;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Opaque tokens for resuming a listing after a given customer id.
+ * Clients should treat tokens as opaque strings, so the encoding can change later.
+ */
+public final class CursorToken {
+
+    private static final BaseEncoding ENCODING = BaseEncoding.base64Url().omitPadding();
+
+    private CursorToken() {
+        /* Static methods only */
+    }
+
+    public static String encode(String id) {
+        return ENCODING.encode(id.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the id encoded in the token.
+     * @throws IllegalArgumentException if the token was not created by encode().
+     */
+    public static String decode(String token) {
+        String id = new String(ENCODING.decode(token), StandardCharsets.UTF_8);
+        if (id.isEmpty()) {
+            throw new IllegalArgumentException("Empty cursor token");
+        }
+        return id;
+    }
+}
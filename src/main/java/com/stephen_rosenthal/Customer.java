@@ -1,19 +1,28 @@
 package com.stephen_rosenthal;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import com.google.common.base.CharMatcher;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.google.common.base.MoreObjects;
+import org.springframework.data.annotation.Version;
+import org.springframework.data.mongodb.core.mapping.Document;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 
 /**
  * Simple model for a customer.
+ * Customers read with a projection (see CustomerFields) are missing some fields, which are left out of the JSON.
+ * In MongoDB, each tenant's customers are in a collection of their own; the name is looked up on every query.
  */
 @Entity
+@Document(collection = "#{T(com.stephen_rosenthal.Tenant).getCollectionName()}")
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public class Customer {
 
     @Id
@@ -29,9 +38,24 @@ public class Customer {
     @Column
     private String firstName;
 
+    @Column
+    private String normalizedFirstName;
+
     @Column
     private String lastName;
 
+    @Column
+    private String normalizedLastName;
+
+    @Column
+    private List<String> blockingKeys;
+
+    @Column
+    private Date lastModified;
+
+    @Version // Spring Data's, not javax.persistence's: saves only succeed if the version has not changed since reading
+    private Long version;
+
     public Customer() {
         /* Zero-argument constructor for Jackson, etc. Other callers should prefer the other constructors */
     }
@@ -41,10 +65,13 @@ public class Customer {
     }
 
     public Customer(String id, String email, String firstName, String lastName) {
-        setId(id);
-        setEmail(email.trim());
-        setFirstName(firstName.trim());
-        setLastName(lastName.trim());
+        this.id = id;
+        this.email = email.trim();
+        this.normalizedEmail = normalizeEmail(this.email);
+        this.firstName = firstName.trim();
+        this.normalizedFirstName = normalizeName(this.firstName);
+        this.lastName = lastName.trim();
+        this.normalizedLastName = normalizeName(this.lastName);
     }
 
     public String getId() {
@@ -73,6 +100,7 @@ public class Customer {
     public void setNormalizedEmail(String normalizedEmail) {
         Objects.requireNonNull(normalizedEmail);
         this.normalizedEmail = normalizedEmail;
+        blockingKeys = null; // Recomputed when next needed
     }
 
     public String getFirstName() {
@@ -82,6 +110,18 @@ public class Customer {
     public void setFirstName(String firstName) {
         Objects.requireNonNull(firstName);
         this.firstName = firstName;
+        setNormalizedFirstName(normalizeName(firstName));
+    }
+
+    @JsonIgnore // Should be persisted, but NOT visible in the REST API
+    public String getNormalizedFirstName() {
+        return normalizedFirstName;
+    }
+
+    public void setNormalizedFirstName(String normalizedFirstName) {
+        Objects.requireNonNull(normalizedFirstName);
+        this.normalizedFirstName = normalizedFirstName;
+        blockingKeys = null; // Recomputed when next needed
     }
 
     public String getLastName() {
@@ -91,6 +131,86 @@ public class Customer {
     public void setLastName(String lastName) {
         Objects.requireNonNull(lastName);
         this.lastName = lastName;
+        setNormalizedLastName(normalizeName(lastName));
+    }
+
+    @JsonIgnore // Should be persisted, but NOT visible in the REST API
+    public String getNormalizedLastName() {
+        return normalizedLastName;
+    }
+
+    public void setNormalizedLastName(String normalizedLastName) {
+        Objects.requireNonNull(normalizedLastName);
+        this.normalizedLastName = normalizedLastName;
+        blockingKeys = null; // Recomputed when next needed
+    }
+
+    /**
+     * Keys for finding customers with similar names or emails, computed from the normalized fields.
+     * They are computed on first use after the customer is created or a normalized field is set, rather than by each
+     * setter, since decoding a customer from JSON sets all of them. Spring Data saves the field rather than calling
+     * this, so CustomerModificationListener calls it first; writes that set fields in the database directly must
+     * recompute the keys too.
+     * @see FuzzyMatcher
+     */
+    @JsonIgnore // Should be persisted, but NOT visible in the REST API
+    public List<String> getBlockingKeys() {
+        if (blockingKeys == null) {
+            blockingKeys = FuzzyMatcher.getDefault().blockingKeys(this);
+        }
+        return blockingKeys;
+    }
+
+    /**
+     * When the customer was last written to the database. Set automatically on save.
+     */
+    @JsonIgnore // Should be persisted, but NOT visible in the REST API
+    public Date getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(Date lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Number of times the customer has been updated, or null if it has not been saved yet.
+     * Incremented automatically on save, which fails if the version in the database is different.
+     */
+    @JsonIgnore // Should be persisted, but NOT visible in the REST API (clients see it in ETags)
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    /**
+     * Copy of this customer with only the given fields, as if it had been read from the database with them.
+     * Derived fields are copied rather than recomputed, so this is cheap.
+     */
+    Customer copy(CustomerFields fields) {
+        Customer copy = new Customer();
+        copy.id = id;
+        if (fields.includes("email")) {
+            copy.email = email;
+        }
+        if (fields.includes("firstName")) {
+            copy.firstName = firstName;
+        }
+        if (fields.includes("lastName")) {
+            copy.lastName = lastName;
+        }
+        if (fields.isAll()) {
+            copy.normalizedEmail = normalizedEmail;
+            copy.normalizedFirstName = normalizedFirstName;
+            copy.normalizedLastName = normalizedLastName;
+            copy.blockingKeys = blockingKeys;
+        }
+        copy.lastModified = lastModified;
+        copy.version = version;
+        return copy;
     }
 
     @Override
@@ -105,14 +225,20 @@ public class Customer {
         if (normalizedEmail != null ? !normalizedEmail.equals(customer.normalizedEmail) : customer.normalizedEmail != null)
             return false;
         if (firstName != null ? !firstName.equals(customer.firstName) : customer.firstName != null) return false;
+        if (normalizedFirstName != null ? !normalizedFirstName.equals(customer.normalizedFirstName) : customer.normalizedFirstName != null)
+            return false;
         if (lastName != null ? !lastName.equals(customer.lastName) : customer.lastName != null) return false;
+        if (normalizedLastName != null ? !normalizedLastName.equals(customer.normalizedLastName) : customer.normalizedLastName != null)
+            return false;
+        // blockingKeys are derived from the normalized fields, and
+        // lastModified and version are bookkeeping rather than data about the customer, so they are not compared
 
         return true;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(id, email, normalizedEmail, firstName, lastName);
+        return Objects.hash(id, email, normalizedEmail, firstName, normalizedFirstName, lastName, normalizedLastName);
     }
 
     @Override
@@ -122,33 +248,32 @@ public class Customer {
                 .add("email", email)
                 .add("normalizedEmail", normalizedEmail)
                 .add("firstName", firstName)
+                .add("normalizedFirstName", normalizedFirstName)
                 .add("lastName", lastName)
+                .add("normalizedLastName", normalizedLastName)
+                .add("blockingKeys", blockingKeys)
+                .add("lastModified", lastModified)
+                .add("version", version)
                 .toString();
     }
 
+    /**
+     * Normalize a first or last name, for duplicate detection.
+     * Matching on the result is equivalent to matching the name while trimming and ignoring case,
+     * but unlike a case-insensitive match, it can use an index.
+     */
+    static String normalizeName(String name) {
+        Objects.requireNonNull(name);
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+
     /**
      * Normalize an email address, for duplicate detection.
      * For some email providers, the result may be a different but valid address.
      * This method assumes the input email address is valid.
+     * @see EmailNormalizer for the rules applied to each email provider.
      */
-    private static String normalizeEmail(String email) {
-        Objects.requireNonNull(email);
-
-        int index = email.indexOf("@");
-        String local = email.substring(0, index);
-        String domain = email.substring(index + 1);
-
-        // Remove any periods from the local part; in GMail they are meaningless
-        local = CharMatcher.is('.').removeFrom(local);
-
-        // Cut off anything following '+' or '-' characters
-        // (GMail uses '+' for tags; some others use '-')
-        index = CharMatcher.anyOf("+-").indexIn(local);
-        if (index > 0) {
-            local = email.substring(0, index);
-        }
-
-        // Convert to lowercase and strip any leading or trailing whitespace.
-        return local.toLowerCase().trim() + "@" + domain.toLowerCase().trim();
+    static String normalizeEmail(String email) {
+        return EmailNormalizer.getDefault().normalize(email);
     }
 }
@@ -0,0 +1,55 @@
+package com.stephen_rosenthal;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Models the result of fetching many customers by id at once.
+ */
+public class CustomerBatch {
+    private final List<Customer> customers;
+    private final List<String> missing;
+
+    /**
+     * @param customers the customers that were found, in the order their ids were requested.
+     * @param missing the requested ids with no customer, in the order they were requested.
+     */
+    @JsonCreator
+    public CustomerBatch(
+            @JsonProperty(value = "customers") List<Customer> customers,
+            @JsonProperty(value = "missing") List<String> missing) {
+        Objects.requireNonNull(customers);
+        Objects.requireNonNull(missing);
+        this.customers = customers;
+        this.missing = missing;
+    }
+
+    public List<Customer> getCustomers() {
+        return customers;
+    }
+
+    public List<String> getMissing() {
+        return missing;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        CustomerBatch that = (CustomerBatch) o;
+
+        if (!customers.equals(that.customers)) return false;
+        if (!missing.equals(that.missing)) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(customers, missing);
+    }
+}
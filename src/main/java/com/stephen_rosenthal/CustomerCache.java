@@ -0,0 +1,182 @@
+package com.stephen_rosenthal;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache of customers by tenant and id, bounded by size and by time since loading.
+ * Tenants share the cache, and each looks up only its own customers (see Tenant).
+ * Entries keep the customer's JSON and ETag as well, so a cache hit can be sent without serializing again.
+ * Callers that change customers must call invalidate(), or readers may see the old value until it expires.
+ */
+@Component
+public class CustomerCache {
+
+    @Autowired
+    private CustomerRepository customerRepository;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${customerCacheMaximumSize:10000}")
+    private long maximumSize;
+
+    @Value("${customerCacheExpireAfterWriteSeconds:60}")
+    private long expireAfterWriteSeconds;
+
+    private Cache<Key, Entry> cache;
+
+    // Incremented by each invalidation, so a load that raced with one is not cached
+    private final AtomicLong invalidations = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWriteSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Get a customer, from the cache if possible, otherwise from the database.
+     * @return the cached customer, or null if there is no customer with that id.
+     */
+    public Entry get(String id) {
+        Entry entry = getIfPresent(id);
+        return entry != null ? entry : load(id);
+    }
+
+    /**
+     * @return the cached customer, or null if it is not cached. Never reads the database.
+     */
+    public Entry getIfPresent(String id) {
+        return cache.getIfPresent(new Key(id));
+    }
+
+    /**
+     * Read a customer from the database and cache it, after getIfPresent() missed.
+     * @return the customer, or null if there is no customer with that id.
+     */
+    public Entry load(String id) {
+        Key key = new Key(id); // Before reading, in case the reader changes tenants
+        long invalidationsBeforeLoad = invalidations.get();
+        Customer customer = customerRepository.findOne(id);
+        if (customer == null) {
+            return null;
+        }
+        Entry entry = new Entry(customer, toJson(customer));
+        if (invalidations.get() == invalidationsBeforeLoad) {
+            cache.put(key, entry);
+            // An invalidation between the check and the put would be lost, so check again, and take the entry back
+            // out if there was one; the invalidation itself only removes what was cached when it ran
+            if (invalidations.get() != invalidationsBeforeLoad) {
+                cache.asMap().remove(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Remove a customer from the cache, after it was changed or deleted.
+     */
+    public void invalidate(String id) {
+        invalidations.incrementAndGet();
+        cache.invalidate(new Key(id));
+    }
+
+    /**
+     * Remove every tenant's customers from the cache.
+     */
+    public void invalidateAll() {
+        invalidations.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    private byte[] toJson(Customer customer) {
+        try {
+            return objectMapper.writeValueAsBytes(customer);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not serialize customer " + customer.getId(), e);
+        }
+    }
+
+    /**
+     * A customer id within the current tenant
+     */
+    private static class Key {
+        private final String tenant = Tenant.current();
+        private final String id;
+
+        Key(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+
+            if (!tenant.equals(key.tenant)) return false;
+            if (!id.equals(key.id)) return false;
+
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(tenant, id);
+        }
+    }
+
+    /**
+     * A cached customer, along with its JSON representation and ETag.
+     * The customer is shared with other readers, so it must not be modified.
+     */
+    public static class Entry {
+        private final Customer customer;
+        private final byte[] json;
+        private final String eTag;
+
+        public Entry(Customer customer, byte[] json) {
+            Objects.requireNonNull(customer);
+            Objects.requireNonNull(json);
+            this.customer = customer;
+            this.json = json;
+            this.eTag = ETags.of(customer);
+        }
+
+        public Customer getCustomer() {
+            return customer;
+        }
+
+        public byte[] getJson() {
+            return json;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+    }
+}
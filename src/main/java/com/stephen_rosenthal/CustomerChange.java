@@ -0,0 +1,90 @@
+package com.stephen_rosenthal;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * A create, update, or delete of a customer, as recorded in the change feed (see CustomerChangeFeed).
+ * Only the customer's id and version are recorded, not its fields, so consumers read the customer again if they
+ * need them, and always see its latest version.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class CustomerChange {
+
+    public enum Type {
+        CREATE, UPDATE, DELETE
+    }
+
+    private final long sequence;
+    private final String tenant;
+    private final String origin;
+    private final Type type;
+    private final String id;
+    private final Long version;
+    private final Date time;
+
+    /**
+     * @param sequence position in the feed, which is shared by all tenants.
+     * @param origin the node that made the change (see CustomerChangeFeed).
+     * @param version version of the customer after the change, or null for a delete.
+     */
+    public CustomerChange(long sequence, String tenant, String origin, Type type, String id, Long version, Date time) {
+        Objects.requireNonNull(tenant);
+        Objects.requireNonNull(type);
+        Objects.requireNonNull(id);
+        Objects.requireNonNull(time);
+        this.sequence = sequence;
+        this.tenant = tenant;
+        this.origin = origin;
+        this.type = type;
+        this.id = id;
+        this.version = version;
+        this.time = time;
+    }
+
+    /**
+     * @return the same change, at a position in the feed.
+     */
+    public CustomerChange withSequence(long sequence) {
+        return new CustomerChange(sequence, tenant, origin, type, id, version, time);
+    }
+
+    @JsonIgnore
+    public long getSequence() {
+        return sequence;
+    }
+
+    @JsonIgnore
+    public String getTenant() {
+        return tenant;
+    }
+
+    @JsonIgnore
+    public String getOrigin() {
+        return origin;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public Date getTime() {
+        return time;
+    }
+
+    @Override
+    public String toString() {
+        return sequence + " " + type + " " + tenant + "/" + id;
+    }
+}
@@ -0,0 +1,394 @@
+package com.stephen_rosenthal;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ordered feed of the creates, updates, and deletes of customers, so that other nodes and downstream systems can
+ * follow changes instead of rescanning every customer.
+ *
+ * Writes record their changes once the customers are written (see CustomersController, CustomerImporter, and
+ * CustomerGroupCommitter). Each change gets the next sequence number, which orders the feed, and consumers resume
+ * after the last change they saw with the token from poll(). Only the latest changeFeedMaxChanges changes are kept;
+ * a consumer that falls further behind has to rescan. Since changes are recorded after the write, a node that fails
+ * in between loses the change, which is counted as a failure in the metrics.
+ *
+ * Every node follows the changes made by the others, and drops those customers from its CustomerCache and counts
+ * them in CustomerTotals, so a cached customer is not served for long after another node changed it.
+ * Waiting polls are notified on one thread, with at most one notification queued per tenant however many changes
+ * arrive, and polls waiting after the same change share one read.
+ * Implemented by MongoCustomerChangeFeed and InMemoryCustomerChangeFeed, for the two stores.
+ */
+public abstract class CustomerChangeFeed {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CustomerChangeFeed.class);
+
+    @Autowired
+    private CustomerCache customerCache;
+
+    @Autowired
+    private CustomerTotals customerTotals;
+
+    @Value("${changeFeedMaxChanges:1000000}")
+    protected long maxChanges;
+
+    // Longest time a poll waits for a change
+    @Value("${changeFeedMaxWaitMillis:30000}")
+    private long maxWaitMillis;
+
+    // Tells this node's changes from the others', since it has already updated its own state for them
+    private final String origin = new ObjectId().toString();
+
+    // Polls waiting for a change
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+
+    // Tenants with a notification of their waiters queued; changes for them until it starts need no other
+    private final Set<String> notifying = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    private ExecutorService notifier;
+
+    @PostConstruct
+    public void init() {
+        notifier = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "customer-changes-notify");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        notifier.shutdownNow();
+    }
+
+    /**
+     * Record a change to one of the current tenant's customers.
+     * @param version version of the customer after the change, or null for a delete.
+     */
+    public void record(CustomerChange.Type type, String id, Long version) {
+        record(Collections.singletonList(newChange(type, id, version)));
+    }
+
+    /**
+     * Record the creation of several of the current tenant's customers.
+     */
+    public void recordCreated(Collection<Customer> customers) {
+        if (customers.isEmpty()) {
+            return;
+        }
+        List<CustomerChange> changes = new ArrayList<>(customers.size());
+        for (Customer customer : customers) {
+            changes.add(newChange(CustomerChange.Type.CREATE, customer.getId(), customer.getVersion()));
+        }
+        record(changes);
+    }
+
+    /**
+     * Get the current tenant's changes after the given token, waiting for one if there are none yet.
+     * @param token (optional) the next token of a previous page. Without one, the result has no changes, and a token
+     *              for the changes from now on.
+     * @param waitMillis time to wait for a change, up to changeFeedMaxWaitMillis.
+     * @return a page of changes, which is empty if none were made in time; 400 if the token is invalid; or 410 Gone
+     *         if changes after the token are no longer kept.
+     */
+    public DeferredResult<ResponseEntity<CustomerChangePage>> poll(String token, int limit, long waitMillis) {
+        DeferredResult<ResponseEntity<CustomerChangePage>> result =
+                new DeferredResult<>(Math.max(1, Math.min(waitMillis, maxWaitMillis)));
+        if (token == null) {
+            result.setResult(ok(page(Collections.<CustomerChange>emptyList(), getLatestSequence())));
+            return result;
+        }
+        long after;
+        try {
+            after = decodeToken(token);
+        } catch (IllegalArgumentException e) {
+            result.setResult(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+            return result;
+        }
+        if (!isKept(after)) {
+            result.setResult(new ResponseEntity<>(HttpStatus.GONE));
+            return result;
+        }
+
+        Waiter waiter = new Waiter(Tenant.current(), after, limit, result);
+        if (waiter.check() || waitMillis <= 0) {
+            waiter.complete();
+            return result;
+        }
+        waiters.add(waiter);
+        result.onCompletion(() -> waiters.remove(waiter));
+        result.onTimeout(waiter::complete);
+        if (waiter.check()) { // In case a change was published before the waiter was added
+            waiter.complete();
+            waiters.remove(waiter);
+        }
+        return result;
+    }
+
+    /**
+     * @return number of changes recorded by this node.
+     */
+    public long getRecorded() {
+        return recorded.sum();
+    }
+
+    /**
+     * @return number of changes that could not be recorded, though their customers were written.
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return number of polls waiting for a change.
+     */
+    public int getWaiting() {
+        return waiters.size();
+    }
+
+    /**
+     * Store changes, with the next sequence numbers, and publish() them.
+     */
+    protected abstract void append(List<CustomerChange> changes);
+
+    /**
+     * Read a tenant's changes in sequence order.
+     * @param after sequence of the last change already seen.
+     */
+    protected abstract Changes read(String tenant, long after, int limit);
+
+    /**
+     * @return sequence of the latest change, or 0 if there are none.
+     */
+    protected abstract long getLatestSequence();
+
+    /**
+     * @return false if changes after the given sequence may have been dropped.
+     */
+    protected abstract boolean isKept(long after);
+
+    /**
+     * Handle changes recorded by this or any other node, in about the order they were made.
+     */
+    protected void publish(List<CustomerChange> changes) {
+        Set<String> tenants = new HashSet<>();
+        for (CustomerChange change : changes) {
+            tenants.add(change.getTenant());
+            if (!origin.equals(change.getOrigin())) {
+                Tenant.run(change.getTenant(), () -> {
+                    customerCache.invalidate(change.getId());
+                    customerTotals.recordWrites(1);
+                });
+            }
+        }
+        for (String tenant : tenants) {
+            if (notifying.add(tenant)) {
+                try {
+                    notifier.execute(() -> notifyWaiters(tenant));
+                } catch (RejectedExecutionException e) {
+                    notifying.remove(tenant); // Shutting down
+                }
+            }
+        }
+    }
+
+    /**
+     * Complete a tenant's waiters that have changes to see, with one read for all those waiting after the same change.
+     */
+    private void notifyWaiters(String tenant) {
+        // Changes published from now on may not be in the reads below, so they queue another notification
+        notifying.remove(tenant);
+
+        Map<Long, List<Waiter>> waitersByAfter = new HashMap<>();
+        for (Waiter waiter : waiters) {
+            if (waiter.tenant.equals(tenant)) {
+                waitersByAfter.computeIfAbsent(waiter.getAfter(), after -> new ArrayList<>()).add(waiter);
+            }
+        }
+        for (Map.Entry<Long, List<Waiter>> group : waitersByAfter.entrySet()) {
+            int limit = 0;
+            for (Waiter waiter : group.getValue()) {
+                limit = Math.max(limit, waiter.limit);
+            }
+            Changes changes;
+            try {
+                changes = read(tenant, group.getKey(), limit);
+            } catch (RuntimeException e) {
+                LOG.warn("Could not read customer changes", e);
+                for (Waiter waiter : group.getValue()) {
+                    waiter.fail(e);
+                }
+                continue;
+            }
+            for (Waiter waiter : group.getValue()) {
+                if (waiter.offer(group.getKey(), changes)) {
+                    waiter.complete();
+                }
+            }
+        }
+    }
+
+    static String encodeToken(long sequence) {
+        return CursorToken.encode(Long.toString(sequence));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the token was not created by encodeToken().
+     */
+    static long decodeToken(String token) {
+        long sequence = Long.parseLong(CursorToken.decode(token));
+        if (sequence < 0) {
+            throw new IllegalArgumentException("Negative sequence in change token");
+        }
+        return sequence;
+    }
+
+    private CustomerChange newChange(CustomerChange.Type type, String id, Long version) {
+        return new CustomerChange(0, Tenant.current(), origin, type, id, version, new Date());
+    }
+
+    private void record(List<CustomerChange> changes) {
+        try {
+            append(changes);
+            recorded.add(changes.size());
+        } catch (RuntimeException e) {
+            // The customers are already written, so the request still succeeds
+            failures.add(changes.size());
+            LOG.error("Could not record {} customer changes, starting with {}", changes.size(), changes.get(0), e);
+        }
+    }
+
+    // Pages are written in the format the request accepts, like customers (see BinaryFormats)
+    private static ResponseEntity<CustomerChangePage> ok(CustomerChangePage page) {
+        return ResponseEntity.ok().header(HttpHeaders.VARY, HttpHeaders.ACCEPT).body(page);
+    }
+
+    private static CustomerChangePage page(List<CustomerChange> changes, long last) {
+        return new CustomerChangePage(changes, encodeToken(last));
+    }
+
+    /**
+     * Changes read from the feed
+     */
+    protected static class Changes {
+        private final List<CustomerChange> changes;
+        private final long last;
+
+        /**
+         * @param last sequence to read after next time. It may be past the last of the changes, if the changes
+         *             after those were for other tenants.
+         */
+        protected Changes(List<CustomerChange> changes, long last) {
+            this.changes = changes;
+            this.last = last;
+        }
+    }
+
+    /**
+     * A poll for a tenant's changes, which completes with the first ones found
+     */
+    private class Waiter {
+        private final String tenant;
+        private final int limit;
+        private final DeferredResult<ResponseEntity<CustomerChangePage>> result;
+        private long after;
+        private List<CustomerChange> found = Collections.emptyList();
+
+        Waiter(String tenant, long after, int limit, DeferredResult<ResponseEntity<CustomerChangePage>> result) {
+            this.tenant = tenant;
+            this.after = after;
+            this.limit = limit;
+            this.result = result;
+        }
+
+        /**
+         * Read the changes after the last one seen, unless some were found already and not sent yet.
+         * @return true if there are some to send.
+         */
+        synchronized boolean check() {
+            if (result.isSetOrExpired()) {
+                return false;
+            }
+            if (!found.isEmpty()) {
+                return true; // Another check found them, and will complete
+            }
+            try {
+                return take(read(tenant, after, limit));
+            } catch (RuntimeException e) {
+                LOG.warn("Could not read customer changes", e);
+                result.setErrorResult(e);
+                return false;
+            }
+        }
+
+        /**
+         * Like check(), but with changes read for all the waiters after the given sequence, with the highest limit.
+         */
+        synchronized boolean offer(long readAfter, Changes changes) {
+            if (result.isSetOrExpired()) {
+                return false;
+            }
+            if (!found.isEmpty()) {
+                return true;
+            }
+            if (after != readAfter) {
+                return check(); // Moved on since the waiters were grouped
+            }
+            return take(changes);
+        }
+
+        synchronized long getAfter() {
+            return after;
+        }
+
+        synchronized void fail(RuntimeException e) {
+            if (!result.isSetOrExpired()) {
+                result.setErrorResult(e);
+            }
+        }
+
+        synchronized void complete() {
+            result.setResult(ok(page(found, after)));
+        }
+
+        private boolean take(Changes changes) {
+            if (changes.changes.size() > limit) {
+                found = new ArrayList<>(changes.changes.subList(0, limit));
+                after = found.get(limit - 1).getSequence();
+            } else {
+                found = changes.changes;
+                after = changes.last; // Skip other tenants' changes next time
+            }
+            return !found.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.stephen_rosenthal;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Models a page of changes from the change feed, in the order they were made.
+ */
+public class CustomerChangePage {
+    private final List<CustomerChange> changes;
+    private final String next;
+
+    /**
+     * @param next token for the changes after these. Unlike a CustomerCursorPage, there is always one:
+     *             an empty page means there are no changes yet, not that there never will be.
+     */
+    public CustomerChangePage(List<CustomerChange> changes, String next) {
+        Objects.requireNonNull(changes);
+        Objects.requireNonNull(next);
+        this.changes = changes;
+        this.next = next;
+    }
+
+    public List<CustomerChange> getChanges() {
+        return changes;
+    }
+
+    public String getNext() {
+        return next;
+    }
+}
@@ -0,0 +1,54 @@
+package com.stephen_rosenthal;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Models a page of customer results from a List operation that uses a cursor instead of page numbers.
+ * Unlike CustomerPage, it has no total count, so it costs the same to fetch no matter how deep it is.
+ */
+public class CustomerCursorPage {
+    private final List<Customer> customers;
+    private final String next;
+
+    /**
+     * @param next token for fetching the following page, or null if this is the last page.
+     */
+    @JsonCreator
+    public CustomerCursorPage(
+            @JsonProperty(value = "customers") List<Customer> customers,
+            @JsonProperty(value = "next") String next) {
+        Objects.requireNonNull(customers);
+        this.customers = customers;
+        this.next = next;
+    }
+
+    public List<Customer> getCustomers() {
+        return customers;
+    }
+
+    public String getNext() {
+        return next;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        CustomerCursorPage that = (CustomerCursorPage) o;
+
+        if (!customers.equals(that.customers)) return false;
+        if (next != null ? !next.equals(that.next) : that.next != null) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(customers, next);
+    }
+}
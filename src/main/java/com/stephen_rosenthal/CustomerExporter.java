@@ -0,0 +1,61 @@
+package com.stephen_rosenthal;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Date;
+
+/**
+ * Exports customers as newline-delimited JSON, one customer per line.
+ * Customers are read from a database cursor and written as they arrive, with Jackson's streaming generator,
+ * so memory use does not depend on the number of customers.
+ */
+@Component
+public class CustomerExporter {
+
+    @Autowired
+    private CustomerRepository customerRepository;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    /**
+     * Write customers to the output. The output is flushed at the end, but not closed.
+     * @param modifiedSince (optional) only export customers saved at or after this time.
+     * @return the number of customers written.
+     */
+    public long exportCustomers(Date modifiedSince, OutputStream output) throws IOException {
+        // Let the output decide when to flush, rather than flushing after every customer
+        ObjectWriter writer = objectMapper.writerWithType(Customer.class)
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(output, JsonEncoding.UTF8);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        // Separate customers with newlines only, not the default space
+        generator.setRootValueSeparator(null);
+
+        long[] count = new long[1];
+        try {
+            customerRepository.forEachModifiedSince(modifiedSince, customer -> {
+                try {
+                    writer.writeValue(generator, customer);
+                    generator.writeRaw('\n');
+                    count[0]++;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        generator.flush();
+        return count[0];
+    }
+}
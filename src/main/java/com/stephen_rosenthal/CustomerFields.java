@@ -0,0 +1,93 @@
+package com.stephen_rosenthal;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The customer fields a client asked for, from a parameter like "fields=id,email".
+ * The fields are pushed down into the database query as a projection, so the other fields are neither
+ * read from the database nor serialized: customers are created without them, and null fields are left out of JSON.
+ * The id is always included.
+ */
+public final class CustomerFields {
+
+    public static final CustomerFields ALL = new CustomerFields(null);
+
+    private static final Set<String> FIELDS = ImmutableSet.of("id", "email", "firstName", "lastName");
+
+    // Not visible in the REST API, but always read, so ETags can be computed for projected customers
+    private static final Set<String> BOOKKEEPING_FIELDS = ImmutableSet.of("version", "lastModified");
+
+    private final Set<String> fields; // null for all fields
+
+    private CustomerFields(Set<String> fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * @param fields (optional) comma-separated field names. If null or empty, all fields are included.
+     * @throws IllegalArgumentException if a field is not one of id, email, firstName, and lastName.
+     */
+    public static CustomerFields parse(String fields) {
+        if (fields == null || fields.trim().isEmpty()) {
+            return ALL;
+        }
+        Set<String> parsed = new LinkedHashSet<>();
+        for (String field : Splitter.on(',').trimResults().omitEmptyStrings().split(fields)) {
+            if (!FIELDS.contains(field)) {
+                throw new IllegalArgumentException("Unknown field: " + field);
+            }
+            parsed.add(field);
+        }
+        return parsed.containsAll(FIELDS) ? ALL : new CustomerFields(parsed);
+    }
+
+    public boolean isAll() {
+        return fields == null;
+    }
+
+    /**
+     * @return whether a customer read with these fields has the given field (ex: "email", "version").
+     */
+    public boolean includes(String field) {
+        return fields == null || field.equals("id") || fields.contains(field) || BOOKKEEPING_FIELDS.contains(field);
+    }
+
+    /**
+     * Limit the fields read by a query to these ones.
+     * @return the same query.
+     */
+    public Query applyTo(Query query) {
+        if (fields != null) {
+            for (String field : fields) {
+                query.fields().include(field);
+            }
+            for (String field : BOOKKEEPING_FIELDS) {
+                query.fields().include(field);
+            }
+        }
+        return query;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Objects.equals(fields, ((CustomerFields) o).fields);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(fields);
+    }
+
+    @Override
+    public String toString() {
+        return fields == null ? "*" : String.join(",", fields);
+    }
+}
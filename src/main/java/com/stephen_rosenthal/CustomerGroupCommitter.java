@@ -0,0 +1,230 @@
+package com.stephen_rosenthal;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Inserts new customers in groups: customers created at about the same time are collected for up to
+ * groupCommitMaxDelayMillis, or until there are groupCommitMaxBatchSize of them, and written with one bulk insert.
+ * Under a burst of creates, this takes far fewer round trips to the database than inserting each one.
+ *
+ * Each caller's future completes only once the bulk insert holding its customer is acknowledged, with the same
+ * write concern as a single insert, so a caller never sees a customer as created before it is written.
+ * Ids are assigned before the customer is queued, so callers know them right away. Customers of different tenants
+ * are collected together, and written with one bulk insert per tenant.
+ */
+@Component
+public class CustomerGroupCommitter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CustomerGroupCommitter.class);
+
+    @Autowired
+    private CustomerRepository customerRepository;
+
+    @Autowired
+    private CustomerTotals customerTotals;
+
+    @Autowired
+    private CustomerChangeFeed changeFeed;
+
+    @Value("${groupCommit:false}")
+    private boolean enabled;
+
+    @Value("${groupCommitMaxBatchSize:200}")
+    private int maxBatchSize;
+
+    @Value("${groupCommitMaxDelayMillis:5}")
+    private long maxDelayMillis;
+
+    // Customers that can wait to be written; more are turned away
+    @Value("${groupCommitQueueDepth:10000}")
+    private int queueDepth;
+
+    private BlockingQueue<PendingInsert> queue;
+    private Thread writer;
+    private volatile boolean stopped;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder inserted = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        queue = new ArrayBlockingQueue<>(queueDepth);
+        writer = new Thread(this::writeBatches, "customer-group-commit");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        stopped = true;
+        if (writer != null) {
+            writer.interrupt();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queue a new customer to be inserted with the next group. Assigns the customer an id if it doesn't have one.
+     * @return a future that completes when the customer has been written, or fails if it couldn't be; with a
+     *         RejectedExecutionException if the queue is full or the committer has been shut down.
+     */
+    public CompletableFuture<Void> insert(Customer customer) {
+        if (!enabled) {
+            throw new IllegalStateException("Group commit is not enabled");
+        }
+        if (customer.getId() == null) {
+            customer.setId(new ObjectId().toString());
+        }
+        PendingInsert pending = new PendingInsert(customer);
+        if (stopped) {
+            pending.future.completeExceptionally(new RejectedExecutionException("Shutting down"));
+        } else if (!queue.offer(pending)) {
+            pending.future.completeExceptionally(
+                    new RejectedExecutionException("Too many customers waiting to be written"));
+        } else if (stopped && queue.remove(pending)) {
+            // Shut down while queueing, maybe after the writer failed the customers left in the queue
+            pending.future.completeExceptionally(new RejectedExecutionException("Shutting down"));
+        }
+        return pending.future;
+    }
+
+    /**
+     * @return number of customers waiting to be written.
+     */
+    public int getQueueSize() {
+        return queue != null ? queue.size() : 0;
+    }
+
+    /**
+     * @return number of bulk inserts.
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * @return number of customers inserted.
+     */
+    public long getInserted() {
+        return inserted.sum();
+    }
+
+    private void writeBatches() {
+        List<PendingInsert> batch = new ArrayList<>(maxBatchSize);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // Wait for a first customer, then for more until the batch is full or the first has waited long enough
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+                while (batch.size() < maxBatchSize) {
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= maxBatchSize || remaining <= 0) {
+                        break;
+                    }
+                    PendingInsert next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                try {
+                    write(batch);
+                } catch (RuntimeException e) {
+                    // Fail this group's customers that aren't done yet, and carry on with the next group
+                    LOG.error("Could not finish writing a group of {} customers", batch.size(), e);
+                    batch.forEach(pending -> pending.future.completeExceptionally(e));
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Shutting down
+        } finally {
+            stopped = true; // Also when an Error ends the thread, so that inserts fail instead of waiting forever
+            RejectedExecutionException shutdown = new RejectedExecutionException("Shutting down");
+            batch.forEach(pending -> pending.future.completeExceptionally(shutdown));
+            PendingInsert pending;
+            while ((pending = queue.poll()) != null) {
+                pending.future.completeExceptionally(shutdown);
+            }
+        }
+    }
+
+    private void write(List<PendingInsert> batch) {
+        Map<String, List<PendingInsert>> byTenant = new LinkedHashMap<>();
+        for (PendingInsert pending : batch) {
+            byTenant.computeIfAbsent(pending.tenant, tenant -> new ArrayList<>()).add(pending);
+        }
+        for (Map.Entry<String, List<PendingInsert>> tenantBatch : byTenant.entrySet()) {
+            Tenant.run(tenantBatch.getKey(), () -> writeTenant(tenantBatch.getValue()));
+        }
+    }
+
+    /**
+     * Insert customers of the current tenant.
+     */
+    private void writeTenant(List<PendingInsert> batch) {
+        List<Customer> customers = new ArrayList<>(batch.size());
+        for (PendingInsert pending : batch) {
+            customers.add(pending.customer);
+        }
+
+        BulkInsertResult result;
+        try {
+            result = customerRepository.insertAll(customers);
+        } catch (RuntimeException e) {
+            LOG.warn("Could not insert a group of {} customers", batch.size(), e);
+            batch.forEach(pending -> pending.future.completeExceptionally(e));
+            return;
+        }
+        batches.increment();
+        inserted.add(result.getInserted());
+        customerTotals.recordWrites(result.getInserted()); // Bulk inserts bypass its event listener
+
+        Map<Integer, String> errors = result.getErrors();
+        changeFeed.recordCreated(result.getInserted(customers));
+        for (int i = 0; i < batch.size(); i++) {
+            String error = errors.get(i);
+            if (error != null) {
+                batch.get(i).future.completeExceptionally(new DataIntegrityViolationException(error));
+            } else {
+                batch.get(i).future.complete(null);
+            }
+        }
+    }
+
+    private static class PendingInsert {
+        private final Customer customer;
+        private final String tenant = Tenant.current();
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private PendingInsert(Customer customer) {
+            this.customer = customer;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.stephen_rosenthal;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Imports customers in bulk from a stream of newline-delimited JSON or CSV.
+ * The stream is read one line at a time and written to the database in batches,
+ * so memory use depends on the batch size rather than the size of the input.
+ */
+@Component
+public class CustomerImporter {
+
+    // Upper limit for the batch size requested by a client
+    private static final int MAX_BATCH_SIZE = 10000;
+
+    public enum Format {
+        NDJSON,
+        CSV
+    }
+
+    @Autowired
+    private CustomerRepository customerRepository;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private CustomerTotals customerTotals;
+
+    @Autowired
+    private CustomerChangeFeed changeFeed;
+
+    @Value("${importBatchSize:1000}")
+    private int defaultBatchSize;
+
+    /**
+     * Read customers from the input and insert them.
+     * Rows that can't be parsed, or that are rejected by the database, are reported and skipped.
+     * @param batchSize (optional) number of customers per database write. Must be in range [1, MAX_BATCH_SIZE].
+     */
+    public ImportReport importCustomers(Reader input, Format format, Integer batchSize) throws IOException {
+        batchSize = Optional.fromNullable(batchSize).or(defaultBatchSize);
+        if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+            batchSize = defaultBatchSize;
+        }
+
+        RowParser parser = format == Format.CSV ? new CsvRowParser() : new JsonRowParser(objectMapper);
+        ImportReport report = new ImportReport();
+        List<Customer> batch = new ArrayList<>(batchSize);
+        List<Integer> batchRows = new ArrayList<>(batchSize);
+
+        BufferedReader lines = new BufferedReader(input);
+        String line;
+        int row = 0;
+        while ((line = lines.readLine()) != null) {
+            row++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+
+            Customer customer;
+            try {
+                Row parsed = parser.parse(line);
+                if (parsed == null) {
+                    continue; // Header
+                }
+                report.addReceived();
+                customer = parsed.toCustomer();
+            } catch (IOException | RuntimeException e) {
+                report.addRowError(row, e.getMessage());
+                continue;
+            }
+
+            batch.add(customer);
+            batchRows.add(row);
+            if (batch.size() == batchSize && !writeBatch(batch, batchRows, report)) {
+                return report;
+            }
+        }
+        writeBatch(batch, batchRows, report);
+        return report;
+    }
+
+    /**
+     * Write a batch of customers to the database, record the outcome, and clear the batch.
+     * @return false if the whole batch failed, and the import should stop.
+     */
+    private boolean writeBatch(List<Customer> batch, List<Integer> batchRows, ImportReport report) {
+        if (batch.isEmpty()) {
+            return true;
+        }
+
+        int firstRow = batchRows.get(0);
+        int lastRow = batchRows.get(batchRows.size() - 1);
+        try {
+            BulkInsertResult result = customerRepository.insertAll(batch);
+            customerTotals.recordWrites(result.getInserted());
+            changeFeed.recordCreated(result.getInserted(batch));
+            for (Map.Entry<Integer, String> error : result.getErrors().entrySet()) {
+                report.addRowError(batchRows.get(error.getKey()), error.getValue());
+            }
+            report.addBatch(new ImportReport.Batch(firstRow, lastRow, batch.size(), result.getInserted(), null));
+            return true;
+        } catch (RuntimeException e) {
+            report.addBatch(new ImportReport.Batch(firstRow, lastRow, batch.size(), 0, e.getMessage()));
+            report.abort();
+            return false;
+        } finally {
+            batch.clear();
+            batchRows.clear();
+        }
+    }
+
+    /**
+     * Fields of a customer, as read from one line of input.
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    private static class Row {
+        @JsonProperty
+        private String id;
+        @JsonProperty
+        private String email;
+        @JsonProperty
+        private String firstName;
+        @JsonProperty
+        private String lastName;
+
+        /**
+         * Validate the fields and build a customer from them, trimming and normalizing like any other customer.
+         */
+        Customer toCustomer() {
+            if (email == null || firstName == null || lastName == null) {
+                throw new IllegalArgumentException("email, firstName and lastName are required");
+            }
+            if (email.indexOf('@') < 0) {
+                throw new IllegalArgumentException("email must contain '@'");
+            }
+            return new Customer(id, email, firstName, lastName);
+        }
+    }
+
+    private interface RowParser {
+        /**
+         * @return the parsed row, or null if the line is not a data row.
+         */
+        Row parse(String line) throws IOException;
+    }
+
+    private static class JsonRowParser implements RowParser {
+        private final ObjectReader reader;
+
+        JsonRowParser(ObjectMapper objectMapper) {
+            this.reader = objectMapper.reader(Row.class);
+        }
+
+        @Override
+        public Row parse(String line) throws IOException {
+            return reader.readValue(line);
+        }
+    }
+
+    /**
+     * Parses CSV with a header line naming the columns (in any order).
+     * Supports quoted values with "" escapes, but not line breaks within values.
+     */
+    private static class CsvRowParser implements RowParser {
+        private int idColumn = -1;
+        private int emailColumn = -1;
+        private int firstNameColumn = -1;
+        private int lastNameColumn = -1;
+        private boolean headerRead;
+
+        @Override
+        public Row parse(String line) {
+            List<String> values = split(line);
+            if (!headerRead) {
+                for (int i = 0; i < values.size(); i++) {
+                    switch (values.get(i).trim()) {
+                        case "id": idColumn = i; break;
+                        case "email": emailColumn = i; break;
+                        case "firstName": firstNameColumn = i; break;
+                        case "lastName": lastNameColumn = i; break;
+                        default: break; // Ignore other columns
+                    }
+                }
+                headerRead = true;
+                return null;
+            }
+
+            Row row = new Row();
+            row.id = Strings.emptyToNull(get(values, idColumn));
+            row.email = get(values, emailColumn);
+            row.firstName = get(values, firstNameColumn);
+            row.lastName = get(values, lastNameColumn);
+            return row;
+        }
+
+        private static String get(List<String> values, int column) {
+            if (column < 0 || column >= values.size()) {
+                return null;
+            }
+            return values.get(column);
+        }
+
+        private static List<String> split(String line) {
+            List<String> values = new ArrayList<>();
+            StringBuilder value = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (quoted) {
+                    if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        value.append('"');
+                        i++;
+                    } else if (c == '"') {
+                        quoted = false;
+                    } else {
+                        value.append(c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    values.add(value.toString());
+                    value.setLength(0);
+                } else {
+                    value.append(c);
+                }
+            }
+            values.add(value.toString());
+            return values;
+        }
+    }
+}
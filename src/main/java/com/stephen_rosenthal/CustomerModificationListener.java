@@ -0,0 +1,21 @@
+package com.stephen_rosenthal;
+
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+
+/**
+ * Stamps customers with the time they were last written, whenever they are saved through Spring Data, and makes sure
+ * their blocking keys are computed, since Spring Data saves the field rather than calling its getter.
+ * Writes that bypass Spring Data (ex: bulk inserts) must do both themselves.
+ */
+@Component
+public class CustomerModificationListener extends AbstractMongoEventListener<Customer> {
+
+    @Override
+    public void onBeforeConvert(Customer customer) {
+        customer.setLastModified(new Date());
+        customer.getBlockingKeys();
+    }
+}
@@ -10,6 +10,8 @@ import java.util.Objects;
 /**
  * Models a page of customer results from a List operation.
  * Contains a subset of the fields in org.springframework.data.domain.Page.
+ * If approximate is true, numberOfPages was computed from a cached count of customers (see CustomerTotals),
+ * and may be out of date. Whether the page is the last one is always exact.
  */
 public class CustomerPage {
     private final List<Customer> customers;
@@ -18,6 +20,7 @@ public class CustomerPage {
     private final int pageSize;
     private final boolean first;
     private final boolean last;
+    private final boolean approximate;
 
     @JsonCreator
     public CustomerPage(
@@ -26,7 +29,8 @@ public class CustomerPage {
             @JsonProperty(value = "page") int page,
             @JsonProperty(value = "pageSize") int pageSize,
             @JsonProperty(value = "first") boolean first,
-            @JsonProperty(value = "last") boolean last) {
+            @JsonProperty(value = "last") boolean last,
+            @JsonProperty(value = "approximate") boolean approximate) {
         Objects.requireNonNull(customers);
         this.customers = customers;
         this.numberOfPages = numberOfPages;
@@ -34,10 +38,16 @@ public class CustomerPage {
         this.pageSize = pageSize;
         this.first = first;
         this.last = last;
+        this.approximate = approximate;
     }
 
     public CustomerPage(Page<Customer> page) {
-        this(page.getContent(), page.getTotalPages(), page.getNumber(), page.getSize(), page.isFirst(), page.isLast());
+        this(page, false);
+    }
+
+    public CustomerPage(Page<Customer> page, boolean approximate) {
+        this(page.getContent(), page.getTotalPages(), page.getNumber(), page.getSize(), page.isFirst(), page.isLast(),
+                approximate);
     }
 
     public List<Customer> getCustomers() {
@@ -64,6 +74,10 @@ public class CustomerPage {
         return last;
     }
 
+    public boolean isApproximate() {
+        return approximate;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -73,6 +87,7 @@ public class CustomerPage {
 
         if (first != that.first) return false;
         if (last != that.last) return false;
+        if (approximate != that.approximate) return false;
         if (numberOfPages != that.numberOfPages) return false;
         if (page != that.page) return false;
         if (pageSize != that.pageSize) return false;
@@ -83,6 +98,6 @@ public class CustomerPage {
 
     @Override
     public int hashCode() {
-        return Objects.hash(customers, numberOfPages, page, pageSize, first, last);
+        return Objects.hash(customers, numberOfPages, page, pageSize, first, last, approximate);
     }
 }
@@ -0,0 +1,94 @@
+package com.stephen_rosenthal;
+
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Operations on customers that can't be expressed as Spring Data derived queries.
+ * Implemented by CustomerRepositoryImpl, which Spring Data finds by naming convention.
+ */
+public interface CustomerRepositoryCustom {
+    /**
+     * Insert many customers in a single unordered bulk write.
+     * Customers without an id are assigned one before the write, so callers can read it afterwards.
+     * A failure for one customer (ex: a duplicate id) does not prevent the others from being inserted.
+     */
+    BulkInsertResult insertAll(List<Customer> customers);
+
+    /**
+     * Find a page of customers, along with the first customer of the next page if there is one.
+     * This shows whether the page is the last one, without counting all of the customers (see CustomerTotals).
+     * @param fields the fields to read; the others are left null.
+     * @return up to one more customer than the page size.
+     */
+    List<Customer> findPage(Pageable pageable, CustomerFields fields);
+
+    /**
+     * Find a page of "similar" customers - customers that have either of the following:
+     * (1) the same normalized email address (trimming and ignoring case, periods, anything after '+' or '-').
+     * (2) have the same first AND last names (trimming and ignoring case).
+     * Each of these is an exact match on normalized fields, so both can be answered from indexes (see CustomerSchema).
+     * @param fields the fields to read; the others are left null.
+     */
+    Page<Customer> findSimilar(Customer customer, Pageable pageable, CustomerFields fields);
+
+    /**
+     * Find a page of customers that are probably the same person as the given customer, despite typos and nicknames
+     * (see FuzzyMatcher). Only customers sharing a blocking key are read, from an index, skipping keys shared by more
+     * than FuzzyMatcher.MAX_BLOCK_SIZE customers, and those with a score of at least FuzzyMatcher.MIN_SCORE are
+     * returned, best first. Always includes the customers found by findSimilar, however many there are.
+     * @param fields the fields to return; the others are left null.
+     */
+    Page<Customer> findFuzzySimilar(Customer customer, Pageable pageable, CustomerFields fields);
+
+    /**
+     * Find customers in id order, starting after the given id. Unlike skip-based paging,
+     * this uses the id index to jump straight to the starting point, so it costs the same at any depth.
+     * @param afterId (optional) id of the last customer already seen.
+     * @param limit maximum number of customers to return.
+     * @param fields the fields to read; the others are left null.
+     */
+    List<Customer> findAllAfter(String afterId, int limit, CustomerFields fields);
+
+    /**
+     * Find customers that are similar to the given customer (see findSimilar), in id order, starting after the given id.
+     * @param afterId (optional) id of the last customer already seen.
+     * @param limit maximum number of customers to return.
+     * @param fields the fields to read; the others are left null.
+     */
+    List<Customer> findSimilarAfter(Customer customer, String afterId, int limit, CustomerFields fields);
+
+    /**
+     * Find customers by id, with a single query.
+     * @param fields the fields to read; the others are left null.
+     * @return the customers that exist, in no particular order.
+     */
+    List<Customer> findByIds(Collection<String> ids, CustomerFields fields);
+
+    /**
+     * Find customers with any of the given normalized email addresses, or any of the given normalized names.
+     */
+    List<Customer> findByNormalizedKeys(Collection<String> normalizedEmails, Collection<NameKey> normalizedNames);
+
+    /**
+     * Read customers one at a time from a database cursor, so any number can be processed in constant memory.
+     * @param modifiedSince (optional) only read customers saved at or after this time.
+     */
+    void forEachModifiedSince(Date modifiedSince, Consumer<Customer> consumer);
+
+    /**
+     * Set some fields of a customer in a single write, without rewriting the rest of the document.
+     * The normalized form of each field being set and the blocking keys are recomputed, and the version is
+     * incremented. The blocking keys need the other normalized fields, which are read first.
+     * @param fields new values by field name: any of email, firstName, and lastName.
+     * @param expectedVersion (optional) only update the customer if it still has this version.
+     * @return the updated customer, or null if there is no customer with that id (and version).
+     */
+    Customer updateFields(String id, Map<String, String> fields, Long expectedVersion);
+}
@@ -0,0 +1,309 @@
+package com.stephen_rosenthal;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * MongoDB implementation of the custom customer operations.
+ */
+class CustomerRepositoryImpl implements CustomerRepositoryCustom {
+
+    // BSON type number for ObjectId, for $type queries
+    private static final int OBJECT_ID_TYPE = 7;
+
+    // Number of documents fetched per round trip when reading through a whole collection
+    private static final int CURSOR_BATCH_SIZE = 1000;
+
+    // Fields needed to score customers in a fuzzy search
+    private static final String[] SCORED_FIELDS = {"normalizedEmail", "normalizedFirstName", "normalizedLastName"};
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    // For listing and exporting, which may read from secondaries (see MongoConfiguration)
+    @Autowired
+    @Qualifier("listMongoTemplate")
+    private MongoOperations listMongoOperations;
+
+    @Autowired
+    private ReadPreference listReadPreference;
+
+    @Override
+    public BulkInsertResult insertAll(List<Customer> customers) {
+        if (customers.isEmpty()) {
+            return new BulkInsertResult(0, new LinkedHashMap<Integer, String>());
+        }
+
+        DBCollection collection = getCollection();
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        for (Customer customer : customers) {
+            // Assign ids up front, so each customer can be matched to its result without another query
+            if (customer.getId() == null) {
+                customer.setId(new ObjectId().toString());
+            }
+            customer.setLastModified(new Date()); // Bulk writes bypass CustomerModificationListener
+            customer.getBlockingKeys(); // Likewise
+            if (customer.getVersion() == null) {
+                customer.setVersion(0L); // And the version numbering done by save()
+            }
+            DBObject dbObject = new BasicDBObject();
+            mongoOperations.getConverter().write(customer, dbObject);
+            bulk.insert(dbObject);
+        }
+
+        Map<Integer, String> errors = new LinkedHashMap<>();
+        int inserted;
+        try {
+            inserted = bulk.execute().getInsertedCount();
+        } catch (BulkWriteException e) {
+            inserted = e.getWriteResult().getInsertedCount();
+            for (BulkWriteError error : e.getWriteErrors()) {
+                errors.put(error.getIndex(), error.getMessage());
+            }
+        }
+        return new BulkInsertResult(inserted, errors);
+    }
+
+    @Override
+    public List<Customer> findPage(Pageable pageable, CustomerFields fields) {
+        Query query = new Query().with(pageable.getSort()).skip(pageable.getOffset()).limit(pageable.getPageSize() + 1);
+        return listMongoOperations.find(fields.applyTo(query), Customer.class);
+    }
+
+    @Override
+    public Page<Customer> findSimilar(Customer customer, Pageable pageable, CustomerFields fields) {
+        Criteria criteria = similarTo(customer);
+        List<Customer> customers = listMongoOperations.find(
+                fields.applyTo(new Query(criteria).with(pageable)), Customer.class);
+        long total = listMongoOperations.count(new Query(criteria), Customer.class);
+        return new PageImpl<>(customers, pageable, total);
+    }
+
+    @Override
+    public Page<Customer> findFuzzySimilar(Customer customer, Pageable pageable, CustomerFields fields) {
+        // The exact matches, always, then those sharing a key that isn't too common to tell customers apart
+        Map<String, Customer> candidates = new LinkedHashMap<>();
+        for (Customer candidate : listMongoOperations.find(scored(new Query(similarTo(customer)), fields),
+                Customer.class)) {
+            candidates.put(candidate.getId(), candidate);
+        }
+        List<String> blockingKeys = new ArrayList<>();
+        DBCollection collection = getCollection();
+        for (String blockingKey : FuzzyMatcher.getDefault().blockingKeys(customer)) {
+            // Only counts up to the limit, in the index
+            long blockSize = collection.getCount(new BasicDBObject("blockingKeys", blockingKey), null,
+                    FuzzyMatcher.MAX_BLOCK_SIZE + 1, 0, listReadPreference);
+            if (blockSize <= FuzzyMatcher.MAX_BLOCK_SIZE) {
+                blockingKeys.add(blockingKey);
+            }
+        }
+        if (!blockingKeys.isEmpty()) {
+            Query query = scored(new Query(where("blockingKeys").in(blockingKeys)), fields);
+            for (Customer candidate : listMongoOperations.find(query, Customer.class)) {
+                candidates.putIfAbsent(candidate.getId(), candidate);
+            }
+        }
+
+        FuzzyMatcher matcher = FuzzyMatcher.getDefault();
+        Map<Customer, Double> scores = new IdentityHashMap<>();
+        List<Customer> similar = new ArrayList<>();
+        for (Customer candidate : candidates.values()) {
+            double score = matcher.score(customer, candidate);
+            if (score >= FuzzyMatcher.MIN_SCORE) {
+                scores.put(candidate, score);
+                similar.add(candidate);
+            }
+        }
+        similar.sort(Comparator.comparing((Customer candidate) -> scores.get(candidate)).reversed()
+                .thenComparing(Customer::getId));
+
+        int from = Math.min(pageable.getOffset(), similar.size());
+        int to = Math.min(from + pageable.getPageSize(), similar.size());
+        return new PageImpl<>(new ArrayList<>(similar.subList(from, to)), pageable, similar.size());
+    }
+
+    /**
+     * Read the given fields, and the ones needed to score candidates for a fuzzy search.
+     */
+    private static Query scored(Query query, CustomerFields fields) {
+        fields.applyTo(query);
+        if (!fields.isAll()) {
+            for (String field : SCORED_FIELDS) {
+                query.fields().include(field);
+            }
+        }
+        return query;
+    }
+
+    @Override
+    public List<Customer> findAllAfter(String afterId, int limit, CustomerFields fields) {
+        return findAfter(new Criteria(), afterId, limit, fields);
+    }
+
+    @Override
+    public List<Customer> findSimilarAfter(Customer customer, String afterId, int limit, CustomerFields fields) {
+        return findAfter(similarTo(customer), afterId, limit, fields);
+    }
+
+    private List<Customer> findAfter(Criteria criteria, String afterId, int limit, CustomerFields fields) {
+        if (afterId != null) {
+            criteria = new Criteria().andOperator(criteria, idAfter(afterId));
+        }
+        Query query = new Query(criteria).with(new Sort(Sort.Direction.ASC, "_id")).limit(limit);
+        return listMongoOperations.find(fields.applyTo(query), Customer.class);
+    }
+
+    @Override
+    public List<Customer> findByIds(Collection<String> ids, CustomerFields fields) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return mongoOperations.find(fields.applyTo(new Query(where("_id").in(ids))), Customer.class);
+    }
+
+    @Override
+    public List<Customer> findByNormalizedKeys(Collection<String> normalizedEmails, Collection<NameKey> normalizedNames) {
+        List<Criteria> criteria = new ArrayList<>();
+        if (!normalizedEmails.isEmpty()) {
+            criteria.add(where("normalizedEmail").in(normalizedEmails));
+        }
+        for (NameKey name : normalizedNames) {
+            criteria.add(where("normalizedFirstName").is(name.getNormalizedFirstName())
+                    .and("normalizedLastName").is(name.getNormalizedLastName()));
+        }
+        if (criteria.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Query query = new Query(new Criteria().orOperator(criteria.toArray(new Criteria[criteria.size()])));
+        return mongoOperations.find(query, Customer.class);
+    }
+
+    @Override
+    public void forEachModifiedSince(Date modifiedSince, Consumer<Customer> consumer) {
+        DBObject query = new BasicDBObject();
+        if (modifiedSince != null) {
+            query.put("lastModified", new BasicDBObject("$gte", modifiedSince));
+        }
+        try (DBCursor cursor = getCollection().find(query).batchSize(CURSOR_BATCH_SIZE)
+                .setReadPreference(listReadPreference)) {
+            while (cursor.hasNext()) {
+                consumer.accept(mongoOperations.getConverter().read(Customer.class, cursor.next()));
+            }
+        }
+    }
+
+    @Override
+    public Customer updateFields(String id, Map<String, String> fields, Long expectedVersion) {
+        Update update = new Update();
+        String normalizedEmail = null;
+        String normalizedFirstName = null;
+        String normalizedLastName = null;
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            String value = field.getValue();
+            switch (field.getKey()) {
+                case "email":
+                    normalizedEmail = Customer.normalizeEmail(value);
+                    update.set("email", value).set("normalizedEmail", normalizedEmail);
+                    break;
+                case "firstName":
+                    normalizedFirstName = Customer.normalizeName(value);
+                    update.set("firstName", value).set("normalizedFirstName", normalizedFirstName);
+                    break;
+                case "lastName":
+                    normalizedLastName = Customer.normalizeName(value);
+                    update.set("lastName", value).set("normalizedLastName", normalizedLastName);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Can't update field " + field.getKey());
+            }
+        }
+        // findAndModify bypasses CustomerModificationListener and the version numbering done by save()
+        update.set("lastModified", new Date()).inc("version", 1L);
+
+        Criteria criteria = where("_id").is(id);
+        if (expectedVersion != null) {
+            criteria = criteria.and("version").is(expectedVersion);
+        }
+        while (true) {
+            // The blocking keys depend on the fields not being set too, so read those, and only write if the
+            // customer still has the version they were read from
+            Query query = new Query(criteria);
+            for (String field : SCORED_FIELDS) {
+                query.fields().include(field);
+            }
+            query.fields().include("version");
+            Customer current = mongoOperations.findOne(query, Customer.class);
+            if (current == null) {
+                return null;
+            }
+            update.set("blockingKeys", FuzzyMatcher.getDefault().blockingKeys(
+                    normalizedEmail != null ? normalizedEmail : current.getNormalizedEmail(),
+                    normalizedFirstName != null ? normalizedFirstName : current.getNormalizedFirstName(),
+                    normalizedLastName != null ? normalizedLastName : current.getNormalizedLastName()));
+
+            Customer updated = mongoOperations.findAndModify(
+                    new Query(where("_id").is(id).and("version").is(current.getVersion())), update,
+                    FindAndModifyOptions.options().returnNew(true), Customer.class);
+            if (updated != null || expectedVersion != null) {
+                return updated;
+            }
+            // Changed since it was read; try again with its new fields
+        }
+    }
+
+    /**
+     * Match ids that sort after the given id.
+     * Ids are normally ObjectIds, but a PUT to a new id can create a string id.
+     * Strings sort before ObjectIds, but $gt only compares values of the same type, so include all ObjectIds after a string.
+     */
+    private static Criteria idAfter(String afterId) {
+        if (ObjectId.isValid(afterId)) {
+            return where("_id").gt(new ObjectId(afterId));
+        }
+        return new Criteria().orOperator(where("_id").gt(afterId), where("_id").type(OBJECT_ID_TYPE));
+    }
+
+    /**
+     * Match customers that are similar to the given one (see findSimilar).
+     */
+    static Criteria similarTo(Customer customer) {
+        return new Criteria().orOperator(
+                where("normalizedEmail").is(customer.getNormalizedEmail()),
+                where("normalizedFirstName").is(customer.getNormalizedFirstName())
+                        .and("normalizedLastName").is(customer.getNormalizedLastName()));
+    }
+
+    private DBCollection getCollection() {
+        return mongoOperations.getCollection(mongoOperations.getCollectionName(Customer.class));
+    }
+}
@@ -0,0 +1,190 @@
+package com.stephen_rosenthal;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the database work for customer requests.
+ *
+ * By default (asyncRequests=false), work runs on the servlet container's thread, as before, and the response is
+ * written as soon as the handler returns (see CompletedResults).
+ * With asyncRequests=true, it runs on a separate, bounded pool of threads, and the container's thread is released
+ * while it waits, so a slow database fills this pool's queue instead of the container's thread pool.
+ * Requests that would wait in a full queue, or that take longer than the timeout, get a 503 right away.
+ * Except writes that time out once their work has started: the write may still succeed, so they get a 504 Gateway
+ * Timeout without Retry-After, and the client should read the customer before trying again, rather than creating it
+ * twice.
+ */
+@Component
+public class CustomerRequestExecutor {
+
+    // Seconds for clients to wait before retrying a request that was turned away
+    private static final String RETRY_AFTER_SECONDS = "1";
+
+    @Value("${asyncRequests:false}")
+    private boolean async;
+
+    @Value("${asyncRequestThreads:32}")
+    private int threads;
+
+    @Value("${asyncRequestQueueDepth:256}")
+    private int queueDepth;
+
+    @Value("${asyncRequestTimeoutMillis:5000}")
+    private long timeoutMillis;
+
+    private ThreadPoolExecutor executor;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        if (!async) {
+            return;
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueDepth),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "customer-request-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Run the work for a request, for the request's tenant.
+     * Exceptions thrown by the work are handled as if the handler method threw them.
+     * @return the result of the work, or a 503 response if the queue is full or the work timed out.
+     */
+    public <T> DeferredResult<ResponseEntity<T>> submit(Callable<ResponseEntity<T>> work) {
+        return submit(work, false);
+    }
+
+    /**
+     * Like submit(), for work that writes to the database: if it times out after starting, the response is a 504
+     * instead, since the write may still succeed and shouldn't be retried blindly.
+     */
+    public <T> DeferredResult<ResponseEntity<T>> submitWrite(Callable<ResponseEntity<T>> work) {
+        return submit(work, true);
+    }
+
+    /**
+     * @return a result that is already complete, for requests that can be answered without the database.
+     */
+    public <T> DeferredResult<ResponseEntity<T>> completed(ResponseEntity<T> response) {
+        DeferredResult<ResponseEntity<T>> result = new DeferredResult<>();
+        result.setResult(response);
+        return result;
+    }
+
+    private <T> DeferredResult<ResponseEntity<T>> submit(Callable<ResponseEntity<T>> work, boolean write) {
+        if (!async) {
+            DeferredResult<ResponseEntity<T>> result = new DeferredResult<>();
+            run(work, result);
+            return result;
+        }
+
+        final DeferredResult<ResponseEntity<T>> result = new DeferredResult<>(timeoutMillis);
+        final String tenant = Tenant.current();
+        try {
+            // Claimed by whichever comes first: the work starting, or the timeout, so exactly one knows it won
+            final AtomicBoolean claimed = new AtomicBoolean();
+            final Future<?> future = executor.submit(() -> {
+                if (claimed.compareAndSet(false, true)) {
+                    Tenant.run(tenant, () -> run(work, result));
+                }
+            });
+            result.onTimeout(() -> {
+                timeouts.increment();
+                boolean started = !claimed.compareAndSet(false, true);
+                future.cancel(false); // Take work that never started off the queue; don't interrupt database I/O
+                result.setResult(write && started ? gatewayTimeout() : unavailable());
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            result.setResult(unavailable());
+        }
+        return result;
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * @return number of requests waiting for a thread.
+     */
+    public int getQueueSize() {
+        return executor != null ? executor.getQueue().size() : 0;
+    }
+
+    /**
+     * @return number of threads running requests.
+     */
+    public int getActiveCount() {
+        return executor != null ? executor.getActiveCount() : 0;
+    }
+
+    /**
+     * @return number of requests turned away because the queue was full.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return number of requests that timed out before their work finished.
+     */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    private static <T> void run(Callable<ResponseEntity<T>> work, DeferredResult<ResponseEntity<T>> result) {
+        try {
+            result.setResult(work.call());
+        } catch (Exception e) {
+            result.setErrorResult(e);
+        }
+    }
+
+    /**
+     * @return a 503 response, asking the client to retry shortly.
+     */
+    static <T> ResponseEntity<T> unavailable() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("Retry-After", RETRY_AFTER_SECONDS);
+        return new ResponseEntity<>(headers, HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * @return a 504 response, for a write that may or may not have happened.
+     */
+    static <T> ResponseEntity<T> gatewayTimeout() {
+        return new ResponseEntity<>(HttpStatus.GATEWAY_TIMEOUT);
+    }
+}
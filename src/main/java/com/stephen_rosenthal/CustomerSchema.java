@@ -0,0 +1,324 @@
+package com.stephen_rosenthal;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the customer collection in the shape the queries expect: creates indexes,
+ * and fills in derived fields for documents that were written before those fields existed.
+ * Runs at startup, before any requests are served; in fast startup mode (fastStartup=true), Readiness runs it in the
+ * background instead, and the server reports ready when it's done. Only used with MongoDB (see MongoConfiguration).
+ *
+ * Each tenant has its own collection (see Tenant), and the methods below work on the current tenant's. At startup,
+ * every tenant with a collection is updated; a tenant first seen later gets its indexes before its first request.
+ *
+ * The backfills only write a derived field if the fields it was computed from are still the ones that were read,
+ * so a customer replaced or patched while they run keeps the derived fields its own write computed.
+ */
+@Component
+@ConditionalOnProperty(name = "customerStore", havingValue = "mongo", matchIfMissing = true)
+public class CustomerSchema {
+
+    private static final Logger logger = LoggerFactory.getLogger(CustomerSchema.class);
+
+    // Number of documents to update per bulk write when backfilling
+    private static final int BACKFILL_BATCH_SIZE = 1000;
+
+    // Collection with a document per customer collection, recording what its derived fields were computed with
+    private static final String SCHEMA_COLLECTION_NAME = "schema";
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    @Autowired
+    private TenantMongoDbFactory mongoDbFactory;
+
+    @Value("${backfillOnStartup:true}")
+    private boolean backfillOnStartup;
+
+    @Value("${fastStartup:false}")
+    private boolean fastStartup;
+
+    // Tenants whose indexes have been created since startup
+    private final Set<String> prepared = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void init() {
+        if (!fastStartup) {
+            update();
+        }
+    }
+
+    /**
+     * Backfill and create the indexes of every tenant with a collection.
+     */
+    public void update() {
+        for (String tenant : findTenants()) {
+            Tenant.run(tenant, () -> {
+                if (backfillOnStartup) {
+                    backfillNormalizedNames();
+                    backfillNormalizedEmailsIfRulesChanged();
+                    backfillBlockingKeys();
+                    backfillVersions();
+                }
+                ensureIndexes();
+            });
+            prepared.add(tenant);
+        }
+    }
+
+    /**
+     * Create a tenant's indexes, the first time it is used since startup.
+     */
+    public void prepare(String tenant) {
+        if (prepared.contains(tenant)) {
+            return;
+        }
+        Tenant.run(tenant, this::ensureIndexes);
+        prepared.add(tenant);
+    }
+
+    /**
+     * Create the indexes used to find similar, fuzzily similar, and recently modified customers.
+     * Does nothing if they already exist.
+     */
+    public void ensureIndexes() {
+        mongoOperations.indexOps(Customer.class).ensureIndex(
+                new Index().on("normalizedEmail", Sort.Direction.ASC));
+        mongoOperations.indexOps(Customer.class).ensureIndex(
+                new Index().on("normalizedFirstName", Sort.Direction.ASC).on("normalizedLastName", Sort.Direction.ASC));
+        mongoOperations.indexOps(Customer.class).ensureIndex(
+                new Index().on("blockingKeys", Sort.Direction.ASC));
+        mongoOperations.indexOps(Customer.class).ensureIndex(
+                new Index().on("lastModified", Sort.Direction.ASC));
+    }
+
+    /**
+     * Set normalizedFirstName and normalizedLastName on any documents that are missing them.
+     * @return the number of documents updated.
+     */
+    public int backfillNormalizedNames() {
+        DBCollection collection = mongoOperations.getCollection(mongoOperations.getCollectionName(Customer.class));
+        DBObject missing = new BasicDBObject("$or", Arrays.asList(
+                new BasicDBObject("normalizedFirstName", new BasicDBObject("$exists", false)),
+                new BasicDBObject("normalizedLastName", new BasicDBObject("$exists", false))));
+        DBObject fields = new BasicDBObject("firstName", 1).append("lastName", 1);
+
+        int updated = 0;
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        int pending = 0;
+        try (DBCursor cursor = collection.find(missing, fields)) {
+            while (cursor.hasNext()) {
+                DBObject document = cursor.next();
+                Object firstName = document.get("firstName");
+                Object lastName = document.get("lastName");
+                if (!(firstName instanceof String) || !(lastName instanceof String)) {
+                    continue;
+                }
+
+                DBObject set = new BasicDBObject("normalizedFirstName", Customer.normalizeName((String) firstName))
+                        .append("normalizedLastName", Customer.normalizeName((String) lastName));
+                bulk.find(unchanged(document, "firstName", "lastName")).updateOne(new BasicDBObject("$set", set));
+                pending++;
+
+                if (pending == BACKFILL_BATCH_SIZE) {
+                    updated += bulk.execute().getMatchedCount();
+                    bulk = collection.initializeUnorderedBulkOperation();
+                    pending = 0;
+                }
+            }
+        }
+        if (pending > 0) {
+            updated += bulk.execute().getMatchedCount();
+        }
+
+        if (updated > 0) {
+            logger.info("Backfilled normalized names for {} customers", updated);
+        }
+        return updated;
+    }
+
+    /**
+     * Run backfillNormalizedEmails if the EmailNormalizer rules have changed since it last ran for this tenant
+     * (or it never has), then record the current rules.
+     * @return the number of documents updated.
+     */
+    public int backfillNormalizedEmailsIfRulesChanged() {
+        DBCollection schema = mongoOperations.getCollection(SCHEMA_COLLECTION_NAME);
+        DBObject id = new BasicDBObject("_id", mongoOperations.getCollectionName(Customer.class));
+        String version = EmailNormalizer.getDefault().getVersion();
+        DBObject recorded = schema.findOne(id);
+        if (recorded != null && version.equals(recorded.get("emailNormalization"))) {
+            return 0;
+        }
+
+        int updated = backfillNormalizedEmails();
+        schema.update(id, new BasicDBObject("$set", new BasicDBObject("emailNormalization", version)), true, false);
+        return updated;
+    }
+
+    /**
+     * Recompute normalizedEmail on any documents where it differs from what EmailNormalizer gives now, for example
+     * after its rules change. Their blockingKeys are derived from it, so they are recomputed too.
+     * This reads every document, so at startup it only runs when the rules change (see
+     * backfillNormalizedEmailsIfRulesChanged).
+     * @return the number of documents updated.
+     */
+    public int backfillNormalizedEmails() {
+        DBCollection collection = mongoOperations.getCollection(mongoOperations.getCollectionName(Customer.class));
+        DBObject fields = new BasicDBObject("email", 1).append("normalizedEmail", 1)
+                .append("normalizedFirstName", 1).append("normalizedLastName", 1);
+        FuzzyMatcher matcher = FuzzyMatcher.getDefault();
+
+        int updated = 0;
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        int pending = 0;
+        // Whether a stored value is stale can't be queried, so every document is checked
+        try (DBCursor cursor = collection.find(new BasicDBObject(), fields)) {
+            while (cursor.hasNext()) {
+                DBObject document = cursor.next();
+                String email = getString(document, "email");
+                if (email == null || email.indexOf('@') < 0) {
+                    continue;
+                }
+                String normalizedEmail = Customer.normalizeEmail(email);
+                if (normalizedEmail.equals(document.get("normalizedEmail"))) {
+                    continue;
+                }
+
+                List<String> keys = matcher.blockingKeys(normalizedEmail,
+                        getString(document, "normalizedFirstName"), getString(document, "normalizedLastName"));
+                DBObject set = new BasicDBObject("normalizedEmail", normalizedEmail).append("blockingKeys", keys);
+                bulk.find(unchanged(document, "email", "normalizedFirstName", "normalizedLastName"))
+                        .updateOne(new BasicDBObject("$set", set));
+                pending++;
+
+                if (pending == BACKFILL_BATCH_SIZE) {
+                    updated += bulk.execute().getMatchedCount();
+                    bulk = collection.initializeUnorderedBulkOperation();
+                    pending = 0;
+                }
+            }
+        }
+        if (pending > 0) {
+            updated += bulk.execute().getMatchedCount();
+        }
+
+        if (updated > 0) {
+            logger.info("Backfilled normalized emails for {} customers", updated);
+        }
+        return updated;
+    }
+
+    /**
+     * Set blockingKeys on any documents that are missing them (see FuzzyMatcher), after backfillNormalizedNames.
+     * @return the number of documents updated.
+     */
+    public int backfillBlockingKeys() {
+        DBCollection collection = mongoOperations.getCollection(mongoOperations.getCollectionName(Customer.class));
+        DBObject missing = new BasicDBObject("blockingKeys", new BasicDBObject("$exists", false));
+        DBObject fields = new BasicDBObject("normalizedEmail", 1)
+                .append("normalizedFirstName", 1).append("normalizedLastName", 1);
+        FuzzyMatcher matcher = FuzzyMatcher.getDefault();
+
+        int updated = 0;
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        int pending = 0;
+        try (DBCursor cursor = collection.find(missing, fields)) {
+            while (cursor.hasNext()) {
+                DBObject document = cursor.next();
+                List<String> keys = matcher.blockingKeys(getString(document, "normalizedEmail"),
+                        getString(document, "normalizedFirstName"), getString(document, "normalizedLastName"));
+                bulk.find(unchanged(document, "normalizedEmail", "normalizedFirstName", "normalizedLastName"))
+                        .updateOne(new BasicDBObject("$set", new BasicDBObject("blockingKeys", keys)));
+                pending++;
+
+                if (pending == BACKFILL_BATCH_SIZE) {
+                    updated += bulk.execute().getMatchedCount();
+                    bulk = collection.initializeUnorderedBulkOperation();
+                    pending = 0;
+                }
+            }
+        }
+        if (pending > 0) {
+            updated += bulk.execute().getMatchedCount();
+        }
+
+        if (updated > 0) {
+            logger.info("Backfilled blocking keys for {} customers", updated);
+        }
+        return updated;
+    }
+
+    /**
+     * Set version 0 on any documents that are missing it. Until then, those customers can't be replaced with a PUT,
+     * because saving a customer without a version inserts it instead of updating it.
+     * @return the number of documents updated.
+     */
+    public int backfillVersions() {
+        DBCollection collection = mongoOperations.getCollection(mongoOperations.getCollectionName(Customer.class));
+        int updated = collection.updateMulti(
+                new BasicDBObject("version", new BasicDBObject("$exists", false)),
+                new BasicDBObject("$set", new BasicDBObject("version", 0L))).getN();
+
+        if (updated > 0) {
+            logger.info("Backfilled versions for {} customers", updated);
+        }
+        return updated;
+    }
+
+    /**
+     * @return the default tenant, the isolated tenants, and tenants with a collection in the shared database.
+     */
+    private Set<String> findTenants() {
+        Set<String> tenants = new TreeSet<>();
+        tenants.add(Tenant.DEFAULT);
+        tenants.addAll(mongoDbFactory.getIsolatedTenants());
+        String prefix = Tenant.getCollectionName(Tenant.DEFAULT) + "_";
+        DB shared = mongoDbFactory.getDb(mongoDbFactory.getDatabaseName(Tenant.DEFAULT));
+        for (String collectionName : shared.getCollectionNames()) {
+            String tenant = collectionName.substring(Math.min(prefix.length(), collectionName.length()));
+            if (collectionName.startsWith(prefix) && Tenant.isValid(tenant)) {
+                tenants.add(tenant);
+            }
+        }
+        return tenants;
+    }
+
+    /**
+     * @return a filter matching the document only while the given fields still have the values that were read.
+     * A field that was missing matches null, which in MongoDB also matches a missing field.
+     */
+    private static DBObject unchanged(DBObject document, String... fields) {
+        BasicDBObject filter = new BasicDBObject("_id", document.get("_id"));
+        for (String field : fields) {
+            filter.append(field, document.get(field));
+        }
+        return filter;
+    }
+
+    private static String getString(DBObject document, String field) {
+        Object value = document.get(field);
+        return value instanceof String ? (String) value : null;
+    }
+}
@@ -0,0 +1,369 @@
+package com.stephen_rosenthal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Persistence for InMemoryCustomerRepository: every write is appended to a log in a memory-mapped file, and every so
+ * often all of the customers are written to a snapshot, so that a restart reads the snapshot and the log written
+ * since, rather than the whole history.
+ *
+ * Files come in generations: snapshot-N holds the customers as of the start of log-N, and may include some writes
+ * from log-N too, which is harmless since each record holds a whole customer. Recovery loads the newest snapshot and
+ * replays the logs from its generation on, stopping at the first record that is incomplete or fails its checksum.
+ *
+ * Appends go to the page cache, so they survive the process crashing as soon as they are made; force() makes them
+ * survive the machine crashing too. Not thread safe: callers must hold a lock around writes and rotate().
+ */
+class CustomerStoreLog implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CustomerStoreLog.class);
+
+    private static final String LOG_PREFIX = "log-";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+
+    // Bytes mapped at a time; the file grows by this much when full
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    // Record length and checksum
+    private static final int HEADER_SIZE = 8;
+
+    // Larger lengths mean the file is corrupt
+    private static final int MAX_RECORD_SIZE = SEGMENT_SIZE;
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte CLEAR = 3;
+
+    private final Path directory;
+
+    private long generation;
+    private FileChannel channel;
+    private volatile MappedByteBuffer buffer;
+    private long bufferStart; // Position of the buffer in the file
+
+    private final CRC32 crc = new CRC32();
+
+    CustomerStoreLog(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Load the customers from the newest snapshot and the logs since, then start a new log for appends.
+     * @param customers filled with the customers by id.
+     */
+    void recover(Map<String, Customer> customers) throws IOException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> unfinished = Files.newDirectoryStream(directory, SNAPSHOT_PREFIX + "*.tmp")) {
+            for (Path file : unfinished) {
+                Files.delete(file);
+            }
+        }
+        TreeMap<Long, Path> snapshots = list(SNAPSHOT_PREFIX);
+        TreeMap<Long, Path> logs = list(LOG_PREFIX);
+
+        long from = 0;
+        if (!snapshots.isEmpty()) {
+            from = snapshots.lastKey();
+            read(snapshots.lastEntry().getValue(), customers);
+        }
+        for (Path log : logs.tailMap(from).values()) {
+            read(log, customers);
+        }
+
+        // Start afresh rather than appending after a record that may be incomplete
+        long last = Math.max(from, logs.isEmpty() ? 0 : logs.lastKey());
+        open(last + 1);
+        LOG.info("Recovered {} customers from {}", customers.size(), directory);
+    }
+
+    void put(Customer customer) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(PUT);
+            writeCustomer(out, customer);
+            append(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void delete(String id) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(DELETE);
+            writeString(out, id);
+            append(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void clear() {
+        append(new byte[]{CLEAR});
+    }
+
+    /**
+     * Write appended records to disk.
+     */
+    void force() {
+        MappedByteBuffer current = buffer;
+        if (current != null) {
+            current.force();
+        }
+    }
+
+    /**
+     * Start a new log, so that a snapshot can be taken of the customers as of now.
+     * @return the generation to pass to writeSnapshot().
+     */
+    long rotate() throws IOException {
+        closeLog();
+        open(generation + 1);
+        return generation;
+    }
+
+    /**
+     * Write all of the customers to a snapshot, then delete the files it makes unnecessary.
+     * Customers may change while this runs, since the log from the same generation replays any changes.
+     */
+    void writeSnapshot(long snapshotGeneration, Iterable<Customer> customers) throws IOException {
+        Path snapshot = directory.resolve(SNAPSHOT_PREFIX + snapshotGeneration);
+        Path temporary = directory.resolve(SNAPSHOT_PREFIX + snapshotGeneration + ".tmp");
+        int count = 0;
+        try (FileChannel file = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(file), 64 * 1024);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream record = new DataOutputStream(bytes);
+            CRC32 snapshotCrc = new CRC32();
+            for (Customer customer : customers) {
+                bytes.reset();
+                record.writeByte(PUT);
+                writeCustomer(record, customer);
+                writeRecord(out, bytes.toByteArray(), snapshotCrc);
+                count++;
+            }
+            out.flush();
+            file.force(true);
+        }
+        Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE);
+
+        for (Map.Entry<Long, Path> old : list(SNAPSHOT_PREFIX).headMap(snapshotGeneration).entrySet()) {
+            Files.deleteIfExists(old.getValue());
+        }
+        for (Map.Entry<Long, Path> old : list(LOG_PREFIX).headMap(snapshotGeneration).entrySet()) {
+            Files.deleteIfExists(old.getValue());
+        }
+        LOG.info("Wrote a snapshot of {} customers to {}", count, snapshot);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeLog();
+    }
+
+    private void open(long newGeneration) throws IOException {
+        generation = newGeneration;
+        channel = FileChannel.open(directory.resolve(LOG_PREFIX + generation),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        bufferStart = 0;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+    }
+
+    private void closeLog() throws IOException {
+        if (channel != null) {
+            buffer.force();
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void append(byte[] record) {
+        if (record.length > MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("Record too large: " + record.length + " bytes");
+        }
+        // Keep room for a zero length after the record, which marks the end of the log
+        if (buffer.remaining() < HEADER_SIZE + record.length + 4) {
+            try {
+                buffer.force();
+                bufferStart += buffer.position();
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, bufferStart,
+                        Math.max(SEGMENT_SIZE, HEADER_SIZE + record.length + 4));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        crc.reset();
+        crc.update(record, 0, record.length);
+        // Write the body before the length, so a record is never seen with a length but without its body
+        int start = buffer.position();
+        buffer.position(start + HEADER_SIZE);
+        buffer.put(record);
+        int end = buffer.position();
+        buffer.putInt(start + 4, (int) crc.getValue());
+        buffer.putInt(start, record.length);
+        buffer.position(end);
+    }
+
+    private static void writeRecord(OutputStream out, byte[] record, CRC32 crc) throws IOException {
+        crc.reset();
+        crc.update(record, 0, record.length);
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(record.length);
+        data.writeInt((int) crc.getValue());
+        data.write(record);
+    }
+
+    /**
+     * Apply the records in a log or snapshot, up to the first one that is incomplete or corrupt.
+     */
+    private static void read(Path file, Map<String, Customer> customers) throws IOException {
+        CRC32 crc = new CRC32();
+        int records = 0;
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(file), 64 * 1024)) {
+            DataInputStream in = new DataInputStream(stream);
+            while (true) {
+                int length;
+                int checksum;
+                byte[] record;
+                try {
+                    length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_SIZE) {
+                        break; // Zero for the end of a log; anything else is corrupt
+                    }
+                    checksum = in.readInt();
+                    record = new byte[length];
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(record, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    LOG.warn("Record {} of {} is corrupt; ignoring the rest of the file", records, file);
+                    break;
+                }
+                apply(record, customers);
+                records++;
+            }
+        }
+        LOG.debug("Read {} records from {}", records, file);
+    }
+
+    private static void apply(byte[] record, Map<String, Customer> customers) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        switch (in.readByte()) {
+            case PUT:
+                Customer customer = readCustomer(in);
+                customers.put(customer.getId(), customer);
+                break;
+            case DELETE:
+                customers.remove(readString(in));
+                break;
+            case CLEAR:
+                customers.clear();
+                break;
+            default:
+                throw new IOException("Unknown record type " + record[0]);
+        }
+    }
+
+    private static void writeCustomer(DataOutputStream out, Customer customer) throws IOException {
+        writeString(out, customer.getId());
+        writeString(out, customer.getEmail());
+        writeString(out, customer.getFirstName());
+        writeString(out, customer.getLastName());
+        out.writeLong(customer.getLastModified() != null ? customer.getLastModified().getTime() : Long.MIN_VALUE);
+        out.writeLong(customer.getVersion() != null ? customer.getVersion() : Long.MIN_VALUE);
+    }
+
+    /**
+     * Normalized fields aren't stored, since they can be computed again from the others.
+     */
+    private static Customer readCustomer(DataInputStream in) throws IOException {
+        Customer customer = new Customer();
+        customer.setId(readString(in));
+        String email = readString(in);
+        if (email != null) {
+            customer.setEmail(email);
+        }
+        String firstName = readString(in);
+        if (firstName != null) {
+            customer.setFirstName(firstName);
+        }
+        String lastName = readString(in);
+        if (lastName != null) {
+            customer.setLastName(lastName);
+        }
+        long lastModified = in.readLong();
+        customer.setLastModified(lastModified != Long.MIN_VALUE ? new Date(lastModified) : null);
+        long version = in.readLong();
+        customer.setVersion(version != Long.MIN_VALUE ? version : null);
+        return customer;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return files with the given prefix, by generation.
+     */
+    private TreeMap<Long, Path> list(String prefix) throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*")) {
+            for (Path file : stream) {
+                String suffix = file.getFileName().toString().substring(prefix.length());
+                if (suffix.matches("\\d+")) {
+                    files.put(Long.parseLong(suffix), file);
+                }
+            }
+        }
+        return files;
+    }
+}
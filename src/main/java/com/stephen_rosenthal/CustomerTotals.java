@@ -0,0 +1,145 @@
+package com.stephen_rosenthal;
+
+import com.mongodb.DBObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cached count of each tenant's customers, so listing customers doesn't count the whole collection on every request.
+ *
+ * The count is refreshed in the background once it is older than customerTotalsMaxAgeMillis, or after
+ * customerTotalsMaxWrites customers have been saved, deleted, or imported. Until the refresh finishes,
+ * readers get the previous count, so it is only approximate.
+ */
+@Component
+public class CustomerTotals extends AbstractMongoEventListener<Customer> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CustomerTotals.class);
+
+    @Autowired
+    private CustomerRepository customerRepository;
+
+    @Value("${customerTotalsMaxAgeMillis:10000}")
+    private long maxAgeMillis;
+
+    @Value("${customerTotalsMaxWrites:1000}")
+    private long maxWrites;
+
+    private ExecutorService refresher;
+
+    private final ConcurrentMap<String, Total> totals = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        refresher = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "customer-totals");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * @return the cached number of the current tenant's customers. Only the first call waits for the database;
+     *         after that, a stale count is returned while a fresh one is counted in the background.
+     */
+    public long get() {
+        String tenant = Tenant.current();
+        Total total = getTotal(tenant);
+        long cached = total.total;
+        if (cached < 0) {
+            return count(total);
+        }
+        if (isStale(total) && total.refreshing.compareAndSet(false, true)) {
+            try {
+                refresher.execute(() -> Tenant.run(tenant, () -> {
+                    try {
+                        count(total);
+                    } catch (RuntimeException e) {
+                        LOG.warn("Could not count customers of tenant {}", tenant, e);
+                    } finally {
+                        total.refreshing.set(false);
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                total.refreshing.set(false); // Shutting down
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Count the current tenant's customers in the database now, and cache the result.
+     * @return the exact number of customers.
+     */
+    public long count() {
+        return count(getTotal(Tenant.current()));
+    }
+
+    /**
+     * Note writes that may have changed the number of the current tenant's customers. Saves and deletes through
+     * Spring Data are noted automatically; writes that bypass it (ex: bulk inserts) must call this.
+     */
+    public void recordWrites(long count) {
+        getTotal(Tenant.current()).writes.addAndGet(count);
+    }
+
+    @Override
+    public void onAfterSave(Customer customer, DBObject dbo) {
+        recordWrites(1);
+    }
+
+    @Override
+    public void onAfterDelete(DBObject dbo) {
+        recordWrites(1);
+    }
+
+    private Total getTotal(String tenant) {
+        return totals.computeIfAbsent(tenant, t -> new Total());
+    }
+
+    private long count(Total total) {
+        long writesBeforeCount = total.writes.get();
+        long counted = customerRepository.count();
+        // Keep writes that happened while counting, since the count may have missed them
+        total.writes.addAndGet(-writesBeforeCount);
+        total.countedAtMillis = System.currentTimeMillis();
+        total.total = counted;
+        return counted;
+    }
+
+    private boolean isStale(Total total) {
+        return total.writes.get() >= maxWrites || System.currentTimeMillis() - total.countedAtMillis >= maxAgeMillis;
+    }
+
+    /**
+     * The count of one tenant's customers
+     */
+    private static class Total {
+        private volatile long total = -1; // -1 until the first count
+        private volatile long countedAtMillis;
+
+        // Writes since the last count started, which may have changed the total
+        private final AtomicLong writes = new AtomicLong();
+
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+    }
+}
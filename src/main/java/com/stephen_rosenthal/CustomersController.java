@@ -1,24 +1,70 @@
 package com.stephen_rosenthal;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Optional;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.async.DeferredResult;
 
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URI;
-import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * REST API for managing customers
+ *
+ * Every handler works with the customers of the request's tenant, named in the X-Tenant header (see TenantRouting),
+ * which the repository, cache, and totals read from the current Tenant, and the executor carries to its threads.
+ *
+ * Handlers that read or write the database hand that work to a CustomerRequestExecutor, and return a DeferredResult.
+ * Depending on configuration, the work runs right away on the container's thread, or asynchronously on a separate
+ * pool. A result that is complete when the handler returns is written right away (see CompletedResults).
+ * Imports and exports stay synchronous, since they stream the request or response body.
+ *
+ * Handlers are annotated with the admission control budget for their cost (see AdmissionControl), so that when the
+ * database is slow, requests beyond what it can handle on time get a 503 right away.
+ *
+ * Customers and pages have ETags. Reads with a matching If-None-Match get 304 Not Modified without a body,
+ * and updates with an If-Match that doesn't match the current customer get 412 Precondition Failed.
+ * Reads are encoded as JSON or one of the BinaryFormats depending on the Accept header, so their responses say so
+ * with Vary, and each format has its own tags.
  */
 @Controller
 @RequestMapping("/customers")
@@ -27,39 +73,278 @@ public class CustomersController {
     // Default (max) size for List requests
     private static final int DEFAULT_PAGE_SIZE = 20;
 
+    // Default and max number of changes in a page of the change feed
+    private static final int DEFAULT_CHANGES_LIMIT = 100;
+    private static final int MAX_CHANGES_LIMIT = 1000;
+
+    // Size of the buffer between the exporter and gzip
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    private static final MediaType JSON_UTF8 = new MediaType("application", "json", StandardCharsets.UTF_8);
+
+    // Fields that can be changed with a PATCH
+    private static final Set<String> PATCHABLE_FIELDS = ImmutableSet.of("email", "firstName", "lastName");
+
     @Autowired
     private CustomerRepository customerRepository;
 
+    @Autowired
+    private CustomerImporter customerImporter;
+
+    @Autowired
+    private CustomerExporter customerExporter;
+
+    @Autowired
+    private CustomerCache customerCache;
+
+    @Autowired
+    private CustomerTotals customerTotals;
+
+    @Autowired
+    private CustomerRequestExecutor requestExecutor;
+
+    @Autowired
+    private CustomerGroupCommitter groupCommitter;
+
+    @Autowired
+    private CustomerChangeFeed changeFeed;
+
+    @Autowired
+    private BinaryFormats binaryFormats;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    // Maximum number of ids in a batch get
+    @Value("${batchGetMaxIds:200}")
+    private int batchGetMaxIds;
+
+    /**
+     * Create a customer, or replace the customer with the given id.
+     * With groupCommit=true, new customers without an id are inserted along with others created at the same time
+     * (see CustomerGroupCommitter), and the response is sent once their group is written.
+     */
+    @Admission(Admission.Budget.WRITE)
     @RequestMapping(method = RequestMethod.POST)
-    public ResponseEntity<Void> createCustomer(@RequestBody Customer customer) throws URISyntaxException {
-        customerRepository.save(customer);
-        URI uri = new URI(String.format("/customers/%s", customer.getId()));
-        return ResponseEntity.status(HttpStatus.SEE_OTHER).location(uri).build();
+    public DeferredResult<ResponseEntity<Void>> createCustomer(@RequestBody Customer customer) {
+        if (customer.getId() == null && groupCommitter.isEnabled()) {
+            DeferredResult<ResponseEntity<Void>> result = new DeferredResult<>();
+            groupCommitter.insert(customer).whenComplete((ignored, e) -> {
+                if (e instanceof RejectedExecutionException) {
+                    result.setResult(CustomerRequestExecutor.unavailable());
+                } else if (e != null) {
+                    result.setErrorResult(e);
+                } else {
+                    URI uri = URI.create(String.format("/customers/%s", customer.getId()));
+                    result.setResult(ResponseEntity.status(HttpStatus.SEE_OTHER).location(uri).<Void>build());
+                }
+            });
+            return result;
+        }
+
+        return requestExecutor.submitWrite(() -> {
+            Customer current = null;
+            if (customer.getId() != null) {
+                // The request may replace an existing customer, so save over its current version
+                current = customerRepository.findOne(customer.getId());
+                customer.setVersion(current != null ? current.getVersion() : null);
+            }
+            customerRepository.save(customer);
+            customerCache.invalidate(customer.getId()); // In case the request replaced an existing customer
+            changeFeed.record(current != null ? CustomerChange.Type.UPDATE : CustomerChange.Type.CREATE,
+                    customer.getId(), customer.getVersion());
+            URI uri = new URI(String.format("/customers/%s", customer.getId()));
+            return ResponseEntity.status(HttpStatus.SEE_OTHER).location(uri).build();
+        });
     }
 
-    @RequestMapping(value = "{id}", method = RequestMethod.GET)
+    /**
+     * Import many customers from newline-delimited JSON, with one customer object per line.
+     * The body is streamed, and customers are written to the database in batches.
+     * @param batchSize (optional) number of customers per database write.
+     */
+    @Admission(Admission.Budget.BULK)
+    @RequestMapping(value = "_import", method = RequestMethod.POST, consumes = "application/x-ndjson")
     @ResponseBody
-    public ResponseEntity<Customer> getCustomer(@PathVariable String id) {
-        Customer customer = customerRepository.findOne(id);
-        if (customer != null) {
-            return new ResponseEntity<>(customer, HttpStatus.OK);
+    public ImportReport importCustomersFromJson(
+            InputStream body,
+            @RequestParam(required = false) Integer batchSize) throws IOException {
+        return customerImporter.importCustomers(
+                new InputStreamReader(body, StandardCharsets.UTF_8), CustomerImporter.Format.NDJSON, batchSize);
+    }
+
+    /**
+     * Import many customers from CSV, with a header line naming the email, firstName, and lastName columns.
+     * The body is streamed, and customers are written to the database in batches.
+     * @param batchSize (optional) number of customers per database write.
+     */
+    @Admission(Admission.Budget.BULK)
+    @RequestMapping(value = "_import", method = RequestMethod.POST, consumes = "text/csv")
+    @ResponseBody
+    public ImportReport importCustomersFromCsv(
+            InputStream body,
+            @RequestParam(required = false) Integer batchSize) throws IOException {
+        return customerImporter.importCustomers(
+                new InputStreamReader(body, StandardCharsets.UTF_8), CustomerImporter.Format.CSV, batchSize);
+    }
+
+    /**
+     * Export customers as newline-delimited JSON, with one customer object per line.
+     * Customers are streamed from a database cursor as the response is written, and gzipped if the client accepts it.
+     * Customers saved while the export runs may be left out; to catch them, and for incremental exports,
+     * pass the X-Export-Started time of the previous export as modifiedSince.
+     * @param modifiedSince (optional) ISO-8601 time, ex: 2015-03-08T12:00:00Z. Only export customers saved since then.
+     */
+    @Admission(Admission.Budget.BULK)
+    @RequestMapping(value = "_export", method = RequestMethod.GET)
+    public void exportCustomers(
+            @RequestParam(required = false) String modifiedSince,
+            @RequestHeader(value = "Accept-Encoding", required = false) String acceptEncoding,
+            HttpServletResponse response) throws IOException {
+        Date since = null;
+        if (modifiedSince != null) {
+            try {
+                since = Date.from(OffsetDateTime.parse(modifiedSince).toInstant());
+            } catch (DateTimeParseException e) {
+                response.sendError(HttpStatus.BAD_REQUEST.value());
+                return;
+            }
+        }
+
+        response.setContentType("application/x-ndjson;charset=UTF-8");
+        response.setHeader("X-Export-Started", Instant.now().toString());
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+            GZIPOutputStream output = new GZIPOutputStream(response.getOutputStream(), GZIP_BUFFER_SIZE);
+            customerExporter.exportCustomers(since, output);
+            output.finish();
         } else {
-            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+            customerExporter.exportCustomers(since, response.getOutputStream());
         }
     }
 
     /**
-     * List all of the customers in the database
+     * Follow the creates, updates, and deletes of customers, in the order they were made (see CustomerChangeFeed).
+     * Start without a token to get one for the changes from now on, then pass the next token of each page to get the
+     * changes after it. If there are none yet, the request waits for one, up to waitMillis, and then gets an empty
+     * page. Not subject to admission control, since a waiting request holds no thread or connection to the database.
+     * @param since (optional) token from the "next" field of the previous page.
+     * @param limit (optional) most changes in a page, up to 1000.
+     * @param waitMillis (optional) time to wait for a change, up to changeFeedMaxWaitMillis; 0 to return at once.
+     * @return a page of changes; 400 for an invalid token; or 410 Gone if the changes after the token are no longer
+     *         kept, in which case the client has to rescan the customers.
+     */
+    @RequestMapping(value = "_changes", method = RequestMethod.GET)
+    @ResponseBody
+    public DeferredResult<ResponseEntity<CustomerChangePage>> getChanges(
+            @RequestParam(required = false) String since,
+            @RequestParam(required = false) Integer limit,
+            @RequestParam(defaultValue = "0") long waitMillis) {
+        int size = Optional.fromNullable(limit).or(DEFAULT_CHANGES_LIMIT);
+        if (size < 1 || size > MAX_CHANGES_LIMIT) {
+            return requestExecutor.completed(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+        }
+        return changeFeed.poll(since, size, waitMillis);
+    }
+
+    /**
+     * Get a customer. Served from a cache of pre-serialized JSON when possible,
+     * in which case the database and the executor are skipped.
+     * @param fields (optional) comma-separated fields to include, ex: "email,lastName". The id is always included.
+     *               Only the given fields are read from the database, and the cache is skipped.
+     * @param ifNoneMatch (optional) ETags of versions the client already has.
+     * @param accept (optional) media types the client accepts. JSON unless it prefers one of the BinaryFormats.
+     */
+    @Admission(Admission.Budget.CHEAP)
+    @RequestMapping(value = "{id}", method = RequestMethod.GET)
+    @ResponseBody
+    public DeferredResult<ResponseEntity<byte[]>> getCustomer(
+            @PathVariable String id,
+            @RequestParam(required = false) String fields,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+            @RequestHeader(value = "Accept", required = false) String accept) {
+        CustomerFields customerFields;
+        try {
+            customerFields = CustomerFields.parse(fields);
+        } catch (IllegalArgumentException e) {
+            return requestExecutor.completed(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+        }
+        MediaType format = binaryFormats.negotiate(accept);
+        if (!customerFields.isAll()) {
+            return requestExecutor.submit(() -> getCustomerResponse(id, customerFields, ifNoneMatch, format));
+        }
+
+        CustomerCache.Entry entry = customerCache.getIfPresent(id);
+        if (entry != null) {
+            return requestExecutor.completed(getCustomerResponse(entry, ifNoneMatch, format));
+        }
+        return requestExecutor.submit(() -> getCustomerResponse(customerCache.load(id), ifNoneMatch, format));
+    }
+
+    /**
+     * Get many customers by id at once, with a single database query.
+     * Customers are returned in the order of their ids, and ids with no customer are listed as missing.
+     * @param ids (required) comma-separated ids, up to batchGetMaxIds (default 200).
+     * @param fields (optional) comma-separated fields to include, ex: "email,lastName". The id is always included.
+     */
+    @Admission(Admission.Budget.CHEAP)
+    @RequestMapping(method = RequestMethod.GET, params = {"ids"})
+    @ResponseBody
+    public DeferredResult<ResponseEntity<CustomerBatch>> getCustomers(
+            @RequestParam String ids,
+            @RequestParam(required = false) String fields) {
+        return getCustomerBatch(Splitter.on(',').trimResults().omitEmptyStrings().splitToList(ids), fields);
+    }
+
+    /**
+     * Same as GET with the ids parameter, with the ids in the body as a JSON array, for lists too long for a URL.
+     * @param fields (optional) comma-separated fields to include, ex: "email,lastName". The id is always included.
+     */
+    @Admission(Admission.Budget.CHEAP)
+    @RequestMapping(value = "_batchGet", method = RequestMethod.POST)
+    @ResponseBody
+    public DeferredResult<ResponseEntity<CustomerBatch>> batchGetCustomers(
+            @RequestBody List<String> ids,
+            @RequestParam(required = false) String fields) {
+        return getCustomerBatch(ids, fields);
+    }
+
+    /**
+     * List all of the customers in the database.
+     * Unless exactTotal is true, the number of pages comes from a cached count of customers, and may be out of date;
+     * such pages are marked as approximate.
      * @param page (optional) 0-indexed page number.
      * @param pageSize (optional) number of records in a page.
+     * @param fields (optional) comma-separated fields to include, ex: "email,lastName". The id is always included.
+     * @param exactTotal (optional) count the customers for this request, for an exact number of pages.
+     * @param ifNoneMatch (optional) ETags of versions of the page the client already has.
+     * @param accept (optional) media types the client accepts, which pick the format of the page and its ETag.
      */
+    @Admission(value = Admission.Budget.STANDARD, expensiveIf = "exactTotal")
     @RequestMapping(method = RequestMethod.GET)
     @ResponseBody
-    public CustomerPage listCustomers(
+    public DeferredResult<ResponseEntity<CustomerPage>> listCustomers(
             @RequestParam(required = false) Integer page,
-            @RequestParam(required = false) Integer pageSize) {
-        Page<Customer> customers = customerRepository.findAll(getPageable(page, pageSize));
-        return new CustomerPage(customers);
+            @RequestParam(required = false) Integer pageSize,
+            @RequestParam(required = false) String fields,
+            @RequestParam(defaultValue = "false") boolean exactTotal,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+            @RequestHeader(value = "Accept", required = false) String accept) {
+        CustomerFields customerFields;
+        try {
+            customerFields = CustomerFields.parse(fields);
+        } catch (IllegalArgumentException e) {
+            return requestExecutor.completed(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+        }
+
+        MediaType format = binaryFormats.negotiate(accept);
+        return requestExecutor.submit(() -> {
+            PageRequest pageable = getPageable(page, pageSize);
+            CustomerPage customerPage = getCustomerPage(
+                    customerRepository.findPage(pageable, customerFields), pageable, exactTotal);
+            return conditional(customerPage, ETags.of(customerPage, customerFields), ifNoneMatch, format);
+        });
     }
 
     /**
@@ -67,43 +352,350 @@ public class CustomersController {
      * @param likeId (required) the id field for another customer in the database
      * @param page (optional) 0-indexed page number.
      * @param pageSize (optional) number of records in a page.
+     * @param fields (optional) comma-separated fields to include, ex: "email,lastName". The id is always included.
+     * @param fuzzy (optional) also find customers whose names or emails differ by typos or nicknames,
+     *              ranked by how similar they are (see FuzzyMatcher).
+     * @param ifNoneMatch (optional) ETags of versions of the page the client already has.
+     * @param accept (optional) media types the client accepts, which pick the format of the page and its ETag.
      */
+    @Admission(Admission.Budget.EXPENSIVE)
     @RequestMapping(method = RequestMethod.GET, params = {"likeId"})
     @ResponseBody
-    public ResponseEntity<CustomerPage> listSimilarCustomers(
+    public DeferredResult<ResponseEntity<CustomerPage>> listSimilarCustomers(
             @RequestParam String likeId,
             @RequestParam(required = false) Integer page,
-            @RequestParam(required = false) Integer pageSize) {
-        Customer otherCustomer = customerRepository.findOne(likeId);
-        if (otherCustomer == null) {
-            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+            @RequestParam(required = false) Integer pageSize,
+            @RequestParam(required = false) String fields,
+            @RequestParam(defaultValue = "false") boolean fuzzy,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+            @RequestHeader(value = "Accept", required = false) String accept) {
+        CustomerFields customerFields;
+        try {
+            customerFields = CustomerFields.parse(fields);
+        } catch (IllegalArgumentException e) {
+            return requestExecutor.completed(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+        }
+
+        MediaType format = binaryFormats.negotiate(accept);
+        return requestExecutor.submit(() -> {
+            CustomerCache.Entry otherCustomerEntry = customerCache.get(likeId);
+            if (otherCustomerEntry == null) {
+                return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+            }
+            Customer otherCustomer = otherCustomerEntry.getCustomer();
+
+            Page<Customer> customers = fuzzy
+                    ? customerRepository.findFuzzySimilar(otherCustomer, getPageable(page, pageSize), customerFields)
+                    : customerRepository.findSimilar(otherCustomer, getPageable(page, pageSize), customerFields);
+            CustomerPage customerPage = new CustomerPage(customers);
+            return conditional(customerPage, ETags.of(customerPage, customerFields), ifNoneMatch, format);
+        });
+    }
+
+    /**
+     * List all of the customers in the database, using a cursor instead of page numbers.
+     * Customers are ordered by id, and deep pages are as fast as the first one.
+     * @param after (required) token from the "next" field of the previous page, or empty for the first page.
+     * @param pageSize (optional) number of records in a page.
+     * @param fields (optional) comma-separated fields to include, ex: "email,lastName". The id is always included.
+     * @param ifNoneMatch (optional) ETags of versions of the page the client already has.
+     * @param accept (optional) media types the client accepts, which pick the format of the page and its ETag.
+     */
+    @Admission(Admission.Budget.STANDARD)
+    @RequestMapping(method = RequestMethod.GET, params = {"after"})
+    @ResponseBody
+    public DeferredResult<ResponseEntity<CustomerCursorPage>> listCustomersAfter(
+            @RequestParam String after,
+            @RequestParam(required = false) Integer pageSize,
+            @RequestParam(required = false) String fields,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+            @RequestHeader(value = "Accept", required = false) String accept) {
+        String afterId;
+        CustomerFields customerFields;
+        try {
+            afterId = decodeCursor(after);
+            customerFields = CustomerFields.parse(fields);
+        } catch (IllegalArgumentException e) {
+            return requestExecutor.completed(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+        }
+
+        int size = getPageSize(pageSize);
+        MediaType format = binaryFormats.negotiate(accept);
+        return requestExecutor.submit(() -> {
+            CustomerCursorPage cursorPage = getCursorPage(
+                    customerRepository.findAllAfter(afterId, size + 1, customerFields), size);
+            return conditional(cursorPage, ETags.of(cursorPage, customerFields), ifNoneMatch, format);
+        });
+    }
+
+    /**
+     * Look up customers that are similar to another, specified by ID, using a cursor instead of page numbers.
+     * @param likeId (required) the id field for another customer in the database
+     * @param after (required) token from the "next" field of the previous page, or empty for the first page.
+     * @param pageSize (optional) number of records in a page.
+     * @param fields (optional) comma-separated fields to include, ex: "email,lastName". The id is always included.
+     * @param ifNoneMatch (optional) ETags of versions of the page the client already has.
+     * @param accept (optional) media types the client accepts, which pick the format of the page and its ETag.
+     */
+    @Admission(Admission.Budget.EXPENSIVE)
+    @RequestMapping(method = RequestMethod.GET, params = {"likeId", "after"})
+    @ResponseBody
+    public DeferredResult<ResponseEntity<CustomerCursorPage>> listSimilarCustomersAfter(
+            @RequestParam String likeId,
+            @RequestParam String after,
+            @RequestParam(required = false) Integer pageSize,
+            @RequestParam(required = false) String fields,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+            @RequestHeader(value = "Accept", required = false) String accept) {
+        String afterId;
+        CustomerFields customerFields;
+        try {
+            afterId = decodeCursor(after);
+            customerFields = CustomerFields.parse(fields);
+        } catch (IllegalArgumentException e) {
+            return requestExecutor.completed(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
         }
 
-        Page<Customer> customers = customerRepository.findByNormalizedEmailOrFirstNameAndLastNameAllIgnoreCase(
-                otherCustomer.getNormalizedEmail(),
-                otherCustomer.getFirstName(),
-                otherCustomer.getLastName(),
-                getPageable(page, pageSize));
-        CustomerPage customerPage = new CustomerPage(customers);
-        return new ResponseEntity<>(customerPage, HttpStatus.OK);
+        int size = getPageSize(pageSize);
+        MediaType format = binaryFormats.negotiate(accept);
+        return requestExecutor.submit(() -> {
+            CustomerCache.Entry otherCustomerEntry = customerCache.get(likeId);
+            if (otherCustomerEntry == null) {
+                return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+            }
+            Customer otherCustomer = otherCustomerEntry.getCustomer();
+
+            List<Customer> customers = customerRepository.findSimilarAfter(otherCustomer, afterId, size + 1, customerFields);
+            CustomerCursorPage cursorPage = getCursorPage(customers, size);
+            return conditional(cursorPage, ETags.of(cursorPage, customerFields), ifNoneMatch, format);
+        });
     }
 
+    /**
+     * Replace a customer, or create one with the given id.
+     * @param ifMatch (optional) ETag of the version the client read. If the customer has changed since,
+     *                the update is rejected with 412 Precondition Failed, rather than losing the other change.
+     */
+    @Admission(Admission.Budget.WRITE)
     @RequestMapping(value = "{id}", method = RequestMethod.PUT)
     @ResponseBody
-    public Customer update(@PathVariable String id, @RequestBody Customer customer) {
-        customer.setId(id);
-        customerRepository.save(customer);
-        return customer;
+    public DeferredResult<ResponseEntity<Customer>> update(
+            @PathVariable String id,
+            @RequestBody Customer customer,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch) {
+        return requestExecutor.submitWrite(() -> {
+            Customer current = customerRepository.findOne(id);
+            if (ifMatch != null && (current == null || !ETags.matches(ifMatch, ETags.of(current), false))) {
+                return new ResponseEntity<>(HttpStatus.PRECONDITION_FAILED);
+            }
+
+            customer.setId(id);
+            customer.setVersion(current != null ? current.getVersion() : null);
+            try {
+                customerRepository.save(customer);
+            } catch (OptimisticLockingFailureException | DuplicateKeyException e) {
+                // Another request wrote the customer after it was read
+                return new ResponseEntity<>(ifMatch != null ? HttpStatus.PRECONDITION_FAILED : HttpStatus.CONFLICT);
+            } finally {
+                customerCache.invalidate(id);
+            }
+            changeFeed.record(current != null ? CustomerChange.Type.UPDATE : CustomerChange.Type.CREATE,
+                    id, customer.getVersion());
+            return ResponseEntity.ok().eTag(ETags.of(customer)).body(customer);
+        });
+    }
+
+    /**
+     * Change some fields of a customer, with a JSON Merge Patch (RFC 7396) such as {"email": "new@example.com"}.
+     * Only the given fields are written to the database, in a single update. Fields can't be removed,
+     * so a patch with a null, a non-string value, or a field other than email, firstName, and lastName gets 400.
+     * @param ifMatch (optional) ETag of the version the client read, as for PUT.
+     */
+    @Admission(Admission.Budget.WRITE)
+    @RequestMapping(value = "{id}", method = RequestMethod.PATCH)
+    @ResponseBody
+    public DeferredResult<ResponseEntity<Customer>> patch(
+            @PathVariable String id,
+            @RequestBody Map<String, Object> patch,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch) {
+        Map<String, String> fields;
+        try {
+            fields = getPatchedFields(patch);
+        } catch (IllegalArgumentException e) {
+            return requestExecutor.completed(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+        }
+
+        return requestExecutor.submitWrite(() -> {
+            Long expectedVersion = null;
+            if (ifMatch != null) {
+                Customer current = customerRepository.findOne(id);
+                if (current == null || !ETags.matches(ifMatch, ETags.of(current), false)) {
+                    return new ResponseEntity<>(HttpStatus.PRECONDITION_FAILED);
+                }
+                expectedVersion = current.getVersion();
+            }
+
+            Customer patched;
+            if (fields.isEmpty()) {
+                patched = customerRepository.findOne(id);
+            } else {
+                patched = customerRepository.updateFields(id, fields, expectedVersion);
+                customerCache.invalidate(id);
+                if (patched != null) {
+                    changeFeed.record(CustomerChange.Type.UPDATE, id, patched.getVersion());
+                }
+            }
+            if (patched == null) {
+                // Either there is no such customer, or it changed after it was read for the If-Match check
+                boolean changed = ifMatch != null && customerRepository.exists(id);
+                return new ResponseEntity<>(changed ? HttpStatus.PRECONDITION_FAILED : HttpStatus.NOT_FOUND);
+            }
+            return ResponseEntity.ok().eTag(ETags.of(patched)).body(patched);
+        });
     }
 
+    @Admission(Admission.Budget.WRITE)
     @RequestMapping(value = "{id}", method = RequestMethod.DELETE)
-    public ResponseEntity<Void> delete(@PathVariable String id) {
-        if (customerRepository.exists(id)) {
-            customerRepository.delete(id);
-            return new ResponseEntity<>(HttpStatus.NO_CONTENT);
-        } else {
+    public DeferredResult<ResponseEntity<Void>> delete(@PathVariable String id) {
+        return requestExecutor.submitWrite(() -> {
+            if (customerRepository.exists(id)) {
+                customerRepository.delete(id);
+                customerCache.invalidate(id);
+                changeFeed.record(CustomerChange.Type.DELETE, id, null);
+                return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+            } else {
+                return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+            }
+        });
+    }
+
+    /**
+     * @param format one of the BinaryFormats, or null for the cached JSON.
+     */
+    private ResponseEntity<byte[]> getCustomerResponse(CustomerCache.Entry entry, String ifNoneMatch,
+                                                       MediaType format) {
+        if (entry == null) {
             return new ResponseEntity<>(HttpStatus.NOT_FOUND);
         }
+        String eTag = ETags.forFormat(entry.getETag(), format);
+        if (ETags.matches(ifNoneMatch, eTag, true)) {
+            return notModified(eTag);
+        }
+        if (format != null) {
+            byte[] body = binaryFormats.write(format, entry.getCustomer());
+            return negotiated().contentType(format).eTag(eTag).body(body);
+        }
+        return negotiated().contentType(JSON_UTF8).eTag(eTag).body(entry.getJson());
+    }
+
+    /**
+     * Get some of the fields of a customer, from the database. The cache only holds whole customers.
+     */
+    private ResponseEntity<byte[]> getCustomerResponse(String id, CustomerFields fields, String ifNoneMatch,
+                                                       MediaType format) throws IOException {
+        List<Customer> found = customerRepository.findByIds(Collections.singletonList(id), fields);
+        if (found.isEmpty()) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        Customer customer = found.get(0);
+        String eTag = ETags.forFormat(ETags.of(customer, fields), format);
+        if (ETags.matches(ifNoneMatch, eTag, true)) {
+            return notModified(eTag);
+        }
+        if (format != null) {
+            return negotiated().contentType(format).eTag(eTag).body(binaryFormats.write(format, customer));
+        }
+        return negotiated().contentType(JSON_UTF8).eTag(eTag).body(objectMapper.writeValueAsBytes(customer));
+    }
+
+    /**
+     * Respond with the body and its ETag, or with 304 Not Modified if the client already has that version.
+     * @param format the format the body will be written in: one of the BinaryFormats, or null for JSON.
+     */
+    private static <T> ResponseEntity<T> conditional(T body, String eTag, String ifNoneMatch, MediaType format) {
+        eTag = ETags.forFormat(eTag, format);
+        if (ETags.matches(ifNoneMatch, eTag, true)) {
+            return notModified(eTag);
+        }
+        return negotiated().eTag(eTag).body(body);
+    }
+
+    private static <T> ResponseEntity<T> notModified(String eTag) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag(eTag);
+        headers.set(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+    }
+
+    /**
+     * Start a 200 OK response whose format depends on the Accept header, so that caches keep each format apart.
+     */
+    private static ResponseEntity.BodyBuilder negotiated() {
+        return ResponseEntity.ok().header(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+    }
+
+    /**
+     * Look up customers by id: from the cache when all fields are wanted, otherwise with one query.
+     */
+    private DeferredResult<ResponseEntity<CustomerBatch>> getCustomerBatch(List<String> requestedIds, String fields) {
+        Set<String> ids = new LinkedHashSet<>(requestedIds); // Each id once, in the order requested
+        CustomerFields customerFields;
+        try {
+            customerFields = CustomerFields.parse(fields);
+        } catch (IllegalArgumentException e) {
+            return requestExecutor.completed(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+        }
+        if (ids.isEmpty() || ids.size() > batchGetMaxIds || ids.contains(null)) {
+            return requestExecutor.completed(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+        }
+
+        return requestExecutor.submit(() -> {
+            Map<String, Customer> found = new HashMap<>();
+            List<String> uncachedIds = new ArrayList<>();
+            for (String id : ids) {
+                CustomerCache.Entry entry = customerFields.isAll() ? customerCache.getIfPresent(id) : null;
+                if (entry != null) {
+                    found.put(id, entry.getCustomer());
+                } else {
+                    uncachedIds.add(id);
+                }
+            }
+            for (Customer customer : customerRepository.findByIds(uncachedIds, customerFields)) {
+                found.put(customer.getId(), customer);
+            }
+
+            List<Customer> customers = new ArrayList<>();
+            List<String> missing = new ArrayList<>();
+            for (String id : ids) {
+                Customer customer = found.get(id);
+                if (customer != null) {
+                    customers.add(customer);
+                } else {
+                    missing.add(id);
+                }
+            }
+            return negotiated().body(new CustomerBatch(customers, missing));
+        });
+    }
+
+    /**
+     * Check the fields of a merge patch.
+     * @return the trimmed value of each field, by name.
+     * @throws IllegalArgumentException if the patch can't be applied to a customer.
+     */
+    private static Map<String, String> getPatchedFields(Map<String, Object> patch) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> field : patch.entrySet()) {
+            if (!PATCHABLE_FIELDS.contains(field.getKey()) || !(field.getValue() instanceof String)) {
+                throw new IllegalArgumentException("Can't set " + field.getKey() + " to " + field.getValue());
+            }
+            fields.put(field.getKey(), ((String) field.getValue()).trim());
+        }
+        String email = fields.get("email");
+        if (email != null && email.indexOf('@') < 0) {
+            throw new IllegalArgumentException("email must contain '@'");
+        }
+        return fields;
     }
 
     /**
@@ -113,13 +705,72 @@ public class CustomersController {
      */
     private PageRequest getPageable(Integer page, Integer pageSize) {
         page = Optional.fromNullable(page).or(0);
-        pageSize = Optional.fromNullable(pageSize).or(DEFAULT_PAGE_SIZE);
         if (page < 0) {
             page = 0;
         }
+        return new PageRequest(page, getPageSize(pageSize));
+    }
+
+    /**
+     * @param pageSize Must be in range [1, DEFAULT_PAGE_SIZE]. Invalid values default to DEFAULT_PAGE_SIZE.
+     */
+    private int getPageSize(Integer pageSize) {
+        pageSize = Optional.fromNullable(pageSize).or(DEFAULT_PAGE_SIZE);
         if (pageSize < 1 || pageSize > DEFAULT_PAGE_SIZE) {
             pageSize = DEFAULT_PAGE_SIZE;
         }
-        return new PageRequest(page, pageSize);
+        return pageSize;
+    }
+
+    /**
+     * Build a page of all customers from the results of findPage, which include the first customer of the next page
+     * (if any). The total comes from the results where they show it, otherwise from CustomerTotals.
+     * @param exactTotal count the customers now, rather than using the cached count.
+     */
+    private CustomerPage getCustomerPage(List<Customer> customers, PageRequest pageable, boolean exactTotal) {
+        int offset = pageable.getOffset();
+        boolean hasNext = customers.size() > pageable.getPageSize();
+        List<Customer> content = hasNext ? customers.subList(0, pageable.getPageSize()) : customers;
+
+        long total;
+        boolean approximate;
+        if (exactTotal) {
+            total = customerTotals.count();
+            approximate = false;
+        } else if (!hasNext && (!content.isEmpty() || offset == 0)) {
+            // Nothing after this page, so every customer has been seen
+            total = offset + content.size();
+            approximate = false;
+        } else if (hasNext) {
+            total = Math.max(customerTotals.get(), offset + content.size() + 1);
+            approximate = true;
+        } else {
+            // Past the end
+            total = Math.min(customerTotals.get(), offset);
+            approximate = true;
+        }
+        return new CustomerPage(new PageImpl<>(content, pageable, total), approximate);
+    }
+
+    /**
+     * @param cursor token from a previous page, or empty to start from the beginning.
+     * @return the id to start after, or null to start from the beginning.
+     * @throws IllegalArgumentException if the token is not valid.
+     */
+    private static String decodeCursor(String cursor) {
+        return cursor.isEmpty() ? null : CursorToken.decode(cursor);
+    }
+
+    /**
+     * Build a cursor page from the results of a query for one more customer than the page size,
+     * where the extra customer (if any) shows that there is a next page.
+     */
+    private static CustomerCursorPage getCursorPage(List<Customer> customers, int pageSize) {
+        if (customers.size() <= pageSize) {
+            return new CustomerCursorPage(customers, null);
+        }
+        List<Customer> page = customers.subList(0, pageSize);
+        String next = CursorToken.encode(page.get(pageSize - 1).getId());
+        return new CustomerCursorPage(page, next);
     }
 }
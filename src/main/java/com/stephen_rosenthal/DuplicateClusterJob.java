@@ -0,0 +1,339 @@
+package com.stephen_rosenthal;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Finds clusters of similar customers among all of the current tenant's customers, for building a merge report.
+ *
+ * Customers are similar if they share a normalized email or a normalized name (the same rule as likeId lookups),
+ * and similarity is transitive: if A shares an email with B, and B shares a name with C, all three are one cluster.
+ * The job reads the collection once, and links the keys (emails and names) of each customer with a union-find,
+ * spread across worker threads. Memory use depends on the number of distinct keys rather than on the number of
+ * customers, because customers are not kept. Only clusters with 2 or more customers are looked up again,
+ * in batches, to report their members.
+ *
+ * The key graph is kept between runs (one for each tenant), so a later run can read only the customers modified since
+ * the previous one.
+ * Incremental runs only add links, so after many updates or deletes, a full run gives a more precise result.
+ */
+@Component
+public class DuplicateClusterJob {
+
+    // Number of customers handed to a worker thread at a time
+    private static final int BATCH_SIZE = 1000;
+
+    // Number of clusters whose members are fetched per query
+    private static final int CLUSTERS_PER_QUERY = 500;
+
+    @Autowired
+    private CustomerRepository customerRepository;
+
+    // Number of worker threads; 0 means one per available processor
+    @Value("${duplicateJobThreads:0}")
+    private int threads;
+
+    // By tenant
+    private final Map<String, KeyGraph> graphs = new HashMap<>();
+    private final Map<String, DuplicateReport> lastReports = new HashMap<>();
+
+    /**
+     * Run the job. Only one run happens at a time; concurrent callers wait.
+     * @param full read every customer, instead of only those modified since the previous run.
+     *             The first run is always full.
+     */
+    public synchronized DuplicateReport run(boolean full) throws InterruptedException {
+        String tenant = Tenant.current();
+        Date started = new Date();
+        DuplicateReport lastReport = lastReports.get(tenant);
+        boolean fullRun = full || lastReport == null;
+        Date modifiedSince = fullRun ? null : lastReport.getStarted();
+
+        int workerCount = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        List<KeyGraph> workerGraphs = buildKeyGraphs(modifiedSince, workerCount);
+
+        KeyGraph merged = fullRun ? new KeyGraph() : graphs.get(tenant);
+        long processed = 0;
+        for (KeyGraph workerGraph : workerGraphs) {
+            merged.merge(workerGraph);
+            processed += workerGraph.getCustomers();
+        }
+        graphs.put(tenant, merged);
+
+        DuplicateReport report = new DuplicateReport(started, fullRun, processed, merged.size(), findClusters(merged));
+        lastReports.put(tenant, report);
+        return report;
+    }
+
+    /**
+     * @return the report from the most recent run for the current tenant, or null if the job has not run yet.
+     */
+    public synchronized DuplicateReport getLastReport() {
+        return lastReports.get(Tenant.current());
+    }
+
+    /**
+     * Read customers from the database on this thread, and link their keys on worker threads.
+     * @return the key graph built by each worker.
+     */
+    private List<KeyGraph> buildKeyGraphs(Date modifiedSince, int workerCount) throws InterruptedException {
+        final BlockingQueue<List<Customer>> queue = new ArrayBlockingQueue<>(workerCount * 2);
+        final List<Customer> endOfInput = Collections.emptyList();
+
+        ExecutorService executor = Executors.newFixedThreadPool(workerCount);
+        try {
+            List<Future<KeyGraph>> futures = new ArrayList<>();
+            for (int i = 0; i < workerCount; i++) {
+                futures.add(executor.submit(() -> {
+                    KeyGraph workerGraph = new KeyGraph();
+                    List<Customer> batch;
+                    while ((batch = queue.take()) != endOfInput) {
+                        for (Customer customer : batch) {
+                            workerGraph.add(customer);
+                        }
+                    }
+                    return workerGraph;
+                }));
+            }
+
+            Batcher batcher = new Batcher(queue);
+            customerRepository.forEachModifiedSince(modifiedSince, batcher);
+            batcher.flush();
+            for (int i = 0; i < workerCount; i++) {
+                queue.put(endOfInput);
+            }
+
+            List<KeyGraph> workerGraphs = new ArrayList<>();
+            for (Future<KeyGraph> future : futures) {
+                workerGraphs.add(future.get());
+            }
+            return workerGraphs;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Duplicate clustering failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Look up the members of each component of the graph that was reached by 2 or more customers.
+     */
+    private List<List<Customer>> findClusters(KeyGraph graph) {
+        List<List<Customer>> clusters = new ArrayList<>();
+        List<Set<Object>> candidates = new ArrayList<>(graph.getCandidateClusters().values());
+        for (int start = 0; start < candidates.size(); start += CLUSTERS_PER_QUERY) {
+            List<Set<Object>> batch = candidates.subList(start, Math.min(start + CLUSTERS_PER_QUERY, candidates.size()));
+
+            Set<String> emails = new HashSet<>();
+            Set<NameKey> names = new HashSet<>();
+            Set<Integer> roots = new HashSet<>();
+            for (Set<Object> keys : batch) {
+                for (Object key : keys) {
+                    if (key instanceof NameKey) {
+                        names.add((NameKey) key);
+                    } else {
+                        emails.add((String) key);
+                    }
+                }
+                roots.add(graph.find(keys.iterator().next()));
+            }
+
+            // Customers created since the graph was built may not be known; they are left out
+            Map<Integer, List<Customer>> members = new LinkedHashMap<>();
+            for (Customer customer : customerRepository.findByNormalizedKeys(emails, names)) {
+                int root = graph.find(customer);
+                if (roots.contains(root)) {
+                    List<Customer> cluster = members.get(root);
+                    if (cluster == null) {
+                        cluster = new ArrayList<>();
+                        members.put(root, cluster);
+                    }
+                    cluster.add(customer);
+                }
+            }
+
+            for (List<Customer> cluster : members.values()) {
+                if (cluster.size() > 1) {
+                    clusters.add(cluster);
+                }
+            }
+        }
+        return clusters;
+    }
+
+    /**
+     * Groups customers from the database cursor into batches for the worker threads.
+     */
+    private static class Batcher implements Consumer<Customer> {
+        private final BlockingQueue<List<Customer>> queue;
+        private List<Customer> batch = new ArrayList<>(BATCH_SIZE);
+
+        Batcher(BlockingQueue<List<Customer>> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void accept(Customer customer) {
+            batch.add(customer);
+            if (batch.size() == BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                queue.put(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while reading customers", e);
+            }
+            batch = new ArrayList<>(BATCH_SIZE);
+        }
+    }
+
+    /**
+     * Union-find over customer keys: normalized emails (Strings) and normalized names (NameKeys).
+     * Each customer links its email and name, and adds 1 to the customer count of the resulting component.
+     */
+    static class KeyGraph {
+        private final Map<Object, Integer> indexes = new HashMap<>();
+        private final List<Object> keys = new ArrayList<>();
+        private int[] parents = new int[1024];
+        private int[] sizes = new int[1024]; // Number of keys, for roots
+        private int[] counts = new int[1024]; // Number of customers, for roots
+        private long customers;
+
+        void add(Customer customer) {
+            if (customer.getNormalizedEmail() == null || customer.getNormalizedFirstName() == null
+                    || customer.getNormalizedLastName() == null) {
+                return; // Not backfilled yet
+            }
+            int root = union(index(customer.getNormalizedEmail()), index(NameKey.of(customer)));
+            counts[root]++;
+            customers++;
+        }
+
+        /**
+         * Add the links and customer counts from another graph to this one.
+         */
+        void merge(KeyGraph other) {
+            for (int i = 0; i < other.keys.size(); i++) {
+                union(index(other.keys.get(i)), index(other.keys.get(other.root(i))));
+            }
+            for (int i = 0; i < other.keys.size(); i++) {
+                if (other.parents[i] == i) {
+                    counts[root(index(other.keys.get(i)))] += other.counts[i];
+                }
+            }
+        }
+
+        /**
+         * @return the keys in each component with 2 or more customers, by root.
+         */
+        Map<Integer, Set<Object>> getCandidateClusters() {
+            Map<Integer, Set<Object>> clusters = new LinkedHashMap<>();
+            for (int i = 0; i < keys.size(); i++) {
+                int root = root(i);
+                if (counts[root] > 1) {
+                    Set<Object> cluster = clusters.get(root);
+                    if (cluster == null) {
+                        cluster = new HashSet<>();
+                        clusters.put(root, cluster);
+                    }
+                    cluster.add(keys.get(i));
+                }
+            }
+            return clusters;
+        }
+
+        int find(Object key) {
+            return root(indexes.get(key));
+        }
+
+        /**
+         * @return the root for the customer's keys, or -1 if neither key is known.
+         */
+        int find(Customer customer) {
+            Integer index = indexes.get(customer.getNormalizedEmail());
+            if (index == null) {
+                index = indexes.get(NameKey.of(customer));
+            }
+            return index == null ? -1 : root(index);
+        }
+
+        int size() {
+            return keys.size();
+        }
+
+        long getCustomers() {
+            return customers;
+        }
+
+        private int index(Object key) {
+            Integer index = indexes.get(key);
+            if (index == null) {
+                index = keys.size();
+                if (index == parents.length) {
+                    parents = Arrays.copyOf(parents, index * 2);
+                    sizes = Arrays.copyOf(sizes, index * 2);
+                    counts = Arrays.copyOf(counts, index * 2);
+                }
+                keys.add(key);
+                indexes.put(key, index);
+                parents[index] = index;
+                sizes[index] = 1;
+            }
+            return index;
+        }
+
+        private int root(int index) {
+            while (parents[index] != index) {
+                parents[index] = parents[parents[index]]; // Path halving
+                index = parents[index];
+            }
+            return index;
+        }
+
+        /**
+         * @return the root of the combined component.
+         */
+        private int union(int a, int b) {
+            a = root(a);
+            b = root(b);
+            if (a == b) {
+                return a;
+            }
+            if (sizes[a] < sizes[b]) {
+                int swap = a;
+                a = b;
+                b = swap;
+            }
+            parents[b] = a;
+            sizes[a] += sizes[b];
+            counts[a] += counts[b];
+            return a;
+        }
+    }
+}
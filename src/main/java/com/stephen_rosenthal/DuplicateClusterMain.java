@@ -0,0 +1,41 @@
+package com.stephen_rosenthal;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+
+/**
+ * Command-line entry point that runs DuplicateClusterJob once over all of a tenant's customers, without the web
+ * server, and writes the report as JSON.
+ */
+public class DuplicateClusterMain {
+
+    /**
+     * @param args (optional) path of the file to write the report to. Defaults to duplicates.json.
+     *             (optional) tenant whose customers to cluster. Defaults to the default tenant.
+     */
+    public static void main(String[] args) throws Exception {
+        File output = new File(args.length > 0 ? args[0] : "duplicates.json");
+        String tenant = args.length > 1 ? args[1] : Tenant.DEFAULT;
+        if (!Tenant.isValid(tenant)) {
+            throw new IllegalArgumentException("Invalid tenant name: " + tenant);
+        }
+
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(Main.class)
+                .web(false)
+                .run(args);
+        try {
+            DuplicateClusterJob job = context.getBean(DuplicateClusterJob.class);
+            DuplicateReport report = Tenant.call(tenant, () -> job.run(true));
+            ObjectMapper objectMapper = context.getBean(ObjectMapper.class);
+            objectMapper.writer().with(SerializationFeature.INDENT_OUTPUT).writeValue(output, report);
+            System.out.printf("Found %d clusters of similar customers; wrote %s%n",
+                    report.getClusters().size(), output.getAbsolutePath());
+        } finally {
+            context.close();
+        }
+    }
+}
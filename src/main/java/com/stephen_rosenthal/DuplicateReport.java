@@ -0,0 +1,53 @@
+package com.stephen_rosenthal;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Models the result of a duplicate clustering run: groups of customers that are probably the same person.
+ */
+public class DuplicateReport {
+    private final Date started;
+    private final boolean full;
+    private final long processed;
+    private final long distinctKeys;
+    private final List<List<Customer>> clusters;
+
+    /**
+     * @param started when the run started; the next incremental run processes customers modified after this.
+     * @param full true if the run read every customer, false if it only read those modified since the previous run.
+     * @param processed number of customers read from the database by this run.
+     * @param distinctKeys number of distinct normalized emails and names known to the job.
+     * @param clusters groups of 2 or more similar customers. Every customer is in at most one cluster.
+     */
+    public DuplicateReport(Date started, boolean full, long processed, long distinctKeys, List<List<Customer>> clusters) {
+        Objects.requireNonNull(started);
+        Objects.requireNonNull(clusters);
+        this.started = started;
+        this.full = full;
+        this.processed = processed;
+        this.distinctKeys = distinctKeys;
+        this.clusters = clusters;
+    }
+
+    public Date getStarted() {
+        return started;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    public long getDistinctKeys() {
+        return distinctKeys;
+    }
+
+    public List<List<Customer>> getClusters() {
+        return clusters;
+    }
+}
@@ -0,0 +1,142 @@
+package com.stephen_rosenthal;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.springframework.http.MediaType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Strong entity tags (ETags) for customers and pages of customers, and matching them with If-Match and If-None-Match.
+ *
+ * A customer's tag is built from its version and modification time, which change on every write,
+ * so it can be computed without serializing the customer. A page's tag is a hash of the tags of its customers,
+ * along with everything else in the page (its position and totals). Responses with only some fields are
+ * different representations, so their tags also depend on the fields. So are responses in one of the BinaryFormats,
+ * whose tags end with the format (ex: "1-3e8-cbor"); If-Match ignores that ending, since any encoding of a version
+ * is that version.
+ */
+final class ETags {
+
+    // Endings of the tags of representations in each of the BinaryFormats
+    private static final Map<MediaType, String> FORMAT_SUFFIXES =
+            ImmutableMap.of(BinaryFormats.SMILE, "-smile", BinaryFormats.CBOR, "-cbor");
+
+    private ETags() {
+    }
+
+    static String of(Customer customer) {
+        return '"' + Long.toString(version(customer)) + '-' + Long.toHexString(lastModified(customer)) + '"';
+    }
+
+    static String of(Customer customer, CustomerFields fields) {
+        String eTag = of(customer);
+        if (fields.isAll()) {
+            return eTag;
+        }
+        return eTag.substring(0, eTag.length() - 1) + '-'
+                + Hashing.murmur3_32().hashString(fields.toString(), StandardCharsets.UTF_8) + '"';
+    }
+
+    static String of(CustomerPage page) {
+        return of(page, CustomerFields.ALL);
+    }
+
+    static String of(CustomerPage page, CustomerFields fields) {
+        Hasher hasher = Hashing.murmur3_128().newHasher()
+                .putInt(page.getPage())
+                .putInt(page.getPageSize())
+                .putInt(page.getNumberOfPages())
+                .putBoolean(page.isFirst())
+                .putBoolean(page.isLast())
+                .putBoolean(page.isApproximate());
+        return hash(hasher, fields, page.getCustomers());
+    }
+
+    static String of(CustomerCursorPage page) {
+        return of(page, CustomerFields.ALL);
+    }
+
+    static String of(CustomerCursorPage page, CustomerFields fields) {
+        Hasher hasher = Hashing.murmur3_128().newHasher()
+                .putString(String.valueOf(page.getNext()), StandardCharsets.UTF_8);
+        return hash(hasher, fields, page.getCustomers());
+    }
+
+    /**
+     * @param eTag tag of a customer or page.
+     * @param format one of the BinaryFormats, or null for JSON.
+     * @return the tag of its representation in the format.
+     */
+    static String forFormat(String eTag, MediaType format) {
+        if (format == null) {
+            return eTag;
+        }
+        return eTag.substring(0, eTag.length() - 1) + FORMAT_SUFFIXES.get(format) + '"';
+    }
+
+    /**
+     * @param header value of an If-Match or If-None-Match header: "*", or a comma-separated list of tags. May be null.
+     * @param weak use weak comparison (for If-None-Match), where W/"x" matches "x".
+     *             Otherwise (for If-Match), weak tags never match, and the tags of any format match.
+     * @return true if the header matches the tag.
+     */
+    static boolean matches(String header, String eTag, boolean weak) {
+        if (header == null) {
+            return false;
+        }
+        for (String candidate : Splitter.on(',').trimResults().omitEmptyStrings().split(header)) {
+            if (candidate.equals("*")) {
+                return true;
+            }
+            if (candidate.startsWith("W/")) {
+                if (!weak) {
+                    continue;
+                }
+                candidate = candidate.substring(2);
+            } else if (!weak) {
+                candidate = withoutFormat(candidate);
+            }
+            if (candidate.equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String withoutFormat(String eTag) {
+        for (String suffix : FORMAT_SUFFIXES.values()) {
+            if (eTag.endsWith(suffix + '"')) {
+                return eTag.substring(0, eTag.length() - suffix.length() - 1) + '"';
+            }
+        }
+        return eTag;
+    }
+
+    private static String hash(Hasher hasher, CustomerFields fields, List<Customer> customers) {
+        if (!fields.isAll()) {
+            hasher.putString(fields.toString(), StandardCharsets.UTF_8);
+        }
+        for (Customer customer : customers) {
+            hasher.putString(String.valueOf(customer.getId()), StandardCharsets.UTF_8)
+                    .putLong(version(customer))
+                    .putLong(lastModified(customer));
+        }
+        return '"' + hasher.hash().toString() + '"';
+    }
+
+    // Customers written before versions existed count as version 0, until they are backfilled
+    private static long version(Customer customer) {
+        return customer.getVersion() != null ? customer.getVersion() : 0;
+    }
+
+    private static long lastModified(Customer customer) {
+        Date lastModified = customer.getLastModified();
+        return lastModified != null ? lastModified.getTime() : 0;
+    }
+}
@@ -0,0 +1,261 @@
+package com.stephen_rosenthal;
+
+import com.google.common.base.Splitter;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Normalizes email addresses for duplicate detection, using rules for each email provider's domain.
+ * For example, GMail ignores periods in the local part, and delivers "name+tag@gmail.com" to "name@gmail.com".
+ *
+ * Rules are read from email-normalization.properties on the classpath, or from the file named by the
+ * emailNormalizationRules system property. Each line maps a domain to a comma-separated list of options:
+ * <ul>
+ *     <li>removeDots - ignore periods in the local part</li>
+ *     <li>tags:CHARS - ignore anything in the local part after any of these characters</li>
+ *     <li>alias:DOMAIN - replace the domain with another one (ex: googlemail.com is the same as gmail.com)</li>
+ * </ul>
+ * A domain of * sets the rule for domains that are not listed; by default they are only lowercased.
+ *
+ * Normalization makes a single pass over the address into a reusable per-thread buffer,
+ * so the only allocation is the resulting String.
+ */
+public class EmailNormalizer {
+
+    private static final String RULES_PROPERTY = "emailNormalizationRules";
+    private static final String RULES_RESOURCE = "/email-normalization.properties";
+    private static final String DEFAULT_DOMAIN = "*";
+
+    private static final ThreadLocal<char[]> buffers = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[128];
+        }
+    };
+
+    // Rules by hash of the lowercased domain, with linear probing
+    private final Rule[] rules;
+    private final int mask;
+    private final Rule defaultRule;
+    private final String version;
+
+    /**
+     * @param rules rules by lowercase domain. The rule for "*" is used for domains that are not listed.
+     */
+    public EmailNormalizer(Map<String, Rule> rules) {
+        Rule defaultRule = rules.get(DEFAULT_DOMAIN);
+        this.defaultRule = defaultRule != null ? defaultRule : new Rule(DEFAULT_DOMAIN, false, "", null);
+
+        int capacity = Integer.highestOneBit(Math.max(rules.size(), 1) * 4);
+        this.rules = new Rule[capacity];
+        this.mask = capacity - 1;
+        for (Rule rule : rules.values()) {
+            if (!rule.domain.equals(DEFAULT_DOMAIN)) {
+                int index = rule.domain.hashCode() & mask;
+                while (this.rules[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                this.rules[index] = rule;
+            }
+        }
+        this.version = computeVersion(rules);
+    }
+
+    /**
+     * @return the normalizer with the configured rules.
+     */
+    public static EmailNormalizer getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * @return a hash of the rules, which changes whenever the normalized form of some address may change.
+     * CustomerSchema stores it, to only recompute stored normalized emails when the rules change.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Normalize an email address: trim it, lowercase it, and apply the rule for its domain.
+     * For some email providers, the result may be a different but valid address.
+     * @throws IllegalArgumentException if there is no '@' in the address.
+     */
+    public String normalize(String email) {
+        Objects.requireNonNull(email);
+
+        int start = 0;
+        int end = email.length();
+        while (start < end && email.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && email.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        int at = email.lastIndexOf('@', end - 1);
+        if (at < start) {
+            throw new IllegalArgumentException("Not an email address: " + email);
+        }
+        int localEnd = at;
+        while (localEnd > start && email.charAt(localEnd - 1) <= ' ') {
+            localEnd--;
+        }
+        int domainStart = at + 1;
+        while (domainStart < end && email.charAt(domainStart) <= ' ') {
+            domainStart++;
+        }
+
+        Rule rule = findRule(email, domainStart, end);
+        char[] buffer = buffers.get();
+        int maxLength = (localEnd - start) + 1 + Math.max(end - domainStart, rule.alias != null ? rule.alias.length() : 0);
+        if (buffer.length < maxLength) {
+            buffer = new char[maxLength * 2];
+            buffers.set(buffer);
+        }
+
+        int length = 0;
+        for (int i = start; i < localEnd; i++) {
+            char c = toLowerCase(email.charAt(i));
+            if (c == '.' && rule.removeDots) {
+                continue;
+            }
+            if (length > 0 && rule.tagSeparators.indexOf(c) >= 0) {
+                break;
+            }
+            buffer[length++] = c;
+        }
+
+        buffer[length++] = '@';
+        if (rule.alias != null) {
+            rule.alias.getChars(0, rule.alias.length(), buffer, length);
+            length += rule.alias.length();
+        } else {
+            for (int i = domainStart; i < end; i++) {
+                buffer[length++] = toLowerCase(email.charAt(i));
+            }
+        }
+        return new String(buffer, 0, length);
+    }
+
+    /**
+     * Find the rule for the domain in email[start, end), without copying it.
+     */
+    private Rule findRule(String email, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + toLowerCase(email.charAt(i));
+        }
+        int length = end - start;
+        for (int index = hash & mask; rules[index] != null; index = (index + 1) & mask) {
+            Rule rule = rules[index];
+            if (rule.domain.length() == length && email.regionMatches(true, start, rule.domain, 0, length)) {
+                return rule;
+            }
+        }
+        return defaultRule;
+    }
+
+    private String computeVersion(Map<String, Rule> rules) {
+        Map<String, Rule> sorted = new TreeMap<>(rules);
+        sorted.put(DEFAULT_DOMAIN, defaultRule);
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (Rule rule : sorted.values()) {
+            hasher.putString(rule.domain, StandardCharsets.UTF_8).putByte((byte) 0)
+                    .putBoolean(rule.removeDots)
+                    .putString(rule.tagSeparators, StandardCharsets.UTF_8).putByte((byte) 0)
+                    .putString(rule.alias != null ? rule.alias : "", StandardCharsets.UTF_8).putByte((byte) 0);
+        }
+        return hasher.hash().toString();
+    }
+
+    private static char toLowerCase(char c) {
+        if (c < 128) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        return Character.toLowerCase(c);
+    }
+
+    /**
+     * Read rules in the format described above.
+     */
+    public static EmailNormalizer load(InputStream input) throws IOException {
+        Properties properties = new Properties();
+        properties.load(input);
+
+        Map<String, Rule> rules = new LinkedHashMap<>();
+        for (String domain : properties.stringPropertyNames()) {
+            boolean removeDots = false;
+            String tagSeparators = "";
+            String alias = null;
+            for (String option : Splitter.on(',').trimResults().omitEmptyStrings()
+                    .split(properties.getProperty(domain))) {
+                if (option.equals("removeDots")) {
+                    removeDots = true;
+                } else if (option.startsWith("tags:")) {
+                    tagSeparators = option.substring("tags:".length());
+                } else if (option.startsWith("alias:")) {
+                    alias = option.substring("alias:".length()).toLowerCase(Locale.ROOT);
+                } else {
+                    throw new IllegalArgumentException("Unknown option for " + domain + ": " + option);
+                }
+            }
+            String key = domain.toLowerCase(Locale.ROOT);
+            rules.put(key, new Rule(key, removeDots, tagSeparators, alias));
+        }
+        return new EmailNormalizer(rules);
+    }
+
+    /**
+     * How to normalize addresses in a domain
+     */
+    public static class Rule {
+        private final String domain;
+        private final boolean removeDots;
+        private final String tagSeparators;
+        private final String alias;
+
+        /**
+         * @param domain lowercase domain, or "*" for the default rule.
+         * @param removeDots ignore periods in the local part.
+         * @param tagSeparators ignore anything in the local part after any of these characters.
+         * @param alias (optional) lowercase domain to replace this one with.
+         */
+        public Rule(String domain, boolean removeDots, String tagSeparators, String alias) {
+            Objects.requireNonNull(domain);
+            Objects.requireNonNull(tagSeparators);
+            this.domain = domain;
+            this.removeDots = removeDots;
+            this.tagSeparators = tagSeparators;
+            this.alias = alias;
+        }
+    }
+
+    /**
+     * Loads the default rules on first use
+     */
+    private static class DefaultHolder {
+        static final EmailNormalizer INSTANCE = loadDefault();
+
+        private static EmailNormalizer loadDefault() {
+            String path = System.getProperty(RULES_PROPERTY);
+            try (InputStream input = path != null
+                    ? new FileInputStream(path)
+                    : EmailNormalizer.class.getResourceAsStream(RULES_RESOURCE)) {
+                return load(input);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read email normalization rules", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.stephen_rosenthal;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Finds customers that are probably the same person despite typos and nicknames, ex: "Jon Smith" and "John Smyth",
+ * or "Teddy Roosevelt" and "Theodore Roosevelt".
+ *
+ * Comparing against every customer would take time proportional to the number of customers, so each customer is
+ * stored with blocking keys, which are indexed: customers that might match share at least one key.
+ * A lookup reads only the customers sharing a key, then ranks them with score(). Keys shared by more than
+ * MAX_BLOCK_SIZE customers, like the Soundex codes of the most common names, are too common to narrow anything down,
+ * so lookups skip them. The keys are:
+ * <ul>
+ *     <li>n:FIRST:LAST - Soundex codes of the first name (after replacing a nickname with the full name),
+ *         and of the last name. Catches misspellings that sound the same.</li>
+ *     <li>t:FIRST:TRI - the Soundex code of the first name, and each three-letter substring of the last name.
+ *         Catches last name typos that change how it sounds.</li>
+ *     <li>e:LOCAL - the part of the normalized email before the '@'. Catches the same address at another domain.</li>
+ * </ul>
+ *
+ * Nicknames are read from nicknames.properties on the classpath, or from the file named by the nicknames
+ * system property. Each line maps a nickname to a full name.
+ */
+public class FuzzyMatcher {
+
+    // Customers with at least this score are similar
+    public static final double MIN_SCORE = 0.85;
+
+    // Blocking keys shared by more customers than this are skipped by lookups
+    public static final int MAX_BLOCK_SIZE = 1000;
+
+    private static final String NICKNAMES_PROPERTY = "nicknames";
+    private static final String NICKNAMES_RESOURCE = "/nicknames.properties";
+
+    // Soundex digit for each of 'a' to 'z'. 0 separates repeated digits; '-' is skipped (h and w)
+    private static final String SOUNDEX_CODES = "0123012-02245501262301-202";
+
+    private static final int SOUNDEX_LENGTH = 4;
+    private static final int TRIGRAM_LENGTH = 3;
+
+    // Jaro-Winkler: weight of a common prefix, and the longest prefix that counts
+    private static final double PREFIX_SCALE = 0.1;
+    private static final int MAX_PREFIX = 4;
+
+    // Full names by nickname, all lowercase letters
+    private final Map<String, String> nicknames;
+
+    /**
+     * @param nicknames full first names by nickname, in lowercase.
+     */
+    public FuzzyMatcher(Map<String, String> nicknames) {
+        this.nicknames = new HashMap<>(nicknames);
+    }
+
+    /**
+     * @return the matcher with the configured nicknames.
+     */
+    public static FuzzyMatcher getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * @return the blocking keys for a customer with the given normalized fields (see the class comment).
+     *         Any of the fields may be null, in which case the keys that depend on it are left out.
+     */
+    public List<String> blockingKeys(String normalizedEmail, String normalizedFirstName, String normalizedLastName) {
+        Set<String> keys = new LinkedHashSet<>();
+        String firstName = normalizedFirstName != null ? canonicalFirstName(normalizedFirstName) : "";
+        String lastName = normalizedLastName != null ? letters(normalizedLastName) : "";
+        if (!firstName.isEmpty() && !lastName.isEmpty()) {
+            String firstCode = soundex(firstName);
+            keys.add("n:" + firstCode + ":" + soundex(lastName));
+            if (lastName.length() <= TRIGRAM_LENGTH) {
+                keys.add("t:" + firstCode + ":" + lastName);
+            } else {
+                for (int i = 0; i + TRIGRAM_LENGTH <= lastName.length(); i++) {
+                    keys.add("t:" + firstCode + ":" + lastName.substring(i, i + TRIGRAM_LENGTH));
+                }
+            }
+        }
+        if (normalizedEmail != null) {
+            int at = normalizedEmail.lastIndexOf('@');
+            if (at > 0) {
+                keys.add("e:" + normalizedEmail.substring(0, at));
+            }
+        }
+        return new ArrayList<>(keys);
+    }
+
+    public List<String> blockingKeys(Customer customer) {
+        return blockingKeys(customer.getNormalizedEmail(),
+                customer.getNormalizedFirstName(), customer.getNormalizedLastName());
+    }
+
+    /**
+     * How likely two customers are to be the same person, from 0 (not at all) to 1.
+     * The same normalized email scores 1, and the same email at another domain 0.9. Otherwise, the score is the
+     * product of the Jaro-Winkler similarities of the first names (1 if they are nicknames for the same name)
+     * and of the last names.
+     */
+    public double score(Customer customer, Customer other) {
+        String email = customer.getNormalizedEmail();
+        String otherEmail = other.getNormalizedEmail();
+        if (email != null && email.equals(otherEmail)) {
+            return 1;
+        }
+
+        double nameScore = 0;
+        if (customer.getNormalizedFirstName() != null && customer.getNormalizedLastName() != null
+                && other.getNormalizedFirstName() != null && other.getNormalizedLastName() != null) {
+            nameScore = jaroWinkler(canonicalFirstName(customer.getNormalizedFirstName()),
+                    canonicalFirstName(other.getNormalizedFirstName()))
+                    * jaroWinkler(letters(customer.getNormalizedLastName()), letters(other.getNormalizedLastName()));
+        }
+        if (email != null && otherEmail != null && localPart(email).equals(localPart(otherEmail))) {
+            return Math.max(0.9, nameScore);
+        }
+        return nameScore;
+    }
+
+    /**
+     * @return the full name for a nickname, or else the name itself, with only the letters a-z.
+     */
+    String canonicalFirstName(String normalizedFirstName) {
+        String name = letters(normalizedFirstName);
+        String fullName = nicknames.get(name);
+        return fullName != null ? fullName : name;
+    }
+
+    /**
+     * American Soundex: the first letter, then digits for the following consonants that sound different,
+     * ex: "robert" and "rupert" are both R163.
+     * @param name lowercase letters a-z, not empty.
+     */
+    static String soundex(String name) {
+        char[] code = {Character.toUpperCase(name.charAt(0)), '0', '0', '0'};
+        int length = 1;
+        char previous = SOUNDEX_CODES.charAt(name.charAt(0) - 'a');
+        for (int i = 1; i < name.length() && length < SOUNDEX_LENGTH; i++) {
+            char digit = SOUNDEX_CODES.charAt(name.charAt(i) - 'a');
+            if (digit == '-') {
+                continue; // h and w don't separate consonants with the same digit
+            }
+            if (digit != '0' && digit != previous) {
+                code[length++] = digit;
+            }
+            previous = digit;
+        }
+        return new String(code);
+    }
+
+    /**
+     * Jaro-Winkler similarity, from 0 (nothing in common) to 1 (equal).
+     * Counts characters in common that are near the same position, and favors strings with a common prefix,
+     * so it suits short strings with typos, like names.
+     */
+    static double jaroWinkler(String a, String b) {
+        if (a.equals(b)) {
+            return 1;
+        }
+        if (a.isEmpty() || b.isEmpty()) {
+            return 0;
+        }
+
+        int window = Math.max(0, Math.max(a.length(), b.length()) / 2 - 1);
+        boolean[] aMatched = new boolean[a.length()];
+        boolean[] bMatched = new boolean[b.length()];
+        int matches = 0;
+        for (int i = 0; i < a.length(); i++) {
+            int end = Math.min(i + window + 1, b.length());
+            for (int j = Math.max(0, i - window); j < end; j++) {
+                if (!bMatched[j] && a.charAt(i) == b.charAt(j)) {
+                    aMatched[i] = true;
+                    bMatched[j] = true;
+                    matches++;
+                    break;
+                }
+            }
+        }
+        if (matches == 0) {
+            return 0;
+        }
+
+        int outOfOrder = 0;
+        for (int i = 0, j = 0; i < a.length(); i++) {
+            if (aMatched[i]) {
+                while (!bMatched[j]) {
+                    j++;
+                }
+                if (a.charAt(i) != b.charAt(j)) {
+                    outOfOrder++;
+                }
+                j++;
+            }
+        }
+
+        double m = matches;
+        double jaro = (m / a.length() + m / b.length() + (m - outOfOrder / 2.0) / m) / 3;
+        int prefix = 0;
+        while (prefix < Math.min(MAX_PREFIX, Math.min(a.length(), b.length())) && a.charAt(prefix) == b.charAt(prefix)) {
+            prefix++;
+        }
+        return jaro + prefix * PREFIX_SCALE * (1 - jaro);
+    }
+
+    /**
+     * @return only the letters a-z of a lowercase name, ex: "o'brien" becomes "obrien".
+     */
+    private static String letters(String name) {
+        StringBuilder letters = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                letters.append(c);
+            }
+        }
+        return letters.toString();
+    }
+
+    private static String localPart(String email) {
+        int at = email.lastIndexOf('@');
+        return at >= 0 ? email.substring(0, at) : email;
+    }
+
+    /**
+     * Read nicknames in the format described above.
+     */
+    public static FuzzyMatcher load(InputStream input) throws IOException {
+        Properties properties = new Properties();
+        properties.load(input);
+
+        Map<String, String> nicknames = new HashMap<>();
+        for (String nickname : properties.stringPropertyNames()) {
+            nicknames.put(letters(nickname.toLowerCase(Locale.ROOT)),
+                    letters(properties.getProperty(nickname).trim().toLowerCase(Locale.ROOT)));
+        }
+        return new FuzzyMatcher(nicknames);
+    }
+
+    /**
+     * Loads the default nicknames on first use
+     */
+    private static class DefaultHolder {
+        static final FuzzyMatcher INSTANCE = loadDefault();
+
+        private static FuzzyMatcher loadDefault() {
+            String path = System.getProperty(NICKNAMES_PROPERTY);
+            try (InputStream input = path != null
+                    ? new FileInputStream(path)
+                    : FuzzyMatcher.class.getResourceAsStream(NICKNAMES_RESOURCE)) {
+                return load(input);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read nicknames", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.stephen_rosenthal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Models the result of a bulk import: totals, a summary of each database write, and any rejected rows.
+ */
+public class ImportReport {
+    // Cap on the number of row errors reported, so a bad file can't produce an unbounded response
+    private static final int MAX_ERRORS = 1000;
+
+    private int received;
+    private int inserted;
+    private int failed;
+    private boolean completed = true;
+    private boolean errorsTruncated;
+    private final List<Batch> batches = new ArrayList<>();
+    private final List<RowError> errors = new ArrayList<>();
+
+    /**
+     * Number of non-blank data rows read from the request body.
+     */
+    public int getReceived() {
+        return received;
+    }
+
+    public int getInserted() {
+        return inserted;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    /**
+     * False if the import was stopped early because a whole batch could not be written.
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    public boolean isErrorsTruncated() {
+        return errorsTruncated;
+    }
+
+    public List<Batch> getBatches() {
+        return batches;
+    }
+
+    public List<RowError> getErrors() {
+        return errors;
+    }
+
+    void addReceived() {
+        received++;
+    }
+
+    void addRowError(int row, String message) {
+        failed++;
+        if (errors.size() < MAX_ERRORS) {
+            errors.add(new RowError(row, message));
+        } else {
+            errorsTruncated = true;
+        }
+    }
+
+    void addBatch(Batch batch) {
+        batches.add(batch);
+        inserted += batch.getInserted();
+    }
+
+    void abort() {
+        completed = false;
+    }
+
+    /**
+     * Summary of one bulk write to the database.
+     */
+    public static class Batch {
+        private final int firstRow;
+        private final int lastRow;
+        private final int size;
+        private final int inserted;
+        private final String error;
+
+        public Batch(int firstRow, int lastRow, int size, int inserted, String error) {
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+            this.size = size;
+            this.inserted = inserted;
+            this.error = error;
+        }
+
+        public int getFirstRow() {
+            return firstRow;
+        }
+
+        public int getLastRow() {
+            return lastRow;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getInserted() {
+            return inserted;
+        }
+
+        /**
+         * Error that failed the whole batch, or null.
+         */
+        public String getError() {
+            return error;
+        }
+    }
+
+    /**
+     * A row of the request body that was not imported. Rows are 1-indexed lines of the body.
+     */
+    public static class RowError {
+        private final int row;
+        private final String message;
+
+        public RowError(int row, String message) {
+            this.row = row;
+            this.message = message;
+        }
+
+        public int getRow() {
+            return row;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.stephen_rosenthal;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Change feed held in memory, for the in-memory store (see InMemoryCustomerRepository). There is only one node, so
+ * changes are published as they are appended. Like customers without memoryStoreDirectory, changes are lost when the
+ * application stops; consumers holding a token from before then get a 410 Gone, and rescan.
+ */
+@Component
+@ConditionalOnProperty(name = "customerStore", havingValue = "memory")
+public class InMemoryCustomerChangeFeed extends CustomerChangeFeed {
+
+    private final ConcurrentNavigableMap<Long, CustomerChange> changes = new ConcurrentSkipListMap<>();
+
+    // Guarded by this
+    private long sequence;
+
+    @Override
+    protected void append(List<CustomerChange> newChanges) {
+        List<CustomerChange> appended = new ArrayList<>(newChanges.size());
+        synchronized (this) {
+            for (CustomerChange change : newChanges) {
+                CustomerChange numbered = change.withSequence(++sequence);
+                changes.put(numbered.getSequence(), numbered);
+                appended.add(numbered);
+            }
+            Map.Entry<Long, CustomerChange> oldest;
+            while ((oldest = changes.firstEntry()) != null && oldest.getKey() <= sequence - maxChanges) {
+                changes.remove(oldest.getKey());
+            }
+        }
+        publish(appended);
+    }
+
+    @Override
+    protected Changes read(String tenant, long after, int limit) {
+        List<CustomerChange> found = new ArrayList<>();
+        long last = after;
+        for (CustomerChange change : changes.tailMap(after, false).values()) {
+            if (found.size() >= limit) {
+                break;
+            }
+            last = change.getSequence();
+            if (change.getTenant().equals(tenant)) {
+                found.add(change);
+            }
+        }
+        return new Changes(found, last);
+    }
+
+    @Override
+    protected synchronized long getLatestSequence() {
+        return sequence;
+    }
+
+    @Override
+    protected synchronized boolean isKept(long after) {
+        return after <= sequence && (changes.isEmpty() || after >= changes.firstKey() - 1);
+    }
+}
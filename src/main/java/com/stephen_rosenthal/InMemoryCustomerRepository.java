@@ -0,0 +1,697 @@
+package com.stephen_rosenthal;
+
+import com.mongodb.BasicDBObject;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeConvertEvent;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Customer store held in memory, for deployments (and tests) without MongoDB; enabled with customerStore=memory.
+ *
+ * Each tenant's customers are in a partition of their own (see Tenant), where they are kept by id in a sorted map,
+ * with hash indexes on the normalized email, normalized name, and blocking keys, so that the similar-customer queries
+ * read only the customers they return, like their MongoDB counterparts. Reads don't lock: they see each customer as of
+ * its last write, and re-check what they find through an index, since the index may be a write ahead or behind.
+ * Writes are serialized by a lock for each partition, so tenants don't wait for each other's writes.
+ *
+ * If memoryStoreDirectory is set, writes are persisted there (see CustomerStoreLog), forced to disk every
+ * memoryStoreFlushIntervalMillis, and compacted into a snapshot every memoryStoreSnapshotIntervalMillis and on
+ * shutdown. Otherwise, customers are lost when the application stops. The default tenant's files are in the
+ * directory itself, and every other tenant's are in tenants/name under it.
+ *
+ * Saves and deletes publish the same events as Spring Data's MongoDB repositories, so CustomerModificationListener
+ * and CustomerTotals work the same way with either store.
+ */
+@Component
+@ConditionalOnProperty(name = "customerStore", havingValue = "memory")
+public class InMemoryCustomerRepository implements CustomerRepository {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InMemoryCustomerRepository.class);
+
+    /**
+     * The order MongoDB sorts ids in: strings (from a PUT to a new id) before ObjectIds, which sort by their hex form.
+     */
+    static final Comparator<String> ID_ORDER =
+            Comparator.comparing(ObjectId::isValid).thenComparing(Comparator.<String>naturalOrder());
+
+    // Directory under memoryStoreDirectory with the tenants other than the default one
+    private static final String TENANTS_DIRECTORY = "tenants";
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    // Empty to keep customers in memory only
+    @Value("${memoryStoreDirectory:}")
+    private String directory;
+
+    @Value("${memoryStoreFlushIntervalMillis:100}")
+    private long flushIntervalMillis;
+
+    @Value("${memoryStoreSnapshotIntervalMillis:300000}")
+    private long snapshotIntervalMillis;
+
+    // By tenant
+    private final ConcurrentMap<String, Partition> partitions = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler; // null if not persisted
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (directory.isEmpty()) {
+            return;
+        }
+        partitions.put(Tenant.DEFAULT, openPartition(Tenant.DEFAULT));
+        Path tenants = Paths.get(directory, TENANTS_DIRECTORY);
+        if (Files.isDirectory(tenants)) {
+            try (DirectoryStream<Path> tenantDirectories = Files.newDirectoryStream(tenants)) {
+                for (Path tenantDirectory : tenantDirectories) {
+                    String tenant = tenantDirectory.getFileName().toString();
+                    if (Tenant.isValid(tenant)) {
+                        partitions.put(tenant, openPartition(tenant));
+                    }
+                }
+            }
+        }
+
+        scheduler = Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "customer-store");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> partitions.values().forEach(partition -> partition.log.force()),
+                flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(() -> {
+            for (Map.Entry<String, Partition> partition : partitions.entrySet()) {
+                try {
+                    if (partition.getValue().writtenSinceSnapshot) {
+                        partition.getValue().snapshot();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LOG.warn("Could not write a snapshot of the customers of tenant {}", partition.getKey(), e);
+                }
+            }
+        }, snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        IOException failure = null;
+        for (Partition partition : partitions.values()) {
+            try {
+                partition.snapshot(); // So the next start has no log to replay
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                partition.log.close();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Write all of each tenant's customers to a snapshot, so that the logs written so far are no longer needed.
+     * Writes carry on while the snapshots are written.
+     */
+    public void snapshot() throws IOException {
+        for (Partition partition : partitions.values()) {
+            partition.snapshot();
+        }
+    }
+
+    @Override
+    public <S extends Customer> S save(S customer) {
+        Partition partition = partition();
+        eventPublisher.publishEvent(new BeforeConvertEvent<Customer>(customer));
+        partition.writeLock.lock();
+        try {
+            long version;
+            if (customer.getVersion() == null) {
+                // New customer: insert it, like MongoDB's save() does for customers without a version
+                if (customer.getId() == null) {
+                    customer.setId(new ObjectId().toString());
+                } else if (partition.customers.containsKey(customer.getId())) {
+                    throw new DuplicateKeyException("Customer " + customer.getId() + " already exists");
+                }
+                version = 0;
+            } else {
+                Customer current = partition.customers.get(customer.getId());
+                if (current == null || !current.getVersion().equals(customer.getVersion())) {
+                    throw new OptimisticLockingFailureException(
+                            "Customer " + customer.getId() + " does not exist, or has changed since version "
+                                    + customer.getVersion());
+                }
+                version = customer.getVersion() + 1;
+            }
+            Customer stored = customer.copy(CustomerFields.ALL);
+            stored.setVersion(version);
+            partition.put(stored);
+            customer.setVersion(version); // Only once it is stored, so a failed save can be retried
+        } finally {
+            partition.writeLock.unlock();
+        }
+        eventPublisher.publishEvent(new AfterSaveEvent<Customer>(customer, null));
+        return customer;
+    }
+
+    @Override
+    public <S extends Customer> Iterable<S> save(Iterable<S> customers) {
+        List<S> saved = new ArrayList<>();
+        for (S customer : customers) {
+            saved.add(save(customer));
+        }
+        return saved;
+    }
+
+    @Override
+    public BulkInsertResult insertAll(List<Customer> newCustomers) {
+        Partition partition = partition();
+        Map<Integer, String> errors = new LinkedHashMap<>();
+        int inserted = 0;
+        partition.writeLock.lock();
+        try {
+            for (int i = 0; i < newCustomers.size(); i++) {
+                Customer customer = newCustomers.get(i);
+                if (customer.getId() == null) {
+                    customer.setId(new ObjectId().toString());
+                } else if (partition.customers.containsKey(customer.getId())) {
+                    errors.put(i, "Duplicate id: " + customer.getId());
+                    continue;
+                }
+                customer.setLastModified(new Date()); // Like MongoDB's bulk inserts, these bypass the save events
+                if (customer.getVersion() == null) {
+                    customer.setVersion(0L);
+                }
+                partition.put(customer.copy(CustomerFields.ALL));
+                inserted++;
+            }
+        } finally {
+            partition.writeLock.unlock();
+        }
+        return new BulkInsertResult(inserted, errors);
+    }
+
+    @Override
+    public Customer updateFields(String id, Map<String, String> fields, Long expectedVersion) {
+        Partition partition = partition();
+        partition.writeLock.lock();
+        try {
+            Customer current = partition.customers.get(id);
+            if (current == null || (expectedVersion != null && !expectedVersion.equals(current.getVersion()))) {
+                return null;
+            }
+            Customer updated = current.copy(CustomerFields.ALL);
+            for (Map.Entry<String, String> field : fields.entrySet()) {
+                switch (field.getKey()) {
+                    case "email":
+                        updated.setEmail(field.getValue());
+                        break;
+                    case "firstName":
+                        updated.setFirstName(field.getValue());
+                        break;
+                    case "lastName":
+                        updated.setLastName(field.getValue());
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Can't update field " + field.getKey());
+                }
+            }
+            // Like findAndModify, bypasses the save events
+            updated.setLastModified(new Date());
+            updated.setVersion(current.getVersion() + 1);
+            partition.put(updated);
+            return updated.copy(CustomerFields.ALL);
+        } finally {
+            partition.writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void delete(String id) {
+        Assert.notNull(id, "The given id must not be null!");
+        Partition partition = partition();
+        partition.writeLock.lock();
+        try {
+            // Logged first, like puts
+            if (partition.log != null && partition.customers.containsKey(id)) {
+                partition.log.delete(id);
+                partition.writtenSinceSnapshot = true;
+            }
+            Customer removed = partition.customers.remove(id);
+            if (removed != null) {
+                partition.unindex(removed);
+            }
+        } finally {
+            partition.writeLock.unlock();
+        }
+        eventPublisher.publishEvent(new AfterDeleteEvent<>(new BasicDBObject("_id", id), Customer.class));
+    }
+
+    @Override
+    public void delete(Customer customer) {
+        delete(customer.getId());
+    }
+
+    @Override
+    public void delete(Iterable<? extends Customer> customers) {
+        for (Customer customer : customers) {
+            delete(customer);
+        }
+    }
+
+    @Override
+    public void deleteAll() {
+        Partition partition = partition();
+        partition.writeLock.lock();
+        try {
+            if (partition.log != null) {
+                partition.log.clear();
+                partition.writtenSinceSnapshot = true;
+            }
+            partition.customers.clear();
+            partition.byNormalizedEmail.clear();
+            partition.byNormalizedName.clear();
+            partition.byBlockingKey.clear();
+        } finally {
+            partition.writeLock.unlock();
+        }
+        eventPublisher.publishEvent(new AfterDeleteEvent<>(new BasicDBObject(), Customer.class));
+    }
+
+    @Override
+    public Customer findOne(String id) {
+        Assert.notNull(id, "The given id must not be null!");
+        Customer customer = partition().customers.get(id);
+        return customer != null ? customer.copy(CustomerFields.ALL) : null;
+    }
+
+    @Override
+    public boolean exists(String id) {
+        Assert.notNull(id, "The given id must not be null!");
+        return partition().customers.containsKey(id);
+    }
+
+    @Override
+    public long count() {
+        return partition().customers.size();
+    }
+
+    @Override
+    public Iterable<Customer> findAll() {
+        return copy(partition().customers.values(), Integer.MAX_VALUE, CustomerFields.ALL);
+    }
+
+    @Override
+    public Iterable<Customer> findAll(Iterable<String> ids) {
+        List<String> idList = new ArrayList<>();
+        ids.forEach(idList::add);
+        return findByIds(idList, CustomerFields.ALL);
+    }
+
+    @Override
+    public Iterable<Customer> findAll(Sort sort) {
+        return copy(partition().sorted(sort), Integer.MAX_VALUE, CustomerFields.ALL);
+    }
+
+    @Override
+    public Page<Customer> findAll(Pageable pageable) {
+        Partition partition = partition();
+        long total = partition.customers.size();
+        return new PageImpl<>(copy(skip(partition.sorted(pageable.getSort()), pageable.getOffset()),
+                pageable.getPageSize(), CustomerFields.ALL), pageable, total);
+    }
+
+    @Override
+    public List<Customer> findPage(Pageable pageable, CustomerFields fields) {
+        return copy(skip(partition().sorted(pageable.getSort()), pageable.getOffset()), pageable.getPageSize() + 1,
+                fields);
+    }
+
+    @Override
+    public Page<Customer> findSimilar(Customer customer, Pageable pageable, CustomerFields fields) {
+        List<Customer> similar = partition().findSimilar(customer);
+        int from = Math.min(pageable.getOffset(), similar.size());
+        int to = Math.min(from + pageable.getPageSize(), similar.size());
+        return new PageImpl<>(copy(similar.subList(from, to), Integer.MAX_VALUE, fields), pageable, similar.size());
+    }
+
+    @Override
+    public Page<Customer> findFuzzySimilar(Customer customer, Pageable pageable, CustomerFields fields) {
+        Partition partition = partition();
+        Set<String> ids = new HashSet<>();
+        List<String> blockingKeys = FuzzyMatcher.getDefault().blockingKeys(customer);
+        for (String blockingKey : blockingKeys) {
+            Set<String> block = lookup(partition.byBlockingKey, blockingKey);
+            if (block.size() <= FuzzyMatcher.MAX_BLOCK_SIZE) { // Otherwise too common to tell customers apart
+                ids.addAll(block);
+            }
+        }
+        ids.addAll(lookup(partition.byNormalizedEmail, customer.getNormalizedEmail()));
+        ids.addAll(lookup(partition.byNormalizedName, NameKey.of(customer)));
+
+        FuzzyMatcher matcher = FuzzyMatcher.getDefault();
+        Map<Customer, Double> scores = new IdentityHashMap<>();
+        List<Customer> similar = new ArrayList<>();
+        for (String id : ids) {
+            Customer candidate = partition.customers.get(id);
+            if (candidate == null) {
+                continue;
+            }
+            double score = matcher.score(customer, candidate);
+            if (score >= FuzzyMatcher.MIN_SCORE) {
+                scores.put(candidate, score);
+                similar.add(candidate);
+            }
+        }
+        similar.sort(Comparator.comparing((Customer candidate) -> scores.get(candidate)).reversed()
+                .thenComparing(Customer::getId, ID_ORDER));
+
+        int from = Math.min(pageable.getOffset(), similar.size());
+        int to = Math.min(from + pageable.getPageSize(), similar.size());
+        return new PageImpl<>(copy(similar.subList(from, to), Integer.MAX_VALUE, fields), pageable, similar.size());
+    }
+
+    @Override
+    public List<Customer> findAllAfter(String afterId, int limit, CustomerFields fields) {
+        ConcurrentNavigableMap<String, Customer> customers = partition().customers;
+        Collection<Customer> after = afterId != null ? customers.tailMap(afterId, false).values() : customers.values();
+        return copy(after, limit, fields);
+    }
+
+    @Override
+    public List<Customer> findSimilarAfter(Customer customer, String afterId, int limit, CustomerFields fields) {
+        List<Customer> after = new ArrayList<>();
+        for (Customer similar : partition().findSimilar(customer)) {
+            if (afterId == null || ID_ORDER.compare(similar.getId(), afterId) > 0) {
+                after.add(similar);
+            }
+        }
+        return copy(after, limit, fields);
+    }
+
+    @Override
+    public List<Customer> findByIds(Collection<String> ids, CustomerFields fields) {
+        Partition partition = partition();
+        List<Customer> found = new ArrayList<>();
+        for (String id : ids) {
+            Customer customer = partition.customers.get(id);
+            if (customer != null) {
+                found.add(customer.copy(fields));
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public List<Customer> findByNormalizedKeys(Collection<String> normalizedEmails, Collection<NameKey> normalizedNames) {
+        Partition partition = partition();
+        Set<String> ids = new HashSet<>();
+        for (String normalizedEmail : normalizedEmails) {
+            ids.addAll(lookup(partition.byNormalizedEmail, normalizedEmail));
+        }
+        for (NameKey name : normalizedNames) {
+            ids.addAll(lookup(partition.byNormalizedName, name));
+        }
+        List<Customer> found = new ArrayList<>();
+        for (String id : ids) {
+            Customer customer = partition.customers.get(id);
+            if (customer != null && (normalizedEmails.contains(customer.getNormalizedEmail())
+                    || normalizedNames.contains(NameKey.of(customer)))) {
+                found.add(customer.copy(CustomerFields.ALL));
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void forEachModifiedSince(Date modifiedSince, Consumer<Customer> consumer) {
+        for (Customer customer : partition().customers.values()) {
+            if (modifiedSince == null
+                    || (customer.getLastModified() != null && !customer.getLastModified().before(modifiedSince))) {
+                consumer.accept(customer.copy(CustomerFields.ALL));
+            }
+        }
+    }
+
+    /**
+     * @return the current tenant's partition, which is opened the first time the tenant is used.
+     */
+    private Partition partition() {
+        String tenant = Tenant.current();
+        Partition partition = partitions.get(tenant);
+        return partition != null ? partition : partitions.computeIfAbsent(tenant, this::openPartition);
+    }
+
+    private Partition openPartition(String tenant) {
+        if (directory.isEmpty()) {
+            return new Partition(null);
+        }
+        Path tenantDirectory = tenant.equals(Tenant.DEFAULT)
+                ? Paths.get(directory) : Paths.get(directory, TENANTS_DIRECTORY, tenant);
+        Partition partition = new Partition(new CustomerStoreLog(tenantDirectory));
+        Map<String, Customer> recovered = new HashMap<>();
+        try {
+            partition.log.recover(recovered);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not recover the customers of tenant " + tenant, e);
+        }
+        for (Customer customer : recovered.values()) {
+            partition.customers.put(customer.getId(), customer);
+            partition.index(customer);
+        }
+        return partition;
+    }
+
+    private static <K> void add(ConcurrentMap<K, Set<String>> index, K key, String id) {
+        index.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(id);
+    }
+
+    private static <K> void remove(ConcurrentMap<K, Set<String>> index, K key, String id) {
+        index.computeIfPresent(key, (k, ids) -> {
+            ids.remove(id);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    private static <K> Set<String> lookup(ConcurrentMap<K, Set<String>> index, K key) {
+        Set<String> ids = index.get(key);
+        return ids != null ? ids : Collections.<String>emptySet();
+    }
+
+    private static Function<Customer, String> property(String name) {
+        switch (name) {
+            case "email":
+                return Customer::getEmail;
+            case "firstName":
+                return Customer::getFirstName;
+            case "lastName":
+                return Customer::getLastName;
+            case "normalizedEmail":
+                return Customer::getNormalizedEmail;
+            case "normalizedFirstName":
+                return Customer::getNormalizedFirstName;
+            case "normalizedLastName":
+                return Customer::getNormalizedLastName;
+            default:
+                throw new IllegalArgumentException("Can't sort customers by " + name);
+        }
+    }
+
+    private static Iterator<Customer> skip(Collection<Customer> customers, int offset) {
+        Iterator<Customer> iterator = customers.iterator();
+        for (int i = 0; i < offset && iterator.hasNext(); i++) {
+            iterator.next();
+        }
+        return iterator;
+    }
+
+    /**
+     * @return copies of up to limit customers, with the given fields.
+     */
+    private static List<Customer> copy(Collection<Customer> customers, int limit, CustomerFields fields) {
+        return copy(customers.iterator(), limit, fields);
+    }
+
+    private static List<Customer> copy(Iterator<Customer> customers, int limit, CustomerFields fields) {
+        List<Customer> copies = new ArrayList<>();
+        while (copies.size() < limit && customers.hasNext()) {
+            copies.add(customers.next().copy(fields));
+        }
+        return copies;
+    }
+
+    /**
+     * One tenant's customers, indexes, and log
+     */
+    private static class Partition {
+        private final ConcurrentNavigableMap<String, Customer> customers = new ConcurrentSkipListMap<>(ID_ORDER);
+
+        // Ids of the customers with each value
+        private final ConcurrentMap<String, Set<String>> byNormalizedEmail = new ConcurrentHashMap<>();
+        private final ConcurrentMap<NameKey, Set<String>> byNormalizedName = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, Set<String>> byBlockingKey = new ConcurrentHashMap<>();
+
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        private final CustomerStoreLog log; // null if not persisted
+        private volatile boolean writtenSinceSnapshot;
+
+        Partition(CustomerStoreLog log) {
+            this.log = log;
+        }
+
+        /**
+         * Write all of the customers to a snapshot, so that the log written so far is no longer needed.
+         * Writes carry on while the snapshot is written.
+         */
+        synchronized void snapshot() throws IOException {
+            if (log == null) {
+                return;
+            }
+            long generation;
+            writeLock.lock();
+            try {
+                generation = log.rotate();
+                writtenSinceSnapshot = false;
+            } finally {
+                writeLock.unlock();
+            }
+            log.writeSnapshot(generation, customers.values());
+        }
+
+        /**
+         * @return customers with the same normalized email or name as the given one, in id order.
+         */
+        private List<Customer> findSimilar(Customer customer) {
+            Set<String> ids = new HashSet<>(lookup(byNormalizedEmail, customer.getNormalizedEmail()));
+            ids.addAll(lookup(byNormalizedName, NameKey.of(customer)));
+
+            Predicate<Customer> isSimilar = candidate ->
+                    candidate.getNormalizedEmail().equals(customer.getNormalizedEmail())
+                            || NameKey.of(candidate).equals(NameKey.of(customer));
+            List<Customer> similar = new ArrayList<>();
+            for (String id : ids) {
+                Customer candidate = customers.get(id);
+                if (candidate != null && isSimilar.test(candidate)) {
+                    similar.add(candidate);
+                }
+            }
+            similar.sort(Comparator.comparing(Customer::getId, ID_ORDER));
+            return similar;
+        }
+
+        /**
+         * Log a customer, and then store it, replacing any previous version. Must hold writeLock.
+         * If it can't be logged, nothing changes, so readers never see a write that would be lost on restart.
+         */
+        private void put(Customer customer) {
+            if (log != null) {
+                log.put(customer);
+                writtenSinceSnapshot = true;
+            }
+            Customer previous = customers.put(customer.getId(), customer);
+            if (previous != null) {
+                unindex(previous);
+            }
+            index(customer);
+        }
+
+        private void index(Customer customer) {
+            add(byNormalizedEmail, customer.getNormalizedEmail(), customer.getId());
+            add(byNormalizedName, NameKey.of(customer), customer.getId());
+            if (customer.getBlockingKeys() != null) {
+                for (String blockingKey : customer.getBlockingKeys()) {
+                    add(byBlockingKey, blockingKey, customer.getId());
+                }
+            }
+        }
+
+        private void unindex(Customer customer) {
+            remove(byNormalizedEmail, customer.getNormalizedEmail(), customer.getId());
+            remove(byNormalizedName, NameKey.of(customer), customer.getId());
+            if (customer.getBlockingKeys() != null) {
+                for (String blockingKey : customer.getBlockingKeys()) {
+                    remove(byBlockingKey, blockingKey, customer.getId());
+                }
+            }
+        }
+
+        /**
+         * @return all customers, in the given order, or by id if there is none.
+         */
+        private Collection<Customer> sorted(Sort sort) {
+            if (sort == null) {
+                return customers.values();
+            }
+            List<Customer> sorted = new ArrayList<>(customers.values());
+            Comparator<Customer> comparator = null;
+            for (Sort.Order order : sort) {
+                Comparator<Customer> next = order.getProperty().equals("id") || order.getProperty().equals("_id")
+                        ? Comparator.comparing(Customer::getId, ID_ORDER)
+                        : Comparator.comparing(property(order.getProperty()),
+                                Comparator.nullsFirst(Comparator.<String>naturalOrder()));
+                if (order.getDirection() == Sort.Direction.DESC) {
+                    next = next.reversed();
+                }
+                comparator = comparator == null ? next : comparator.thenComparing(next);
+            }
+            if (comparator != null) {
+                sorted.sort(comparator.thenComparing(Customer::getId, ID_ORDER));
+            }
+            return sorted;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.stephen_rosenthal;
+
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.EnvironmentAware;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * In fast startup mode (fastStartup=true), this application's own components are created when first needed, rather
+ * than all of them before the server starts listening. The rest are created in the background by Readiness, which
+ * reports the server ready once they, and the warmup, are done.
+ *
+ * Components that the web server needs up front, such as filters and interceptors, are still created at startup,
+ * along with what they use. So are application listeners (ex: CustomerTotals): Spring registers each one as it is
+ * created, and creating one in the background while the server publishes an event can deadlock. Spring's and Spring Boot's beans, and the ones defined by @Bean methods (ex: the MongoDB
+ * client), are left as they are.
+ */
+@Component
+public class LazyInitialization implements BeanFactoryPostProcessor, EnvironmentAware {
+
+    private static final String PACKAGE_PREFIX = Main.class.getPackage().getName() + ".";
+
+    private Environment environment;
+
+    @Override
+    public void setEnvironment(Environment environment) {
+        this.environment = environment;
+    }
+
+    @Override
+    public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) {
+        if (!isFastStartup(environment)) {
+            return;
+        }
+        for (String name : beanFactory.getBeanDefinitionNames()) {
+            BeanDefinition definition = beanFactory.getBeanDefinition(name);
+            if (isLazySafe(beanFactory, name, definition)) {
+                definition.setLazyInit(true);
+            }
+        }
+    }
+
+    static boolean isFastStartup(Environment environment) {
+        return environment.getProperty("fastStartup", Boolean.class, false);
+    }
+
+    /**
+     * @return whether the bean is a singleton scanned from this application's package, and not an application listener.
+     */
+    private static boolean isLazySafe(ConfigurableListableBeanFactory beanFactory, String name,
+                                      BeanDefinition definition) {
+        String className = definition.getBeanClassName();
+        return definition.isSingleton() && definition.getRole() == BeanDefinition.ROLE_APPLICATION
+                && className != null && className.startsWith(PACKAGE_PREFIX)
+                && !className.equals(LazyInitialization.class.getName())
+                && !beanFactory.isTypeMatch(name, ApplicationListener.class);
+    }
+}
@@ -2,12 +2,28 @@ package com.stephen_rosenthal;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.PropertyPlaceholderAutoConfiguration;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.dao.PersistenceExceptionTranslationAutoConfiguration;
+import org.springframework.boot.autoconfigure.data.mongo.MongoRepositoriesAutoConfiguration;
+import org.springframework.boot.autoconfigure.jackson.JacksonAutoConfiguration;
+import org.springframework.boot.autoconfigure.mongo.MongoAutoConfiguration;
+import org.springframework.boot.autoconfigure.mongo.MongoDataAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.DispatcherServletAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.EmbeddedServletContainerAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.ErrorMvcAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.HttpEncodingAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.HttpMessageConvertersAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.ServerPropertiesAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.WebMvcAutoConfiguration;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.ImportSelector;
+import org.springframework.core.type.AnnotationMetadata;
 
 @Configuration
 @ComponentScan(basePackages = "com.stephen_rosenthal")
-@EnableAutoConfiguration
 public class Main {
 
     /**
@@ -16,4 +32,48 @@ public class Main {
     public static void main(String[] args) {
         SpringApplication.run(Main.class, args);
     }
+
+    /**
+     * Spring Boot's auto-configuration, except for MongoDB: MongoConfiguration sets it up instead, and only if it's the
+     * customer store.
+     */
+    @Configuration
+    @ConditionalOnProperty(name = "fastStartup", havingValue = "false", matchIfMissing = true)
+    @EnableAutoConfiguration(exclude = {MongoAutoConfiguration.class, MongoDataAutoConfiguration.class,
+            MongoRepositoriesAutoConfiguration.class})
+    static class FullAutoConfiguration {
+    }
+
+    /**
+     * In fast startup mode, only the auto-configuration this application uses, in the order Spring Boot would apply
+     * it, rather than evaluating every candidate on the classpath at startup (JMX, multipart, web sockets, Spring Data
+     * web support, ...). Anything on the classpath that the application starts depending on has to be added here.
+     */
+    @Configuration
+    @ConditionalOnProperty(name = "fastStartup", havingValue = "true")
+    @Import(AutoConfiguration.class)
+    static class FastStartupAutoConfiguration {
+    }
+
+    /**
+     * Imports the auto-configuration by name, as @EnableAutoConfiguration does, so that its conditions are read
+     * without loading the classes they check for.
+     */
+    static class AutoConfiguration implements ImportSelector {
+
+        @Override
+        public String[] selectImports(AnnotationMetadata importingClassMetadata) {
+            return new String[]{
+                    PropertyPlaceholderAutoConfiguration.class.getName(),
+                    EmbeddedServletContainerAutoConfiguration.class.getName(),
+                    DispatcherServletAutoConfiguration.class.getName(),
+                    ServerPropertiesAutoConfiguration.class.getName(),
+                    JacksonAutoConfiguration.class.getName(),
+                    HttpMessageConvertersAutoConfiguration.class.getName(),
+                    HttpEncodingAutoConfiguration.class.getName(),
+                    ErrorMvcAutoConfiguration.class.getName(),
+                    WebMvcAutoConfiguration.class.getName(),
+                    PersistenceExceptionTranslationAutoConfiguration.class.getName()};
+        }
+    }
 }
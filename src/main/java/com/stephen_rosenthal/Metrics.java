@@ -0,0 +1,239 @@
+package com.stephen_rosenthal;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency, count, error, and size metrics for HTTP requests (by endpoint and by tenant), repository calls, and JSON
+ * conversion.
+ * Comparing them shows where the time for a slow endpoint goes: the database, Jackson, or the rest of the request.
+ *
+ * Recording is wait-free and does not allocate: values go into HdrHistogram Recorders with a fixed range,
+ * and counts into LongAdders. Reading the metrics moves the values recorded since the last read into
+ * a running total, so quantiles cover the time since the server started.
+ */
+@Component
+public class Metrics {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    // Longest duration that can be told apart from the others; longer ones are recorded as this
+    private static final long MAX_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    // Largest payload that can be told apart from the others
+    private static final long MAX_BYTES = 1L << 30;
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final Family requests = new Family("customers_http_request_seconds",
+            "Time to handle HTTP requests, including writing the response", "endpoint", MAX_NANOS, true);
+    private final Family tenantRequests = new Family("customers_tenant_http_request_seconds",
+            "Time to handle HTTP requests for each tenant, including writing the response", "tenant", MAX_NANOS, true);
+    private final Family requestSizes = new Family("customers_http_request_bytes",
+            "Size of HTTP request bodies with a Content-Length", "endpoint", MAX_BYTES, false);
+    private final Family responseSizes = new Family("customers_http_response_bytes",
+            "Size of HTTP response bodies", "endpoint", MAX_BYTES, false);
+    private final Family repositoryCalls = new Family("customers_repository_call_seconds",
+            "Time spent in CustomerRepository methods, including mapping documents", "method", MAX_NANOS, true);
+    private final Family jsonConversions = new Family("customers_json_seconds",
+            "Time spent reading request bodies and writing response bodies with Jackson", "operation", MAX_NANOS, true);
+
+    /**
+     * @param endpoint name of the handler method, or "unmapped".
+     */
+    public Summary getRequests(String endpoint) {
+        return requests.get(endpoint);
+    }
+
+    /**
+     * @param tenant tenant of the request (see TenantRouting).
+     */
+    public Summary getTenantRequests(String tenant) {
+        return tenantRequests.get(tenant);
+    }
+
+    public Summary getRequestSizes(String endpoint) {
+        return requestSizes.get(endpoint);
+    }
+
+    public Summary getResponseSizes(String endpoint) {
+        return responseSizes.get(endpoint);
+    }
+
+    /**
+     * @param method name of the CustomerRepository method.
+     */
+    public Summary getRepositoryCalls(String method) {
+        return repositoryCalls.get(method);
+    }
+
+    /**
+     * @param operation "read" or "write" for JSON, with a suffix for the binary formats, ex: "read_smile".
+     */
+    public Summary getJsonConversions(String operation) {
+        return jsonConversions.get(operation);
+    }
+
+    /**
+     * Write all of the metrics in the Prometheus text format.
+     */
+    public void write(StringBuilder out) {
+        requests.write(out);
+        tenantRequests.write(out);
+        requestSizes.write(out);
+        responseSizes.write(out);
+        repositoryCalls.write(out);
+        jsonConversions.write(out);
+    }
+
+    /**
+     * Write a single value in the Prometheus text format.
+     * @param type "counter" or "gauge".
+     */
+    public static void writeValue(StringBuilder out, String name, String help, String type, double value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Write a value for each value of a label in the Prometheus text format.
+     * @param type "counter" or "gauge".
+     */
+    public static void writeValues(StringBuilder out, String name, String help, String type, String label,
+                                   Map<String, ? extends Number> values) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        for (Map.Entry<String, ? extends Number> value : values.entrySet()) {
+            out.append(name).append('{').append(label).append("=\"").append(escape(value.getKey())).append("\"} ")
+                    .append(value.getValue()).append('\n');
+        }
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Distribution of a value (ex: duration in nanoseconds), along with the number of errors.
+     */
+    public static class Summary {
+        private final long maxValue;
+        private final Recorder recorder;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        // Guarded by this; only used when reading
+        private final Histogram total;
+        private Histogram interval;
+
+        Summary(long maxValue) {
+            this.maxValue = maxValue;
+            this.recorder = new Recorder(1, maxValue, 2);
+            this.total = new Histogram(1, maxValue, 2);
+        }
+
+        public void record(long value) {
+            recorder.recordValue(Math.max(1, Math.min(value, maxValue)));
+            count.increment();
+            sum.add(value);
+        }
+
+        public void recordError() {
+            errors.increment();
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        /**
+         * @return the value at a quantile in range [0, 1], over everything recorded so far.
+         */
+        public synchronized long getValueAtQuantile(double quantile) {
+            interval = recorder.getIntervalHistogram(interval);
+            total.add(interval);
+            return total.getValueAtPercentile(quantile * 100);
+        }
+    }
+
+    /**
+     * Summaries with the same name, told apart by the value of one label.
+     * Summaries are created on first use and never removed, so after warming up, finding one is a plain get().
+     */
+    private static class Family {
+        private final String name;
+        private final String help;
+        private final String label;
+        private final long maxValue;
+        private final boolean nanos; // Written in seconds
+        private final ConcurrentMap<String, Summary> summaries = new ConcurrentHashMap<>();
+
+        Family(String name, String help, String label, long maxValue, boolean nanos) {
+            this.name = name;
+            this.help = help;
+            this.label = label;
+            this.maxValue = maxValue;
+            this.nanos = nanos;
+        }
+
+        Summary get(String labelValue) {
+            Summary summary = summaries.get(labelValue);
+            if (summary == null) {
+                Summary created = new Summary(maxValue);
+                summary = summaries.putIfAbsent(labelValue, created);
+                if (summary == null) {
+                    summary = created;
+                }
+            }
+            return summary;
+        }
+
+        void write(StringBuilder out) {
+            Map<String, Summary> sorted = new TreeMap<>(summaries);
+            if (sorted.isEmpty()) {
+                return;
+            }
+
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" summary\n");
+            for (Map.Entry<String, Summary> entry : sorted.entrySet()) {
+                String labels = label + "=\"" + escape(entry.getKey()) + '"';
+                Summary summary = entry.getValue();
+                for (double quantile : QUANTILES) {
+                    out.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                            .append(scale(summary.getValueAtQuantile(quantile))).append('\n');
+                }
+                out.append(name).append("_sum{").append(labels).append("} ").append(scale(summary.sum.sum())).append('\n');
+                out.append(name).append("_count{").append(labels).append("} ").append(summary.getCount()).append('\n');
+            }
+
+            if (nanos) {
+                String errorsName = name.substring(0, name.length() - "_seconds".length()) + "_errors_total";
+                out.append("# HELP ").append(errorsName).append(" Number of failures\n");
+                out.append("# TYPE ").append(errorsName).append(" counter\n");
+                for (Map.Entry<String, Summary> entry : sorted.entrySet()) {
+                    out.append(errorsName).append('{').append(label).append("=\"").append(escape(entry.getKey()))
+                            .append("\"} ").append(entry.getValue().getErrors()).append('\n');
+                }
+            }
+        }
+
+        private double scale(long value) {
+            return nanos ? value / NANOS_PER_SECOND : value;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.stephen_rosenthal;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Instruments Spring MVC and the customer repository for Metrics:
+ * tags each request with its handler method for MetricsFilter, times Jackson, and times repository calls.
+ * Also adds the converters for the binary formats (see BinaryFormats), which are timed the same way as JSON.
+ */
+@Configuration
+public class MetricsConfiguration extends WebMvcConfigurerAdapter {
+
+    @Autowired
+    private Metrics metrics;
+
+    @Autowired
+    private BinaryFormats binaryFormats;
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new HandlerInterceptorAdapter() {
+            @Override
+            public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+                if (handler instanceof HandlerMethod) {
+                    request.setAttribute(MetricsFilter.ENDPOINT_ATTRIBUTE, ((HandlerMethod) handler).getMethod().getName());
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Replace the Jackson converter set up by Spring Boot with one that records how long it takes,
+     * and add one for each binary format right after it, so that JSON is preferred when the client accepts either
+     */
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        for (int i = 0; i < converters.size(); i++) {
+            if (converters.get(i) instanceof MappingJackson2HttpMessageConverter) {
+                ObjectMapper objectMapper = ((MappingJackson2HttpMessageConverter) converters.get(i)).getObjectMapper();
+                converters.set(i, new TimedJacksonConverter(objectMapper, metrics, null, ""));
+                for (Map.Entry<MediaType, ObjectMapper> format : binaryFormats.getObjectMappers().entrySet()) {
+                    String suffix = "_" + format.getKey().getSubtype().replace("x-jackson-", "");
+                    converters.add(++i, new TimedJacksonConverter(format.getValue(), metrics, format.getKey(), suffix));
+                }
+            }
+        }
+    }
+
+    /**
+     * Wrap the customer repository in a proxy that records the time and failures of each call.
+     * Static, so that post-processing beans doesn't wait for this configuration class.
+     */
+    @Bean
+    public static BeanPostProcessor repositoryMetricsPostProcessor(final Metrics metrics) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessBeforeInitialization(Object bean, String beanName) {
+                return bean;
+            }
+
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (!(bean instanceof CustomerRepository)) {
+                    return bean;
+                }
+                ProxyFactory proxyFactory = new ProxyFactory();
+                proxyFactory.setTarget(bean);
+                proxyFactory.setInterfaces(CustomerRepository.class);
+                proxyFactory.addAdvice((MethodInterceptor) invocation -> {
+                    Metrics.Summary calls = metrics.getRepositoryCalls(invocation.getMethod().getName());
+                    long start = System.nanoTime();
+                    try {
+                        return invocation.proceed();
+                    } catch (Throwable t) {
+                        calls.recordError();
+                        throw t;
+                    } finally {
+                        calls.record(System.nanoTime() - start);
+                    }
+                });
+                return proxyFactory.getProxy();
+            }
+        };
+    }
+
+    /**
+     * Records the time to read and write JSON bodies, or bodies in one of the binary formats.
+     * Writing includes copying into the response buffer, which may block on the client for large responses.
+     */
+    private static class TimedJacksonConverter extends MappingJackson2HttpMessageConverter {
+        private final Metrics.Summary reads;
+        private final Metrics.Summary writes;
+
+        /**
+         * @param mediaType the binary format, or null for JSON.
+         * @param suffix added to the operation names in the metrics, ex: "_smile" for "read_smile".
+         */
+        TimedJacksonConverter(ObjectMapper objectMapper, Metrics metrics, MediaType mediaType, String suffix) {
+            super(objectMapper);
+            if (mediaType != null) {
+                setSupportedMediaTypes(Collections.singletonList(mediaType));
+            }
+            this.reads = metrics.getJsonConversions("read" + suffix);
+            this.writes = metrics.getJsonConversions("write" + suffix);
+        }
+
+        @Override
+        public Object read(Type type, Class<?> contextClass, HttpInputMessage inputMessage) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.read(type, contextClass, inputMessage);
+            } catch (IOException | RuntimeException e) {
+                reads.recordError();
+                throw e;
+            } finally {
+                reads.record(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        protected Object readInternal(Class<?> clazz, HttpInputMessage inputMessage) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.readInternal(clazz, inputMessage);
+            } catch (IOException | RuntimeException e) {
+                reads.recordError();
+                throw e;
+            } finally {
+                reads.record(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        protected void writeInternal(Object object, HttpOutputMessage outputMessage) throws IOException {
+            long start = System.nanoTime();
+            try {
+                super.writeInternal(object, outputMessage);
+            } catch (IOException | RuntimeException e) {
+                writes.recordError();
+                throw e;
+            } finally {
+                writes.record(System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.stephen_rosenthal;
+
+import com.google.common.cache.CacheStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Metrics for monitoring, in the Prometheus text format
+ */
+@Controller
+public class MetricsController {
+
+    // Connection pools of the client created by MongoConfiguration, which the driver registers as MBeans
+    private static final String MONGO_POOLS = "org.mongodb.driver:type=ConnectionPool,description=customers,*";
+
+    @Autowired
+    private Metrics metrics;
+
+    @Autowired
+    private CustomerCache customerCache;
+
+    @Autowired
+    private CustomerRequestExecutor requestExecutor;
+
+    @Autowired
+    private CustomerGroupCommitter groupCommitter;
+
+    @Autowired
+    private AdmissionControl admissionControl;
+
+    @Autowired
+    private CustomerChangeFeed changeFeed;
+
+    /**
+     * Latency quantiles, counts, errors, and payload sizes by endpoint and repository method,
+     * along with customer cache, request executor, group commit, admission control, change feed,
+     * and MongoDB connection pool statistics.
+     * All values are since the server started.
+     */
+    @RequestMapping(value = "/metrics", method = RequestMethod.GET, produces = "text/plain;version=0.0.4")
+    @ResponseBody
+    public String getMetrics() {
+        StringBuilder out = new StringBuilder();
+        metrics.write(out);
+
+        CacheStats stats = customerCache.getStats();
+        Metrics.writeValue(out, "customers_cache_size", "Number of customers in the cache", "gauge",
+                customerCache.size());
+        Metrics.writeValue(out, "customers_cache_hits_total", "Number of cache lookups that found a customer", "counter",
+                stats.hitCount());
+        Metrics.writeValue(out, "customers_cache_misses_total", "Number of cache lookups that read the database",
+                "counter", stats.missCount());
+        Metrics.writeValue(out, "customers_cache_evictions_total", "Number of customers evicted from the cache",
+                "counter", stats.evictionCount());
+
+        if (requestExecutor.isAsync()) {
+            Metrics.writeValue(out, "customers_executor_queue_size", "Number of requests waiting for a thread", "gauge",
+                    requestExecutor.getQueueSize());
+            Metrics.writeValue(out, "customers_executor_active_threads", "Number of threads running requests", "gauge",
+                    requestExecutor.getActiveCount());
+            Metrics.writeValue(out, "customers_executor_rejected_total",
+                    "Number of requests turned away because the queue was full", "counter",
+                    requestExecutor.getRejected());
+            Metrics.writeValue(out, "customers_executor_timeouts_total",
+                    "Number of requests that timed out before their work finished", "counter",
+                    requestExecutor.getTimeouts());
+        }
+        if (groupCommitter.isEnabled()) {
+            Metrics.writeValue(out, "customers_group_commit_queue_size",
+                    "Number of new customers waiting to be written", "gauge", groupCommitter.getQueueSize());
+            Metrics.writeValue(out, "customers_group_commit_batches_total",
+                    "Number of bulk inserts of new customers", "counter", groupCommitter.getBatches());
+            Metrics.writeValue(out, "customers_group_commit_inserted_total",
+                    "Number of new customers written by bulk inserts", "counter", groupCommitter.getInserted());
+        }
+        if (admissionControl.isEnabled()) {
+            writeAdmissionLimits(out);
+        }
+        Metrics.writeValue(out, "customers_changes_recorded_total",
+                "Number of customer changes recorded in the change feed", "counter", changeFeed.getRecorded());
+        Metrics.writeValue(out, "customers_changes_failures_total",
+                "Number of customer changes written but not recorded in the change feed", "counter",
+                changeFeed.getFailures());
+        Metrics.writeValue(out, "customers_changes_waiting",
+                "Number of change feed requests waiting for a change", "gauge", changeFeed.getWaiting());
+        writeMongoPools(out);
+        return out.toString();
+    }
+
+    private void writeAdmissionLimits(StringBuilder out) {
+        Map<String, Integer> limits = new TreeMap<>();
+        Map<String, Integer> inFlight = new TreeMap<>();
+        Map<String, Long> rejected = new TreeMap<>();
+        for (Map.Entry<Admission.Budget, AdaptiveLimit> limit : admissionControl.getLimits().entrySet()) {
+            String budget = limit.getKey().name().toLowerCase(Locale.ROOT);
+            limits.put(budget, limit.getValue().getLimit());
+            inFlight.put(budget, limit.getValue().getInFlight());
+            rejected.put(budget, limit.getValue().getRejected());
+        }
+        Metrics.writeValues(out, "customers_admission_limit", "Current limit on requests in flight for a budget",
+                "gauge", "budget", limits);
+        Metrics.writeValues(out, "customers_admission_in_flight", "Number of admitted requests in flight for a budget",
+                "gauge", "budget", inFlight);
+        Metrics.writeValues(out, "customers_admission_rejected_total",
+                "Number of requests turned away because a budget was full", "counter", "budget", rejected);
+    }
+
+    private static void writeMongoPools(StringBuilder out) {
+        Map<String, Integer> sizes = new TreeMap<>();
+        Map<String, Integer> maxSizes = new TreeMap<>();
+        Map<String, Integer> checkedOut = new TreeMap<>();
+        Map<String, Integer> waitQueueSizes = new TreeMap<>();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (ObjectName pool : server.queryNames(new ObjectName(MONGO_POOLS), null)) {
+                String host = pool.getKeyProperty("host").replace("%3A", ":") + ':' + pool.getKeyProperty("port");
+                try {
+                    sizes.put(host, (Integer) server.getAttribute(pool, "Size"));
+                    maxSizes.put(host, (Integer) server.getAttribute(pool, "MaxSize"));
+                    checkedOut.put(host, (Integer) server.getAttribute(pool, "CheckedOutCount"));
+                    waitQueueSizes.put(host, (Integer) server.getAttribute(pool, "WaitQueueSize"));
+                } catch (JMException e) {
+                    // The pool closed while it was being read
+                }
+            }
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalStateException(e);
+        }
+
+        Metrics.writeValues(out, "customers_mongo_pool_connections", "Number of open connections to a MongoDB host",
+                "gauge", "host", sizes);
+        Metrics.writeValues(out, "customers_mongo_pool_max_connections", "Maximum connections to a MongoDB host",
+                "gauge", "host", maxSizes);
+        Metrics.writeValues(out, "customers_mongo_pool_checked_out", "Number of connections to a MongoDB host in use",
+                "gauge", "host", checkedOut);
+        Metrics.writeValues(out, "customers_mongo_pool_wait_queue_size",
+                "Number of threads waiting for a connection to a MongoDB host", "gauge", "host", waitQueueSizes);
+    }
+}
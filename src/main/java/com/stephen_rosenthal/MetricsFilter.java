@@ -0,0 +1,166 @@
+package com.stephen_rosenthal;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+
+/**
+ * Records the time, status, and payload sizes of each request, by the name of the handler method, and the time and
+ * status by tenant.
+ * Runs before any other filter, so the time includes everything but the container's own parsing and I/O.
+ * For asynchronous requests, the time runs until the response is complete.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class MetricsFilter extends OncePerRequestFilter {
+
+    /**
+     * Request attribute with the name of the handler method, set by MetricsConfiguration's interceptor
+     */
+    public static final String ENDPOINT_ATTRIBUTE = MetricsFilter.class.getName() + ".endpoint";
+
+    /**
+     * Request attribute with the tenant of the request, set by TenantRouting's interceptor
+     */
+    public static final String TENANT_ATTRIBUTE = MetricsFilter.class.getName() + ".tenant";
+
+    // Endpoint for requests that did not reach a handler (ex: 404s)
+    private static final String UNMAPPED = "unmapped";
+
+    @Autowired
+    private Metrics metrics;
+
+    @Override
+    protected void doFilterInternal(final HttpServletRequest request, final HttpServletResponse response,
+                                    FilterChain chain) throws ServletException, IOException {
+        final long start = System.nanoTime();
+        final CountingResponse countingResponse = new CountingResponse(response);
+        boolean failed = true;
+        try {
+            chain.doFilter(request, countingResponse);
+            failed = false;
+        } finally {
+            if (!failed && request.isAsyncStarted()) {
+                // The response is written later, on another dispatch (which this filter skips)
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    private boolean asyncFailed;
+
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        record(request, response, countingResponse, start, asyncFailed);
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                        asyncFailed = true;
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                        asyncFailed = true;
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                    }
+                });
+            } else {
+                record(request, response, countingResponse, start, failed);
+            }
+        }
+    }
+
+    private void record(HttpServletRequest request, HttpServletResponse response, CountingResponse countingResponse,
+                        long start, boolean failed) {
+        Object endpoint = request.getAttribute(ENDPOINT_ATTRIBUTE);
+        String name = endpoint != null ? (String) endpoint : UNMAPPED;
+
+        long nanos = System.nanoTime() - start;
+        boolean error = failed || response.getStatus() >= 500;
+        Metrics.Summary requests = metrics.getRequests(name);
+        requests.record(nanos);
+        if (error) {
+            requests.recordError();
+        }
+        Object tenant = request.getAttribute(TENANT_ATTRIBUTE);
+        if (tenant != null) {
+            Metrics.Summary tenantRequests = metrics.getTenantRequests((String) tenant);
+            tenantRequests.record(nanos);
+            if (error) {
+                tenantRequests.recordError();
+            }
+        }
+        long requestSize = request.getContentLengthLong();
+        if (requestSize >= 0) {
+            metrics.getRequestSizes(name).record(requestSize);
+        }
+        metrics.getResponseSizes(name).record(countingResponse.bytesWritten);
+    }
+
+    /**
+     * Counts the bytes written to the response's output stream. Bytes written with getWriter()
+     * (only used by the container's error pages) are not counted.
+     */
+    private static class CountingResponse extends HttpServletResponseWrapper {
+        private long bytesWritten;
+        private ServletOutputStream outputStream;
+
+        CountingResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (outputStream == null) {
+                final ServletOutputStream delegate = super.getOutputStream();
+                outputStream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        delegate.write(b);
+                        bytesWritten++;
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        delegate.write(b, off, len);
+                        bytesWritten += len;
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        delegate.flush();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        delegate.close();
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return delegate.isReady();
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener writeListener) {
+                        delegate.setWriteListener(writeListener);
+                    }
+                };
+            }
+            return outputStream;
+        }
+    }
+}
@@ -1,23 +1,184 @@
 package com.stephen_rosenthal;
 
+import com.google.common.base.Splitter;
+import com.google.common.net.HostAndPort;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 import org.springframework.data.mongodb.MongoDbFactory;
-import org.springframework.data.mongodb.core.SimpleMongoDbFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.DefaultDbRefResolver;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Configuration for the connection to MongoDB.
+ *
+ * mongoHostName may list several hosts, ex: "db1:27017,db2:27017,db3:27017", to connect to a replica set;
+ * hosts without a port use mongoPort. Writes and most reads go to the primary (or as set by mongoReadPreference),
+ * but listing, similar-customer, and export reads use listMongoTemplate, which by default reads from secondaries.
+ * Those reads may be slightly behind the latest writes.
+ *
+ * Each tenant's customers are in their own collection; tenants listed in isolatedTenants (comma-separated) get a
+ * database of their own as well (see TenantMongoDbFactory).
+ *
+ * Used unless customerStore=memory (see InMemoryCustomerRepository), so Spring Boot's own MongoDB configuration is
+ * turned off in Main, and the beans it would create are here instead.
  */
 @Configuration
+@ConditionalOnProperty(name = "customerStore", havingValue = "mongo", matchIfMissing = true)
+@EnableMongoRepositories
 public class MongoConfiguration {
 
+    @Value("${mongoHostName}")
+    private String hostName;
+
+    @Value("${mongoPort}")
+    private int port;
+
+    @Value("${mongoDatabaseName}")
+    private String databaseName;
+
+    // If set, only connect to members of this replica set
+    @Value("${mongoReplicaSet:}")
+    private String replicaSet;
+
+    @Value("${mongoConnectionsPerHost:100}")
+    private int connectionsPerHost;
+
+    @Value("${mongoMinConnectionsPerHost:0}")
+    private int minConnectionsPerHost;
+
+    // Requests that can wait for a connection to each host, as a multiple of mongoConnectionsPerHost
+    @Value("${mongoWaitQueueMultiplier:5}")
+    private int waitQueueMultiplier;
+
+    // Time to wait for a connection before failing
+    @Value("${mongoMaxWaitTimeMillis:2000}")
+    private int maxWaitTimeMillis;
+
+    @Value("${mongoConnectTimeoutMillis:5000}")
+    private int connectTimeoutMillis;
+
+    // Time to wait for a response from the database; 0 waits forever
+    @Value("${mongoSocketTimeoutMillis:30000}")
+    private int socketTimeoutMillis;
+
+    // A WriteConcern constant, ex: ACKNOWLEDGED, MAJORITY
+    @Value("${mongoWriteConcern:ACKNOWLEDGED}")
+    private String writeConcern;
+
+    // A ReadPreference name, ex: primary, primaryPreferred, secondary, secondaryPreferred, nearest
+    @Value("${mongoReadPreference:primary}")
+    private String readPreference;
+
+    @Value("${mongoListReadPreference:secondaryPreferred}")
+    private String listReadPreference;
+
+    // Tenants with a database of their own, instead of a collection in mongoDatabaseName
+    @Value("${isolatedTenants:}")
+    private String isolatedTenants;
+
+    @Bean(destroyMethod = "close")
+    public MongoClient mongoClient() throws UnknownHostException {
+        MongoClientOptions.Builder options = MongoClientOptions.builder()
+                .description("customers")
+                .connectionsPerHost(connectionsPerHost)
+                .minConnectionsPerHost(minConnectionsPerHost)
+                .threadsAllowedToBlockForConnectionMultiplier(waitQueueMultiplier)
+                .maxWaitTime(maxWaitTimeMillis)
+                .connectTimeout(connectTimeoutMillis)
+                .socketTimeout(socketTimeoutMillis)
+                .writeConcern(getWriteConcern(writeConcern))
+                .readPreference(ReadPreference.valueOf(readPreference));
+        if (!replicaSet.isEmpty()) {
+            options.requiredReplicaSetName(replicaSet);
+        }
+
+        List<ServerAddress> addresses = getServerAddresses(hostName, port);
+        if (addresses.size() == 1 && replicaSet.isEmpty()) {
+            // A single server, rather than a replica set with one seed
+            return new MongoClient(addresses.get(0), options.build());
+        }
+        return new MongoClient(addresses, options.build());
+    }
+
     @Bean
-    public MongoDbFactory mongoDbFactory(
-            @Value("${mongoHostName}") String hostName,
-            @Value("${mongoPort}") int port,
-            @Value("${mongoDatabaseName}") String databaseName) throws Exception {
-        return new SimpleMongoDbFactory(new MongoClient(hostName, port), databaseName);
+    public TenantMongoDbFactory mongoDbFactory(MongoClient mongoClient) {
+        return new TenantMongoDbFactory(mongoClient, databaseName, TenantRouting.parseTenants(isolatedTenants));
+    }
+
+    @Bean
+    public MongoMappingContext mongoMappingContext() {
+        return new MongoMappingContext();
+    }
+
+    @Bean
+    public MappingMongoConverter mappingMongoConverter(MongoDbFactory mongoDbFactory,
+                                                       MongoMappingContext mongoMappingContext) {
+        return new MappingMongoConverter(new DefaultDbRefResolver(mongoDbFactory), mongoMappingContext);
+    }
+
+    /**
+     * For writes, and reads that must see them. Spring Data repositories use this one.
+     */
+    @Bean
+    @Primary
+    public MongoTemplate mongoTemplate(MongoDbFactory mongoDbFactory, MongoConverter mongoConverter) {
+        return new MongoTemplate(mongoDbFactory, mongoConverter);
+    }
+
+    /**
+     * For listing and exporting customers, which are the bulk of reads, and can tolerate slightly stale data.
+     */
+    @Bean
+    public MongoTemplate listMongoTemplate(MongoDbFactory mongoDbFactory, MongoConverter mongoConverter) {
+        MongoTemplate mongoTemplate = new MongoTemplate(mongoDbFactory, mongoConverter);
+        mongoTemplate.setReadPreference(listReadPreference());
+        return mongoTemplate;
+    }
+
+    /**
+     * Read preference of listMongoTemplate, for reads that bypass it with the driver's own cursors.
+     */
+    @Bean
+    public ReadPreference listReadPreference() {
+        return ReadPreference.valueOf(listReadPreference);
+    }
+
+    /**
+     * @param hostNames comma-separated hosts, each with an optional port, ex: "db1:27017,db2".
+     */
+    static List<ServerAddress> getServerAddresses(String hostNames, int defaultPort) throws UnknownHostException {
+        List<ServerAddress> addresses = new ArrayList<>();
+        for (String hostName : Splitter.on(',').trimResults().omitEmptyStrings().split(hostNames)) {
+            HostAndPort host = HostAndPort.fromString(hostName).withDefaultPort(defaultPort);
+            addresses.add(new ServerAddress(host.getHostText(), host.getPort()));
+        }
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("No MongoDB hosts in '" + hostNames + "'");
+        }
+        return addresses;
+    }
+
+    private static WriteConcern getWriteConcern(String name) {
+        WriteConcern writeConcern = WriteConcern.valueOf(name);
+        if (writeConcern == null) {
+            throw new IllegalArgumentException("Unknown write concern: " + name);
+        }
+        return writeConcern;
     }
 }
@@ -0,0 +1,238 @@
+package com.stephen_rosenthal;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.CommandFailureException;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Change feed in a capped collection, customer_changes, in the shared database (see TenantMongoDbFactory), which
+ * every node tails to follow the changes made by the others.
+ *
+ * Changes are numbered from a counter document, incremented with findAndModify, and stored with the number as their
+ * _id, so readers page through them with the _id index. Two nodes may insert their changes out of order, so a reader
+ * that finds a number missing stops there, unless the change after it is older than changeFeedGapMillis,
+ * in which case the missing change was lost, and is skipped.
+ *
+ * The collection is capped at changeFeedMaxChanges changes; MongoDB drops the oldest as new ones are inserted.
+ */
+@Component
+@ConditionalOnProperty(name = "customerStore", havingValue = "mongo", matchIfMissing = true)
+public class MongoCustomerChangeFeed extends CustomerChangeFeed {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MongoCustomerChangeFeed.class);
+
+    private static final String COLLECTION_NAME = "customer_changes";
+    private static final String COUNTERS_COLLECTION_NAME = "counters";
+
+    // Room for each change in the capped collection, which is also limited to changeFeedMaxChanges documents
+    private static final long BYTES_PER_CHANGE = 256;
+
+    // Most changes read per query, including other tenants' changes that are skipped
+    private static final int SCAN_LIMIT = 1000;
+
+    // Time between checks for a first change to tail, since a tailable cursor without results is closed right away
+    private static final long TAIL_RETRY_MILLIS = 100;
+
+    // Field names are short, to keep the changes compact
+    private static final String TENANT = "t";
+    private static final String ORIGIN = "o";
+    private static final String TYPE = "op";
+    private static final String CUSTOMER_ID = "c";
+    private static final String VERSION = "v";
+    private static final String TIME = "ts";
+    private static final String SEQUENCE = "sequence";
+
+    @Autowired
+    private TenantMongoDbFactory mongoDbFactory;
+
+    // Time for a change with an earlier number to be inserted, before readers skip it
+    @Value("${changeFeedGapMillis:2000}")
+    private long gapMillis;
+
+    private DBCollection changes;
+    private DBCollection counters;
+
+    private Thread tailer;
+    private volatile boolean running;
+    private volatile DBCursor tailCursor;
+
+    @PostConstruct
+    @Override
+    public void init() {
+        super.init();
+        DB db = mongoDbFactory.getDb(mongoDbFactory.getDatabaseName(Tenant.DEFAULT));
+        if (!db.collectionExists(COLLECTION_NAME)) {
+            try {
+                db.createCollection(COLLECTION_NAME, new BasicDBObject("capped", true)
+                        .append("size", maxChanges * BYTES_PER_CHANGE).append("max", maxChanges));
+            } catch (CommandFailureException e) {
+                if (!db.collectionExists(COLLECTION_NAME)) {
+                    throw e;
+                } // Otherwise another node created it first
+            }
+        }
+        changes = db.getCollection(COLLECTION_NAME);
+        counters = db.getCollection(COUNTERS_COLLECTION_NAME);
+
+        long after = getLatestSequence();
+        running = true;
+        tailer = new Thread(() -> tail(after), "customer-changes-tail");
+        tailer.setDaemon(true);
+        tailer.start();
+    }
+
+    @PreDestroy
+    @Override
+    public void shutdown() {
+        running = false;
+        tailer.interrupt();
+        DBCursor cursor = tailCursor;
+        if (cursor != null) {
+            cursor.close();
+        }
+        super.shutdown();
+    }
+
+    @Override
+    protected void append(List<CustomerChange> newChanges) {
+        DBObject counter = counters.findAndModify(new BasicDBObject("_id", COLLECTION_NAME), null, null, false,
+                new BasicDBObject("$inc", new BasicDBObject(SEQUENCE, newChanges.size())), true, true);
+        long first = ((Number) counter.get(SEQUENCE)).longValue() - newChanges.size() + 1;
+
+        List<DBObject> documents = new ArrayList<>(newChanges.size());
+        for (int i = 0; i < newChanges.size(); i++) {
+            documents.add(toDocument(newChanges.get(i).withSequence(first + i)));
+        }
+        changes.insert(documents);
+        // Published by the tailer, like other nodes' changes
+    }
+
+    @Override
+    protected Changes read(String tenant, long after, int limit) {
+        List<CustomerChange> found = new ArrayList<>();
+        long last = after;
+        long settled = System.currentTimeMillis() - gapMillis;
+        try (DBCursor cursor = changes.find(new BasicDBObject("_id", new BasicDBObject("$gt", after)))
+                .sort(new BasicDBObject("_id", 1)).limit(SCAN_LIMIT)) {
+            while (cursor.hasNext() && found.size() < limit) {
+                CustomerChange change = fromDocument(cursor.next());
+                if (change.getSequence() != last + 1 && change.getTime().getTime() > settled) {
+                    break; // The missing changes may still be on their way
+                }
+                last = change.getSequence();
+                if (change.getTenant().equals(tenant)) {
+                    found.add(change);
+                }
+            }
+        }
+        return new Changes(found, last);
+    }
+
+    @Override
+    protected long getLatestSequence() {
+        DBObject counter = counters.findOne(new BasicDBObject("_id", COLLECTION_NAME));
+        return counter != null ? ((Number) counter.get(SEQUENCE)).longValue() : 0;
+    }
+
+    @Override
+    protected boolean isKept(long after) {
+        if (after > getLatestSequence()) {
+            return false; // Not a token from this feed
+        }
+        try (DBCursor oldest = changes.find().sort(new BasicDBObject("_id", 1)).limit(1)) {
+            return !oldest.hasNext() || ((Number) oldest.next().get("_id")).longValue() <= after + 1;
+        }
+    }
+
+    /**
+     * Follow the changes after the given sequence, as they are inserted, until shutdown.
+     */
+    private void tail(long after) {
+        long last = after;
+        DBObject query = new BasicDBObject("_id", new BasicDBObject("$gt", last));
+        while (running) {
+            try {
+                query.put("_id", new BasicDBObject("$gt", last));
+                if (changes.findOne(query) == null) {
+                    Thread.sleep(TAIL_RETRY_MILLIS);
+                    continue;
+                }
+                // Reads in insertion order, and waits at the end for more
+                try (DBCursor cursor = changes.find(query)
+                        .addOption(Bytes.QUERYOPTION_TAILABLE).addOption(Bytes.QUERYOPTION_AWAITDATA)) {
+                    tailCursor = cursor;
+                    while (running && cursor.hasNext()) {
+                        CustomerChange change = fromDocument(cursor.next());
+                        last = Math.max(last, change.getSequence());
+                        publish(Collections.singletonList(change));
+                    }
+                } finally {
+                    tailCursor = null;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (MongoException | IllegalStateException e) {
+                if (!running) {
+                    return;
+                }
+                LOG.warn("Lost the customer change feed cursor; reopening it", e);
+                try {
+                    Thread.sleep(TAIL_RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static DBObject toDocument(CustomerChange change) {
+        BasicDBObject document = new BasicDBObject("_id", change.getSequence())
+                .append(TENANT, change.getTenant())
+                .append(ORIGIN, change.getOrigin())
+                .append(TYPE, change.getType().name().substring(0, 1))
+                .append(CUSTOMER_ID, change.getId());
+        if (change.getVersion() != null) {
+            document.append(VERSION, change.getVersion());
+        }
+        return document.append(TIME, change.getTime());
+    }
+
+    private static CustomerChange fromDocument(DBObject document) {
+        Number version = (Number) document.get(VERSION);
+        return new CustomerChange(
+                ((Number) document.get("_id")).longValue(),
+                (String) document.get(TENANT),
+                (String) document.get(ORIGIN),
+                getType((String) document.get(TYPE)),
+                (String) document.get(CUSTOMER_ID),
+                version != null ? version.longValue() : null,
+                (Date) document.get(TIME));
+    }
+
+    private static CustomerChange.Type getType(String code) {
+        for (CustomerChange.Type type : CustomerChange.Type.values()) {
+            if (type.name().startsWith(code)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown change type: " + code);
+    }
+}
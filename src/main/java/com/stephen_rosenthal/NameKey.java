@@ -0,0 +1,53 @@
+package com.stephen_rosenthal;
+
+import java.util.Objects;
+
+/**
+ * A customer's normalized first and last names, as a single value for grouping and lookups.
+ */
+public final class NameKey {
+    private final String normalizedFirstName;
+    private final String normalizedLastName;
+
+    public NameKey(String normalizedFirstName, String normalizedLastName) {
+        Objects.requireNonNull(normalizedFirstName);
+        Objects.requireNonNull(normalizedLastName);
+        this.normalizedFirstName = normalizedFirstName;
+        this.normalizedLastName = normalizedLastName;
+    }
+
+    public static NameKey of(Customer customer) {
+        return new NameKey(customer.getNormalizedFirstName(), customer.getNormalizedLastName());
+    }
+
+    public String getNormalizedFirstName() {
+        return normalizedFirstName;
+    }
+
+    public String getNormalizedLastName() {
+        return normalizedLastName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        NameKey nameKey = (NameKey) o;
+
+        if (!normalizedFirstName.equals(nameKey.normalizedFirstName)) return false;
+        if (!normalizedLastName.equals(nameKey.normalizedLastName)) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(normalizedFirstName, normalizedLastName);
+    }
+
+    @Override
+    public String toString() {
+        return normalizedFirstName + " " + normalizedLastName;
+    }
+}
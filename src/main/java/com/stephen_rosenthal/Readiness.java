@@ -0,0 +1,117 @@
+package com.stephen_rosenthal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import javax.annotation.PreDestroy;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Tells load balancers and orchestrators whether the server is ready for traffic, with GET /ready: 200 OK when it
+ * is, 503 Service Unavailable until then.
+ *
+ * Normally everything is set up before the server starts listening, so it is ready as soon as it answers. In fast
+ * startup mode (fastStartup=true), the server starts listening first, and then, in the background: updates the
+ * MongoDB schema (see CustomerSchema), which is the first time the database is used, creates the components left
+ * for later (see LazyInitialization), and runs the Warmup. It is ready when they are done. If the database can't be
+ * reached, they are retried every startupRetryMillis until it can.
+ */
+@Controller
+public class Readiness implements ApplicationListener<ContextRefreshedEvent> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Readiness.class);
+
+    @Value("${fastStartup:false}")
+    private boolean fastStartup;
+
+    @Value("${startupRetryMillis:5000}")
+    private long retryMillis;
+
+    @Autowired
+    private ConfigurableListableBeanFactory beanFactory;
+
+    @Autowired(required = false) // Only with MongoDB
+    private CustomerSchema customerSchema;
+
+    @Autowired
+    private Warmup warmup;
+
+    private Thread starter;
+    private volatile boolean ready;
+
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        if (!fastStartup) {
+            setReady();
+            return;
+        }
+        if (starter == null) {
+            starter = new Thread(this::start, "startup");
+            starter.setDaemon(true);
+            starter.start();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (starter != null) {
+            starter.interrupt();
+        }
+    }
+
+    @RequestMapping(value = "/ready", method = RequestMethod.GET)
+    public ResponseEntity<Void> getReadiness() {
+        return new ResponseEntity<>(ready ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    private void start() {
+        boolean schemaUpdated = customerSchema == null;
+        while (true) {
+            try {
+                if (!schemaUpdated) {
+                    customerSchema.update();
+                    schemaUpdated = true;
+                }
+                createLazyBeans();
+                break;
+            } catch (RuntimeException e) {
+                LOG.warn("Could not finish starting up; retrying in {} ms", retryMillis, e);
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException interrupted) {
+                    return; // Shutting down
+                }
+            }
+        }
+        warmup.run();
+        setReady();
+    }
+
+    /**
+     * Create the singletons that LazyInitialization left until they are first needed, unless a request already has.
+     */
+    private void createLazyBeans() {
+        for (String name : beanFactory.getBeanDefinitionNames()) {
+            BeanDefinition definition = beanFactory.getBeanDefinition(name);
+            if (definition.isLazyInit() && definition.isSingleton() && !definition.isAbstract()) {
+                beanFactory.getBean(name);
+            }
+        }
+    }
+
+    private void setReady() {
+        ready = true;
+        LOG.info("Ready for requests {} ms after the JVM started", ManagementFactory.getRuntimeMXBean().getUptime());
+    }
+}
@@ -0,0 +1,93 @@
+package com.stephen_rosenthal;
+
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+/**
+ * The tenant (a business or department with its own pool of customers) that the current thread works for.
+ * Each tenant's customers are stored apart from the others' (see TenantRouting), so that listing, counting, and
+ * similar-customer queries only ever touch one tenant's customers.
+ *
+ * The tenant is kept in a thread local, set by TenantRouting from each request, so it doesn't have to be passed
+ * through every repository method. Work handed to another thread must carry it along with run() or call().
+ * Threads that never set one work for the default tenant, which keeps the customers from before tenants existed.
+ */
+public final class Tenant {
+
+    public static final String DEFAULT = "default";
+
+    // Lowercase, so that names are also safe as (case-insensitive) collection, database, and directory names
+    private static final Pattern NAME = Pattern.compile("[a-z0-9][a-z0-9_-]{0,31}");
+
+    private static final String DEFAULT_COLLECTION_NAME = "customer";
+
+    private static final ThreadLocal<String> CURRENT = new ThreadLocal<>();
+
+    private Tenant() {
+    }
+
+    /**
+     * @return the tenant of the current thread.
+     */
+    public static String current() {
+        String tenant = CURRENT.get();
+        return tenant != null ? tenant : DEFAULT;
+    }
+
+    public static boolean isValid(String name) {
+        return name != null && NAME.matcher(name).matches();
+    }
+
+    /**
+     * @return name of the MongoDB collection with the current tenant's customers; used by Customer's @Document.
+     */
+    public static String getCollectionName() {
+        return getCollectionName(current());
+    }
+
+    public static String getCollectionName(String tenant) {
+        return tenant.equals(DEFAULT) ? DEFAULT_COLLECTION_NAME : DEFAULT_COLLECTION_NAME + "_" + tenant;
+    }
+
+    /**
+     * Run work for a tenant on the current thread, then go back to the thread's previous tenant.
+     */
+    public static <T> T call(String tenant, Callable<T> work) throws Exception {
+        String previous = CURRENT.get();
+        CURRENT.set(tenant);
+        try {
+            return work.call();
+        } finally {
+            restore(previous);
+        }
+    }
+
+    public static void run(String tenant, Runnable work) {
+        String previous = CURRENT.get();
+        CURRENT.set(tenant);
+        try {
+            work.run();
+        } finally {
+            restore(previous);
+        }
+    }
+
+    /**
+     * Set the tenant for the rest of a request; see TenantRouting.
+     */
+    static void set(String tenant) {
+        CURRENT.set(tenant);
+    }
+
+    static void clear() {
+        CURRENT.remove();
+    }
+
+    private static void restore(String previous) {
+        if (previous != null) {
+            CURRENT.set(previous);
+        } else {
+            CURRENT.remove();
+        }
+    }
+}
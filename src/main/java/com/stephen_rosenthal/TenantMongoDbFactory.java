@@ -0,0 +1,46 @@
+package com.stephen_rosenthal;
+
+import com.mongodb.DB;
+import com.mongodb.MongoClient;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.mongodb.core.SimpleMongoDbFactory;
+
+import java.util.Set;
+
+/**
+ * Places each tenant's customers in a database: tenants listed in isolatedTenants get a database of their own,
+ * named mongoDatabaseName_tenant, and the rest share mongoDatabaseName. Either way, each tenant has its own collection
+ * (see Tenant), so queries never scan another tenant's customers.
+ *
+ * A database of its own gives a big tenant its own data files and its own lock (MongoDB locks writes by database),
+ * so its load doesn't hold up the others, and in a sharded cluster it can be moved to another shard with movePrimary.
+ * Moving a tenant in or out of isolatedTenants doesn't move its customers; copy its collection to the other database
+ * before restarting with the new placement.
+ */
+public class TenantMongoDbFactory extends SimpleMongoDbFactory {
+
+    private final String databaseName;
+    private final Set<String> isolatedTenants;
+
+    public TenantMongoDbFactory(MongoClient mongoClient, String databaseName, Set<String> isolatedTenants) {
+        super(mongoClient, databaseName);
+        this.databaseName = databaseName;
+        this.isolatedTenants = isolatedTenants;
+    }
+
+    /**
+     * @return the database of the current tenant.
+     */
+    @Override
+    public DB getDb() throws DataAccessException {
+        return getDb(getDatabaseName(Tenant.current()));
+    }
+
+    public String getDatabaseName(String tenant) {
+        return isolatedTenants.contains(tenant) ? databaseName + "_" + tenant : databaseName;
+    }
+
+    public Set<String> getIsolatedTenants() {
+        return isolatedTenants;
+    }
+}
@@ -0,0 +1,117 @@
+package com.stephen_rosenthal;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Set;
+
+/**
+ * Routes each request to its tenant's customers: the tenant named in the X-Tenant header, or the default tenant if
+ * there is none, is set as the current Tenant while the handler runs. Only the default tenant and the tenants
+ * listed in the tenants or isolatedTenants properties may be named; other requests get a 400, so that clients can't
+ * create any number of collections or partitions by making up tenants.
+ *
+ * Where each tenant's customers are kept depends on the store. With MongoDB, each tenant has its own collection,
+ * and big tenants listed in isolatedTenants have a database of their own (see TenantMongoDbFactory). The in-memory
+ * store keeps each tenant in its own partition, with its own indexes, lock, and log.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE) // Before AdmissionControl, so requests it turns away are counted by tenant
+public class TenantRouting extends WebMvcConfigurerAdapter {
+
+    public static final String TENANT_HEADER = "X-Tenant";
+
+    // Comma-separated tenants that requests may name besides the default one; others are turned away
+    @Value("${tenants:}")
+    private String tenants;
+
+    // Tenants with a MongoDB database of their own (see MongoConfiguration), which may also be named
+    @Value("${isolatedTenants:}")
+    private String isolatedTenants;
+
+    @Autowired(required = false) // Only with MongoDB
+    private CustomerSchema customerSchema;
+
+    private Set<String> allowed;
+
+    @PostConstruct
+    public void init() {
+        allowed = ImmutableSet.<String>builder().add(Tenant.DEFAULT)
+                .addAll(parseTenants(tenants)).addAll(parseTenants(isolatedTenants)).build();
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new Interceptor());
+    }
+
+    /**
+     * @param tenants comma-separated tenant names.
+     */
+    static Set<String> parseTenants(String tenants) {
+        ImmutableSet.Builder<String> parsed = ImmutableSet.builder();
+        for (String tenant : Splitter.on(',').trimResults().omitEmptyStrings().split(tenants)) {
+            if (!Tenant.isValid(tenant)) {
+                throw new IllegalArgumentException("Invalid tenant name: " + tenant);
+            }
+            parsed.add(tenant);
+        }
+        return parsed.build();
+    }
+
+    /**
+     * @return the tenant a request names, or null if it may not use that tenant.
+     */
+    String getTenant(HttpServletRequest request) {
+        String tenant = request.getHeader(TENANT_HEADER);
+        if (tenant == null || tenant.isEmpty()) {
+            return Tenant.DEFAULT;
+        }
+        return allowed.contains(tenant) ? tenant : null;
+    }
+
+    /**
+     * Sets the tenant before the handler runs, and clears it once the handler returns. Work the handler hands to
+     * another thread (see CustomerRequestExecutor) carries the tenant along.
+     */
+    private class Interceptor extends HandlerInterceptorAdapter {
+        @Override
+        public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+            String tenant = getTenant(request);
+            if (tenant == null) {
+                response.setStatus(HttpStatus.BAD_REQUEST.value());
+                return false;
+            }
+            if (customerSchema != null) {
+                customerSchema.prepare(tenant);
+            }
+            request.setAttribute(MetricsFilter.TENANT_ATTRIBUTE, tenant);
+            Tenant.set(tenant);
+            return true;
+        }
+
+        @Override
+        public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response,
+                                                   Object handler) {
+            Tenant.clear();
+        }
+
+        @Override
+        public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                    Exception ex) {
+            Tenant.clear();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.stephen_rosenthal;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the code that most requests go through, so that the JIT compiles it before a new instance takes traffic,
+ * rather than during its first requests. That code is email and name normalization with the blocking keys they
+ * feed, fuzzy matching, and encoding and decoding customers and pages as JSON, Smile, and CBOR. Used in fast startup
+ * mode, before the server reports ready (see Readiness). It stops after warmupMillis even if it hasn't done every
+ * iteration, so that it can't hold up readiness for long on a slow or busy machine; the JIT finishes compiling what
+ * is left during the first requests.
+ * Nothing is read from or written to the customer store, and the metrics are not affected.
+ */
+@Component
+public class Warmup {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Warmup.class);
+
+    // Same as the maximum page size for List requests
+    private static final int PAGE_SIZE = 20;
+
+    // Accented letters are escaped, so that they don't depend on the compiler's source encoding
+    private static final String[] FIRST_NAMES = {"William", "Bill", "Catherine", "Kate", "Jos\u00e9", "Zo\u00eb"};
+    private static final String[] LAST_NAMES = {"Smith", "Smyth", "O'Brien", "Garc\u00eda", "van der Berg", "Nguyen"};
+    private static final String[] DOMAINS = {"gmail.com", "googlemail.com", "outlook.com", "example.com"};
+
+    // Enough calls for the hot methods to reach the JIT's optimizing compiler
+    @Value("${warmupIterations:10000}")
+    private int iterations;
+
+    @Value("${warmupMillis:300}")
+    private long maxMillis;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private BinaryFormats binaryFormats;
+
+    /**
+     * @return the number of bytes encoded, so that none of the work can be optimized away.
+     */
+    public long run() {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxMillis);
+        FuzzyMatcher fuzzyMatcher = FuzzyMatcher.getDefault();
+        List<Customer> page = new ArrayList<>(PAGE_SIZE);
+        Customer previous = customer(0);
+        long bytes = 0;
+        int count = 0;
+        try {
+            for (int i = 1; i <= iterations; i++) {
+                Customer customer = customer(i);
+                fuzzyMatcher.score(customer, previous);
+
+                byte[] json = objectMapper.writeValueAsBytes(customer);
+                bytes += json.length + objectMapper.readValue(json, Customer.class).getEmail().length();
+                for (ObjectMapper binaryMapper : binaryFormats.getObjectMappers().values()) {
+                    byte[] binary = binaryMapper.writeValueAsBytes(customer);
+                    bytes += binary.length + binaryMapper.readValue(binary, Customer.class).getEmail().length();
+                }
+
+                page.add(customer);
+                if (page.size() == PAGE_SIZE) {
+                    byte[] pageJson = objectMapper.writeValueAsBytes(
+                            new CustomerPage(page, 10, 0, PAGE_SIZE, true, false, false));
+                    bytes += pageJson.length
+                            + objectMapper.readValue(pageJson, CustomerPage.class).getCustomers().size();
+                    page = new ArrayList<>(PAGE_SIZE);
+                }
+                previous = customer;
+                count = i;
+                // The clock is checked once per page, which costs little next to encoding it
+                if (page.isEmpty() && System.nanoTime() - deadline > 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not encode a customer", e);
+        }
+        LOG.info("Warmed up with {} customers in {} ms", count,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return bytes;
+    }
+
+    /**
+     * @return a customer with a realistic mix of names and emails, including accents, tags, and dots.
+     */
+    private static Customer customer(int i) {
+        String firstName = FIRST_NAMES[i % FIRST_NAMES.length];
+        String lastName = LAST_NAMES[(i / FIRST_NAMES.length) % LAST_NAMES.length];
+        String email = String.format("%s.%s+%d@%s", firstName, lastName.replace(' ', '.'), i,
+                DOMAINS[i % DOMAINS.length]);
+        return new Customer(String.format("%024x", i), email, firstName, lastName);
+    }
+}
@@ -0,0 +1,164 @@
+package com.stephen_rosenthal;
+
+import org.junit.Test;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveLimitTest {
+
+    private static final long TARGET_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    @Test
+    public void rejectsBeyondLimit() {
+        AdaptiveLimit limit = new AdaptiveLimit(2, 1, 10, TARGET_NANOS);
+        assertTrue(limit.tryAcquire());
+        assertTrue(limit.tryAcquire());
+        assertFalse(limit.tryAcquire());
+        assertEquals(1, limit.getRejected());
+
+        limit.release(0, false);
+        assertTrue(limit.tryAcquire());
+    }
+
+    @Test
+    public void shrinksWhenSlowAndGrowsWhenOnTime() {
+        AdaptiveLimit limit = new AdaptiveLimit(10, 1, 10, TARGET_NANOS);
+        limit.tryAcquire();
+        limit.release(TARGET_NANOS * 2, false);
+        assertEquals(9, limit.getLimit());
+
+        // Requests on time, with the limit in use, grow it again
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 9; j++) {
+                limit.tryAcquire();
+            }
+            for (int j = 0; j < 9; j++) {
+                limit.release(0, false);
+            }
+        }
+        assertEquals(10, limit.getLimit());
+    }
+
+    @Test
+    public void shrinksOncePerTarget() {
+        AdaptiveLimit limit = new AdaptiveLimit(10, 1, 10, TimeUnit.MINUTES.toNanos(1));
+        for (int i = 0; i < 5; i++) {
+            limit.tryAcquire();
+            limit.release(0, true);
+        }
+        assertEquals(9, limit.getLimit());
+    }
+
+    @Test
+    public void doesNotGrowWhenIdle() {
+        AdaptiveLimit limit = new AdaptiveLimit(5, 1, 10, TARGET_NANOS);
+        for (int i = 0; i < 100; i++) {
+            limit.tryAcquire();
+            limit.release(0, false);
+        }
+        assertEquals(5, limit.getLimit());
+    }
+
+    /**
+     * Load test: a database that slows down in proportion to the requests it is handling beyond its capacity,
+     * overloaded with many more clients than it can serve on time.
+     * Without a limit, every request is late; with one, the requests served on time stay within 10% of what they are
+     * at capacity. Simulated, with a fake clock, so that the result doesn't depend on the machine running the test.
+     */
+    @Test
+    public void goodputHoldsUnderOverload() {
+        long atCapacity = goodput(true, 16);
+        long overloaded = goodput(true, 128);
+        long unlimited = goodput(false, 128);
+
+        String results = "at capacity: " + atCapacity + ", overloaded: " + overloaded + ", unlimited: " + unlimited;
+        assertTrue(results, atCapacity > 0);
+        assertTrue(results, overloaded >= atCapacity * 0.9);
+        assertTrue(results, unlimited < atCapacity / 10);
+    }
+
+    /**
+     * Simulate clients that each send a request, wait for its response, and send the next, for 1.5 seconds.
+     * Requests turned away are retried a millisecond later.
+     * @param limited whether to admit requests with an AdaptiveLimit.
+     * @return number of requests that finished within the latency objective.
+     */
+    private static long goodput(boolean limited, int clients) {
+        long sloNanos = TimeUnit.MILLISECONDS.toNanos(50);
+        long retryNanos = TimeUnit.MILLISECONDS.toNanos(1);
+        long end = TimeUnit.MILLISECONDS.toNanos(1500);
+
+        long[] now = {0};
+        AdaptiveLimit limit = limited ? new AdaptiveLimit(64, 2, 64, TARGET_NANOS, () -> now[0]) : null;
+        SlowDatabase database = new SlowDatabase();
+        long onTime = 0;
+
+        // Each event is {time, sequence number, latency of the request finishing then, or -1 to send one}
+        PriorityQueue<long[]> events = new PriorityQueue<>(
+                Comparator.comparingLong((long[] event) -> event[0]).thenComparingLong(event -> event[1]));
+        long sequence = 0;
+        for (int i = 0; i < clients; i++) {
+            events.add(new long[] {0, sequence++, -1});
+        }
+        while (!events.isEmpty()) {
+            long[] event = events.poll();
+            now[0] = event[0];
+            if (event[2] >= 0) {
+                long latency = event[2];
+                database.finish();
+                if (latency <= sloNanos) {
+                    onTime++;
+                }
+                if (limit != null) {
+                    limit.release(latency, false);
+                }
+                if (now[0] < end) {
+                    events.add(new long[] {now[0], sequence++, -1});
+                }
+            } else if (limit != null && !limit.tryAcquire()) {
+                if (now[0] + retryNanos < end) {
+                    events.add(new long[] {now[0] + retryNanos, sequence++, -1});
+                }
+            } else {
+                long latency = database.start();
+                if (now[0] + latency <= end) {
+                    events.add(new long[] {now[0] + latency, sequence++, latency});
+                } else {
+                    database.finish(); // Still running at the end
+                    if (limit != null) {
+                        limit.release(latency, false);
+                    }
+                }
+            }
+        }
+        return onTime;
+    }
+
+    /**
+     * Takes 5ms for up to 4 concurrent queries, and proportionally longer for more
+     */
+    private static class SlowDatabase {
+        private static final long BASE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+        private static final int CAPACITY = 4;
+
+        private int concurrent;
+
+        /**
+         * @return how long the query will take, given the queries already running.
+         */
+        long start() {
+            concurrent++;
+            return BASE_NANOS * Math.max(1, (concurrent + CAPACITY - 1) / CAPACITY);
+        }
+
+        void finish() {
+            concurrent--;
+        }
+    }
+}
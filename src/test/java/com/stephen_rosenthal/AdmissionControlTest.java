@@ -0,0 +1,163 @@
+package com.stephen_rosenthal;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.stereotype.Controller;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class AdmissionControlTest {
+
+    private AdmissionControl admissionControl;
+    private TestController controller;
+    private MockMvc mockMvc;
+
+    @Before
+    public void setUp() {
+        admissionControl = new AdmissionControl();
+        ReflectionTestUtils.setField(admissionControl, "enabled", true);
+        for (String budget : new String[] {"cheap", "standard", "expensive", "write", "bulk"}) {
+            ReflectionTestUtils.setField(admissionControl, budget + "MaxConcurrency", 1);
+            ReflectionTestUtils.setField(admissionControl, budget + "LatencyTargetMillis", 60000L);
+        }
+        admissionControl.init();
+
+        Interceptors interceptors = new Interceptors();
+        admissionControl.addInterceptors(interceptors);
+        controller = new TestController();
+        mockMvc = MockMvcBuilders.standaloneSetup(controller)
+                .addInterceptors(interceptors.get().toArray(new HandlerInterceptor[0]))
+                .build();
+    }
+
+    @Test
+    public void rejectsRequestsOverTheLimit() throws Exception {
+        MvcResult first = mockMvc.perform(get("/pending")).andExpect(request().asyncStarted()).andReturn();
+        assertEquals(1, getLimit().getInFlight());
+
+        mockMvc.perform(get("/pending"))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().string("Retry-After", "1"));
+        assertEquals(1, getLimit().getRejected());
+
+        // Uncontrolled handlers are always admitted
+        mockMvc.perform(get("/uncontrolled")).andExpect(status().isOk());
+
+        controller.result.setResult(ResponseEntity.ok("done"));
+        mockMvc.perform(asyncDispatch(first)).andExpect(status().isOk());
+        assertEquals(0, getLimit().getInFlight());
+    }
+
+    @Test
+    public void releasesSynchronousRequests() throws Exception {
+        mockMvc.perform(get("/completed")).andExpect(status().isOk());
+        mockMvc.perform(get("/completed")).andExpect(status().isOk());
+        assertEquals(0, getLimit().getInFlight());
+        assertEquals(0, getLimit().getRejected());
+    }
+
+    @Test
+    public void releasesAsyncRequestsCompletedWithoutDispatch() throws Exception {
+        MvcResult result = mockMvc.perform(get("/pending")).andReturn();
+        assertEquals(1, getLimit().getInFlight());
+
+        result.getRequest().getAsyncContext().complete();
+        assertEquals(0, getLimit().getInFlight());
+        mockMvc.perform(get("/completed")).andExpect(status().isOk());
+    }
+
+    @Test
+    public void releasesAsyncRequestsThatTimeOut() throws Exception {
+        MvcResult result = mockMvc.perform(get("/pending")).andReturn();
+
+        MockAsyncContext asyncContext = (MockAsyncContext) result.getRequest().getAsyncContext();
+        for (AsyncListener listener : asyncContext.getListeners()) {
+            listener.onTimeout(new AsyncEvent(asyncContext));
+        }
+        assertEquals(0, getLimit().getInFlight());
+        mockMvc.perform(get("/completed")).andExpect(status().isOk());
+    }
+
+    @Test
+    public void releasesAsyncRequestsThatFail() throws Exception {
+        MvcResult result = mockMvc.perform(get("/pending")).andReturn();
+
+        MockAsyncContext asyncContext = (MockAsyncContext) result.getRequest().getAsyncContext();
+        for (AsyncListener listener : asyncContext.getListeners()) {
+            listener.onError(new AsyncEvent(asyncContext, new IOException("Connection reset")));
+        }
+        assertEquals(0, getLimit().getInFlight());
+        mockMvc.perform(get("/completed")).andExpect(status().isOk());
+    }
+
+    @Test
+    public void limitsImportsAndExports() {
+        List<String> bulkHandlers = Arrays.asList("importCustomersFromJson", "importCustomersFromCsv", "exportCustomers");
+        int found = 0;
+        for (Method method : CustomersController.class.getMethods()) {
+            if (bulkHandlers.contains(method.getName())) {
+                assertEquals(method.getName(), Admission.Budget.BULK, method.getAnnotation(Admission.class).value());
+                found++;
+            }
+        }
+        assertEquals(bulkHandlers.size(), found);
+    }
+
+    private AdaptiveLimit getLimit() {
+        return admissionControl.getLimits().get(Admission.Budget.CHEAP);
+    }
+
+    /**
+     * Exposes the interceptors that AdmissionControl registers
+     */
+    private static class Interceptors extends InterceptorRegistry {
+        List<Object> get() {
+            return getInterceptors();
+        }
+    }
+
+    @Controller
+    static class TestController {
+        private DeferredResult<ResponseEntity<String>> result;
+
+        @RequestMapping("/pending")
+        @Admission(Admission.Budget.CHEAP)
+        public DeferredResult<ResponseEntity<String>> pending() {
+            result = new DeferredResult<>();
+            return result;
+        }
+
+        @RequestMapping("/completed")
+        @Admission(Admission.Budget.CHEAP)
+        public ResponseEntity<String> completed() {
+            return ResponseEntity.ok("done");
+        }
+
+        @RequestMapping("/uncontrolled")
+        public ResponseEntity<String> uncontrolled() {
+            return ResponseEntity.ok("done");
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.stephen_rosenthal;
+
+import org.springframework.boot.test.IntegrationTest;
+
+/**
+ * Runs all of the CustomersController tests again, with database work on the asynchronous request executor
+ */
+@IntegrationTest({"server.port:0", "tenants:acme", "asyncRequests:true"})
+public class AsyncCustomersControllerTest extends CustomersControllerTest {
+}
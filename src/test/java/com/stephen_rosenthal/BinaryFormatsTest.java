@@ -0,0 +1,48 @@
+package com.stephen_rosenthal;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BinaryFormatsTest {
+
+    private BinaryFormats binaryFormats;
+
+    @Before
+    public void setUp() {
+        binaryFormats = new BinaryFormats();
+        ReflectionTestUtils.setField(binaryFormats, "objectMapperBuilder", new Jackson2ObjectMapperBuilder());
+        binaryFormats.init();
+    }
+
+    @Test
+    public void negotiatesBinaryFormats() {
+        assertEquals(BinaryFormats.SMILE, binaryFormats.negotiate("application/x-jackson-smile"));
+        assertEquals(BinaryFormats.CBOR, binaryFormats.negotiate("application/cbor, */*;q=0.1"));
+        assertEquals(BinaryFormats.CBOR, binaryFormats.negotiate("application/json;q=0.5, application/cbor"));
+    }
+
+    @Test
+    public void prefersJson() {
+        assertNull(binaryFormats.negotiate(null));
+        assertNull(binaryFormats.negotiate("*/*"));
+        assertNull(binaryFormats.negotiate("application/*"));
+        assertNull(binaryFormats.negotiate("application/json, application/x-jackson-smile"));
+        assertNull(binaryFormats.negotiate("text/html"));
+        assertNull(binaryFormats.negotiate("not a media type"));
+    }
+
+    @Test
+    public void encodesTheSameFields() throws Exception {
+        Customer customer = new Customer("54fc20a0a82672962f2f740d", "fdr@whitehouse.gov", "Franklin", "Roosevelt");
+        for (MediaType format : binaryFormats.getObjectMappers().keySet()) {
+            byte[] bytes = binaryFormats.write(format, customer);
+            assertEquals(customer, binaryFormats.getObjectMapper(format).readValue(bytes, Customer.class));
+        }
+    }
+}
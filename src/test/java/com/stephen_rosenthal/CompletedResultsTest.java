@@ -0,0 +1,91 @@
+package com.stephen_rosenthal;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.StandardServletAsyncWebRequest;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.context.support.StaticWebApplicationContext;
+import org.springframework.web.method.support.HandlerMethodReturnValueHandler;
+import org.springframework.web.method.support.ModelAndViewContainer;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerAdapter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompletedResultsTest {
+
+    private HandlerMethodReturnValueHandler handler;
+    private MethodParameter returnType;
+    private MockHttpServletRequest request;
+    private MockHttpServletResponse response;
+    private ModelAndViewContainer mavContainer;
+
+    @Before
+    public void setUp() throws Exception {
+        RequestMappingHandlerAdapter adapter = new RequestMappingHandlerAdapter();
+        adapter.setApplicationContext(new StaticWebApplicationContext());
+        adapter.afterPropertiesSet();
+        CompletedResults.completedResultsPostProcessor().postProcessAfterInitialization(adapter, "adapter");
+        handler = adapter.getReturnValueHandlers().get(0);
+        returnType = new MethodParameter(CompletedResultsTest.class.getDeclaredMethod("handle"), -1);
+
+        request = new MockHttpServletRequest("GET", "/customers/1");
+        request.setAsyncSupported(true);
+        response = new MockHttpServletResponse();
+        WebAsyncUtils.getAsyncManager(request).setAsyncWebRequest(new StandardServletAsyncWebRequest(request, response));
+        mavContainer = new ModelAndViewContainer();
+    }
+
+    @Test
+    public void writesCompletedResultsRightAway() throws Exception {
+        DeferredResult<ResponseEntity<String>> result = new DeferredResult<>();
+        result.setResult(new ResponseEntity<>("Franklin", HttpStatus.OK));
+
+        assertTrue(handler.supportsReturnType(returnType));
+        handler.handleReturnValue(result, returnType, mavContainer, new ServletWebRequest(request, response));
+
+        assertFalse(request.isAsyncStarted());
+        assertTrue(mavContainer.isRequestHandled());
+        assertEquals(HttpStatus.OK.value(), response.getStatus());
+        assertEquals("Franklin", response.getContentAsString());
+    }
+
+    @Test
+    public void processesPendingResultsAsynchronously() throws Exception {
+        DeferredResult<ResponseEntity<String>> result = new DeferredResult<>();
+
+        handler.handleReturnValue(result, returnType, mavContainer, new ServletWebRequest(request, response));
+
+        assertTrue(request.isAsyncStarted());
+    }
+
+    @Test
+    public void throwsFailedResults() throws Exception {
+        DeferredResult<ResponseEntity<String>> result = new DeferredResult<>();
+        IllegalStateException exception = new IllegalStateException("Database down");
+        result.setErrorResult(exception);
+
+        try {
+            handler.handleReturnValue(result, returnType, mavContainer, new ServletWebRequest(request, response));
+            fail("Expected the result's exception");
+        } catch (IllegalStateException e) {
+            assertSame(exception, e);
+        }
+        assertFalse(request.isAsyncStarted());
+    }
+
+    // The return type of the handlers
+    private DeferredResult<ResponseEntity<String>> handle() {
+        return null;
+    }
+}
@@ -0,0 +1,52 @@
+package com.stephen_rosenthal;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CustomerCacheTest {
+
+    private CustomerRepository customerRepository;
+    private CustomerCache customerCache;
+    private Customer franklin;
+
+    @Before
+    public void setUp() {
+        franklin = new Customer("1", "fdr@whitehouse.gov", "Franklin", "Roosevelt");
+        customerRepository = mock(CustomerRepository.class);
+
+        customerCache = new CustomerCache();
+        ReflectionTestUtils.setField(customerCache, "customerRepository", customerRepository);
+        ReflectionTestUtils.setField(customerCache, "objectMapper", new ObjectMapper());
+        ReflectionTestUtils.setField(customerCache, "maximumSize", 100L);
+        ReflectionTestUtils.setField(customerCache, "expireAfterWriteSeconds", 60L);
+        customerCache.init();
+    }
+
+    @Test
+    public void cachesLoadedCustomers() {
+        when(customerRepository.findOne("1")).thenReturn(franklin);
+
+        assertEquals(franklin, customerCache.load("1").getCustomer());
+        assertNotNull(customerCache.getIfPresent("1"));
+    }
+
+    @Test
+    public void doesNotCacheCustomersInvalidatedWhileLoading() {
+        when(customerRepository.findOne("1")).thenAnswer(invocation -> {
+            // Another request changes the customer after it was read
+            customerCache.invalidate("1");
+            return franklin;
+        });
+
+        assertEquals(franklin, customerCache.load("1").getCustomer());
+        assertNull(customerCache.getIfPresent("1"));
+    }
+}
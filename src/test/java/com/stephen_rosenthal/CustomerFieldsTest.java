@@ -0,0 +1,34 @@
+package com.stephen_rosenthal;
+
+import com.google.common.collect.Sets;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.query.Query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CustomerFieldsTest {
+
+    @Test
+    public void defaultsToAllFields() {
+        assertTrue(CustomerFields.parse(null).isAll());
+        assertTrue(CustomerFields.parse(" ").isAll());
+        assertTrue(CustomerFields.parse("lastName,firstName,email,id").isAll());
+        assertEquals(new Query(), CustomerFields.ALL.applyTo(new Query()));
+    }
+
+    @Test
+    public void projectsRequestedAndBookkeepingFields() {
+        CustomerFields fields = CustomerFields.parse("email, firstName");
+        assertFalse(fields.isAll());
+        assertEquals("email,firstName", fields.toString());
+        assertEquals(Sets.newHashSet("email", "firstName", "version", "lastModified"),
+                fields.applyTo(new Query()).getFieldsObject().keySet());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownFields() {
+        CustomerFields.parse("email,normalizedEmail");
+    }
+}
@@ -0,0 +1,195 @@
+package com.stephen_rosenthal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CustomerGroupCommitterTest {
+
+    private CustomerRepository customerRepository;
+    private CustomerTotals customerTotals;
+    private CustomerGroupCommitter groupCommitter;
+
+    // Sizes of the bulk inserts, in order
+    private final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() {
+        customerRepository = mock(CustomerRepository.class);
+        customerTotals = mock(CustomerTotals.class);
+        when(customerRepository.insertAll(anyListOf(Customer.class))).thenAnswer(invocation -> {
+            List<?> customers = (List<?>) invocation.getArguments()[0];
+            batchSizes.add(customers.size());
+            return new BulkInsertResult(customers.size(), Collections.<Integer, String>emptyMap());
+        });
+
+        groupCommitter = new CustomerGroupCommitter();
+        ReflectionTestUtils.setField(groupCommitter, "customerRepository", customerRepository);
+        ReflectionTestUtils.setField(groupCommitter, "customerTotals", customerTotals);
+        ReflectionTestUtils.setField(groupCommitter, "changeFeed", mock(CustomerChangeFeed.class));
+        ReflectionTestUtils.setField(groupCommitter, "enabled", true);
+        ReflectionTestUtils.setField(groupCommitter, "maxBatchSize", 10);
+        ReflectionTestUtils.setField(groupCommitter, "maxDelayMillis", 50L);
+        ReflectionTestUtils.setField(groupCommitter, "queueDepth", 100);
+        groupCommitter.init();
+    }
+
+    @After
+    public void tearDown() {
+        groupCommitter.shutdown();
+    }
+
+    @Test
+    public void assignsIdsRightAway() {
+        Customer customer = new Customer("l.nimoy@gmail.com", "Leonard", "Nimoy");
+        groupCommitter.insert(customer);
+        assertNotNull(customer.getId());
+    }
+
+    @Test
+    public void groupsConcurrentInserts() throws Exception {
+        int threads = 25;
+        CountDownLatch start = new CountDownLatch(1);
+        List<CompletableFuture<Void>> futures = new CopyOnWriteArrayList<>();
+        List<Thread> callers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Customer customer = new Customer("customer" + i + "@example.com", "First", "Last");
+            Thread caller = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                futures.add(groupCommitter.insert(customer));
+            });
+            caller.start();
+            callers.add(caller);
+        }
+        start.countDown();
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        for (CompletableFuture<Void> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        // Far fewer writes than customers, and none bigger than the maximum batch size
+        assertEquals(threads, batchSizes.stream().mapToInt(Integer::intValue).sum());
+        assertTrue(batchSizes.toString(), batchSizes.size() < threads);
+        assertTrue(batchSizes.toString(), batchSizes.stream().allMatch(size -> size <= 10));
+        assertEquals(threads, groupCommitter.getInserted());
+        verify(customerTotals, atLeastOnce()).recordWrites(anyLong());
+    }
+
+    @Test
+    public void failsOnlyRejectedCustomers() throws Exception {
+        when(customerRepository.insertAll(anyListOf(Customer.class))).thenAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            List<Customer> customers = (List<Customer>) invocation.getArguments()[0];
+            Map<Integer, String> errors = new LinkedHashMap<>();
+            for (int i = 0; i < customers.size(); i++) {
+                if (customers.get(i).getEmail().equals("a@example.com")) {
+                    errors.put(i, "E11000 duplicate key error");
+                }
+            }
+            return new BulkInsertResult(customers.size() - errors.size(), errors);
+        });
+
+        CompletableFuture<Void> rejected = groupCommitter.insert(new Customer("a@example.com", "A", "A"));
+        CompletableFuture<Void> accepted = groupCommitter.insert(new Customer("b@example.com", "B", "B"));
+        accepted.get(5, TimeUnit.SECONDS);
+        try {
+            rejected.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof DataIntegrityViolationException);
+        }
+    }
+
+    @Test
+    public void failsWholeGroupIfWriteFails() throws Exception {
+        when(customerRepository.insertAll(anyListOf(Customer.class))).thenThrow(new IllegalStateException("down"));
+
+        CompletableFuture<Void> future = groupCommitter.insert(new Customer("a@example.com", "A", "A"));
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void keepsWritingAfterUnexpectedFailures() throws Exception {
+        doThrow(new IllegalStateException("bug")).doNothing().when(customerTotals).recordWrites(anyLong());
+
+        CompletableFuture<Void> failed = groupCommitter.insert(new Customer("a@example.com", "A", "A"));
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        groupCommitter.insert(new Customer("b@example.com", "B", "B")).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void rejectsInsertsIfTheWriterDies() throws Exception {
+        doThrow(new Error("fatal")).when(customerTotals).recordWrites(anyLong());
+
+        CompletableFuture<Void> failed = groupCommitter.insert(new Customer("a@example.com", "A", "A"));
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        CompletableFuture<Void> future = groupCommitter.insert(new Customer("b@example.com", "B", "B"));
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void rejectsInsertsAfterShutdown() throws Exception {
+        groupCommitter.shutdown();
+
+        CompletableFuture<Void> future = groupCommitter.insert(new Customer("a@example.com", "A", "A"));
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(0, groupCommitter.getQueueSize());
+    }
+}
@@ -0,0 +1,113 @@
+package com.stephen_rosenthal;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CustomerRequestExecutorTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private CustomerRequestExecutor executor;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void runsWorkInlineByDefault() {
+        executor = new CustomerRequestExecutor();
+        executor.init();
+        DeferredResult<ResponseEntity<String>> result = executor.submit(() -> ResponseEntity.ok("done"));
+        assertEquals("done", ((ResponseEntity<?>) result.getResult()).getBody());
+    }
+
+    @Test
+    public void reportsExceptionsFromWork() {
+        executor = new CustomerRequestExecutor();
+        executor.init();
+        IllegalStateException exception = new IllegalStateException("failed");
+        DeferredResult<ResponseEntity<String>> result = executor.submit(() -> {
+            throw exception;
+        });
+        assertEquals(exception, result.getResult());
+    }
+
+    @Test
+    public void rejectsWorkWhenTheQueueIsFull() throws InterruptedException {
+        executor = asyncExecutor(1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        DeferredResult<ResponseEntity<String>> running = executor.submit(() -> {
+            started.countDown();
+            release.await();
+            return ResponseEntity.ok("done");
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        DeferredResult<ResponseEntity<String>> queued = executor.submit(() -> ResponseEntity.ok("done"));
+        DeferredResult<ResponseEntity<String>> rejected = executor.submit(() -> ResponseEntity.ok("done"));
+
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, ((ResponseEntity<?>) rejected.getResult()).getStatusCode());
+        assertEquals("1", ((ResponseEntity<?>) rejected.getResult()).getHeaders().getFirst("Retry-After"));
+        assertEquals(1, executor.getRejected());
+        assertEquals(1, executor.getQueueSize());
+        assertTrue(!running.hasResult() && !queued.hasResult());
+
+        release.countDown();
+        for (int i = 0; i < 100 && !queued.hasResult(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals("done", ((ResponseEntity<?>) queued.getResult()).getBody());
+    }
+
+    @Test
+    public void writesThatStartedTimeOutWithoutRetryAfter() throws InterruptedException {
+        executor = asyncExecutor(1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        DeferredResult<ResponseEntity<String>> running = executor.submitWrite(() -> {
+            started.countDown();
+            release.await();
+            return ResponseEntity.ok("done");
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        DeferredResult<ResponseEntity<String>> queued = executor.submitWrite(() -> ResponseEntity.ok("done"));
+
+        timeOut(running);
+        timeOut(queued);
+        // The running write may still succeed, so it must not be retried blindly; the queued one never will
+        assertEquals(HttpStatus.GATEWAY_TIMEOUT, ((ResponseEntity<?>) running.getResult()).getStatusCode());
+        assertNull(((ResponseEntity<?>) running.getResult()).getHeaders().getFirst("Retry-After"));
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, ((ResponseEntity<?>) queued.getResult()).getStatusCode());
+        assertEquals("1", ((ResponseEntity<?>) queued.getResult()).getHeaders().getFirst("Retry-After"));
+        assertEquals(2, executor.getTimeouts());
+    }
+
+    /**
+     * Run what the servlet container runs when an async request times out.
+     */
+    private static void timeOut(DeferredResult<?> result) {
+        ((Runnable) ReflectionTestUtils.getField(result, "timeoutCallback")).run();
+    }
+
+    private static CustomerRequestExecutor asyncExecutor(int threads, int queueDepth) {
+        CustomerRequestExecutor executor = new CustomerRequestExecutor();
+        ReflectionTestUtils.setField(executor, "async", true);
+        ReflectionTestUtils.setField(executor, "threads", threads);
+        ReflectionTestUtils.setField(executor, "queueDepth", queueDepth);
+        ReflectionTestUtils.setField(executor, "timeoutMillis", 5000L);
+        executor.init();
+        return executor;
+    }
+}
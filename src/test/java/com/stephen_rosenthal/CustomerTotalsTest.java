@@ -0,0 +1,67 @@
+package com.stephen_rosenthal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CustomerTotalsTest {
+
+    private CustomerRepository customerRepository;
+    private CustomerTotals customerTotals;
+
+    @Before
+    public void setUp() {
+        customerRepository = mock(CustomerRepository.class);
+        when(customerRepository.count()).thenReturn(5L);
+
+        customerTotals = new CustomerTotals();
+        ReflectionTestUtils.setField(customerTotals, "customerRepository", customerRepository);
+        ReflectionTestUtils.setField(customerTotals, "maxAgeMillis", 60000L);
+        ReflectionTestUtils.setField(customerTotals, "maxWrites", 2L);
+        customerTotals.init();
+    }
+
+    @After
+    public void tearDown() {
+        customerTotals.shutdown();
+    }
+
+    @Test
+    public void countsOnlyOnce() {
+        assertEquals(5, customerTotals.get());
+        assertEquals(5, customerTotals.get());
+        verify(customerRepository, times(1)).count();
+    }
+
+    @Test
+    public void refreshesInBackgroundAfterWrites() throws InterruptedException {
+        assertEquals(5, customerTotals.get());
+        when(customerRepository.count()).thenReturn(7L);
+        customerTotals.recordWrites(1);
+        assertEquals(5, customerTotals.get());
+        customerTotals.recordWrites(1);
+
+        // The stale count is returned while the new one is counted
+        assertEquals(5, customerTotals.get());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (customerTotals.get() != 7 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(7, customerTotals.get());
+    }
+
+    @Test
+    public void countsExactlyOnRequest() {
+        assertEquals(5, customerTotals.get());
+        when(customerRepository.count()).thenReturn(7L);
+        assertEquals(7, customerTotals.count());
+        assertEquals(7, customerTotals.get());
+    }
+}
@@ -1,9 +1,18 @@
 package com.stephen_rosenthal;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.jayway.restassured.RestAssured;
+import com.jayway.restassured.config.DecoderConfig;
 import com.jayway.restassured.internal.mapper.ObjectMapperType;
 import com.jayway.restassured.response.Response;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
 import org.apache.http.HttpStatus;
 import org.junit.Before;
 import org.junit.Test;
@@ -12,27 +21,47 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.IntegrationTest;
 import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static com.jayway.restassured.RestAssured.delete;
 import static com.jayway.restassured.RestAssured.get;
 import static com.jayway.restassured.RestAssured.given;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 @SpringApplicationConfiguration(classes = Main.class)
 @WebAppConfiguration
-@IntegrationTest("server.port:0")
+@IntegrationTest({"server.port:0", "tenants:acme"})
 public class CustomersControllerTest {
 
     @Autowired
     private CustomerRepository customerRepository;
 
+    @Autowired(required = false) // Only with MongoDB, like mongoTemplate
+    private CustomerSchema customerSchema;
+
+    @Autowired
+    private CustomerCache customerCache;
+
+    @Autowired(required = false)
+    private MongoTemplate mongoTemplate;
+
     @Value("${local.server.port}")
     int port;
 
@@ -42,6 +71,7 @@ public class CustomersControllerTest {
     @Before
     public void setUp() throws Exception {
         customerRepository.deleteAll();
+        customerCache.invalidateAll();
 
         // Save some example values to the database
         franklin = new Customer("fdr@whitehouse.gov", "Franklin", "Roosevelt");
@@ -67,6 +97,77 @@ public class CustomersControllerTest {
         assertEquals(leonard.getLastName(), postBody.getLastName());
     }
 
+    @Test
+    public void canImportCustomersFromJson() {
+        String body = "{\"email\": \"l.nimoy@gmail.com\", \"firstName\": \"Leonard\", \"lastName\": \"Nimoy\"}\n"
+                + "\n"
+                + "{\"email\": \"not-an-email\", \"firstName\": \"Bad\", \"lastName\": \"Row\"}\n"
+                + "{\"email\": \" w.shatner@gmail.com \", \"firstName\": \" William \", \"lastName\": \"Shatner\"}\n";
+        Response response = given().contentType("application/x-ndjson").body(body.getBytes(StandardCharsets.UTF_8))
+                .post("/customers/_import?batchSize=1");
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(3, response.jsonPath().getInt("received"));
+        assertEquals(2, response.jsonPath().getInt("inserted"));
+        assertEquals(1, response.jsonPath().getInt("failed"));
+        assertEquals(2, response.jsonPath().getInt("batches.size()"));
+        assertEquals(3, response.jsonPath().getInt("errors[0].row"));
+        assertEquals(4, customerRepository.count());
+
+        // Imported customers are trimmed like any others
+        CustomerPage page = get("/customers").as(CustomerPage.class);
+        assertTrue(page.getCustomers().contains(new Customer(
+                findId(page, "w.shatner@gmail.com"), "w.shatner@gmail.com", "William", "Shatner")));
+    }
+
+    @Test
+    public void canImportCustomersFromCsv() {
+        String body = "lastName,firstName,email\n"
+                + "Nimoy,Leonard,l.nimoy@gmail.com\n"
+                + "\"Kelley, Jr.\",DeForest,\"bones@gmail.com\"\n"
+                + "Takei,George\n";
+        Response response = given().contentType("text/csv").body(body.getBytes(StandardCharsets.UTF_8)).post("/customers/_import");
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(3, response.jsonPath().getInt("received"));
+        assertEquals(2, response.jsonPath().getInt("inserted"));
+        assertEquals(4, response.jsonPath().getInt("errors[0].row"));
+        assertTrue(response.jsonPath().getBoolean("completed"));
+
+        CustomerPage page = get("/customers").as(CustomerPage.class);
+        assertTrue(page.getCustomers().contains(new Customer(
+                findId(page, "bones@gmail.com"), "bones@gmail.com", "DeForest", "Kelley, Jr.")));
+    }
+
+    @Test
+    public void canExportCustomers() throws Exception {
+        // Gzipped by default, since RestAssured accepts gzip and decompresses it
+        Response response = get("/customers/_export");
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(Sets.newHashSet(franklin, teddy), readLines(response.asString()));
+        assertNotNull(response.getHeader("X-Export-Started"));
+
+        // Without decoders, RestAssured doesn't accept gzip
+        response = given().config(RestAssured.config().decoderConfig(DecoderConfig.decoderConfig().noContentDecoders()))
+                .get("/customers/_export");
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals(Sets.newHashSet(franklin, teddy), readLines(response.asString()));
+    }
+
+    @Test
+    public void canExportCustomersModifiedSince() throws Exception {
+        String started = get("/customers/_export").getHeader("X-Export-Started");
+        Thread.sleep(10);
+        Customer leonard = new Customer("l.nimoy@gmail.com", "Leonard", "Nimoy");
+        customerRepository.save(leonard);
+
+        Response response = given().param("modifiedSince", started).get("/customers/_export");
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(Sets.newHashSet(leonard), readLines(response.asString()));
+
+        response = given().param("modifiedSince", "yesterday").get("/customers/_export");
+        assertEquals(HttpStatus.SC_BAD_REQUEST, response.getStatusCode());
+    }
+
     @Test
     public void canGetFranklin() {
         Response response = get("/customers/{id}", franklin.getId());
@@ -81,6 +182,279 @@ public class CustomersControllerTest {
         assertEquals(teddy, response.as(Customer.class));
     }
 
+    @Test
+    public void canGetCachedCustomer() {
+        long hits = customerCache.getStats().hitCount();
+        assertEquals(franklin, get("/customers/{id}", franklin.getId()).as(Customer.class));
+        assertEquals(franklin, get("/customers/{id}", franklin.getId()).as(Customer.class));
+        assertEquals(hits + 1, customerCache.getStats().hitCount());
+
+        Response response = get("/admin/cache");
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertTrue(response.jsonPath().getLong("hits") > 0);
+
+        // Updates and deletes are visible right away
+        franklin.setFirstName("FDR");
+        given().contentType("application/json").body(franklin, ObjectMapperType.JACKSON_2)
+                .put("/customers/{id}", franklin.getId());
+        assertEquals(franklin, get("/customers/{id}", franklin.getId()).as(Customer.class));
+
+        delete("/customers/{id}", franklin.getId());
+        assertEquals(HttpStatus.SC_NOT_FOUND, get("/customers/{id}", franklin.getId()).getStatusCode());
+    }
+
+    @Test
+    public void canGetMetrics() throws InterruptedException {
+        get("/customers/{id}", franklin.getId());
+        get("/customers?likeId={id}", franklin.getId());
+
+        // Asynchronous requests are recorded when they complete, which may be just after the client has the response
+        String metrics = "";
+        for (int i = 0; i < 50 && !metrics.contains("endpoint=\"listSimilarCustomers\""); i++) {
+            Thread.sleep(i == 0 ? 0 : 20);
+            Response response = get("/metrics");
+            assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+            metrics = response.asString();
+        }
+        assertTrue(metrics.contains("customers_http_request_seconds{endpoint=\"getCustomer\",quantile=\"0.99\"}"));
+        assertTrue(metrics.contains("customers_http_request_seconds_count{endpoint=\"listSimilarCustomers\"}"));
+        assertTrue(metrics.contains("customers_http_response_bytes_count{endpoint=\"getCustomer\"}"));
+        assertTrue(metrics.contains("customers_repository_call_seconds_count{method=\"findOne\"}"));
+        assertTrue(metrics.contains("customers_repository_call_seconds_count{method=\"findSimilar\"}"));
+        assertTrue(metrics.contains("customers_json_seconds_count{operation=\"write\"}"));
+        assertTrue(metrics.contains("customers_cache_hits_total"));
+        assertTrue(metrics.contains("customers_tenant_http_request_seconds_count{tenant=\"default\"}"));
+        assertTrue(metrics.contains("customers_changes_recorded_total"));
+    }
+
+    @Test
+    public void canCheckReadiness() throws InterruptedException {
+        // In fast startup mode, the server becomes ready in the background, after it starts listening
+        int status = HttpStatus.SC_SERVICE_UNAVAILABLE;
+        for (int i = 0; i < 300 && status == HttpStatus.SC_SERVICE_UNAVAILABLE; i++) {
+            Thread.sleep(i == 0 ? 0 : 100);
+            status = get("/ready").getStatusCode();
+        }
+        assertEquals(HttpStatus.SC_OK, status);
+    }
+
+    @Test
+    public void keepsTenantsApart() {
+        Tenant.run("acme", customerRepository::deleteAll);
+        try {
+            Customer otherFranklin = new Customer("fdr@whitehouse.gov", "Franklin", "Roosevelt");
+            Response postResponse = given().header(TenantRouting.TENANT_HEADER, "acme").contentType("application/json")
+                    .body(otherFranklin, ObjectMapperType.JACKSON_2).post("/customers");
+            assertEquals(HttpStatus.SC_OK, postResponse.getStatusCode());
+            String id = postResponse.as(Customer.class).getId();
+
+            assertEquals(HttpStatus.SC_NOT_FOUND, get("/customers/{id}", id).getStatusCode());
+            assertEquals(HttpStatus.SC_OK,
+                    given().header(TenantRouting.TENANT_HEADER, "acme").get("/customers/{id}", id).getStatusCode());
+
+            // Lists and similar customers only include the tenant's own
+            CustomerPage similar = given().header(TenantRouting.TENANT_HEADER, "acme")
+                    .get("/customers?likeId={id}", id).as(CustomerPage.class);
+            assertEquals(1, similar.getCustomers().size());
+            assertEquals(2, get("/customers").as(CustomerPage.class).getCustomers().size());
+            assertEquals(1, get("/customers?likeId={id}", franklin.getId()).as(CustomerPage.class)
+                    .getCustomers().size());
+
+            assertEquals(HttpStatus.SC_BAD_REQUEST,
+                    given().header(TenantRouting.TENANT_HEADER, "Not a tenant").get("/customers").getStatusCode());
+            // Tenants that aren't configured are turned away, rather than getting a collection or partition
+            assertEquals(HttpStatus.SC_BAD_REQUEST,
+                    given().header(TenantRouting.TENANT_HEADER, "unknown").get("/customers").getStatusCode());
+            assertEquals(HttpStatus.SC_BAD_REQUEST, given().header(TenantRouting.TENANT_HEADER, "unknown")
+                    .contentType("application/json").body(otherFranklin, ObjectMapperType.JACKSON_2)
+                    .post("/customers").getStatusCode());
+        } finally {
+            Tenant.run("acme", customerRepository::deleteAll);
+        }
+    }
+
+    @Test
+    public void canUseBinaryFormats() throws Exception {
+        ObjectMapper smile = new ObjectMapper(new SmileFactory());
+        ObjectMapper cbor = new ObjectMapper(new CBORFactory());
+
+        // Customers, from the cache or not, and pages
+        for (int i = 0; i < 2; i++) {
+            Response response = given().header("Accept", "application/x-jackson-smile")
+                    .get("/customers/{id}", franklin.getId());
+            assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+            assertTrue(response.getContentType().startsWith("application/x-jackson-smile"));
+            assertEquals(franklin, smile.readValue(response.asByteArray(), Customer.class));
+        }
+        Response response = given().header("Accept", "application/cbor").get("/customers");
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(Lists.newArrayList(franklin, teddy),
+                cbor.readValue(response.asByteArray(), CustomerPage.class).getCustomers());
+
+        // Request bodies
+        Customer leonard = new Customer("l.nimoy@gmail.com", "Leonard", "Nimoy");
+        response = given().contentType("application/x-jackson-smile").body(smile.writeValueAsBytes(leonard))
+                .post("/customers");
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(leonard.getEmail(), response.as(Customer.class).getEmail());
+
+        // JSON is still the default, and preferred when the client accepts either
+        response = given().header("Accept", "application/cbor;q=0.5, application/json").get("/customers");
+        assertTrue(response.getContentType().startsWith("application/json"));
+        assertTrue(get("/customers/{id}", franklin.getId()).getContentType().startsWith("application/json"));
+    }
+
+    @Test
+    public void compressesLargeResponses() {
+        // RestAssured accepts gzip, and decompresses it
+        Response response = get("/metrics");
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertTrue(response.asString().contains("customers_http_request_seconds"));
+
+        assertNull(get("/customers/{id}", franklin.getId()).getHeader("Content-Encoding"));
+        response = given().config(RestAssured.config().decoderConfig(DecoderConfig.decoderConfig().noContentDecoders()))
+                .get("/metrics");
+        assertNull(response.getHeader("Content-Encoding"));
+    }
+
+    @Test
+    public void canFollowChanges() throws Exception {
+        Response response = get("/customers/_changes");
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(Collections.emptyList(), response.path("changes"));
+        String token = response.path("next");
+        String acmeToken = given().header(TenantRouting.TENANT_HEADER, "acme").get("/customers/_changes").path("next");
+
+        // Creates, updates, and deletes, in order
+        Customer eleanor = new Customer("eleanor@whitehouse.gov", "Eleanor", "Roosevelt");
+        String id = given().contentType("application/json").body(eleanor, ObjectMapperType.JACKSON_2)
+                .post("/customers").as(Customer.class).getId();
+        given().contentType("application/merge-patch+json").body("{\"firstName\": \"Anna\"}")
+                .patch("/customers/{id}", id);
+        delete("/customers/{id}", id);
+
+        response = get("/customers/_changes?since={token}", token);
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(Lists.newArrayList("CREATE", "UPDATE", "DELETE"), response.path("changes.type"));
+        assertEquals(Lists.newArrayList(id, id, id), response.path("changes.id"));
+        assertNotNull(response.path("changes[1].version"));
+        assertNull(response.path("changes[2].version"));
+        token = response.path("next");
+
+        // Nothing new: an empty page, after waiting
+        response = get("/customers/_changes?since={token}&waitMillis=100", token);
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(Collections.emptyList(), response.path("changes"));
+
+        // A waiting request gets the next change as soon as it is made
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                return;
+            }
+            delete("/customers/{id}", franklin.getId());
+        });
+        writer.start();
+        long started = System.currentTimeMillis();
+        response = get("/customers/_changes?since={token}&waitMillis=20000", token);
+        writer.join();
+        assertTrue(System.currentTimeMillis() - started < 10000);
+        assertEquals(Lists.newArrayList(franklin.getId()), response.path("changes.id"));
+
+        // Other tenants see none of them
+        response = given().header(TenantRouting.TENANT_HEADER, "acme").get("/customers/_changes?since={token}",
+                acmeToken);
+        assertEquals(Collections.emptyList(), response.path("changes"));
+
+        assertEquals(HttpStatus.SC_BAD_REQUEST, get("/customers/_changes?since=not-a-token").getStatusCode());
+        assertEquals(HttpStatus.SC_BAD_REQUEST,
+                get("/customers/_changes?since={token}&limit=0", token).getStatusCode());
+    }
+
+    @Test
+    public void canGetCustomersByIds() {
+        Response response = get("/customers?ids={ids}", teddy.getId() + ",missing-id," + franklin.getId());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        CustomerBatch batch = response.as(CustomerBatch.class);
+        assertEquals(Lists.newArrayList(teddy, franklin), batch.getCustomers());
+        assertEquals(Lists.newArrayList("missing-id"), batch.getMissing());
+
+        // Cached customers come from the cache, the others from the database
+        get("/customers/{id}", franklin.getId());
+        response = given().contentType("application/json")
+                .body(Lists.newArrayList(franklin.getId(), teddy.getId()), ObjectMapperType.JACKSON_2)
+                .post("/customers/_batchGet");
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(Lists.newArrayList(franklin, teddy), response.as(CustomerBatch.class).getCustomers());
+    }
+
+    @Test
+    public void canGetCustomersByIdsWithFields() {
+        Response response = get("/customers?ids={ids}&fields=email", franklin.getId());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(franklin.getId(), response.path("customers[0].id"));
+        assertEquals(franklin.getEmail(), response.path("customers[0].email"));
+        assertFalse(response.asString().contains("firstName"));
+
+        assertEquals(HttpStatus.SC_BAD_REQUEST,
+                get("/customers?ids={ids}&fields=password", franklin.getId()).getStatusCode());
+    }
+
+    @Test
+    public void canGetCustomerWithFields() {
+        Response response = get("/customers/{id}?fields=id,email", franklin.getId());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(franklin.getId(), response.path("id"));
+        assertEquals(franklin.getEmail(), response.path("email"));
+        assertFalse(response.asString().contains("firstName"));
+
+        // A different representation, with a different ETag
+        String eTag = response.getHeader("ETag");
+        assertFalse(eTag.equals(get("/customers/{id}", franklin.getId()).getHeader("ETag")));
+        response = given().header("If-None-Match", eTag).get("/customers/{id}?fields=id,email", franklin.getId());
+        assertEquals(HttpStatus.SC_NOT_MODIFIED, response.getStatusCode());
+
+        assertEquals(HttpStatus.SC_NOT_FOUND,
+                get("/customers/{id}?fields=email", "some-id-that-does-not-exist").getStatusCode());
+        assertEquals(HttpStatus.SC_BAD_REQUEST,
+                get("/customers/{id}?fields=password", franklin.getId()).getStatusCode());
+    }
+
+    @Test
+    public void canListCustomersWithFields() {
+        Response response = get("/customers?fields=email");
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(2, response.jsonPath().getInt("customers.size()"));
+        assertTrue(response.jsonPath().getList("customers.email").contains(teddy.getEmail()));
+        assertNotNull(response.path("customers[0].id"));
+        assertFalse(response.asString().contains("lastName"));
+
+        response = get("/customers?likeId={id}&fields=email", franklin.getId());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertTrue(response.jsonPath().getList("customers.email").contains(franklin.getEmail()));
+        assertFalse(response.asString().contains("lastName"));
+
+        response = get("/customers?after=&fields=firstName");
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(2, response.jsonPath().getInt("customers.size()"));
+        assertFalse(response.asString().contains("email"));
+
+        assertEquals(HttpStatus.SC_BAD_REQUEST, get("/customers?fields=password").getStatusCode());
+    }
+
+    @Test
+    public void cannotGetTooManyCustomersByIds() {
+        List<String> ids = Lists.newArrayList();
+        for (int i = 0; i <= 200; i++) {
+            ids.add("id-" + i);
+        }
+        Response response = given().contentType("application/json").body(ids, ObjectMapperType.JACKSON_2)
+                .post("/customers/_batchGet");
+        assertEquals(HttpStatus.SC_BAD_REQUEST, response.getStatusCode());
+    }
+
     @Test
     public void cannotGetNonexistentCustomer() {
         Response response = get("/customers/{id}", "some-id-that-does-not-exist");
@@ -118,6 +492,60 @@ public class CustomersControllerTest {
         assertEquals(customers, allPaginatedCustomers);
     }
 
+    @Test
+    public void canListCustomersWithExactTotal() {
+        // The last page shows how many customers there are
+        CustomerPage page = get("/customers").as(CustomerPage.class);
+        assertEquals(1, page.getNumberOfPages());
+        assertFalse(page.isApproximate());
+
+        // Otherwise the total may come from a cached count, but whether there is a next page is exact
+        page = get("/customers?pageSize=1&page=0").as(CustomerPage.class);
+        assertTrue(page.getNumberOfPages() >= 2);
+        assertFalse(page.isLast());
+
+        page = get("/customers?pageSize=1&page=0&exactTotal=true").as(CustomerPage.class);
+        assertEquals(2, page.getNumberOfPages());
+        assertFalse(page.isApproximate());
+        assertFalse(page.isLast());
+    }
+
+    @Test
+    public void canListCustomersWithCursor() {
+        Customer leonard = new Customer("l.nimoy@gmail.com", "Leonard", "Nimoy");
+        customerRepository.save(leonard);
+
+        // Walk all of the customers, 2 at a time
+        Response response = get("/customers?after=&pageSize=2");
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        CustomerCursorPage page0 = response.as(CustomerCursorPage.class);
+        assertEquals(2, page0.getCustomers().size());
+        assertNotNull(page0.getNext());
+
+        response = get("/customers?after={after}&pageSize=2", page0.getNext());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        CustomerCursorPage page1 = response.as(CustomerCursorPage.class);
+        assertEquals(1, page1.getCustomers().size());
+        assertNull(page1.getNext());
+
+        List<Customer> allCustomers = Lists.newArrayList(page0.getCustomers());
+        allCustomers.addAll(page1.getCustomers());
+        assertEquals(Lists.newArrayList(franklin, teddy, leonard), allCustomers);
+
+        // Cursors work the same way for similar customers
+        response = get("/customers?likeId={id}&after=&pageSize=1", franklin.getId());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        CustomerCursorPage similar = response.as(CustomerCursorPage.class);
+        assertEquals(Lists.newArrayList(franklin), similar.getCustomers());
+        assertNull(similar.getNext());
+    }
+
+    @Test
+    public void cannotListCustomersWithInvalidCursor() {
+        Response response = get("/customers?after={after}", "not a cursor!");
+        assertEquals(HttpStatus.SC_BAD_REQUEST, response.getStatusCode());
+    }
+
     @Test
     public void canListCustomersWithSimilarEmailAddresses() {
         // These customers have similar email addresses but different names
@@ -185,6 +613,338 @@ public class CustomersControllerTest {
 
     }
 
+    @Test
+    public void canListFuzzySimilarCustomers() {
+        Customer theodore = new Customer("t.roosevelt@example.com", "Theodore", "Roosevelt");
+        Customer typo = new Customer("tr@example.com", "Theodore", "Roosevlet");
+        customerRepository.save(theodore);
+        customerRepository.save(typo);
+
+        // Without fuzzy, only exact matches
+        Response response = get("/customers?likeId={id}", teddy.getId());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(1, response.as(CustomerPage.class).getCustomers().size());
+
+        // With fuzzy, also the nickname and the typo, best matches first
+        response = get("/customers?likeId={id}&fuzzy=true", teddy.getId());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        List<Customer> customers = response.as(CustomerPage.class).getCustomers();
+        assertEquals(3, customers.size());
+        assertEquals(Sets.newHashSet(teddy, theodore), Sets.newHashSet(customers.subList(0, 2)));
+        assertEquals(typo, customers.get(2));
+        assertFalse(customers.contains(franklin));
+
+        // Blocking keys follow a patched name
+        response = given().contentType("application/merge-patch+json").body("{\"firstName\": \"Ted\"}")
+                .patch("/customers/{id}", franklin.getId());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        response = get("/customers?likeId={id}&fuzzy=true", teddy.getId());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        customers = response.as(CustomerPage.class).getCustomers();
+        assertEquals(4, customers.size());
+        assertTrue(customers.stream().anyMatch(customer -> customer.getId().equals(franklin.getId())));
+    }
+
+    @Test
+    public void skipsCommonBlockingKeysButNotExactMatches() {
+        // More customers than a block can hold share the email key "e:info"
+        List<Customer> fillers = new ArrayList<>();
+        for (int i = 0; i <= FuzzyMatcher.MAX_BLOCK_SIZE; i++) {
+            fillers.add(new Customer("info@company" + i + ".example", "Pat", "Lee"));
+        }
+        customerRepository.insertAll(fillers);
+        Customer zebulon = new Customer("info@acme.example", "Zebulon", "Quartermaine");
+        Customer typo = new Customer("zq@other.example", "Zebulon", "Quartermain");
+        customerRepository.save(zebulon);
+        customerRepository.save(typo);
+        // Saved last, so it comes after all of the others in id order
+        Customer sameEmail = new Customer("Info@ACME.example", "Zeb", "Q");
+        customerRepository.save(sameEmail);
+
+        Response response = get("/customers?likeId={id}&fuzzy=true", zebulon.getId());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(Sets.newHashSet(zebulon, typo, sameEmail),
+                Sets.newHashSet(response.as(CustomerPage.class).getCustomers()));
+    }
+
+    @Test
+    public void canBackfillBlockingKeys() {
+        assumeNotNull(mongoTemplate);
+
+        // A customer saved before blocking keys existed
+        DBObject oldCustomer = new BasicDBObject("email", "t.roosevelt@example.com")
+                .append("normalizedEmail", "t.roosevelt@example.com")
+                .append("firstName", "Theodore")
+                .append("normalizedFirstName", "theodore")
+                .append("lastName", "Roosevelt")
+                .append("normalizedLastName", "roosevelt");
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(Customer.class)).insert(oldCustomer);
+
+        assertEquals(1, customerSchema.backfillBlockingKeys());
+        assertEquals(0, customerSchema.backfillBlockingKeys());
+
+        Response response = get("/customers?likeId={id}&fuzzy=true", teddy.getId());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(2, response.as(CustomerPage.class).getCustomers().size());
+    }
+
+    @Test
+    public void similarCustomerQueryUsesIndexes() {
+        assumeNotNull(mongoTemplate);
+
+        Query query = new Query(CustomerRepositoryImpl.similarTo(franklin));
+        DBObject explain = mongoTemplate.getCollection(mongoTemplate.getCollectionName(Customer.class))
+                .find(query.getQueryObject()).explain();
+
+        // Depending on the MongoDB version, a collection scan is reported as either of these
+        assertFalse(explain.toString(), explain.toString().contains("COLLSCAN"));
+        assertFalse(explain.toString(), explain.toString().contains("BasicCursor"));
+    }
+
+    @Test
+    public void canBackfillNormalizedNames() {
+        assumeNotNull(mongoTemplate);
+
+        // A customer saved before normalized names existed
+        DBObject oldCustomer = new BasicDBObject("email", "l.nimoy@gmail.com")
+                .append("normalizedEmail", "lnimoy@gmail.com")
+                .append("firstName", "Leonard")
+                .append("lastName", "Nimoy");
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(Customer.class)).insert(oldCustomer);
+        Customer leonard = new Customer("leonard@example.com", " LEONARD ", "nimoy");
+        customerRepository.save(leonard);
+
+        assertEquals(1, customerSchema.backfillNormalizedNames());
+        assertEquals(0, customerSchema.backfillNormalizedNames());
+
+        Response response = get("/customers?likeId={id}", leonard.getId());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(2, response.as(CustomerPage.class).getCustomers().size());
+    }
+
+    @Test
+    public void canBackfillNormalizedEmails() {
+        assumeNotNull(mongoTemplate);
+
+        // A customer saved by an older normalizer, which cut tags from the wrong string
+        DBObject oldCustomer = new BasicDBObject("email", "l.nimoy+fan@gmail.com")
+                .append("normalizedEmail", "l.ni@gmail.com")
+                .append("firstName", "Spock")
+                .append("normalizedFirstName", "spock")
+                .append("lastName", "Vulcan")
+                .append("normalizedLastName", "vulcan");
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(Customer.class)).insert(oldCustomer);
+        Customer leonard = new Customer("lnimoy@gmail.com", "Leonard", "Nimoy");
+        customerRepository.save(leonard);
+
+        assertEquals(1, customerSchema.backfillNormalizedEmails());
+        assertEquals(0, customerSchema.backfillNormalizedEmails());
+
+        Response response = get("/customers?likeId={id}", leonard.getId());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(2, response.as(CustomerPage.class).getCustomers().size());
+    }
+
+    @Test
+    public void onlyBackfillsNormalizedEmailsWhenRulesChange() {
+        assumeNotNull(mongoTemplate);
+        mongoTemplate.dropCollection("schema");
+
+        DBObject oldCustomer = new BasicDBObject("email", "l.nimoy+fan@gmail.com")
+                .append("normalizedEmail", "l.ni@gmail.com")
+                .append("normalizedFirstName", "spock")
+                .append("normalizedLastName", "vulcan");
+        DBCollection collection = mongoTemplate.getCollection(mongoTemplate.getCollectionName(Customer.class));
+        collection.insert(oldCustomer);
+        assertEquals(1, customerSchema.backfillNormalizedEmailsIfRulesChanged());
+
+        // With the same rules, stale values are not looked for again
+        collection.update(new BasicDBObject("_id", oldCustomer.get("_id")),
+                new BasicDBObject("$set", new BasicDBObject("normalizedEmail", "l.ni@gmail.com")));
+        assertEquals(0, customerSchema.backfillNormalizedEmailsIfRulesChanged());
+    }
+
+    @Test
+    public void canBackfillVersions() {
+        assumeNotNull(mongoTemplate);
+
+        // A customer saved before versions existed
+        DBObject oldCustomer = new BasicDBObject("email", "l.nimoy@gmail.com")
+                .append("normalizedEmail", "lnimoy@gmail.com")
+                .append("firstName", "Leonard")
+                .append("normalizedFirstName", "leonard")
+                .append("lastName", "Nimoy")
+                .append("normalizedLastName", "nimoy");
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(Customer.class)).insert(oldCustomer);
+
+        assertEquals(1, customerSchema.backfillVersions());
+        assertEquals(0, customerSchema.backfillVersions());
+
+        Customer leonard = new Customer("l.nimoy@gmail.com", "Lenny", "Nimoy");
+        Response response = given().contentType("application/json").body(leonard, ObjectMapperType.JACKSON_2)
+                .put("/customers/{id}", oldCustomer.get("_id").toString());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+    }
+
+    @Test
+    public void canGetNotModified() {
+        Response response = get("/customers/{id}", franklin.getId());
+        String eTag = response.getHeader("ETag");
+        assertNotNull(eTag);
+
+        response = given().header("If-None-Match", eTag).get("/customers/{id}", franklin.getId());
+        assertEquals(HttpStatus.SC_NOT_MODIFIED, response.getStatusCode());
+        assertEquals(eTag, response.getHeader("ETag"));
+        assertEquals("", response.asString());
+
+        response = get("/customers");
+        String pageETag = response.getHeader("ETag");
+        assertNotNull(pageETag);
+        response = given().header("If-None-Match", pageETag).get("/customers");
+        assertEquals(HttpStatus.SC_NOT_MODIFIED, response.getStatusCode());
+
+        // After an update, the customer and the page have new ETags
+        franklin.setFirstName("FDR");
+        given().contentType("application/json").body(franklin, ObjectMapperType.JACKSON_2)
+                .put("/customers/{id}", franklin.getId());
+        response = given().header("If-None-Match", eTag).get("/customers/{id}", franklin.getId());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(franklin, response.as(Customer.class));
+        response = given().header("If-None-Match", pageETag).get("/customers");
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+    }
+
+    @Test
+    public void hasETagsForEachFormat() {
+        Response json = get("/customers/{id}", franklin.getId());
+        Response smile = given().header("Accept", "application/x-jackson-smile")
+                .get("/customers/{id}", franklin.getId());
+        String eTag = json.getHeader("ETag");
+        String smileETag = smile.getHeader("ETag");
+        assertTrue(smileETag.endsWith("-smile\""));
+        assertTrue(variesByAccept(json));
+        assertTrue(variesByAccept(smile));
+
+        // A version the client has in one format doesn't stand for the others
+        Response response = given().header("Accept", "application/x-jackson-smile").header("If-None-Match", eTag)
+                .get("/customers/{id}", franklin.getId());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        response = given().header("Accept", "application/x-jackson-smile").header("If-None-Match", smileETag)
+                .get("/customers/{id}", franklin.getId());
+        assertEquals(HttpStatus.SC_NOT_MODIFIED, response.getStatusCode());
+        assertEquals(smileETag, response.getHeader("ETag"));
+        assertTrue(variesByAccept(response));
+        response = given().header("If-None-Match", smileETag).get("/customers/{id}", franklin.getId());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+
+        // Fields, pages, and the change feed too
+        response = given().header("Accept", "application/cbor").get("/customers/{id}?fields=email", franklin.getId());
+        assertTrue(response.getHeader("ETag").endsWith("-cbor\""));
+        String pageETag = get("/customers").getHeader("ETag");
+        response = given().header("Accept", "application/cbor").header("If-None-Match", pageETag).get("/customers");
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertTrue(variesByAccept(response));
+        assertFalse(pageETag.equals(response.getHeader("ETag")));
+        assertTrue(variesByAccept(get("/customers/_changes")));
+
+        // But any format's tag names the version for an update
+        franklin.setFirstName("FDR");
+        response = given().contentType("application/json").header("If-Match", smileETag)
+                .body(franklin, ObjectMapperType.JACKSON_2).put("/customers/{id}", franklin.getId());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+    }
+
+    @Test
+    public void cannotUpdateWithStaleETag() {
+        String eTag = get("/customers/{id}", franklin.getId()).getHeader("ETag");
+
+        franklin.setFirstName("FDR");
+        Response response = given().contentType("application/json").header("If-Match", eTag)
+                .body(franklin, ObjectMapperType.JACKSON_2).put("/customers/{id}", franklin.getId());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        String newETag = response.getHeader("ETag");
+        assertFalse(eTag.equals(newETag));
+
+        // Someone else's update, based on the version before the first one
+        franklin.setFirstName("Frank");
+        response = given().contentType("application/json").header("If-Match", eTag)
+                .body(franklin, ObjectMapperType.JACKSON_2).put("/customers/{id}", franklin.getId());
+        assertEquals(HttpStatus.SC_PRECONDITION_FAILED, response.getStatusCode());
+        assertEquals("FDR", get("/customers/{id}", franklin.getId()).as(Customer.class).getFirstName());
+
+        response = given().contentType("application/json").header("If-Match", newETag)
+                .body(franklin, ObjectMapperType.JACKSON_2).put("/customers/{id}", franklin.getId());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+    }
+
+    @Test
+    public void canPatchCustomer() {
+        String eTag = get("/customers/{id}", franklin.getId()).getHeader("ETag");
+
+        Response response = given().contentType("application/merge-patch+json")
+                .body("{\"email\": \" Franklin.D.Roosevelt+potus@GMail.com \"}")
+                .patch("/customers/{id}", franklin.getId());
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertFalse(eTag.equals(response.getHeader("ETag")));
+
+        // Only the email (and its normalized form) changed
+        Customer patched = customerRepository.findOne(franklin.getId());
+        assertEquals("Franklin.D.Roosevelt+potus@GMail.com", patched.getEmail());
+        assertEquals("franklindroosevelt@gmail.com", patched.getNormalizedEmail());
+        assertEquals("Franklin", patched.getFirstName());
+        assertEquals("roosevelt", patched.getNormalizedLastName());
+        assertEquals(patched, get("/customers/{id}", franklin.getId()).as(Customer.class));
+
+        // A stale ETag is rejected
+        response = given().contentType("application/merge-patch+json").header("If-Match", eTag)
+                .body("{\"firstName\": \"FDR\"}").patch("/customers/{id}", franklin.getId());
+        assertEquals(HttpStatus.SC_PRECONDITION_FAILED, response.getStatusCode());
+    }
+
+    @Test
+    public void cannotPatchInvalidFields() {
+        String[] patches = {"{\"email\": null}", "{\"email\": \"not-an-email\"}", "{\"id\": \"other-id\"}",
+                "{\"firstName\": 7}"};
+        for (String patch : patches) {
+            Response response = given().contentType("application/merge-patch+json").body(patch)
+                    .patch("/customers/{id}", franklin.getId());
+            assertEquals(patch, HttpStatus.SC_BAD_REQUEST, response.getStatusCode());
+        }
+        assertEquals(franklin, customerRepository.findOne(franklin.getId()));
+
+        Response response = given().contentType("application/merge-patch+json").body("{\"firstName\": \"FDR\"}")
+                .patch("/customers/{id}", "some-id-that-does-not-exist");
+        assertEquals(HttpStatus.SC_NOT_FOUND, response.getStatusCode());
+    }
+
+    @Test
+    public void canFindDuplicateClusters() {
+        // Linked by email, then by name, so all three are one cluster
+        Customer leonard1 = new Customer("leonardsnimoy@gmail.com", "Leonard", "Nimoy");
+        Customer leonard2 = new Customer("leonard.s.nimoy@gmail.com", "Lenny", "Nimoy");
+        Customer leonard3 = new Customer("l.nimoy@gmail.com", "LENNY", "NIMOY");
+        customerRepository.save(leonard1);
+        customerRepository.save(leonard2);
+        customerRepository.save(leonard3);
+
+        Response response = given().post("/admin/duplicates?full=true");
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(5, response.jsonPath().getInt("processed"));
+        assertEquals(1, response.jsonPath().getInt("clusters.size()"));
+        assertEquals(3, response.jsonPath().getInt("clusters[0].size()"));
+
+        // An incremental run only reads customers changed since the last run
+        Customer leonard4 = new Customer("l.nimoy+fans@gmail.com", "Leo", "Nimoy");
+        customerRepository.save(leonard4);
+        response = given().post("/admin/duplicates");
+        assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        assertEquals(1, response.jsonPath().getInt("processed"));
+        assertEquals(1, response.jsonPath().getInt("clusters.size()"));
+        assertEquals(4, response.jsonPath().getInt("clusters[0].size()"));
+
+        assertEquals(HttpStatus.SC_OK, get("/admin/duplicates").getStatusCode());
+    }
+
     @Test
     public void canUpdateExistingUser() {
         franklin.setEmail("franklin.d.roosevelt@gmail.com");
@@ -215,4 +975,31 @@ public class CustomersControllerTest {
         Response response = delete("/customers/{id}", "some-id-that-does-not-exist");
         assertEquals(HttpStatus.SC_NOT_FOUND, response.getStatusCode());
     }
+
+    private static String findId(CustomerPage page, String email) {
+        for (Customer customer : page.getCustomers()) {
+            if (customer.getEmail().equals(email)) {
+                return customer.getId();
+            }
+        }
+        return null;
+    }
+
+    // Compression adds Accept-Encoding to the Vary header
+    private static boolean variesByAccept(Response response) {
+        for (String vary : response.getHeaders().getValues("Vary")) {
+            if (Splitter.on(',').trimResults().splitToList(vary).contains("Accept")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Set<Customer> readLines(String ndjson) throws IOException {
+        Set<Customer> customers = new HashSet<>();
+        for (String line : Splitter.on('\n').omitEmptyStrings().split(ndjson)) {
+            customers.add(new ObjectMapper().readValue(line, Customer.class));
+        }
+        return customers;
+    }
 }
@@ -0,0 +1,81 @@
+package com.stephen_rosenthal;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ETagsTest {
+
+    @Test
+    public void changesWithVersion() {
+        Customer customer = new Customer("54fc20a0a82672962f2f740d", "fdr@whitehouse.gov", "Franklin", "Roosevelt");
+        customer.setLastModified(new Date(1000));
+        customer.setVersion(1L);
+        String eTag = ETags.of(customer);
+        assertEquals("\"1-3e8\"", eTag);
+
+        customer.setVersion(2L);
+        assertFalse(eTag.equals(ETags.of(customer)));
+    }
+
+    @Test
+    public void changesWithFields() {
+        Customer customer = new Customer("54fc20a0a82672962f2f740d", "fdr@whitehouse.gov", "Franklin", "Roosevelt");
+        customer.setLastModified(new Date(1000));
+        customer.setVersion(1L);
+        assertEquals(ETags.of(customer), ETags.of(customer, CustomerFields.ALL));
+        assertEquals(ETags.of(customer), ETags.of(customer, CustomerFields.parse("id,email,firstName,lastName")));
+
+        String eTag = ETags.of(customer, CustomerFields.parse("email"));
+        assertTrue(eTag.startsWith("\"1-3e8-"));
+        assertTrue(eTag.endsWith("\""));
+        assertFalse(eTag.equals(ETags.of(customer, CustomerFields.parse("lastName"))));
+    }
+
+    @Test
+    public void pagesChangeWithTotals() {
+        Customer customer = new Customer("54fc20a0a82672962f2f740d", "fdr@whitehouse.gov", "Franklin", "Roosevelt");
+        List<Customer> customers = Collections.singletonList(customer);
+        String eTag = ETags.of(new CustomerPage(customers, 3, 1, 20, false, false, false));
+        assertEquals(eTag, ETags.of(new CustomerPage(customers, 3, 1, 20, false, false, false)));
+        assertFalse(eTag.equals(ETags.of(new CustomerPage(customers, 3, 1, 20, false, false, true))));
+        assertFalse(eTag.equals(ETags.of(new CustomerPage(customers, 3, 1, 20, false, true, false))));
+        assertFalse(eTag.equals(ETags.of(new CustomerPage(customers, 4, 1, 20, false, false, false))));
+    }
+
+    @Test
+    public void matchesHeaders() {
+        assertTrue(ETags.matches("\"1-3e8\"", "\"1-3e8\"", false));
+        assertTrue(ETags.matches("\"0-0\", \"1-3e8\"", "\"1-3e8\"", false));
+        assertTrue(ETags.matches("*", "\"1-3e8\"", false));
+        assertFalse(ETags.matches("\"0-0\"", "\"1-3e8\"", false));
+        assertFalse(ETags.matches(null, "\"1-3e8\"", true));
+
+        // Weak tags only match with weak comparison (If-None-Match)
+        assertTrue(ETags.matches("W/\"1-3e8\"", "\"1-3e8\"", true));
+        assertFalse(ETags.matches("W/\"1-3e8\"", "\"1-3e8\"", false));
+    }
+
+    @Test
+    public void changesWithFormat() {
+        assertEquals("\"1-3e8\"", ETags.forFormat("\"1-3e8\"", null));
+        String smile = ETags.forFormat("\"1-3e8\"", BinaryFormats.SMILE);
+        String cbor = ETags.forFormat("\"1-3e8\"", BinaryFormats.CBOR);
+        assertEquals("\"1-3e8-smile\"", smile);
+        assertEquals("\"1-3e8-cbor\"", cbor);
+
+        // Representations in other formats don't match for If-None-Match, but are the same version for If-Match
+        assertFalse(ETags.matches(smile, "\"1-3e8\"", true));
+        assertFalse(ETags.matches(smile, cbor, true));
+        assertTrue(ETags.matches(smile, smile, true));
+        assertTrue(ETags.matches(smile, "\"1-3e8\"", false));
+        assertTrue(ETags.matches(cbor, "\"1-3e8\"", false));
+        assertFalse(ETags.matches("W/" + smile, "\"1-3e8\"", false));
+    }
+}
@@ -0,0 +1,86 @@
+package com.stephen_rosenthal;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class EmailNormalizerTest {
+
+    private final EmailNormalizer normalizer = EmailNormalizer.getDefault();
+
+    @Test
+    public void removesDotsAndTagsForGmail() {
+        assertEquals("leonardsnimoy@gmail.com", normalizer.normalize("leonard.s.nimoy@gmail.com"));
+        assertEquals("leonardsnimoy@gmail.com", normalizer.normalize("LeonardSNimoy+autograph@gmail.com"));
+        assertEquals("leonardsnimoy@gmail.com", normalizer.normalize("LeonardSNimoy-spam@GMail.com"));
+    }
+
+    @Test
+    public void cutsTagsAfterRemovingDots() {
+        // The tag is cut from the local part with periods removed, not from the original address
+        assertEquals("lnimoy@gmail.com", normalizer.normalize("l.nimoy+fans@gmail.com"));
+        assertEquals("lnimoy@gmail.com", normalizer.normalize("l.n.i.m.o.y-fans@gmail.com"));
+    }
+
+    @Test
+    public void keepsLeadingTagCharacters() {
+        assertEquals("+nimoy@gmail.com", normalizer.normalize("+nimoy@gmail.com"));
+        assertEquals("-nimoy@gmail.com", normalizer.normalize(".-nimoy@gmail.com"));
+    }
+
+    @Test
+    public void replacesDomainAliases() {
+        assertEquals("leonardsnimoy@gmail.com", normalizer.normalize("Leonard.S.Nimoy+tag@GoogleMail.com"));
+    }
+
+    @Test
+    public void onlyLowercasesUnlistedDomains() {
+        assertEquals("capt.picard-1@starfleet.gov", normalizer.normalize("Capt.Picard-1@Starfleet.gov"));
+        assertEquals("capt.picard+1@starfleet.gov", normalizer.normalize("Capt.Picard+1@Starfleet.gov"));
+    }
+
+    @Test
+    public void appliesTagsWithoutRemovingDots() {
+        assertEquals("jean.luc@outlook.com", normalizer.normalize("Jean.Luc+enterprise@outlook.com"));
+        assertEquals("jean.luc-enterprise@outlook.com", normalizer.normalize("Jean.Luc-enterprise@outlook.com"));
+    }
+
+    @Test
+    public void trimsWhitespace() {
+        assertEquals("leonardsnimoy@gmail.com", normalizer.normalize("  Leonard.S.Nimoy @ gmail.com  "));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAddressesWithoutAt() {
+        normalizer.normalize("not-an-email");
+    }
+
+    @Test
+    public void canLoadCustomRules() throws IOException {
+        String rules = "* = tags:+\nexample.com = removeDots, alias:example.org\n";
+        EmailNormalizer custom = EmailNormalizer.load(new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)));
+        assertEquals("jeanluc+1@example.org", custom.normalize("Jean.Luc+1@Example.com"));
+        // Unlisted domains use the * rule, replacing the built-in rules
+        assertEquals("jean.luc@starfleet.gov", custom.normalize("Jean.Luc+1@starfleet.gov"));
+        assertEquals("jean.luc@gmail.com", custom.normalize("Jean.Luc+1@gmail.com"));
+    }
+
+    @Test
+    public void versionChangesOnlyWithRules() throws IOException {
+        String rules = "* = tags:+\nexample.com = removeDots, alias:example.org\n";
+        String reordered = "example.com = alias:example.org,removeDots\n* = tags:+\n";
+        String changed = "* = tags:+-\nexample.com = removeDots, alias:example.org\n";
+        assertEquals(load(rules).getVersion(), load(reordered).getVersion());
+        assertNotEquals(load(rules).getVersion(), load(changed).getVersion());
+        assertNotEquals(load(rules).getVersion(), normalizer.getVersion());
+    }
+
+    private static EmailNormalizer load(String rules) throws IOException {
+        return EmailNormalizer.load(new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)));
+    }
+}
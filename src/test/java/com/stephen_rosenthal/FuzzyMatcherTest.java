@@ -0,0 +1,93 @@
+package com.stephen_rosenthal;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FuzzyMatcherTest {
+
+    private final FuzzyMatcher matcher = FuzzyMatcher.getDefault();
+
+    @Test
+    public void computesSoundex() {
+        assertEquals("R163", FuzzyMatcher.soundex("robert"));
+        assertEquals("R163", FuzzyMatcher.soundex("rupert"));
+        assertEquals("A261", FuzzyMatcher.soundex("ashcraft")); // h doesn't separate s and c
+        assertEquals("T522", FuzzyMatcher.soundex("tymczak"));
+        assertEquals("P236", FuzzyMatcher.soundex("pfister")); // f has the same digit as the first letter
+        assertEquals("L000", FuzzyMatcher.soundex("lee"));
+    }
+
+    @Test
+    public void computesJaroWinkler() {
+        assertEquals(1, FuzzyMatcher.jaroWinkler("nimoy", "nimoy"), 1e-9);
+        assertEquals(0.961, FuzzyMatcher.jaroWinkler("martha", "marhta"), 0.001);
+        assertEquals(0.840, FuzzyMatcher.jaroWinkler("dwayne", "duane"), 0.001);
+        assertEquals(0, FuzzyMatcher.jaroWinkler("abc", "xyz"), 1e-9);
+        assertEquals(0, FuzzyMatcher.jaroWinkler("", "xyz"), 1e-9);
+    }
+
+    @Test
+    public void typosAndNicknamesShareBlockingKeys() {
+        assertShareKey(new Customer("jon@example.com", "Jon", "Smith"), new Customer("js@example.org", "John", "Smith"));
+        assertShareKey(new Customer("teddy@whitehouse.gov", "Teddy", "Roosevelt"),
+                new Customer("tr@example.com", "Theodore", "Roosevelt"));
+        // Soundex differs (R214 and R212), but the last names share substrings
+        assertShareKey(new Customer("a@example.com", "Theodore", "Roosevelt"),
+                new Customer("b@example.com", "Theodore", "Roosevekt"));
+        assertShareKey(new Customer("capt.picard@starfleet.gov", "Jean-Luc", "Picard"),
+                new Customer("capt.picard@example.com", "Locutus", "Of Borg"));
+    }
+
+    @Test
+    public void differentPeopleDoNotShareBlockingKeys() {
+        List<String> franklin = matcher.blockingKeys(new Customer("fdr@whitehouse.gov", "Franklin", "Roosevelt"));
+        List<String> teddy = matcher.blockingKeys(new Customer("teddy@whitehouse.gov", "Teddy", "Roosevelt"));
+        assertTrue(Collections.disjoint(franklin, teddy));
+    }
+
+    @Test
+    public void customersRecomputeBlockingKeysAfterSetters() {
+        Customer customer = new Customer("fdr@whitehouse.gov", "Franklin", "Roosevelt");
+        assertEquals(matcher.blockingKeys(customer), customer.getBlockingKeys());
+        customer.setFirstName("Teddy");
+        customer.setEmail("teddy@whitehouse.gov");
+        assertEquals(matcher.blockingKeys(new Customer("teddy@whitehouse.gov", "Teddy", "Roosevelt")),
+                customer.getBlockingKeys());
+    }
+
+    @Test
+    public void scoresSimilarCustomers() {
+        Customer john = new Customer("john@example.com", "John", "Smith");
+        assertEquals(1, matcher.score(john, new Customer("john@example.com", "Someone", "Else")), 1e-9);
+        assertEquals(1, matcher.score(john, new Customer("js@example.org", "Johnny", "Smith")), 1e-9);
+        assertEquals(0.9, matcher.score(john, new Customer("john@example.org", "Someone", "Else")), 1e-9);
+
+        assertTrue(matcher.score(john, new Customer("js@example.org", "Jhon", "Smith")) >= FuzzyMatcher.MIN_SCORE);
+        assertTrue(matcher.score(john, new Customer("js@example.org", "John", "Smyth")) >= FuzzyMatcher.MIN_SCORE);
+        assertFalse(matcher.score(john, new Customer("js@example.org", "Jane", "Smith")) >= FuzzyMatcher.MIN_SCORE);
+        assertFalse(matcher.score(john, new Customer("js@example.org", "John", "Jones")) >= FuzzyMatcher.MIN_SCORE);
+    }
+
+    @Test
+    public void canLoadCustomNicknames() throws IOException {
+        String nicknames = "Scotty = Montgomery\n";
+        FuzzyMatcher custom = FuzzyMatcher.load(new ByteArrayInputStream(nicknames.getBytes(StandardCharsets.UTF_8)));
+        assertEquals("montgomery", custom.canonicalFirstName("scotty"));
+        assertEquals("teddy", custom.canonicalFirstName("teddy"));
+    }
+
+    private void assertShareKey(Customer customer, Customer other) {
+        List<String> keys = matcher.blockingKeys(customer);
+        List<String> otherKeys = matcher.blockingKeys(other);
+        assertFalse(keys + " " + otherKeys, Collections.disjoint(keys, otherKeys));
+    }
+}
@@ -0,0 +1,209 @@
+package com.stephen_rosenthal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class InMemoryCustomerChangeFeedTest {
+
+    private CustomerCache customerCache;
+    private InMemoryCustomerChangeFeed changeFeed;
+
+    @Before
+    public void setUp() {
+        customerCache = mock(CustomerCache.class);
+        changeFeed = new InMemoryCustomerChangeFeed();
+        ReflectionTestUtils.setField(changeFeed, "customerCache", customerCache);
+        ReflectionTestUtils.setField(changeFeed, "customerTotals", mock(CustomerTotals.class));
+        ReflectionTestUtils.setField(changeFeed, "maxChanges", 3L);
+        ReflectionTestUtils.setField(changeFeed, "maxWaitMillis", 1000L);
+        changeFeed.init();
+    }
+
+    @After
+    public void tearDown() {
+        changeFeed.shutdown();
+    }
+
+    @Test
+    public void pagesThroughChanges() {
+        String token = poll(null, 10).getBody().getNext();
+        changeFeed.record(CustomerChange.Type.CREATE, "a", 0L);
+        changeFeed.record(CustomerChange.Type.UPDATE, "a", 1L);
+        changeFeed.record(CustomerChange.Type.DELETE, "a", null);
+
+        CustomerChangePage page = poll(token, 2).getBody();
+        assertEquals("[CREATE, UPDATE]", getTypes(page).toString());
+        page = poll(page.getNext(), 2).getBody();
+        assertEquals("[DELETE]", getTypes(page).toString());
+        assertEquals(0, poll(page.getNext(), 2).getBody().getChanges().size());
+
+        // This node's own changes are already out of its cache
+        verify(customerCache, never()).invalidate("a");
+        assertEquals(3, changeFeed.getRecorded());
+    }
+
+    @Test
+    public void skipsOtherTenants() {
+        String token = poll(null, 10).getBody().getNext();
+        Tenant.run("acme", () -> changeFeed.record(CustomerChange.Type.CREATE, "a", 0L));
+        changeFeed.record(CustomerChange.Type.CREATE, "b", 0L);
+
+        CustomerChangePage page = poll(token, 10).getBody();
+        assertEquals(1, page.getChanges().size());
+        assertEquals("b", page.getChanges().get(0).getId());
+    }
+
+    @Test
+    public void dropsOldChanges() {
+        String token = poll(null, 10).getBody().getNext();
+        changeFeed.record(CustomerChange.Type.CREATE, "a", 0L);
+        assertEquals(HttpStatus.OK, poll(token, 10).getStatusCode());
+
+        // Only the latest 3 are kept, so the first is gone
+        for (int i = 0; i < 3; i++) {
+            changeFeed.record(CustomerChange.Type.UPDATE, "a", i + 1L);
+        }
+        assertEquals(HttpStatus.GONE, poll(token, 10).getStatusCode());
+
+        assertEquals(HttpStatus.BAD_REQUEST, poll("not-a-token", 10).getStatusCode());
+        assertEquals(HttpStatus.GONE, poll(CustomerChangeFeed.encodeToken(100), 10).getStatusCode());
+    }
+
+    @Test
+    public void waitsForChanges() throws InterruptedException {
+        String token = poll(null, 10).getBody().getNext();
+        DeferredResult<ResponseEntity<CustomerChangePage>> result = changeFeed.poll(token, 10, 1000);
+        assertFalse(result.hasResult());
+
+        changeFeed.record(CustomerChange.Type.CREATE, "a", 0L);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!result.hasResult() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        @SuppressWarnings("unchecked")
+        ResponseEntity<CustomerChangePage> response = (ResponseEntity<CustomerChangePage>) result.getResult();
+        assertEquals(1, response.getBody().getChanges().size());
+    }
+
+    @Test
+    public void findsChangesPublishedBeforeWaiting() {
+        String token = poll(null, 10).getBody().getNext();
+        // A change is recorded after the poll first reads, but before it waits, so it isn't notified
+        InMemoryCustomerChangeFeed racingFeed = new InMemoryCustomerChangeFeed() {
+            private boolean recorded;
+
+            @Override
+            protected Changes read(String tenant, long after, int limit) {
+                Changes changes = super.read(tenant, after, limit);
+                if (!recorded) {
+                    recorded = true;
+                    record(CustomerChange.Type.CREATE, "a", 0L);
+                }
+                return changes;
+            }
+        };
+        ReflectionTestUtils.setField(racingFeed, "customerCache", customerCache);
+        ReflectionTestUtils.setField(racingFeed, "customerTotals", mock(CustomerTotals.class));
+        ReflectionTestUtils.setField(racingFeed, "maxChanges", 3L);
+        ReflectionTestUtils.setField(racingFeed, "maxWaitMillis", 1000L);
+        racingFeed.init();
+        racingFeed.shutdown(); // No notifications, so only the poll itself can complete
+
+        DeferredResult<ResponseEntity<CustomerChangePage>> result = racingFeed.poll(token, 10, 1000);
+        assertTrue(result.hasResult());
+        @SuppressWarnings("unchecked")
+        ResponseEntity<CustomerChangePage> response = (ResponseEntity<CustomerChangePage>) result.getResult();
+        assertEquals(1, response.getBody().getChanges().size());
+        assertEquals(0, racingFeed.getWaiting());
+    }
+
+    @Test
+    public void coalescesNotifications() throws Exception {
+        AtomicInteger reads = new AtomicInteger();
+        InMemoryCustomerChangeFeed countingFeed = new InMemoryCustomerChangeFeed() {
+            @Override
+            protected Changes read(String tenant, long after, int limit) {
+                reads.incrementAndGet();
+                return super.read(tenant, after, limit);
+            }
+        };
+        ReflectionTestUtils.setField(countingFeed, "customerCache", customerCache);
+        ReflectionTestUtils.setField(countingFeed, "customerTotals", mock(CustomerTotals.class));
+        ReflectionTestUtils.setField(countingFeed, "maxChanges", 100L);
+        ReflectionTestUtils.setField(countingFeed, "maxWaitMillis", 5000L);
+        countingFeed.init();
+        try {
+            String token = CustomerChangeFeed.encodeToken(0);
+            List<DeferredResult<ResponseEntity<CustomerChangePage>>> results = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                results.add(countingFeed.poll(token, i % 2 == 0 ? 2 : 10, 5000));
+            }
+
+            // Hold up the notifier while a burst of changes is recorded
+            CountDownLatch release = new CountDownLatch(1);
+            ExecutorService notifier = (ExecutorService) ReflectionTestUtils.getField(countingFeed, "notifier");
+            notifier.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            for (int i = 0; i < 5; i++) {
+                countingFeed.record(CustomerChange.Type.CREATE, "c" + i, 0L);
+            }
+            reads.set(0);
+            release.countDown();
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!results.stream().allMatch(DeferredResult::hasResult) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, reads.get()); // One notification, and one read for all the waiters
+            for (int i = 0; i < 10; i++) {
+                @SuppressWarnings("unchecked")
+                CustomerChangePage page = ((ResponseEntity<CustomerChangePage>) results.get(i).getResult()).getBody();
+                assertEquals(i % 2 == 0 ? 2 : 5, page.getChanges().size());
+            }
+
+            // Waiters given part of the read resume after the last change they got
+            @SuppressWarnings("unchecked")
+            CustomerChangePage partial = ((ResponseEntity<CustomerChangePage>) results.get(0).getResult()).getBody();
+            DeferredResult<ResponseEntity<CustomerChangePage>> next = countingFeed.poll(partial.getNext(), 10, 0);
+            @SuppressWarnings("unchecked")
+            CustomerChangePage rest = ((ResponseEntity<CustomerChangePage>) next.getResult()).getBody();
+            assertEquals("c2", rest.getChanges().get(0).getId());
+            assertEquals(3, rest.getChanges().size());
+        } finally {
+            countingFeed.shutdown();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private ResponseEntity<CustomerChangePage> poll(String token, int limit) {
+        return (ResponseEntity<CustomerChangePage>) changeFeed.poll(token, limit, 0).getResult();
+    }
+
+    private static List<CustomerChange.Type> getTypes(CustomerChangePage page) {
+        return page.getChanges().stream().map(CustomerChange::getType).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,249 @@
+package com.stephen_rosenthal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+public class InMemoryCustomerRepositoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private InMemoryCustomerRepository repository;
+
+    @Before
+    public void setUp() throws IOException {
+        repository = open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        repository.shutdown();
+    }
+
+    @Test
+    public void findsSimilarCustomersFromIndexes() {
+        Customer franklin = repository.save(new Customer("fdr@whitehouse.gov", "Franklin", "Roosevelt"));
+        Customer teddy = repository.save(new Customer("teddy@whitehouse.gov", "Teddy", "Roosevelt"));
+        Customer other = repository.save(new Customer("FDR@whitehouse.gov", "Frank", "Delano"));
+
+        List<Customer> similar = repository.findSimilar(franklin, new PageRequest(0, 10), CustomerFields.ALL)
+                .getContent();
+        assertEquals(2, similar.size());
+        assertTrue(similar.contains(franklin));
+        assertTrue(similar.contains(other));
+        assertFalse(similar.contains(teddy));
+
+        // Renaming a customer moves it between index entries
+        repository.updateFields(other.getId(), Collections.singletonMap("email", "frank@example.com"), null);
+        assertEquals(1, repository.findSimilar(franklin, new PageRequest(0, 10), CustomerFields.ALL)
+                .getTotalElements());
+    }
+
+    @Test
+    public void checksVersions() {
+        Customer franklin = repository.save(new Customer("fdr@whitehouse.gov", "Franklin", "Roosevelt"));
+        assertEquals(Long.valueOf(0), franklin.getVersion());
+
+        Customer stale = repository.findOne(franklin.getId());
+        repository.save(franklin);
+        assertEquals(Long.valueOf(1), franklin.getVersion());
+        try {
+            repository.save(stale);
+            fail();
+        } catch (OptimisticLockingFailureException e) {
+            // Expected
+        }
+        assertNull(repository.updateFields(franklin.getId(), Collections.singletonMap("firstName", "Frank"), 0L));
+    }
+
+    @Test
+    public void readsAreCopies() {
+        Customer franklin = repository.save(new Customer("fdr@whitehouse.gov", "Franklin", "Roosevelt"));
+        franklin.setFirstName("Frank");
+        assertEquals("Franklin", repository.findOne(franklin.getId()).getFirstName());
+    }
+
+    @Test
+    public void projectsFields() {
+        Customer franklin = repository.save(new Customer("fdr@whitehouse.gov", "Franklin", "Roosevelt"));
+        Customer projected = repository.findByIds(Collections.singletonList(franklin.getId()),
+                CustomerFields.parse("email")).get(0);
+        assertEquals("fdr@whitehouse.gov", projected.getEmail());
+        assertNull(projected.getFirstName());
+        assertEquals(franklin.getVersion(), projected.getVersion());
+    }
+
+    @Test
+    public void recoversFromLog() throws IOException {
+        Customer franklin = repository.save(new Customer("fdr@whitehouse.gov", "Franklin", "Roosevelt"));
+        Customer teddy = repository.save(new Customer("teddy@whitehouse.gov", "Teddy", "Roosevelt"));
+        repository.updateFields(franklin.getId(), Collections.singletonMap("firstName", "Frank"), null);
+        repository.delete(teddy.getId());
+
+        crash();
+        repository = open();
+
+        assertEquals(1, repository.count());
+        Customer recovered = repository.findOne(franklin.getId());
+        assertEquals("Frank", recovered.getFirstName());
+        assertEquals(Long.valueOf(1), recovered.getVersion());
+        assertEquals(1, repository.findSimilar(recovered, new PageRequest(0, 10), CustomerFields.ALL)
+                .getTotalElements());
+    }
+
+    @Test
+    public void recoversFromSnapshotAndLog() throws IOException {
+        Customer franklin = repository.save(new Customer("fdr@whitehouse.gov", "Franklin", "Roosevelt"));
+        repository.snapshot();
+        Customer teddy = repository.save(new Customer("teddy@whitehouse.gov", "Teddy", "Roosevelt"));
+        assertEquals(1, files("log-").size()); // The log from before the snapshot is gone
+        assertEquals(1, files("snapshot-").size());
+
+        repository.shutdown();
+        repository = open();
+        assertEquals(franklin, repository.findOne(franklin.getId()));
+        assertEquals(teddy, repository.findOne(teddy.getId()));
+    }
+
+    @Test
+    public void ignoresCorruptTailOfLog() throws IOException {
+        Customer franklin = repository.save(new Customer("fdr@whitehouse.gov", "Franklin", "Roosevelt"));
+        repository.save(new Customer("teddy@whitehouse.gov", "Teddy", "Roosevelt"));
+        crash();
+
+        // Flip a byte in the second record
+        Path log = files("log-").get(0);
+        try (RandomAccessFile file = new RandomAccessFile(log.toFile(), "rw")) {
+            int firstLength = file.readInt();
+            long position = 8 + firstLength + 20;
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0xff);
+        }
+
+        repository = open();
+        assertEquals(1, repository.count());
+        assertEquals(franklin, repository.findOne(franklin.getId()));
+    }
+
+    @Test
+    public void changesNothingIfTheLogFails() throws IOException {
+        Customer franklin = repository.save(new Customer("fdr@whitehouse.gov", "Franklin", "Roosevelt"));
+        crash();
+        CustomerStoreLog log = mock(CustomerStoreLog.class);
+        UncheckedIOException diskFull = new UncheckedIOException(new IOException("No space left on device"));
+        doThrow(diskFull).when(log).put(any(Customer.class));
+        doThrow(diskFull).when(log).delete(anyString());
+        for (Object partition : ((Map<?, ?>) ReflectionTestUtils.getField(repository, "partitions")).values()) {
+            ReflectionTestUtils.setField(partition, "log", log);
+        }
+
+        Customer teddy = new Customer("teddy@whitehouse.gov", "Teddy", "Roosevelt");
+        try {
+            repository.save(teddy);
+            fail();
+        } catch (UncheckedIOException e) {
+            assertNull(teddy.getVersion());
+        }
+        try {
+            repository.updateFields(franklin.getId(), Collections.singletonMap("firstName", "Frank"), null);
+            fail();
+        } catch (UncheckedIOException e) {
+            // Expected
+        }
+        try {
+            repository.delete(franklin.getId());
+            fail();
+        } catch (UncheckedIOException e) {
+            // Expected
+        }
+
+        assertEquals(1, repository.count());
+        assertEquals(franklin, repository.findOne(franklin.getId()));
+        assertEquals(Collections.singletonList(franklin),
+                repository.findSimilar(franklin, new PageRequest(0, 10), CustomerFields.ALL).getContent());
+    }
+
+    @Test
+    public void keepsTenantsApart() throws Exception {
+        Customer franklin = repository.save(new Customer("fdr@whitehouse.gov", "Franklin", "Roosevelt"));
+        Customer other = Tenant.call("acme", () ->
+                repository.save(new Customer("fdr@whitehouse.gov", "Franklin", "Roosevelt")));
+
+        assertEquals(1, repository.count());
+        assertNull(repository.findOne(other.getId()));
+        assertEquals(Collections.singletonList(franklin),
+                repository.findSimilar(franklin, new PageRequest(0, 10), CustomerFields.ALL).getContent());
+        Tenant.run("acme", () -> {
+            assertEquals(1, repository.count());
+            assertNull(repository.findOne(franklin.getId()));
+            assertEquals(Collections.singletonList(other),
+                    repository.findSimilar(other, new PageRequest(0, 10), CustomerFields.ALL).getContent());
+        });
+
+        // Each tenant recovers from its own log
+        crash();
+        repository = open();
+        assertEquals(franklin, repository.findOne(franklin.getId()));
+        Tenant.run("acme", () -> assertEquals(other, repository.findOne(other.getId())));
+        assertTrue(Files.isDirectory(folder.getRoot().toPath().resolve("tenants").resolve("acme")));
+    }
+
+    /**
+     * Stop without the snapshot written on shutdown, as if the process had crashed
+     */
+    private void crash() throws IOException {
+        ((ExecutorService) ReflectionTestUtils.getField(repository, "scheduler")).shutdownNow();
+        for (Object partition : ((Map<?, ?>) ReflectionTestUtils.getField(repository, "partitions")).values()) {
+            ((Closeable) ReflectionTestUtils.getField(partition, "log")).close();
+        }
+    }
+
+    private InMemoryCustomerRepository open() throws IOException {
+        InMemoryCustomerRepository repository = new InMemoryCustomerRepository();
+        ReflectionTestUtils.setField(repository, "eventPublisher", mock(ApplicationEventPublisher.class));
+        ReflectionTestUtils.setField(repository, "directory", folder.getRoot().getPath());
+        ReflectionTestUtils.setField(repository, "flushIntervalMillis", 100L);
+        ReflectionTestUtils.setField(repository, "snapshotIntervalMillis", 60000L);
+        repository.init();
+        return repository;
+    }
+
+    private List<Path> files(String prefix) throws IOException {
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            return files.filter(file -> file.getFileName().toString().startsWith(prefix)).sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.stephen_rosenthal;
+
+import org.springframework.boot.test.IntegrationTest;
+
+/**
+ * Runs all of the CustomersController tests again, against the in-memory customer store.
+ * Tests of MongoDB's schema and indexes are skipped.
+ */
+@IntegrationTest({"server.port:0", "tenants:acme", "customerStore:memory"})
+public class InMemoryCustomersControllerTest extends CustomersControllerTest {
+}
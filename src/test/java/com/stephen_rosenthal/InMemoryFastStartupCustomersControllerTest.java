@@ -0,0 +1,11 @@
+package com.stephen_rosenthal;
+
+import org.springframework.boot.test.IntegrationTest;
+
+/**
+ * Runs all of the CustomersController tests again, against the in-memory customer store, in fast startup mode,
+ * where most components are created after the server starts listening (see LazyInitialization and Readiness).
+ */
+@IntegrationTest({"server.port:0", "tenants:acme", "customerStore:memory", "fastStartup:true", "warmupIterations:100"})
+public class InMemoryFastStartupCustomersControllerTest extends CustomersControllerTest {
+}
@@ -0,0 +1,51 @@
+package com.stephen_rosenthal;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.web.servlet.DispatcherServlet;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LazyInitializationTest {
+
+    private DefaultListableBeanFactory beanFactory;
+
+    @Before
+    public void setUp() {
+        beanFactory = new DefaultListableBeanFactory();
+        beanFactory.registerBeanDefinition("customerCache", new RootBeanDefinition(CustomerCache.class));
+        beanFactory.registerBeanDefinition("customerTotals", new RootBeanDefinition(CustomerTotals.class));
+        beanFactory.registerBeanDefinition("dispatcherServlet", new RootBeanDefinition(DispatcherServlet.class));
+        RootBeanDefinition prototype = new RootBeanDefinition(Customer.class);
+        prototype.setScope(BeanDefinition.SCOPE_PROTOTYPE);
+        beanFactory.registerBeanDefinition("customer", prototype);
+    }
+
+    @Test
+    public void makesOwnSingletonsLazyInFastStartupMode() {
+        postProcess(new MockEnvironment().withProperty("fastStartup", "true"));
+
+        assertTrue(beanFactory.getBeanDefinition("customerCache").isLazyInit());
+        assertFalse(beanFactory.getBeanDefinition("customerTotals").isLazyInit()); // An application listener
+        assertFalse(beanFactory.getBeanDefinition("dispatcherServlet").isLazyInit());
+        assertFalse(beanFactory.getBeanDefinition("customer").isLazyInit());
+    }
+
+    @Test
+    public void changesNothingOtherwise() {
+        postProcess(new MockEnvironment());
+
+        assertFalse(beanFactory.getBeanDefinition("customerCache").isLazyInit());
+    }
+
+    private void postProcess(MockEnvironment environment) {
+        LazyInitialization lazyInitialization = new LazyInitialization();
+        lazyInitialization.setEnvironment(environment);
+        lazyInitialization.postProcessBeanFactory(beanFactory);
+    }
+}
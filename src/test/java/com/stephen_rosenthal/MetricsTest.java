@@ -0,0 +1,53 @@
+package com.stephen_rosenthal;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    private final Metrics metrics = new Metrics();
+
+    @Test
+    public void recordsQuantilesCountsAndErrors() {
+        Metrics.Summary requests = metrics.getRequests("getCustomer");
+        for (int i = 1; i <= 1000; i++) {
+            requests.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        requests.recordError();
+
+        assertEquals(1000, requests.getCount());
+        assertEquals(1, requests.getErrors());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(500), requests.getValueAtQuantile(0.5), 5000);
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(990), requests.getValueAtQuantile(0.99), 10000);
+        assertTrue(metrics.getRequests("getCustomer") == requests);
+    }
+
+    @Test
+    public void clampsValuesOutsideTheRange() {
+        Metrics.Summary requests = metrics.getRequests("getCustomer");
+        requests.record(TimeUnit.HOURS.toNanos(1));
+        requests.record(-1);
+        assertEquals(2, requests.getCount());
+    }
+
+    @Test
+    public void writesPrometheusText() {
+        metrics.getRequests("getCustomer").record(TimeUnit.MILLISECONDS.toNanos(2));
+        metrics.getResponseSizes("getCustomer").record(100);
+
+        StringBuilder out = new StringBuilder();
+        metrics.write(out);
+        String text = out.toString();
+        assertTrue(text.contains("# TYPE customers_http_request_seconds summary\n"));
+        assertTrue(text.contains("customers_http_request_seconds{endpoint=\"getCustomer\",quantile=\"0.5\"} 0.002"));
+        assertTrue(text.contains("customers_http_request_seconds_count{endpoint=\"getCustomer\"} 1\n"));
+        assertTrue(text.contains("customers_http_request_errors_total{endpoint=\"getCustomer\"} 0\n"));
+        assertTrue(text.contains("customers_http_response_bytes{endpoint=\"getCustomer\",quantile=\"0.999\"} 100.0\n"));
+        // Families with nothing recorded are left out
+        assertTrue(!text.contains("customers_repository_call_seconds"));
+    }
+}
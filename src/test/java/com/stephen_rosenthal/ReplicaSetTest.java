@@ -0,0 +1,171 @@
+package com.stephen_rosenthal;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.config.Storage;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.process.runtime.Network;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.domain.PageRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the application against a local three-member replica set, started with the same embedded MongoDB
+ * that the build uses for tests. Run with 'gradle testReplicaSet'.
+ */
+public class ReplicaSetTest {
+
+    private static final String REPLICA_SET = "rs0";
+    private static final int MEMBERS = 3;
+    private static final long ELECTION_TIMEOUT_MILLIS = 120000;
+
+    private static final List<MongodExecutable> mongods = new ArrayList<>();
+    private static final List<ServerAddress> members = new ArrayList<>();
+    private static ConfigurableApplicationContext context;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        MongodStarter starter = MongodStarter.getDefaultInstance();
+        BasicDBList memberConfigs = new BasicDBList();
+        for (int i = 0; i < MEMBERS; i++) {
+            int port = Network.getFreeServerPort();
+            MongodExecutable mongod = starter.prepare(new MongodConfigBuilder()
+                    .version(Version.Main.PRODUCTION)
+                    .net(new Net(port, Network.localhostIsIPv6()))
+                    .replication(new Storage(null, REPLICA_SET, 16))
+                    .build());
+            mongods.add(mongod);
+            mongod.start();
+            members.add(new ServerAddress("localhost", port));
+            memberConfigs.add(new BasicDBObject("_id", i).append("host", "localhost:" + port));
+        }
+
+        MongoClient first = new MongoClient(members.get(0));
+        try {
+            first.getDB("admin").command(new BasicDBObject("replSetInitiate",
+                    new BasicDBObject("_id", REPLICA_SET).append("members", memberConfigs))).throwOnError();
+        } finally {
+            first.close();
+        }
+        awaitPrimaryAndSecondaries();
+
+        StringBuilder hosts = new StringBuilder();
+        for (ServerAddress member : members) {
+            hosts.append(hosts.length() > 0 ? "," : "").append(member.getHost()).append(':').append(member.getPort());
+        }
+        context = new SpringApplicationBuilder(Main.class)
+                .web(false)
+                .run("--mongoHostName=" + hosts,
+                        "--mongoPort=27017",
+                        "--mongoDatabaseName=test",
+                        "--mongoReplicaSet=" + REPLICA_SET,
+                        "--mongoWriteConcern=MAJORITY",
+                        "--mongoListReadPreference=secondary");
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        if (context != null) {
+            context.close();
+        }
+        for (MongodExecutable mongod : mongods) {
+            mongod.stop();
+        }
+    }
+
+    @Test
+    public void connectsToReplicaSet() {
+        MongoClient mongoClient = context.getBean(MongoClient.class);
+        assertNotNull(mongoClient.getReplicaSetStatus());
+        assertEquals(REPLICA_SET, mongoClient.getReplicaSetStatus().getName());
+    }
+
+    @Test
+    public void writesGoToPrimary() {
+        long primaryInserts = sumOpCounter("insert", true);
+        context.getBean(CustomerRepository.class).save(new Customer("l.nimoy@gmail.com", "Leonard", "Nimoy"));
+        assertEquals(primaryInserts + 1, sumOpCounter("insert", true));
+    }
+
+    @Test
+    public void listReadsGoToSecondaries() {
+        CustomerRepository customerRepository = context.getBean(CustomerRepository.class);
+        long secondaryQueries = sumOpCounter("query", false);
+        long primaryQueries = sumOpCounter("query", true);
+
+        int reads = 10;
+        for (int i = 0; i < reads; i++) {
+            customerRepository.findPage(new PageRequest(0, 20), CustomerFields.ALL);
+            customerRepository.findAllAfter(null, 20, CustomerFields.ALL);
+            customerRepository.forEachModifiedSince(null, customer -> {
+            });
+        }
+
+        assertTrue(sumOpCounter("query", false) - secondaryQueries >= 3 * reads);
+        assertTrue(sumOpCounter("query", true) - primaryQueries < reads);
+    }
+
+    /**
+     * @return the sum of an operation counter (see serverStatus) across either the primary, or the secondaries.
+     */
+    private static long sumOpCounter(String operation, boolean primary) {
+        long sum = 0;
+        for (ServerAddress member : members) {
+            MongoClient client = new MongoClient(member);
+            try {
+                boolean isPrimary = client.getDB("admin").command("isMaster").getBoolean("ismaster");
+                if (isPrimary == primary) {
+                    DBObject opCounters = (DBObject) client.getDB("admin").command("serverStatus").get("opcounters");
+                    sum += ((Number) opCounters.get(operation)).longValue();
+                }
+            } finally {
+                client.close();
+            }
+        }
+        return sum;
+    }
+
+    private static void awaitPrimaryAndSecondaries() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + ELECTION_TIMEOUT_MILLIS;
+        MongoClient first = new MongoClient(members.get(0));
+        try {
+            while (System.currentTimeMillis() < deadline) {
+                CommandResult status = first.getDB("admin").command("replSetGetStatus");
+                int primaries = 0;
+                int secondaries = 0;
+                if (status.ok()) {
+                    for (Object member : (BasicDBList) status.get("members")) {
+                        String state = (String) ((DBObject) member).get("stateStr");
+                        primaries += "PRIMARY".equals(state) ? 1 : 0;
+                        secondaries += "SECONDARY".equals(state) ? 1 : 0;
+                    }
+                }
+                if (primaries == 1 && secondaries == MEMBERS - 1) {
+                    return;
+                }
+                Thread.sleep(500);
+            }
+        } finally {
+            first.close();
+        }
+        throw new IllegalStateException("Replica set " + REPLICA_SET + " did not elect a primary");
+    }
+}